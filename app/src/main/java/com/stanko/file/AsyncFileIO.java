@@ -0,0 +1,399 @@
+package com.stanko.file;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.stanko.tools.BackgroundThreadFactory;
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.Hash;
+import com.stanko.tools.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous file operations: copy, write, read, delete, merge and hash run off the calling
+ * thread and return a Future, results may also be delivered to a callback on the UI thread.
+ * Each storage volume (internal, external, SD card...) has its own queue served by a few threads
+ * (DEFAULT_CONCURRENCY_PER_VOLUME), so a burst of I/O on one volume neither floods its flash with
+ * parallel requests nor delays other volumes. USER_VISIBLE requests are taken before BACKGROUND
+ * ones, requests may be cancelled while queued or running (interrupting it), and queues are bounded
+ * (DEFAULT_MAX_QUEUED_PER_VOLUME). getMetrics() tells queue depths and wait/run times per volume.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class AsyncFileIO {
+
+    private static final String LOG_TAG = AsyncFileIO.class.getSimpleName();
+
+    public static final int PRIORITY_USER_VISIBLE = 0;
+    public static final int PRIORITY_BACKGROUND = 1;
+
+    public static final int DEFAULT_CONCURRENCY_PER_VOLUME = 2;
+    public static final int DEFAULT_MAX_QUEUED_PER_VOLUME = 1024;
+
+    private static AsyncFileIO sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, VolumeQueue> mVolumeQueues = new HashMap<>();
+    private final AtomicLong mSequence = new AtomicLong();
+    private final int mConcurrencyPerVolume;
+    private final int mMaxQueuedPerVolume;
+
+    public interface IResultCallback<T> {
+        /**
+         * Called on the UI thread
+         *
+         * @param result - result of the operation
+         */
+        void onSuccess(T result);
+
+        /**
+         * Called on the UI thread, not called if the request was cancelled
+         *
+         * @param e - IOException or other exception thrown by the operation
+         */
+        void onFailure(Exception e);
+    }
+
+    /**
+     * Queue metrics of a volume
+     */
+    public static class Metrics {
+        public final String mountPoint;
+        public final int queuedCount;
+        public final int runningCount;
+        public final long completedCount;
+        public final long failedCount;
+        public final long cancelledCount;
+        public final long rejectedCount;
+        public final long averageWaitMs;
+        public final long maxWaitMs;
+        public final long averageRunMs;
+
+        Metrics(final VolumeQueue volumeQueue) {
+            this.mountPoint = volumeQueue.mountPoint;
+            this.queuedCount = volumeQueue.executor.getQueue().size();
+            this.runningCount = volumeQueue.executor.getActiveCount();
+            this.completedCount = volumeQueue.completedCount.get();
+            this.failedCount = volumeQueue.failedCount.get();
+            this.cancelledCount = volumeQueue.cancelledCount.get();
+            this.rejectedCount = volumeQueue.rejectedCount.get();
+            final long startedCount = Math.max(1, volumeQueue.startedCount.get());
+            final long finishedCount = Math.max(1, completedCount + failedCount);
+            this.averageWaitMs = volumeQueue.totalWaitMs.get() / startedCount;
+            this.maxWaitMs = volumeQueue.maxWaitMs.get();
+            this.averageRunMs = volumeQueue.totalRunMs.get() / finishedCount;
+        }
+
+        @Override
+        public String toString() {
+            return mountPoint + ": queued " + queuedCount + ", running " + runningCount
+                    + ", completed " + completedCount + ", failed " + failedCount
+                    + ", cancelled " + cancelledCount + ", rejected " + rejectedCount
+                    + ", wait avg " + averageWaitMs + "ms max " + maxWaitMs + "ms, run avg " + averageRunMs + "ms";
+        }
+    }
+
+    public static synchronized AsyncFileIO getInstance() {
+        if (sInstance == null)
+            sInstance = new AsyncFileIO(DEFAULT_CONCURRENCY_PER_VOLUME, DEFAULT_MAX_QUEUED_PER_VOLUME);
+        return sInstance;
+    }
+
+    /**
+     * @param concurrencyPerVolume - count of requests running at once on a volume
+     * @param maxQueuedPerVolume   - count of requests waiting for a volume, more are rejected
+     */
+    public AsyncFileIO(final int concurrencyPerVolume, final int maxQueuedPerVolume) {
+        mConcurrencyPerVolume = Math.max(1, concurrencyPerVolume);
+        mMaxQueuedPerVolume = Math.max(1, maxQueuedPerVolume);
+    }
+
+    //*********************************************************************************************
+    //
+    // Operations
+    //
+
+    /**
+     * Copies a file, see FileUtils.copy(). Queued on destination's volume
+     *
+     * @return Future of the count of bytes copied
+     */
+    public Future<Long> copy(final File src, final File dst, final int priority, final IResultCallback<Long> callback) {
+        return submit(dst, priority, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return new FileCopier().copy(src, dst);
+            }
+        }, callback);
+    }
+
+    /**
+     * Writes bytes to a file atomically, see AtomicFiles.write()
+     *
+     * @return Future of true if the file has new content
+     */
+    public Future<Boolean> write(final byte[] data, final File targetFile, final int priority, final IResultCallback<Boolean> callback) {
+        return submit(targetFile, priority, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return AtomicFiles.write(data, targetFile);
+            }
+        }, callback);
+    }
+
+    /**
+     * Reads a whole file, up to 2GB
+     *
+     * @return Future of file's bytes
+     */
+    public Future<byte[]> read(final File file, final int priority, final IResultCallback<byte[]> callback) {
+        return submit(file, priority, new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return readFully(file);
+            }
+        }, callback);
+    }
+
+    /**
+     * Deletes a file or a directory with all its content
+     *
+     * @return Future of true if deleted
+     */
+    public Future<Boolean> delete(final File file, final int priority, final IResultCallback<Boolean> callback) {
+        return submit(file, priority, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return file.isDirectory() ? FileUtils.deleteFilesAndDirsRecursive(file) : file.delete();
+            }
+        }, callback);
+    }
+
+    /**
+     * Concatenates parts into target file, see FileUtils.concat(). Queued on target's volume
+     *
+     * @return Future of true if succeeded
+     */
+    public Future<Boolean> merge(final List<File> parts, final File targetFile, final int priority, final IResultCallback<Boolean> callback) {
+        return submit(targetFile, priority, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return FileUtils.concat(parts, targetFile);
+            }
+        }, callback);
+    }
+
+    /**
+     * Calculates MD5 of a file, see Hash.getMD5()
+     *
+     * @return Future of MD5 hex string or null if it could not be calculated
+     */
+    public Future<String> hash(final File file, final int priority, final IResultCallback<String> callback) {
+        return submit(file, priority, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return Hash.getMD5(file);
+            }
+        }, callback);
+    }
+
+    /**
+     * Queues any operation on a volume
+     *
+     * @param fileOfVolume - file which volume the operation works with, existing or not
+     * @param priority     - PRIORITY_USER_VISIBLE or PRIORITY_BACKGROUND
+     * @param operation    - runs on a background thread, should stop once interrupted
+     * @param callback     - may be null
+     * @return Future, cancel(true) interrupts a running operation
+     */
+    public <T> Future<T> submit(final File fileOfVolume, final int priority, final Callable<T> operation, final IResultCallback<T> callback) {
+        final VolumeQueue volumeQueue = getVolumeQueue(fileOfVolume);
+        final Request<T> request = new Request<>(operation, volumeQueue, priority, mSequence.incrementAndGet(), callback);
+        if (volumeQueue.executor.getQueue().size() >= mMaxQueuedPerVolume) {
+            volumeQueue.rejectedCount.incrementAndGet();
+            request.reject(new IOException("IOException (async file I/O): queue of " + volumeQueue.mountPoint + " is full"));
+            return request;
+        }
+        volumeQueue.executor.execute(request);
+        return request;
+    }
+
+    /**
+     * @return metrics of each volume used so far
+     */
+    public List<Metrics> getMetrics() {
+        final List<Metrics> metrics = new ArrayList<>();
+        synchronized (mVolumeQueues) {
+            for (final VolumeQueue volumeQueue : mVolumeQueues.values())
+                metrics.add(new Metrics(volumeQueue));
+        }
+        return metrics;
+    }
+
+    //*********************************************************************************************
+    //
+    // Queues
+    //
+
+    /**
+     * Requests of a volume ordered by priority, then by submission
+     */
+    private static class VolumeQueue {
+        final String mountPoint;
+        final ThreadPoolExecutor executor;
+        final AtomicLong startedCount = new AtomicLong();
+        final AtomicLong completedCount = new AtomicLong();
+        final AtomicLong failedCount = new AtomicLong();
+        final AtomicLong cancelledCount = new AtomicLong();
+        final AtomicLong rejectedCount = new AtomicLong();
+        final AtomicLong totalWaitMs = new AtomicLong();
+        final AtomicLong maxWaitMs = new AtomicLong();
+        final AtomicLong totalRunMs = new AtomicLong();
+
+        VolumeQueue(final String mountPoint, final int concurrency) {
+            this.mountPoint = mountPoint;
+            // unbounded queue, so the pool never grows above core size, the bound is checked on submit
+            this.executor = new ThreadPoolExecutor(concurrency, concurrency, 30, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new BackgroundThreadFactory(Thread.MIN_PRIORITY));
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+
+        void onStarted(final long waitMs) {
+            startedCount.incrementAndGet();
+            totalWaitMs.addAndGet(waitMs);
+            while (true) {
+                final long max = maxWaitMs.get();
+                if (waitMs <= max || maxWaitMs.compareAndSet(max, waitMs))
+                    break;
+            }
+        }
+    }
+
+    private VolumeQueue getVolumeQueue(final File fileOfVolume) {
+        final String mountPoint = Volumes.getMountPoint(fileOfVolume);
+        synchronized (mVolumeQueues) {
+            VolumeQueue volumeQueue = mVolumeQueues.get(mountPoint);
+            if (volumeQueue == null)
+                mVolumeQueues.put(mountPoint, volumeQueue = new VolumeQueue(mountPoint, mConcurrencyPerVolume));
+            return volumeQueue;
+        }
+    }
+
+    private class Request<T> extends FutureTask<T> implements Comparable<Request<?>> {
+        private final VolumeQueue mVolumeQueue;
+        private final int mPriority;
+        private final long mSequence;
+        private final IResultCallback<T> mCallback;
+        private final long mQueuedTime = System.currentTimeMillis();
+        private volatile long mStartTime;
+        private volatile Exception mRejectException;
+
+        Request(final Callable<T> operation, final VolumeQueue volumeQueue, final int priority,
+                final long sequence, final IResultCallback<T> callback) {
+            super(operation);
+            mVolumeQueue = volumeQueue;
+            mPriority = priority;
+            mSequence = sequence;
+            mCallback = callback;
+        }
+
+        @Override
+        public void run() {
+            if (!isDone()) {
+                mStartTime = System.currentTimeMillis();
+                mVolumeQueue.onStarted(mStartTime - mQueuedTime);
+            }
+            super.run();
+        }
+
+        void reject(final Exception e) {
+            mRejectException = e;
+            setException(e);
+        }
+
+        @Override
+        protected void done() {
+            Exception exception = null;
+            T result = null;
+            if (isCancelled()) {
+                // a cancelled request stays in the queue till its turn, but does nothing then
+                mVolumeQueue.executor.remove(this);
+                mVolumeQueue.cancelledCount.incrementAndGet();
+                return;
+            }
+            try {
+                result = get();
+            } catch (ExecutionException e) {
+                exception = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            } catch (InterruptedException e) {
+                return;
+            } catch (CancellationException e) {
+                return;
+            }
+            if (mRejectException == null) {
+                mVolumeQueue.totalRunMs.addAndGet(System.currentTimeMillis() - mStartTime);
+                if (exception == null)
+                    mVolumeQueue.completedCount.incrementAndGet();
+                else
+                    mVolumeQueue.failedCount.incrementAndGet();
+            }
+            if (exception != null)
+                Log.e(LOG_TAG, exception);
+            if (mCallback == null)
+                return;
+            final T finalResult = result;
+            final Exception finalException = exception;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (finalException == null)
+                        mCallback.onSuccess(finalResult);
+                    else
+                        mCallback.onFailure(finalException);
+                }
+            });
+        }
+
+        @Override
+        public int compareTo(final Request<?> another) {
+            if (mPriority != another.mPriority)
+                return mPriority < another.mPriority ? -1 : 1;
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+
+    private static byte[] readFully(final File file) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final long length = randomAccessFile.length();
+            if (length > Integer.MAX_VALUE)
+                throw new IOException("IOException (read file): file is too big " + length);
+            final byte[] data = new byte[(int) length];
+            randomAccessFile.readFully(data);
+            return data;
+        } finally {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, e);
+            }
+        }
+    }
+}
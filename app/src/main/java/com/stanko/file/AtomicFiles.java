@@ -0,0 +1,174 @@
+package com.stanko.file;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Crash-safe file writes: data goes to a temporary file next to the target, which is fsynced and
+ * renamed over the target. Rename is atomic within a directory, so after a crash the target has
+ * either old or new content, never a part of it. On API 21+ the directory is fsynced as well, so
+ * the rename itself survives a power loss, below it the rename is left to the file system.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class AtomicFiles {
+
+    private static final String LOG_TAG = AtomicFiles.class.getSimpleName();
+
+    private static final String TEMP_FILE_SUFFIX = ".atomic";
+
+    /**
+     * @param data       - bytes to write
+     * @param targetFile - file to replace
+     * @return true if target file has new content, false if it has the old one
+     */
+    public static boolean write(final byte[] data, final File targetFile) {
+        return write(data, 0, data == null ? 0 : data.length, targetFile);
+    }
+
+    /**
+     * @param data       - bytes to write
+     * @param offset     - of the first byte
+     * @param length     - count of bytes
+     * @param targetFile - file to replace
+     * @return true if target file has new content, false if it has the old one
+     */
+    public static boolean write(final byte[] data, final int offset, final int length, final File targetFile) {
+        if (data == null || !FileUtils.isWritable(targetFile, true)) {
+            Log.e(LOG_TAG, "write(): Null parameter or can't make path dirs");
+            return false;
+        }
+        final File tempFile = getTempFile(targetFile);
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(tempFile);
+            outputStream.write(data, offset, length);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+            return abort(outputStream, tempFile);
+        }
+        return commit(outputStream, tempFile, targetFile);
+    }
+
+    /**
+     * Writes a stream to a file, the stream is not closed
+     *
+     * @param inputStream - stream to read till its end
+     * @param targetFile  - file to replace
+     * @return true if target file has new content, false if it has the old one
+     */
+    public static boolean write(final InputStream inputStream, final File targetFile) {
+        if (inputStream == null || !FileUtils.isWritable(targetFile, true)) {
+            Log.e(LOG_TAG, "write(): Null parameter or can't make path dirs");
+            return false;
+        }
+        final File tempFile = getTempFile(targetFile);
+        final byte[] buffer = BufferPool.obtainFor(targetFile);
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(tempFile);
+            int count;
+            while ((count = inputStream.read(buffer)) != -1)
+                outputStream.write(buffer, 0, count);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+            return abort(outputStream, tempFile);
+        } finally {
+            BufferPool.recycle(buffer);
+        }
+        return commit(outputStream, tempFile, targetFile);
+    }
+
+    /**
+     * Temporary file for the target, unique per thread so concurrent writes to the same target do
+     * not mix their data: the last rename wins
+     */
+    static File getTempFile(final File targetFile) {
+        return new File(targetFile.getAbsoluteFile().getParentFile(),
+                "." + targetFile.getName() + "." + Thread.currentThread().getId() + TEMP_FILE_SUFFIX);
+    }
+
+    /**
+     * Syncs and closes the stream of temp file, then renames it over the target
+     */
+    static boolean commit(final FileOutputStream outputStream, final File tempFile, final File targetFile) {
+        if (!FileUtils.syncAndClose(outputStream)) {
+            delete(tempFile);
+            return false;
+        }
+        if (!rename(tempFile, targetFile))
+            return false;
+        syncDirectory(targetFile.getAbsoluteFile().getParentFile());
+        return true;
+    }
+
+    /**
+     * Renames temp file over the target, deletes temp file if failed
+     */
+    static boolean rename(final File tempFile, final File targetFile) {
+        // the old content is freed by the rename
+        final long usedBytes = tempFile.length() - targetFile.length();
+        if (tempFile.renameTo(targetFile)) {
+            StorageMonitor.onSpaceUsed(targetFile, usedBytes);
+            return true;
+        }
+        Log.e(LOG_TAG, "could not rename " + tempFile + " to " + targetFile);
+        delete(tempFile);
+        return false;
+    }
+
+    /**
+     * Makes renames and creations of files in the directory durable, does nothing below API 21
+     *
+     * @return false if failed, true if succeeded or not supported
+     */
+    public static boolean syncDirectory(final File directory) {
+        if (directory == null || Build.VERSION.SDK_INT < 21)
+            return true;
+        return syncDirectoryApi21(directory);
+    }
+
+    @TargetApi(21)
+    private static boolean syncDirectoryApi21(final File directory) {
+        try {
+            final FileDescriptor fd = Os.open(directory.getPath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
+            }
+            return true;
+        } catch (ErrnoException e) {
+            Log.e(LOG_TAG, e);
+            return false;
+        }
+    }
+
+    private static boolean abort(final FileOutputStream outputStream, final File tempFile) {
+        if (outputStream != null)
+            try {
+                outputStream.close();
+            } catch (IOException ignored) {
+            }
+        delete(tempFile);
+        return false;
+    }
+
+    private static void delete(final File file) {
+        if (file.exists() && !file.delete())
+            Log.w(LOG_TAG, "could not delete " + file);
+    }
+}
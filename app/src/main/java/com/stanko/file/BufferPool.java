@@ -0,0 +1,248 @@
+package com.stanko.file;
+
+import android.os.Environment;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of scratch byte arrays for I/O loops, so a busy app does not allocate (and GC) a buffer
+ * per call. Buffers come in three sizes: SIZE_SMALL (8KB), SIZE_MEDIUM (64KB) and SIZE_LARGE (1MB).
+ * Each thread keeps one small and one medium buffer for itself (no synchronization at all),
+ * others wait in bounded shared queues. Large buffers are never kept per thread.
+ * obtainFor() picks the size configured for the storage a file is on: bigger reads and writes
+ * pay off on FUSE emulated storage and SD cards more than on internal flash. Storage types are
+ * cached per parent directory, so only the first obtainFor() in a directory resolves its volume.
+ * Usage: obtain, use within the method, recycle in finally; never keep or share a pooled buffer.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class BufferPool {
+
+    public static final int SIZE_SMALL = 8 * 1024;
+    public static final int SIZE_MEDIUM = 64 * 1024;
+    public static final int SIZE_LARGE = 1024 * 1024;
+
+    public static final int STORAGE_INTERNAL = 0;
+    public static final int STORAGE_EXTERNAL = 1;
+    public static final int STORAGE_REMOVABLE = 2;
+
+    private static final int[] SIZES = {SIZE_SMALL, SIZE_MEDIUM, SIZE_LARGE};
+    private static final int[] MAX_POOLED = {32, 16, 4};
+    private static final int LARGE = 2;
+    // bound of the storage types cache, it is dropped as a whole once exceeded
+    private static final int MAX_CACHED_DIRS = 256;
+
+    private static final Tier[] sTiers = {new Tier(0), new Tier(1), new Tier(2)};
+    private static final int[] sStorageBufferSizes = {SIZE_MEDIUM, SIZE_MEDIUM, SIZE_LARGE};
+    private static volatile String sInternalMountPoint;
+    private static volatile String sExternalMountPoint;
+    // parent directory path -> storage type
+    private static final ConcurrentHashMap<String, Integer> sStorageTypes = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<byte[][]> sThreadBuffers = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[LARGE][];
+        }
+    };
+
+    private static class Tier {
+        final int index;
+        final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pooledCount = new AtomicInteger();
+        final AtomicLong threadHits = new AtomicLong();
+        final AtomicLong poolHits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+
+        Tier(final int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * Counters of a buffer size
+     */
+    public static class Stats {
+        public final int bufferSize;
+        public final long threadHits;
+        public final long poolHits;
+        public final long misses;
+        public final int pooledCount;
+
+        Stats(final Tier tier) {
+            bufferSize = SIZES[tier.index];
+            threadHits = tier.threadHits.get();
+            poolHits = tier.poolHits.get();
+            misses = tier.misses.get();
+            pooledCount = tier.pooledCount.get();
+        }
+
+        public float getHitRate() {
+            final long total = threadHits + poolHits + misses;
+            return total == 0 ? 0 : (float) (threadHits + poolHits) / total;
+        }
+
+        @Override
+        public String toString() {
+            return bufferSize / 1024 + "KB: thread hits " + threadHits + ", pool hits " + poolHits
+                    + ", misses " + misses + ", pooled " + pooledCount;
+        }
+    }
+
+    /**
+     * @param minSize - bytes needed at least
+     * @return buffer of SIZE_SMALL, SIZE_MEDIUM or SIZE_LARGE, of exactly minSize if it is bigger
+     */
+    public static byte[] obtain(final int minSize) {
+        final int index = getTierIndex(minSize);
+        if (index < 0)
+            return new byte[minSize];
+        final Tier tier = sTiers[index];
+        if (index < LARGE) {
+            final byte[][] threadBuffers = sThreadBuffers.get();
+            final byte[] buffer = threadBuffers[index];
+            if (buffer != null) {
+                threadBuffers[index] = null;
+                tier.threadHits.incrementAndGet();
+                return buffer;
+            }
+        }
+        final byte[] buffer = tier.buffers.poll();
+        if (buffer != null) {
+            tier.pooledCount.decrementAndGet();
+            tier.poolHits.incrementAndGet();
+            return buffer;
+        }
+        tier.misses.incrementAndGet();
+        return new byte[SIZES[index]];
+    }
+
+    /**
+     * @param file - file to be read or written
+     * @return buffer of the size set for file's storage type
+     */
+    public static byte[] obtainFor(final File file) {
+        return obtain(getBufferSize(file));
+    }
+
+    /**
+     * Returns a buffer to the pool. Any array of exactly SIZE_SMALL, SIZE_MEDIUM or SIZE_LARGE
+     * bytes is taken, the pool can't tell its own buffers, so recycle only what obtain() gave and
+     * don't use it after. Arrays of other sizes are ignored. Contents are not cleared
+     *
+     * @param buffer - may be null
+     */
+    public static void recycle(final byte[] buffer) {
+        if (buffer == null)
+            return;
+        final int index = getTierIndex(buffer.length);
+        if (index < 0 || SIZES[index] != buffer.length)
+            return;
+        if (index < LARGE) {
+            final byte[][] threadBuffers = sThreadBuffers.get();
+            if (threadBuffers[index] == null) {
+                threadBuffers[index] = buffer;
+                return;
+            }
+        }
+        final Tier tier = sTiers[index];
+        // the bound is approximate under contention, which is fine
+        if (tier.pooledCount.get() >= MAX_POOLED[index])
+            return;
+        tier.pooledCount.incrementAndGet();
+        tier.buffers.offer(buffer);
+    }
+
+    /**
+     * @param storageType - STORAGE_INTERNAL, STORAGE_EXTERNAL or STORAGE_REMOVABLE
+     * @param bufferSize  - size of buffers obtainFor() gives for files on such storage, up to SIZE_LARGE
+     */
+    public static void setBufferSize(final int storageType, final int bufferSize) {
+        sStorageBufferSizes[storageType] = Math.max(SIZE_SMALL, Math.min(SIZE_LARGE, bufferSize));
+    }
+
+    /**
+     * @param file - file to be read or written
+     * @return buffer size set for file's storage type
+     */
+    public static int getBufferSize(final File file) {
+        return sStorageBufferSizes[getStorageType(file)];
+    }
+
+    /**
+     * @param file - existing or not
+     * @return STORAGE_INTERNAL for app's private storage, STORAGE_EXTERNAL for primary external
+     * storage (usually emulated) and STORAGE_REMOVABLE for any other volume (SD cards, USB drives)
+     */
+    public static int getStorageType(final File file) {
+        if (file == null)
+            return STORAGE_INTERNAL;
+        final String parentPath = file.getAbsoluteFile().getParent();
+        if (parentPath == null)
+            return resolveStorageType(file);
+        final Integer cachedStorageType = sStorageTypes.get(parentPath);
+        if (cachedStorageType != null)
+            return cachedStorageType;
+        final int storageType = resolveStorageType(file);
+        if (sStorageTypes.size() >= MAX_CACHED_DIRS)
+            sStorageTypes.clear();
+        sStorageTypes.put(parentPath, storageType);
+        return storageType;
+    }
+
+    /**
+     * Drops cached storage types, Volumes.refresh() calls it
+     */
+    static void clearStorageTypes() {
+        sStorageTypes.clear();
+        sInternalMountPoint = null;
+    }
+
+    // canonical path and mount points lookup
+    private static int resolveStorageType(final File file) {
+        if (sInternalMountPoint == null) {
+            // internal one is set last, it tells both are set
+            // the directories are null off the device, e.g. in JVM tests: all files are removable then
+            final File externalDir = Environment.getExternalStorageDirectory();
+            final File dataDir = Environment.getDataDirectory();
+            sExternalMountPoint = externalDir == null ? null : Volumes.getMountPoint(externalDir);
+            sInternalMountPoint = dataDir == null ? null : Volumes.getMountPoint(dataDir);
+        }
+        final String mountPoint = Volumes.getMountPoint(file);
+        if (mountPoint.equals(sInternalMountPoint))
+            return STORAGE_INTERNAL;
+        return mountPoint.equals(sExternalMountPoint) ? STORAGE_EXTERNAL : STORAGE_REMOVABLE;
+    }
+
+    /**
+     * @return counters of each buffer size, from the smallest one
+     */
+    public static Stats[] getStats() {
+        final Stats[] stats = new Stats[sTiers.length];
+        for (int i = 0; i < sTiers.length; i++)
+            stats[i] = new Stats(sTiers[i]);
+        return stats;
+    }
+
+    /**
+     * Drops pooled buffers, e.g. on memory trim. Buffers kept by threads stay
+     */
+    public static void clear() {
+        for (final Tier tier : sTiers) {
+            while (tier.buffers.poll() != null)
+                tier.pooledCount.decrementAndGet();
+        }
+    }
+
+    private static int getTierIndex(final int size) {
+        for (int i = 0; i < SIZES.length; i++)
+            if (size <= SIZES[i])
+                return i;
+        return -1;
+    }
+}
@@ -0,0 +1,328 @@
+package com.stanko.file;
+
+import android.os.SystemClock;
+
+import com.stanko.tools.BackgroundThreadFactory;
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies or moves directory trees. The source tree is walked in parallel: each directory is a task
+ * which lists it and forks tasks for its subdirectories and files, so a deep or wide tree keeps all
+ * threads busy. At most concurrencyPerVolume files are written to one volume at a time. A move
+ * within one volume is a rename (of the whole tree if destination does not exist yet, otherwise of
+ * each entry), across volumes it is a copy with fsync followed by deletion of the source.
+ * Progress (counts, bytes and throughput) is reported in the calling thread.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class DirectoryCopier {
+
+    private static final String LOG_TAG = DirectoryCopier.class.getSimpleName();
+
+    public static final int DEFAULT_CONCURRENCY_PER_VOLUME = 4;
+    private static final long DEFAULT_PROGRESS_INTERVAL_MS = 250;
+
+    private final int mConcurrencyPerVolume;
+    // volume mount point -> permits for writing files to it
+    private final HashMap<String, Semaphore> mVolumeSemaphores = new HashMap<>();
+    // tree copies are not worth an fsync per file, moves are: the source is deleted after
+    private final FileCopier mCopyFileCopier = new FileCopier().setSyncPolicy(FileCopier.SYNC_NONE);
+    private final FileCopier mMoveFileCopier = new FileCopier().setSyncPolicy(FileCopier.SYNC_AT_END);
+
+    private ExecutorService mExecutorService;
+    private IDirectoryCopyListener mListener;
+    private long mProgressIntervalMs = DEFAULT_PROGRESS_INTERVAL_MS;
+
+    public interface IDirectoryCopyListener {
+        /**
+         * Called in the thread which called copy() or move(), periodically and once at the end
+         */
+        void onProgress(Progress progress);
+    }
+
+    /**
+     * Counts are of the entries found so far: totals grow while the tree is being walked
+     */
+    public static class Progress {
+        public final int filesCount;
+        public final int doneFilesCount;
+        public final long bytesCount;
+        public final long doneBytes;
+        public final long elapsedMs;
+        public final boolean isFinished;
+
+        Progress(final int filesCount, final int doneFilesCount, final long bytesCount, final long doneBytes,
+                 final long elapsedMs, final boolean isFinished) {
+            this.filesCount = filesCount;
+            this.doneFilesCount = doneFilesCount;
+            this.bytesCount = bytesCount;
+            this.doneBytes = doneBytes;
+            this.elapsedMs = elapsedMs;
+            this.isFinished = isFinished;
+        }
+
+        public long getBytesPerSecond() {
+            return elapsedMs > 0 ? doneBytes * 1000 / elapsedMs : 0;
+        }
+
+        public float getFilesPerSecond() {
+            return elapsedMs > 0 ? doneFilesCount * 1000f / elapsedMs : 0;
+        }
+    }
+
+    public DirectoryCopier() {
+        this(DEFAULT_CONCURRENCY_PER_VOLUME);
+    }
+
+    /**
+     * @param concurrencyPerVolume - max count of files written to one volume at a time
+     */
+    public DirectoryCopier(final int concurrencyPerVolume) {
+        mConcurrencyPerVolume = Math.max(1, concurrencyPerVolume);
+    }
+
+    public DirectoryCopier setProgressListener(final IDirectoryCopyListener listener) {
+        mListener = listener;
+        return this;
+    }
+
+    public DirectoryCopier setProgressInterval(final long progressIntervalMs) {
+        mProgressIntervalMs = Math.max(10, progressIntervalMs);
+        return this;
+    }
+
+    /**
+     * Copies content of srcDir into dstDir, merging with existing content and overwriting files
+     * with the same names. Blocks until all is copied, interrupt the thread to cancel
+     *
+     * @param srcDir - directory to copy
+     * @param dstDir - directory to copy to, made if needed
+     * @return final Progress
+     * @throws IOException the first error met, the rest of the tree is not copied then
+     */
+    public Progress copy(final File srcDir, final File dstDir) throws IOException {
+        return run(srcDir, dstDir, false);
+    }
+
+    /**
+     * Moves content of srcDir into dstDir and deletes srcDir. Blocks until all is moved, interrupt
+     * the thread to cancel
+     *
+     * @param srcDir - directory to move
+     * @param dstDir - directory to move to, made if needed
+     * @return final Progress
+     * @throws IOException the first error met, srcDir is kept then
+     */
+    public Progress move(final File srcDir, final File dstDir) throws IOException {
+        if (srcDir != null && dstDir != null && !dstDir.exists() && FileUtils.makeDirsForFile(dstDir)
+                && Volumes.isSameVolume(srcDir, dstDir) && srcDir.renameTo(dstDir))
+            return new Progress(0, 0, 0, 0, 0, true);
+        final Progress progress = run(srcDir, dstDir, true);
+        if (!FileUtils.deleteFilesAndDirsRecursive(srcDir))
+            Log.w(LOG_TAG, "could not delete moved " + srcDir);
+        return progress;
+    }
+
+    /**
+     * Stops threads, the copier must not be used after it
+     */
+    public synchronized void release() {
+        if (mExecutorService != null) {
+            mExecutorService.shutdownNow();
+            mExecutorService = null;
+        }
+    }
+
+    private Progress run(final File srcDir, final File dstDir, final boolean isMove) throws IOException {
+        if (srcDir == null || !srcDir.isDirectory() || !srcDir.canRead())
+            throw new IOException("IOException (copy dir): source directory does not exists or not readable");
+        if (dstDir == null)
+            throw new IOException("IOException (copy dir): destination directory is null");
+        if (dstDir.getAbsolutePath().startsWith(srcDir.getAbsolutePath() + File.separator))
+            throw new IOException("IOException (copy dir): destination is inside of source");
+
+        final Job job = new Job(isMove, Volumes.isSameVolume(srcDir, dstDir), getSemaphore(dstDir));
+        job.submitDirectory(srcDir, dstDir);
+        try {
+            while (!job.doneLatch.await(mProgressIntervalMs, TimeUnit.MILLISECONDS))
+                if (mListener != null)
+                    mListener.onProgress(job.getProgress(false));
+        } catch (InterruptedException e) {
+            job.error = new InterruptedIOException("IOException (copy dir): interrupted");
+            Thread.currentThread().interrupt();
+        }
+        if (job.error != null)
+            throw job.error;
+        final Progress progress = job.getProgress(true);
+        if (mListener != null)
+            mListener.onProgress(progress);
+        return progress;
+    }
+
+    private synchronized ExecutorService getExecutorService() {
+        // per volume writers plus walkers, which mostly wait for I/O too
+        if (mExecutorService == null)
+            mExecutorService = Executors.newFixedThreadPool(mConcurrencyPerVolume * 2, new BackgroundThreadFactory(Thread.MIN_PRIORITY));
+        return mExecutorService;
+    }
+
+    private synchronized Semaphore getSemaphore(final File dstDir) {
+        final String mountPoint = Volumes.getMountPoint(dstDir);
+        Semaphore semaphore = mVolumeSemaphores.get(mountPoint);
+        if (semaphore == null) {
+            semaphore = new Semaphore(mConcurrencyPerVolume);
+            mVolumeSemaphores.put(mountPoint, semaphore);
+        }
+        return semaphore;
+    }
+
+    /**
+     * State of one copy() or move() call
+     */
+    private class Job {
+        final boolean isMove;
+        final boolean isRenamePossible;
+        final Semaphore semaphore;
+        final long startTime = SystemClock.elapsedRealtime();
+        final CountDownLatch doneLatch = new CountDownLatch(1);
+        final AtomicInteger pendingTasksCount = new AtomicInteger();
+        final AtomicInteger filesCount = new AtomicInteger();
+        final AtomicInteger doneFilesCount = new AtomicInteger();
+        final AtomicLong bytesCount = new AtomicLong();
+        final AtomicLong doneBytes = new AtomicLong();
+        volatile IOException error;
+
+        Job(final boolean isMove, final boolean isSameVolume, final Semaphore semaphore) {
+            this.isMove = isMove;
+            this.isRenamePossible = isMove && isSameVolume;
+            this.semaphore = semaphore;
+        }
+
+        Progress getProgress(final boolean isFinished) {
+            return new Progress(filesCount.get(), doneFilesCount.get(), bytesCount.get(), doneBytes.get(),
+                    SystemClock.elapsedRealtime() - startTime, isFinished);
+        }
+
+        void submitDirectory(final File srcDir, final File dstDir) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    walk(srcDir, dstDir);
+                }
+            });
+        }
+
+        void submitFile(final File srcFile, final File dstFile) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    copyFile(srcFile, dstFile);
+                }
+            });
+        }
+
+        private void submit(final Runnable task) {
+            pendingTasksCount.incrementAndGet();
+            try {
+                getExecutorService().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (error == null)
+                                task.run();
+                        } finally {
+                            onTaskDone();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                fail(new IOException("IOException (copy dir): copier was released"));
+                onTaskDone();
+            }
+        }
+
+        private void onTaskDone() {
+            if (pendingTasksCount.decrementAndGet() == 0)
+                doneLatch.countDown();
+        }
+
+        private void fail(final IOException e) {
+            if (error == null)
+                error = e;
+        }
+
+        private void walk(final File srcDir, final File dstDir) {
+            if (!dstDir.isDirectory() && !dstDir.mkdirs()) {
+                fail(new IOException("IOException (copy dir): could not make " + dstDir));
+                return;
+            }
+            final File[] files = srcDir.listFiles();
+            if (files == null) {
+                fail(new IOException("IOException (copy dir): could not list " + srcDir));
+                return;
+            }
+            for (final File srcFile : files) {
+                final File dstFile = new File(dstDir, srcFile.getName());
+                final boolean isDirectory = srcFile.isDirectory();
+                if (isRenamePossible && !dstFile.exists()) {
+                    final long length = isDirectory ? 0 : srcFile.length();
+                    if (srcFile.renameTo(dstFile)) {
+                        if (!isDirectory)
+                            countFile(length, true);
+                        continue;
+                    }
+                }
+                if (isDirectory)
+                    submitDirectory(srcFile, dstFile);
+                else {
+                    countFile(srcFile.length(), false);
+                    submitFile(srcFile, dstFile);
+                }
+            }
+        }
+
+        private void countFile(final long length, final boolean isDone) {
+            filesCount.incrementAndGet();
+            bytesCount.addAndGet(length);
+            if (isDone) {
+                doneFilesCount.incrementAndGet();
+                doneBytes.addAndGet(length);
+            }
+        }
+
+        private void copyFile(final File srcFile, final File dstFile) {
+            try {
+                semaphore.acquire();
+            } catch (InterruptedException e) {
+                fail(new InterruptedIOException("IOException (copy dir): interrupted"));
+                return;
+            }
+            try {
+                final long copiedBytes = (isMove ? mMoveFileCopier : mCopyFileCopier).copy(srcFile, dstFile);
+                if (!dstFile.setLastModified(srcFile.lastModified()))
+                    Log.w(LOG_TAG, "could not set modification time of " + dstFile);
+                doneFilesCount.incrementAndGet();
+                doneBytes.addAndGet(copiedBytes);
+            } catch (IOException e) {
+                fail(e);
+            } finally {
+                semaphore.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,590 @@
+package com.stanko.file;
+
+import android.os.FileObserver;
+
+import com.stanko.tools.BackgroundThreadFactory;
+import com.stanko.tools.Log;
+
+import org.greenrobot.eventbus.EventBus;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory index of a directory tree: name, size, modification time and extension of each file
+ * and directory, answering queries by extension, name prefix, size range and parent directory
+ * without touching the disk. The tree is walked once in parallel, then kept current either by
+ * FileObserver (one per directory, changes come in at once) or by polling (a re-walk comparing
+ * sizes and times, for storages where inotify does not work, e.g. some FUSE/sdcardfs mounts).
+ * Changes are posted with EventBus as DirectoryIndexEvent, batched over 300ms.
+ * While an index runs FileUtils.getIndexedFilesByExtension() of its directories is answered from it.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class DirectoryIndex {
+
+    private static final String LOG_TAG = DirectoryIndex.class.getSimpleName();
+
+    public static final int WATCH_FILE_OBSERVER = 0;
+    public static final int WATCH_POLLING = 1;
+    public static final long DEFAULT_POLLING_INTERVAL_MS = 30 * 1000;
+
+    private static final long EVENT_BATCH_DELAY_MS = 300;
+    private static final int WALK_THREADS_COUNT = 4;
+    private static final int OBSERVED_EVENTS = FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM
+            | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE | FileObserver.ATTRIB
+            | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private static final int CHANGE_ADDED = 0;
+    private static final int CHANGE_REMOVED = 1;
+    private static final int CHANGE_MODIFIED = 2;
+
+    private static final List<DirectoryIndex> sRunningIndexes = new ArrayList<>();
+
+    private final File mRoot;
+    private final String mRootPath;
+    private final int mWatchMode;
+    private final long mPollingIntervalMs;
+
+    // all guarded by this
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+    private final HashMap<String, HashSet<Entry>> mChildren = new HashMap<>();
+    private final HashMap<String, HashSet<Entry>> mByExtension = new HashMap<>();
+    // name + '\0' + path, so equal names of different directories do not collide
+    private final TreeMap<String, Entry> mByName = new TreeMap<>();
+    private final TreeSet<Entry> mBySize = new TreeSet<>(new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry lhs, final Entry rhs) {
+            if (lhs.size != rhs.size)
+                return lhs.size < rhs.size ? -1 : 1;
+            return lhs.path.compareTo(rhs.path);
+        }
+    });
+    private final HashMap<String, FileObserver> mObservers = new HashMap<>();
+    private final HashSet<String> mPendingRescans = new HashSet<>();
+    private final LinkedHashMap<String, Change> mPendingChanges = new LinkedHashMap<>();
+    private boolean isBatchScheduled;
+    private ScheduledExecutorService mExecutorService;
+
+    private final CountDownLatch mReadyLatch = new CountDownLatch(1);
+    private volatile boolean isReady;
+    private volatile boolean isStopped;
+
+    public static class Entry {
+        public final File file;
+        public final String name;
+        // lower case, without dot, empty if none
+        public final String extension;
+        public final long size;
+        public final long lastModified;
+        public final boolean isDirectory;
+        final String path;
+        final String parentPath;
+
+        Entry(final File file) {
+            this.file = file;
+            this.name = file.getName();
+            final int dotIndex = name.lastIndexOf('.');
+            this.extension = dotIndex < 0 ? "" : name.substring(dotIndex + 1).toLowerCase(Locale.US);
+            this.isDirectory = file.isDirectory();
+            this.size = isDirectory ? 0 : file.length();
+            this.lastModified = file.lastModified();
+            this.path = file.getAbsolutePath();
+            this.parentPath = file.getAbsoluteFile().getParent();
+        }
+
+        // size range probe for mBySize, sorts before entries of the same size
+        private Entry(final long size) {
+            this.file = null;
+            this.name = "";
+            this.extension = "";
+            this.size = size;
+            this.lastModified = 0;
+            this.isDirectory = false;
+            this.path = "";
+            this.parentPath = null;
+        }
+
+        boolean isChangedComparedTo(final Entry entry) {
+            return size != entry.size || lastModified != entry.lastModified;
+        }
+    }
+
+    private static class Change {
+        int type;
+        Entry entry;
+
+        Change(final int type, final Entry entry) {
+            this.type = type;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Index kept current by FileObserver
+     *
+     * @param root - directory to index with all its subdirectories
+     */
+    public DirectoryIndex(final File root) {
+        this(root, WATCH_FILE_OBSERVER, DEFAULT_POLLING_INTERVAL_MS);
+    }
+
+    /**
+     * @param root              - directory to index with all its subdirectories
+     * @param watchMode         - WATCH_FILE_OBSERVER or WATCH_POLLING
+     * @param pollingIntervalMs - for WATCH_POLLING
+     */
+    public DirectoryIndex(final File root, final int watchMode, final long pollingIntervalMs) {
+        mRoot = root.getAbsoluteFile();
+        mRootPath = mRoot.getPath();
+        mWatchMode = watchMode;
+        mPollingIntervalMs = Math.max(1000, pollingIntervalMs);
+    }
+
+    /**
+     * @param directory
+     * @return running and ready index containing given directory or null
+     */
+    public static DirectoryIndex find(final File directory) {
+        final String path = directory.getAbsolutePath();
+        synchronized (sRunningIndexes) {
+            for (final DirectoryIndex directoryIndex : sRunningIndexes)
+                if (directoryIndex.isReady && (path.equals(directoryIndex.mRootPath)
+                        || path.startsWith(directoryIndex.mRootPath + File.separator)))
+                    return directoryIndex;
+        }
+        return null;
+    }
+
+    /**
+     * Starts the initial walk in background, the index is ready once the initial event is posted
+     */
+    public synchronized void start() {
+        if (mExecutorService != null)
+            return;
+        mExecutorService = Executors.newSingleThreadScheduledExecutor(new BackgroundThreadFactory(Thread.MIN_PRIORITY));
+        synchronized (sRunningIndexes) {
+            sRunningIndexes.add(this);
+        }
+        // rescans are queued to the same thread, so they run after the walk is in the index
+        mExecutorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                walk();
+            }
+        });
+        if (mWatchMode == WATCH_POLLING)
+            mExecutorService.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    rescanDirectory(mRoot, true);
+                }
+            }, mPollingIntervalMs, mPollingIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops watching and drops the index
+     */
+    public void stop() {
+        isStopped = true;
+        synchronized (sRunningIndexes) {
+            sRunningIndexes.remove(this);
+        }
+        synchronized (this) {
+            if (mExecutorService != null)
+                mExecutorService.shutdownNow();
+            for (final FileObserver fileObserver : mObservers.values())
+                fileObserver.stopWatching();
+            mObservers.clear();
+            mEntries.clear();
+            mChildren.clear();
+            mByExtension.clear();
+            mByName.clear();
+            mBySize.clear();
+            mPendingChanges.clear();
+        }
+    }
+
+    public boolean isReady() {
+        return isReady;
+    }
+
+    /**
+     * @param timeoutMs - max time to wait
+     * @return true if the initial walk is done
+     */
+    public boolean awaitReady(final long timeoutMs) {
+        try {
+            return mReadyLatch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public File getRoot() {
+        return mRoot;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return entry of a file or directory or null if it is not in the index
+     */
+    public synchronized Entry get(final File file) {
+        return mEntries.get(file.getAbsolutePath());
+    }
+
+    /**
+     * @param extension - with or without dot, case insensitive
+     * @return entries of the whole tree with given extension
+     */
+    public synchronized List<Entry> getByExtension(final String extension) {
+        final String key = (extension.startsWith(".") ? extension.substring(1) : extension).toLowerCase(Locale.US);
+        return copyOf(mByExtension.get(key));
+    }
+
+    /**
+     * @param prefix - case sensitive beginning of a name
+     * @return entries of the whole tree whose name starts with prefix, sorted by name
+     */
+    public synchronized List<Entry> getByNamePrefix(final String prefix) {
+        return new ArrayList<>(mByName.subMap(prefix, prefix + Character.MAX_VALUE).values());
+    }
+
+    /**
+     * @param minSize - inclusive
+     * @param maxSize - inclusive
+     * @return files of the whole tree with size in range, sorted by size
+     */
+    public synchronized List<Entry> getBySize(final long minSize, final long maxSize) {
+        final List<Entry> result = new ArrayList<>();
+        for (final Entry entry : mBySize.tailSet(new Entry(minSize), true)) {
+            if (entry.size > maxSize)
+                break;
+            if (!entry.isDirectory)
+                result.add(entry);
+        }
+        return result;
+    }
+
+    /**
+     * @return entries of the directory itself, not of its subdirectories, or null if the
+     * directory is not in the index
+     */
+    public synchronized List<Entry> getChildren(final File directory) {
+        final String path = directory.getAbsolutePath();
+        if (!path.equals(mRootPath) && !mEntries.containsKey(path))
+            return null;
+        return copyOf(mChildren.get(path));
+    }
+
+    /**
+     * Same as File.listFiles() of the directory with FileUtils.ExtensionFilter
+     *
+     * @param directory - the root or its subdirectory
+     * @param suffix    - case sensitive end of names
+     * @return files or null if the directory is not in the index
+     */
+    public synchronized File[] listFiles(final File directory, final String suffix) {
+        final List<Entry> children = getChildren(directory);
+        if (children == null)
+            return null;
+        final List<File> files = new ArrayList<>();
+        for (final Entry entry : children)
+            if (entry.name.endsWith(suffix))
+                files.add(entry.file);
+        return files.toArray(new File[files.size()]);
+    }
+
+    //*********************************************************************************************
+    //
+    // Walking and watching
+    //
+
+    private void walk() {
+        final ExecutorService walkers = Executors.newFixedThreadPool(WALK_THREADS_COUNT, new BackgroundThreadFactory(Thread.MIN_PRIORITY));
+        final ConcurrentLinkedQueue<Entry> found = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pendingCount = new AtomicInteger();
+        final CountDownLatch doneLatch = new CountDownLatch(1);
+        submitWalk(walkers, mRoot, found, pendingCount, doneLatch);
+        try {
+            doneLatch.await();
+        } catch (InterruptedException e) {
+            // stopped
+            walkers.shutdownNow();
+            return;
+        }
+        walkers.shutdown();
+        final List<Entry> added;
+        synchronized (this) {
+            if (isStopped)
+                return;
+            for (final Entry entry : found)
+                put(entry);
+            added = new ArrayList<>(mEntries.values());
+        }
+        isReady = true;
+        mReadyLatch.countDown();
+        EventBus.getDefault().post(new DirectoryIndexEvent(this, true, added,
+                Collections.<Entry>emptyList(), Collections.<Entry>emptyList()));
+    }
+
+    private void submitWalk(final ExecutorService walkers,
+                            final File directory,
+                            final ConcurrentLinkedQueue<Entry> found,
+                            final AtomicInteger pendingCount,
+                            final CountDownLatch doneLatch) {
+        pendingCount.incrementAndGet();
+        walkers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (isStopped)
+                        return;
+                    // observe before listing, so nothing created meanwhile is missed
+                    startObserving(directory);
+                    final File[] files = directory.listFiles();
+                    if (files == null) {
+                        Log.w(LOG_TAG, "could not list " + directory);
+                        return;
+                    }
+                    for (final File file : files) {
+                        final Entry entry = new Entry(file);
+                        found.add(entry);
+                        if (entry.isDirectory)
+                            submitWalk(walkers, file, found, pendingCount, doneLatch);
+                    }
+                } finally {
+                    if (pendingCount.decrementAndGet() == 0)
+                        doneLatch.countDown();
+                }
+            }
+        });
+    }
+
+    private synchronized void startObserving(final File directory) {
+        if (mWatchMode != WATCH_FILE_OBSERVER || isStopped || mObservers.containsKey(directory.getPath()))
+            return;
+        final FileObserver fileObserver = new FileObserver(directory.getPath(), OBSERVED_EVENTS) {
+            @Override
+            public void onEvent(final int event, final String path) {
+                final int type = event & FileObserver.ALL_EVENTS;
+                if ((type & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0)
+                    scheduleRescan(directory.getPath().equals(mRootPath) ? directory : directory.getParentFile());
+                else if (path != null)
+                    scheduleRescan(new File(directory, path));
+            }
+        };
+        // keeps a strong reference: a collected FileObserver stops watching
+        mObservers.put(directory.getPath(), fileObserver);
+        fileObserver.startWatching();
+    }
+
+    private synchronized void stopObserving(final String path) {
+        final FileObserver fileObserver = mObservers.remove(path);
+        if (fileObserver != null)
+            fileObserver.stopWatching();
+    }
+
+    // called by FileObserver's thread, events of one file coalesce while its rescan is queued
+    private synchronized void scheduleRescan(final File file) {
+        if (isStopped || !mPendingRescans.add(file.getPath()))
+            return;
+        mExecutorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DirectoryIndex.this) {
+                    mPendingRescans.remove(file.getPath());
+                }
+                if (file.getPath().equals(mRootPath))
+                    rescanDirectory(mRoot, false);
+                else
+                    rescanEntry(file);
+            }
+        });
+    }
+
+    // runs in the index thread
+    private void rescanEntry(final File file) {
+        final Entry old = get(file);
+        if (!file.exists()) {
+            if (old != null)
+                removeTree(old);
+            return;
+        }
+        final Entry entry = new Entry(file);
+        if (old == null || old.isDirectory != entry.isDirectory) {
+            if (old != null)
+                removeTree(old);
+            add(entry);
+            if (entry.isDirectory) {
+                startObserving(file);
+                rescanDirectory(file, true);
+            }
+        } else if (entry.isChangedComparedTo(old))
+            replace(old, entry);
+    }
+
+    // runs in the index thread: compares directory listing with the index
+    private void rescanDirectory(final File directory, final boolean isRecursive) {
+        if (isStopped)
+            return;
+        final File[] files = directory.listFiles();
+        final HashSet<String> listedPaths = new HashSet<>();
+        if (files != null)
+            for (final File file : files) {
+                final Entry entry = new Entry(file);
+                listedPaths.add(entry.path);
+                final Entry old = get(file);
+                if (old == null || old.isDirectory != entry.isDirectory) {
+                    if (old != null)
+                        removeTree(old);
+                    add(entry);
+                    if (entry.isDirectory) {
+                        startObserving(file);
+                        rescanDirectory(file, true);
+                    }
+                    continue;
+                }
+                if (entry.isChangedComparedTo(old))
+                    replace(old, entry);
+                if (isRecursive && entry.isDirectory)
+                    rescanDirectory(file, true);
+            }
+        final List<Entry> children;
+        synchronized (this) {
+            children = copyOf(mChildren.get(directory.getAbsolutePath()));
+        }
+        for (final Entry child : children)
+            if (!listedPaths.contains(child.path))
+                removeTree(child);
+    }
+
+    //*********************************************************************************************
+    //
+    // Index updates
+    //
+
+    private synchronized void add(final Entry entry) {
+        put(entry);
+        recordChange(CHANGE_ADDED, entry);
+    }
+
+    private synchronized void replace(final Entry old, final Entry entry) {
+        remove(old);
+        put(entry);
+        // a directory changes its time with its content, which has own events
+        if (!entry.isDirectory)
+            recordChange(CHANGE_MODIFIED, entry);
+    }
+
+    private synchronized void removeTree(final Entry entry) {
+        if (entry.isDirectory) {
+            for (final Entry child : copyOf(mChildren.get(entry.path)))
+                removeTree(child);
+            mChildren.remove(entry.path);
+            stopObserving(entry.path);
+        }
+        remove(entry);
+        recordChange(CHANGE_REMOVED, entry);
+    }
+
+    // guarded by this
+    private void put(final Entry entry) {
+        mEntries.put(entry.path, entry);
+        getSet(mChildren, entry.parentPath).add(entry);
+        getSet(mByExtension, entry.extension).add(entry);
+        mByName.put(entry.name + '\0' + entry.path, entry);
+        mBySize.add(entry);
+    }
+
+    // guarded by this
+    private void remove(final Entry entry) {
+        mEntries.remove(entry.path);
+        removeFromSet(mChildren, entry.parentPath, entry);
+        removeFromSet(mByExtension, entry.extension, entry);
+        mByName.remove(entry.name + '\0' + entry.path);
+        mBySize.remove(entry);
+    }
+
+    // guarded by this: coalesces changes of one path within a batch
+    private void recordChange(final int type, final Entry entry) {
+        if (!isReady)
+            return;
+        final Change change = mPendingChanges.get(entry.path);
+        if (change == null)
+            mPendingChanges.put(entry.path, new Change(type, entry));
+        else if (type == CHANGE_REMOVED && change.type == CHANGE_ADDED)
+            mPendingChanges.remove(entry.path);
+        else {
+            if (type == CHANGE_ADDED && change.type == CHANGE_REMOVED)
+                change.type = CHANGE_MODIFIED;
+            else if (change.type != CHANGE_ADDED)
+                change.type = type;
+            change.entry = entry;
+        }
+        if (!isBatchScheduled && !mPendingChanges.isEmpty() && !isStopped) {
+            isBatchScheduled = true;
+            mExecutorService.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    postChanges();
+                }
+            }, EVENT_BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void postChanges() {
+        final List<Entry> added = new ArrayList<>();
+        final List<Entry> removed = new ArrayList<>();
+        final List<Entry> modified = new ArrayList<>();
+        synchronized (this) {
+            isBatchScheduled = false;
+            for (final Change change : mPendingChanges.values())
+                (change.type == CHANGE_ADDED ? added : change.type == CHANGE_REMOVED ? removed : modified).add(change.entry);
+            mPendingChanges.clear();
+        }
+        if (!added.isEmpty() || !removed.isEmpty() || !modified.isEmpty())
+            EventBus.getDefault().post(new DirectoryIndexEvent(this, false, added, removed, modified));
+    }
+
+    private static HashSet<Entry> getSet(final HashMap<String, HashSet<Entry>> map, final String key) {
+        HashSet<Entry> set = map.get(key);
+        if (set == null) {
+            set = new HashSet<>();
+            map.put(key, set);
+        }
+        return set;
+    }
+
+    private static void removeFromSet(final HashMap<String, HashSet<Entry>> map, final String key, final Entry entry) {
+        final HashSet<Entry> set = map.get(key);
+        if (set != null && set.remove(entry) && set.isEmpty())
+            map.remove(key);
+    }
+
+    private static List<Entry> copyOf(final Collection<Entry> entries) {
+        return entries == null ? new ArrayList<Entry>() : new ArrayList<>(entries);
+    }
+}
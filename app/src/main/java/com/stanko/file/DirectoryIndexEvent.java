@@ -0,0 +1,30 @@
+package com.stanko.file;
+
+import java.util.List;
+
+/**
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ * Class to be used with EventBus, posted by DirectoryIndex with changes batched over a short
+ * period. The first event of an index comes once its initial walk is done, with all entries added
+ */
+public class DirectoryIndexEvent {
+
+    public final DirectoryIndex directoryIndex;
+    public final boolean isInitial;
+    public final List<DirectoryIndex.Entry> added;
+    public final List<DirectoryIndex.Entry> removed;
+    public final List<DirectoryIndex.Entry> modified;
+
+    public DirectoryIndexEvent(final DirectoryIndex directoryIndex,
+                               final boolean isInitial,
+                               final List<DirectoryIndex.Entry> added,
+                               final List<DirectoryIndex.Entry> removed,
+                               final List<DirectoryIndex.Entry> modified) {
+        this.directoryIndex = directoryIndex;
+        this.isInitial = isInitial;
+        this.added = added;
+        this.removed = removed;
+        this.modified = modified;
+    }
+}
@@ -0,0 +1,462 @@
+package com.stanko.file;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.stanko.tools.BackgroundThreadFactory;
+import com.stanko.tools.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Disk usage of a directory tree: total bytes, counts of files and directories, the largest files
+ * and the largest subdirectories. The tree is walked in parallel, each directory is a task listing
+ * it and forking tasks for its subdirectories, sizes are summed up once all subdirectories of a
+ * directory are done. Listings are cached per directory and kept while its modification time stays
+ * the same, so a repeated analyze() costs one stat per directory plus listing of changed ones.
+ * Directory mtime changes when entries are created, deleted or renamed, but not when a file is
+ * rewritten in place: call invalidate() after such writes if exact numbers matter.
+ * Symbolic links to directories are not followed, trash directories are not counted.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class DirectoryUsage {
+
+    private static final String LOG_TAG = DirectoryUsage.class.getSimpleName();
+
+    public static final int DEFAULT_TOP_COUNT = 10;
+    public static final int MAX_TOP_COUNT = 32;
+
+    private static final int WALK_THREADS_COUNT = 4;
+    private static final int MAX_CACHED_LISTINGS = 8192;
+    // some file systems keep mtime with 1-2s granularity, a fresher listing may miss changes of the same tick
+    private static final long MTIME_GRANULARITY_MS = 2000;
+
+    private static final Comparator<Entry> ASCENDING = new Comparator<Entry>() {
+        @Override
+        public int compare(final Entry lhs, final Entry rhs) {
+            return lhs.bytes < rhs.bytes ? -1 : (lhs.bytes == rhs.bytes ? 0 : 1);
+        }
+    };
+
+    // directory path -> its own entries
+    private static final ConcurrentHashMap<String, Listing> sListings = new ConcurrentHashMap<>();
+    // analyzed directory path -> its last usage
+    private static final ConcurrentHashMap<String, Usage> sUsages = new ConcurrentHashMap<>();
+    private static ExecutorService sWalkExecutorService;
+    private static ExecutorService sAnalyzeExecutorService;
+    private static Handler sHandler;
+
+    public interface IUsageListener {
+        /**
+         * Called in UI thread
+         *
+         * @param usage - null if directory could not be read
+         */
+        void onUsage(File directory, Usage usage);
+    }
+
+    public static class Entry {
+        public final File file;
+        public final long bytes;
+
+        Entry(final File file, final long bytes) {
+            this.file = file;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            return file + ": " + bytes;
+        }
+    }
+
+    public static class Usage {
+        public final File directory;
+        public final long totalBytes;
+        public final int filesCount;
+        // subdirectories at any depth
+        public final int dirsCount;
+        // largest first
+        public final List<Entry> largestFiles;
+        // largest first, subdirectories at any depth with their total bytes
+        public final List<Entry> largestDirs;
+        // directories listed for this result, the rest came from cache
+        public final int listedDirsCount;
+        public final long elapsedMs;
+        // System.currentTimeMillis() of the end of analysis
+        public final long time;
+
+        Usage(final Node node, final int listedDirsCount, final long elapsedMs) {
+            this.directory = node.dir;
+            this.totalBytes = node.totalBytes;
+            this.filesCount = node.filesCount;
+            this.dirsCount = node.dirsCount;
+            this.largestFiles = node.largestFiles.toList();
+            this.largestDirs = node.largestDirs.toList();
+            this.listedDirsCount = listedDirsCount;
+            this.elapsedMs = elapsedMs;
+            this.time = System.currentTimeMillis();
+        }
+
+        @Override
+        public String toString() {
+            return directory + ": " + totalBytes + " bytes in " + filesCount + " files and " + dirsCount
+                    + " dirs, " + listedDirsCount + " dirs listed in " + elapsedMs + "ms";
+        }
+    }
+
+    /**
+     * Blocks until the whole tree is walked, do not call it in UI thread
+     *
+     * @param directory - directory to analyze
+     * @return usage or null if directory could not be read
+     */
+    public static Usage analyze(final File directory) {
+        return analyze(directory, DEFAULT_TOP_COUNT);
+    }
+
+    /**
+     * Blocks until the whole tree is walked, do not call it in UI thread
+     *
+     * @param directory - directory to analyze
+     * @param topCount  - count of largest files and subdirectories to keep, up to MAX_TOP_COUNT
+     * @return usage or null if directory could not be read
+     */
+    public static Usage analyze(final File directory, final int topCount) {
+        if (directory == null || !directory.isDirectory()) {
+            Log.e(LOG_TAG, "analyze(): Null parameter given or it is not a directory");
+            return null;
+        }
+        final File root = directory.getAbsoluteFile();
+        final long startTime = System.currentTimeMillis();
+        final CountDownLatch doneLatch = new CountDownLatch(1);
+        final AtomicInteger listedCount = new AtomicInteger();
+        final Node rootNode = new Node(root, null, Math.max(1, Math.min(MAX_TOP_COUNT, topCount)), doneLatch);
+        final Listing rootListing = getListing(root, listedCount);
+        if (rootListing == null)
+            return null;
+        walk(rootNode, rootListing, listedCount);
+        try {
+            doneLatch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        final Usage usage = new Usage(rootNode, listedCount.get(), System.currentTimeMillis() - startTime);
+        sUsages.put(root.getPath(), usage);
+        return usage;
+    }
+
+    /**
+     * Analyzes in background thread
+     *
+     * @param directory - directory to analyze
+     * @param topCount  - count of largest files and subdirectories to keep, up to MAX_TOP_COUNT
+     * @param listener  - called in UI thread
+     */
+    public static void analyzeAsync(final File directory, final int topCount, final IUsageListener listener) {
+        getAnalyzeExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                final Usage usage = analyze(directory, topCount);
+                if (listener != null)
+                    getHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onUsage(directory, usage);
+                        }
+                    });
+            }
+        });
+    }
+
+    /**
+     * Does no I/O at all, e.g. for settings screens to show something at once
+     *
+     * @param directory - directory analyzed before
+     * @return last result of analyze() of this directory (may be outdated) or null
+     */
+    public static Usage getCachedUsage(final File directory) {
+        return directory == null ? null : sUsages.get(directory.getAbsolutePath());
+    }
+
+    /**
+     * Drops cached listings of directory and its subdirectories, e.g. after files there were
+     * rewritten in place (which does not change directory mtime)
+     *
+     * @param directory - directory to forget
+     */
+    public static void invalidate(final File directory) {
+        if (directory == null)
+            return;
+        final String path = directory.getAbsolutePath();
+        final String prefix = path.endsWith(File.separator) ? path : path + File.separator;
+        for (final Iterator<String> iterator = sListings.keySet().iterator(); iterator.hasNext(); ) {
+            final String listingPath = iterator.next();
+            if (listingPath.equals(path) || listingPath.startsWith(prefix))
+                iterator.remove();
+        }
+        for (final Iterator<String> iterator = sUsages.keySet().iterator(); iterator.hasNext(); ) {
+            final String usagePath = iterator.next();
+            if (usagePath.equals(path) || usagePath.startsWith(prefix) || path.startsWith(usagePath + File.separator))
+                iterator.remove();
+        }
+    }
+
+    /**
+     * Drops all cached listings and results, e.g. on memory trim
+     */
+    public static void clear() {
+        sListings.clear();
+        sUsages.clear();
+    }
+
+    //*********************************************************************************************
+    //
+    // Walk
+    //
+
+    /**
+     * Own entries of a directory: files are summed up, subdirectories are walked separately
+     */
+    private static class Listing {
+        final long lastModified;
+        final long filesBytes;
+        final int filesCount;
+        final String[] dirNames;
+        // largest first, up to MAX_TOP_COUNT
+        final Entry[] largestFiles;
+
+        Listing(final long lastModified, final long filesBytes, final int filesCount, final String[] dirNames,
+                final Entry[] largestFiles) {
+            this.lastModified = lastModified;
+            this.filesBytes = filesBytes;
+            this.filesCount = filesCount;
+            this.dirNames = dirNames;
+            this.largestFiles = largestFiles;
+        }
+    }
+
+    /**
+     * Directory being analyzed: it reports its totals to its parent once all its subdirectories
+     * reported theirs
+     */
+    private static class Node {
+        final File dir;
+        final Node parent;
+        final CountDownLatch doneLatch;
+        final AtomicInteger pendingCount = new AtomicInteger();
+        // all guarded by this
+        long totalBytes;
+        int filesCount;
+        int dirsCount;
+        final TopList largestFiles;
+        final TopList largestDirs;
+
+        Node(final File dir, final Node parent, final int topCount, final CountDownLatch doneLatch) {
+            this.dir = dir;
+            this.parent = parent;
+            this.doneLatch = doneLatch;
+            this.largestFiles = new TopList(topCount);
+            this.largestDirs = new TopList(topCount);
+        }
+
+        synchronized void addListing(final Listing listing) {
+            totalBytes += listing.filesBytes;
+            filesCount += listing.filesCount;
+            for (final Entry entry : listing.largestFiles)
+                if (!largestFiles.add(entry))
+                    break;
+        }
+
+        synchronized void addChild(final Node child) {
+            // the child is complete, nobody writes it anymore
+            synchronized (child) {
+                totalBytes += child.totalBytes;
+                filesCount += child.filesCount;
+                dirsCount += child.dirsCount + 1;
+                largestFiles.addAll(child.largestFiles);
+                largestDirs.addAll(child.largestDirs);
+                largestDirs.add(new Entry(child.dir, child.totalBytes));
+            }
+        }
+
+        void onChildDone() {
+            if (pendingCount.decrementAndGet() != 0)
+                return;
+            if (parent == null) {
+                doneLatch.countDown();
+                return;
+            }
+            parent.addChild(this);
+            parent.onChildDone();
+        }
+    }
+
+    /**
+     * Keeps the count largest entries added
+     */
+    private static class TopList {
+        final int count;
+        // smallest first, so it is the one to drop
+        final PriorityQueue<Entry> entries;
+
+        TopList(final int count) {
+            this.count = count;
+            this.entries = new PriorityQueue<>(count + 1, ASCENDING);
+        }
+
+        // false if entry is too small to get in
+        boolean add(final Entry entry) {
+            if (entries.size() < count) {
+                entries.add(entry);
+                return true;
+            }
+            if (entry.bytes <= entries.peek().bytes)
+                return false;
+            entries.poll();
+            entries.add(entry);
+            return true;
+        }
+
+        void addAll(final TopList topList) {
+            for (final Entry entry : topList.entries)
+                add(entry);
+        }
+
+        List<Entry> toList() {
+            final List<Entry> list = new ArrayList<>(entries);
+            Collections.sort(list, Collections.reverseOrder(ASCENDING));
+            return list;
+        }
+    }
+
+    // the node counts as one child of its parent until its whole subtree is done
+    private static void walk(final Node node, final AtomicInteger listedCount) {
+        final Listing listing = getListing(node.dir, listedCount);
+        if (listing == null) {
+            // vanished or unreadable meanwhile: counts as empty
+            node.pendingCount.set(1);
+            node.onChildDone();
+            return;
+        }
+        walk(node, listing, listedCount);
+    }
+
+    private static void walk(final Node node, final Listing listing, final AtomicInteger listedCount) {
+        node.addListing(listing);
+        node.pendingCount.set(listing.dirNames.length + 1);
+        final int topCount = node.largestFiles.count;
+        for (final String dirName : listing.dirNames) {
+            final Node childNode = new Node(new File(node.dir, dirName), node, topCount, node.doneLatch);
+            getWalkExecutorService().execute(new Runnable() {
+                @Override
+                public void run() {
+                    walk(childNode, listedCount);
+                }
+            });
+        }
+        node.onChildDone();
+    }
+
+    // null if directory can not be listed
+    private static Listing getListing(final File dir, final AtomicInteger listedCount) {
+        final String path = dir.getPath();
+        // taken before listing: a change made meanwhile makes the next call list it again
+        final long lastModified = dir.lastModified();
+        final Listing cachedListing = sListings.get(path);
+        if (cachedListing != null && lastModified != 0 && cachedListing.lastModified == lastModified)
+            return cachedListing;
+        final File[] children = dir.listFiles();
+        if (children == null) {
+            sListings.remove(path);
+            return null;
+        }
+        listedCount.incrementAndGet();
+        File canonicalDir = null;
+        long filesBytes = 0;
+        int filesCount = 0;
+        final List<String> dirNames = new ArrayList<>();
+        final TopList largestFiles = new TopList(MAX_TOP_COUNT);
+        for (final File child : children) {
+            if (child.isDirectory()) {
+                if (Trash.TRASH_DIR_NAME.equals(child.getName()))
+                    continue;
+                if (canonicalDir == null)
+                    canonicalDir = getCanonicalFile(dir);
+                if (!isSymlink(canonicalDir, child))
+                    dirNames.add(child.getName());
+                continue;
+            }
+            final long length = child.length();
+            filesBytes += length;
+            filesCount++;
+            largestFiles.add(new Entry(child, length));
+        }
+        final List<Entry> sortedFiles = largestFiles.toList();
+        final Listing listing = new Listing(lastModified, filesBytes, filesCount,
+                dirNames.toArray(new String[dirNames.size()]), sortedFiles.toArray(new Entry[sortedFiles.size()]));
+        if (lastModified != 0 && System.currentTimeMillis() - lastModified >= MTIME_GRANULARITY_MS) {
+            // a crude bound, listings are cheap to rebuild
+            if (sListings.size() >= MAX_CACHED_LISTINGS)
+                sListings.clear();
+            sListings.put(path, listing);
+        } else
+            sListings.remove(path);
+        return listing;
+    }
+
+    private static File getCanonicalFile(final File file) {
+        try {
+            return file.getCanonicalFile();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+            return file.getAbsoluteFile();
+        }
+    }
+
+    // a link's canonical path differs from its path within canonical parent
+    private static boolean isSymlink(final File canonicalParent, final File file) {
+        final File fileInCanonicalParent = new File(canonicalParent, file.getName());
+        try {
+            return !fileInCanonicalParent.getCanonicalFile().equals(fileInCanonicalParent.getAbsoluteFile());
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+            return true;
+        }
+    }
+
+    private static synchronized ExecutorService getWalkExecutorService() {
+        if (sWalkExecutorService == null)
+            sWalkExecutorService = Executors.newFixedThreadPool(WALK_THREADS_COUNT,
+                    new BackgroundThreadFactory(Thread.MIN_PRIORITY));
+        return sWalkExecutorService;
+    }
+
+    private static synchronized ExecutorService getAnalyzeExecutorService() {
+        if (sAnalyzeExecutorService == null)
+            sAnalyzeExecutorService = Executors.newSingleThreadExecutor(
+                    new BackgroundThreadFactory(Thread.MIN_PRIORITY));
+        return sAnalyzeExecutorService;
+    }
+
+    private static synchronized Handler getHandler() {
+        if (sHandler == null)
+            sHandler = new Handler(Looper.getMainLooper());
+        return sHandler;
+    }
+}
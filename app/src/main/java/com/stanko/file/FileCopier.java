@@ -0,0 +1,227 @@
+package com.stanko.file;
+
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * Copy engine based on FileChannel.transferTo() (transferFrom() as a fallback): bytes are moved
+ * by the kernel in large chunks instead of through a small Java buffer and 2 buffered streams.
+ * Destination may be preallocated to the source size up front, fsync policy is configurable:
+ * - SYNC_NONE: leave it to the OS, fastest, a crash may leave the copy incomplete;
+ * - SYNC_AT_END: one fsync once all bytes are transferred (default);
+ * - SYNC_EVERY_N_BYTES: also fsync each setSyncInterval() bytes, so dirty pages of a huge copy
+ * do not pile up and the final fsync does not stall for long.
+ * Configure an instance before sharing it between threads. Copies to different destinations run
+ * concurrently, copies to the same destination are serialized.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class FileCopier {
+
+    private static final String LOG_TAG = FileCopier.class.getSimpleName();
+
+    public static final int SYNC_NONE = 0;
+    public static final int SYNC_AT_END = 1;
+    public static final int SYNC_EVERY_N_BYTES = 2;
+
+    public static final long DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL = 32 * 1024 * 1024;
+
+    // destination path -> its lock and count of copies holding or waiting for it
+    private static final HashMap<String, PathLock> sPathLocks = new HashMap<>();
+
+    private long mChunkSize = DEFAULT_CHUNK_SIZE;
+    private boolean isPreallocating = true;
+    private int mSyncPolicy = SYNC_AT_END;
+    private long mSyncInterval = DEFAULT_SYNC_INTERVAL;
+    private ICopyProgressListener mProgressListener;
+
+    public interface ICopyProgressListener {
+        /**
+         * Called in the copying thread after each chunk. Interrupt the thread to cancel the copy
+         *
+         * @param src
+         * @param dst
+         * @param copiedBytes
+         * @param totalBytes
+         */
+        void onProgress(File src, File dst, long copiedBytes, long totalBytes);
+    }
+
+    private static class PathLock {
+        int holdersCount;
+    }
+
+    /**
+     * @param chunkSize - max bytes of one transfer call, between progress reports
+     */
+    public FileCopier setChunkSize(final long chunkSize) {
+        mChunkSize = Math.max(64 * 1024, chunkSize);
+        return this;
+    }
+
+    /**
+     * @param preallocating - true to set destination length to source length before copying, so
+     *                      its size is not updated on each chunk. It reserves no space: the file is
+     *                      sparse until written, running out of space still fails mid-copy
+     */
+    public FileCopier setPreallocating(final boolean preallocating) {
+        isPreallocating = preallocating;
+        return this;
+    }
+
+    /**
+     * @param syncPolicy - SYNC_NONE, SYNC_AT_END or SYNC_EVERY_N_BYTES
+     */
+    public FileCopier setSyncPolicy(final int syncPolicy) {
+        mSyncPolicy = syncPolicy;
+        return this;
+    }
+
+    /**
+     * @param syncInterval - bytes between fsyncs for SYNC_EVERY_N_BYTES policy
+     */
+    public FileCopier setSyncInterval(final long syncInterval) {
+        mSyncInterval = Math.max(mChunkSize, syncInterval);
+        return this;
+    }
+
+    public FileCopier setProgressListener(final ICopyProgressListener progressListener) {
+        mProgressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * Copies a file, overwriting destination. Waits for other copies to the same destination
+     *
+     * @param src - File to copy from
+     * @param dst - File to copy to, directories are made if needed
+     * @return count of bytes copied
+     * @throws IOException if src is not readable, dst is not writable, copying failed or the
+     *                     thread was interrupted (ClosedByInterruptException)
+     */
+    public long copy(final File src, final File dst) throws IOException {
+        if (src == null || !src.exists() || !src.canRead())
+            throw new IOException("IOException (copy file): source file does not exists or not readable");
+        if (!FileUtils.isWritable(dst, true))
+            throw new IOException("IOException (copy file): destination file not writable");
+
+        final String lockPath = dst.getAbsolutePath();
+        final PathLock pathLock = acquire(lockPath);
+        try {
+            synchronized (pathLock) {
+                final long oldLength = dst.length();
+                final long copiedBytes = transfer(src, dst);
+                StorageMonitor.onSpaceUsed(dst, copiedBytes - oldLength);
+                return copiedBytes;
+            }
+        } finally {
+            release(lockPath);
+        }
+    }
+
+    private long transfer(final File src, final File dst) throws IOException {
+        final FileInputStream inputStream = new FileInputStream(src);
+        RandomAccessFile outputFile = null;
+        long position = 0;
+        boolean isSucceed = false;
+        try {
+            outputFile = new RandomAccessFile(dst, "rw");
+            final FileChannel inputChannel = inputStream.getChannel();
+            final FileChannel outputChannel = outputFile.getChannel();
+            final long size = inputChannel.size();
+            if (isPreallocating)
+                outputFile.setLength(size);
+
+            long unsyncedBytes = 0;
+            while (position < size) {
+                final long count = Math.min(mChunkSize, size - position);
+                // outputChannel position is 0 after opening, transferTo() writes at it
+                long transferred = inputChannel.transferTo(position, count, outputChannel);
+                if (transferred <= 0)
+                    transferred = outputChannel.transferFrom(inputChannel.position(position), position, count);
+                if (transferred <= 0)
+                    break; // source shrank while being copied
+                position += transferred;
+                outputChannel.position(position);
+                unsyncedBytes += transferred;
+                if (mSyncPolicy == SYNC_EVERY_N_BYTES && unsyncedBytes >= mSyncInterval) {
+                    outputChannel.force(false);
+                    unsyncedBytes = 0;
+                }
+                if (mProgressListener != null)
+                    mProgressListener.onProgress(src, dst, position, size);
+            }
+            // drops preallocated tail or what was there before if no preallocation
+            if (outputChannel.size() != position)
+                outputChannel.truncate(position);
+            if (mSyncPolicy != SYNC_NONE)
+                outputChannel.force(true);
+            isSucceed = true;
+            return position;
+        } finally {
+            close(inputStream);
+            if (outputFile != null)
+                close(outputFile);
+            if (!isSucceed)
+                dropTail(dst, position);
+        }
+    }
+
+    // a failed copy must not keep the preallocated zero-filled tail: it would look complete by size.
+    // Reopens the file as an interrupt closes the channel
+    private static void dropTail(final File dst, final long length) {
+        if (!dst.exists())
+            return;
+        RandomAccessFile outputFile = null;
+        try {
+            outputFile = new RandomAccessFile(dst, "rw");
+            if (outputFile.length() > length)
+                outputFile.setLength(length);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+            if (dst.exists() && !dst.delete())
+                Log.w(LOG_TAG, "could not delete " + dst);
+        } finally {
+            if (outputFile != null)
+                close(outputFile);
+        }
+    }
+
+    private static PathLock acquire(final String path) {
+        synchronized (sPathLocks) {
+            PathLock pathLock = sPathLocks.get(path);
+            if (pathLock == null) {
+                pathLock = new PathLock();
+                sPathLocks.put(path, pathLock);
+            }
+            pathLock.holdersCount++;
+            return pathLock;
+        }
+    }
+
+    private static void release(final String path) {
+        synchronized (sPathLocks) {
+            final PathLock pathLock = sPathLocks.get(path);
+            if (pathLock != null && --pathLock.holdersCount == 0)
+                sPathLocks.remove(path);
+        }
+    }
+
+    private static void close(final Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.stanko.file;
+
+import com.stanko.tools.BackgroundThreadFactory;
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Atomic writer of many small files which commits them in groups. Writes issued within a short
+ * window (20ms by default) are committed together by one background thread:
+ * - all temp files are written first and then fsynced back to back, so the file system merges
+ * them into a few journal commits instead of a commit per file interleaved with other writes;
+ * - then all are renamed over their targets and each directory involved is fsynced once (API 21+);
+ * - a target written again within the window is written once, with the latest data.
+ * Each write has the same guarantee as AtomicFiles.write(): old or new content after a crash.
+ * A writer has its own thread: close() writers made with the constructor once done with them.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class GroupCommitWriter {
+
+    private static final String LOG_TAG = GroupCommitWriter.class.getSimpleName();
+
+    public static final long DEFAULT_WINDOW_MS = 20;
+
+    private static GroupCommitWriter sInstance;
+
+    private final long mWindowMs;
+    // not the lowest priority: blocking write() callers wait for it
+    private final ScheduledExecutorService mExecutorService =
+            Executors.newSingleThreadScheduledExecutor(new BackgroundThreadFactory(Thread.NORM_PRIORITY));
+    // target path -> its latest write, in order of first write
+    private LinkedHashMap<String, Entry> mPendingEntries = new LinkedHashMap<>();
+    private boolean isCommitScheduled;
+    private boolean isClosed;
+
+    public interface ICommitCallback {
+        /**
+         * Called in the committing thread once the group with the write is committed
+         *
+         * @param targetFile
+         * @param isSucceed  - false if the target has its old content
+         */
+        void onCommitted(File targetFile, boolean isSucceed);
+    }
+
+    private static class Entry {
+        final File targetFile;
+        byte[] data;
+        // callbacks of this write and of earlier writes superseded by it
+        final List<ICommitCallback> callbacks = new ArrayList<>(1);
+        FileOutputStream outputStream;
+        File tempFile;
+        boolean isSucceed;
+        // renamed over the target, the only state reported as success
+        boolean isCommitted;
+
+        Entry(final File targetFile) {
+            this.targetFile = targetFile;
+        }
+    }
+
+    // blocking write() waits for its group with it
+    private static class WaitingCallback implements ICommitCallback {
+        final CountDownLatch latch = new CountDownLatch(1);
+        volatile boolean isSucceed;
+
+        @Override
+        public void onCommitted(final File targetFile, final boolean isSucceed) {
+            this.isSucceed = isSucceed;
+            latch.countDown();
+        }
+    }
+
+    /**
+     * @return shared writer with default window
+     */
+    public static synchronized GroupCommitWriter getInstance() {
+        if (sInstance == null)
+            sInstance = new GroupCommitWriter(DEFAULT_WINDOW_MS);
+        return sInstance;
+    }
+
+    /**
+     * @param windowMs - how long the first write of a group waits for others
+     */
+    public GroupCommitWriter(final long windowMs) {
+        mWindowMs = Math.max(0, windowMs);
+    }
+
+    /**
+     * Writes the data and waits until its group is committed
+     *
+     * @param data       - bytes to write, must not be changed until committed
+     * @param targetFile - file to replace
+     * @return true if target file has new content, false if it has the old one
+     */
+    public boolean write(final byte[] data, final File targetFile) {
+        final WaitingCallback callback = new WaitingCallback();
+        if (!writeAsync(data, targetFile, callback))
+            return false;
+        try {
+            callback.latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return callback.isSucceed;
+    }
+
+    /**
+     * Queues the data to be written with the next group
+     *
+     * @param data       - bytes to write, must not be changed until committed
+     * @param targetFile - file to replace
+     * @param callback   - may be null
+     * @return false if parameters are wrong or the writer is closed, callback is not called then
+     */
+    public boolean writeAsync(final byte[] data, final File targetFile, final ICommitCallback callback) {
+        if (data == null || !FileUtils.isWritable(targetFile, true)) {
+            Log.e(LOG_TAG, "writeAsync(): Null parameter or can't make path dirs");
+            return false;
+        }
+        synchronized (this) {
+            if (isClosed) {
+                Log.e(LOG_TAG, "writeAsync(): writer is closed");
+                return false;
+            }
+            final String path = targetFile.getAbsolutePath();
+            Entry entry = mPendingEntries.get(path);
+            if (entry == null) {
+                entry = new Entry(targetFile);
+                mPendingEntries.put(path, entry);
+            }
+            entry.data = data;
+            if (callback != null)
+                entry.callbacks.add(callback);
+            if (!isCommitScheduled) {
+                isCommitScheduled = true;
+                mExecutorService.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        commit();
+                    }
+                }, mWindowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Commits pending writes without waiting for the window to pass and waits for them
+     */
+    public void flush() {
+        try {
+            mExecutorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    commit();
+                }
+            }).get();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, e);
+        }
+    }
+
+    /**
+     * Commits pending writes, waits for them and stops the committing thread. Writes issued
+     * after it fail
+     */
+    public void close() {
+        synchronized (this) {
+            if (isClosed)
+                return;
+            isClosed = true;
+        }
+        synchronized (GroupCommitWriter.class) {
+            if (sInstance == this)
+                sInstance = null;
+        }
+        flush();
+        mExecutorService.shutdown();
+    }
+
+    // runs in the single committing thread
+    private void commit() {
+        final LinkedHashMap<String, Entry> entries;
+        synchronized (this) {
+            isCommitScheduled = false;
+            if (mPendingEntries.isEmpty())
+                return;
+            entries = mPendingEntries;
+            mPendingEntries = new LinkedHashMap<>();
+        }
+        try {
+            commit(entries);
+        } catch (RuntimeException e) {
+            // the executor would swallow it, leaving blocking writers waiting forever
+            Log.e(LOG_TAG, e);
+        } finally {
+            for (final Entry entry : entries.values()) {
+                if (entry.outputStream != null)
+                    FileUtils.syncAndClose(entry.outputStream);
+                if (!entry.isCommitted && entry.tempFile != null && entry.tempFile.exists() && !entry.tempFile.delete())
+                    Log.w(LOG_TAG, "could not delete " + entry.tempFile);
+                for (final ICommitCallback callback : entry.callbacks) {
+                    try {
+                        callback.onCommitted(entry.targetFile, entry.isCommitted);
+                    } catch (RuntimeException e) {
+                        Log.e(LOG_TAG, e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void commit(final LinkedHashMap<String, Entry> entries) {
+        // data of all files first
+        for (final Entry entry : entries.values()) {
+            entry.tempFile = AtomicFiles.getTempFile(entry.targetFile);
+            try {
+                entry.outputStream = new FileOutputStream(entry.tempFile);
+                entry.outputStream.write(entry.data);
+                entry.isSucceed = true;
+            } catch (IOException e) {
+                Log.e(LOG_TAG, e);
+            }
+        }
+        // then the fsyncs, back to back
+        for (final Entry entry : entries.values()) {
+            if (entry.outputStream != null)
+                entry.isSucceed = FileUtils.syncAndClose(entry.outputStream) && entry.isSucceed;
+            entry.outputStream = null;
+        }
+        // then renames and one fsync per directory, failed temp files are deleted by the caller
+        final HashSet<File> directories = new HashSet<>();
+        for (final Entry entry : entries.values()) {
+            if (entry.isSucceed) {
+                entry.isCommitted = AtomicFiles.rename(entry.tempFile, entry.targetFile);
+                if (entry.isCommitted)
+                    directories.add(entry.targetFile.getAbsoluteFile().getParentFile());
+            }
+        }
+        for (final File directory : directories)
+            AtomicFiles.syncDirectory(directory);
+    }
+}
@@ -0,0 +1,292 @@
+package com.stanko.file;
+
+import android.util.Base64;
+
+import com.stanko.tools.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Read-only memory mapped file. Bytes are read straight from the page cache, which is shared by
+ * all processes and readers of the file, instead of being copied into a heap buffer per read.
+ * A MappedByteBuffer holds at most 2GB, so a file is read through windows (64MB by default)
+ * sliding over it: forEachWindow() and the helpers (digest, search, Base64, copy) work on any size.
+ * Mappings are released by GC (there is no unmap on Android), keep window references short lived.
+ * Not thread safe for close(), windows may be used by any thread.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class MappedFile implements Closeable {
+
+    private static final String LOG_TAG = MappedFile.class.getSimpleName();
+
+    public static final long DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+    // 57 input bytes make a full 76 chars Base64 line, so encoded chunks concatenate seamlessly
+    private static final int BASE64_CHUNK_SIZE = 57 * 1024;
+
+    private final FileInputStream mInputStream;
+    private final FileChannel mChannel;
+    private final long mLength;
+    private final long mWindowSize;
+
+    public interface IWindowVisitor {
+        /**
+         * @param window   - read-only buffer, its position is 0
+         * @param position - offset of the window in the file
+         * @return false to stop
+         */
+        boolean onWindow(ByteBuffer window, long position);
+    }
+
+    // encodes one chunk of toBase64(), JVM tests give their own one instead of android.util.Base64
+    interface IBase64Encoder {
+        String encodeToString(byte[] input, int offset, int length, int flags);
+    }
+
+    private static final IBase64Encoder BASE64_ENCODER = new IBase64Encoder() {
+        @Override
+        public String encodeToString(final byte[] input, final int offset, final int length, final int flags) {
+            return Base64.encodeToString(input, offset, length, flags);
+        }
+    };
+
+    /**
+     * @param file - file to map
+     * @return MappedFile or null if the file could not be opened
+     */
+    public static MappedFile open(final File file) {
+        return open(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param file       - file to map
+     * @param windowSize - bytes per window of forEachWindow() and helpers, up to Integer.MAX_VALUE
+     * @return MappedFile or null if the file could not be opened
+     */
+    public static MappedFile open(final File file, final long windowSize) {
+        try {
+            return new MappedFile(new FileInputStream(file), windowSize);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+            return null;
+        }
+    }
+
+    private MappedFile(final FileInputStream inputStream, final long windowSize) throws IOException {
+        mInputStream = inputStream;
+        mChannel = inputStream.getChannel();
+        mLength = mChannel.size();
+        mWindowSize = Math.max(64 * 1024, Math.min(windowSize, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return file length at the moment it was opened
+     */
+    public long length() {
+        return mLength;
+    }
+
+    /**
+     * Maps a part of the file
+     *
+     * @param position - offset in the file
+     * @param size     - count of bytes, cut to the end of the file, up to Integer.MAX_VALUE
+     * @return read-only buffer
+     * @throws IOException if mapping failed
+     */
+    public MappedByteBuffer map(final long position, final long size) throws IOException {
+        if (position < 0 || size < 0 || size > Integer.MAX_VALUE)
+            throw new IOException("IOException (map file): wrong window " + position + "+" + size);
+        return mChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.max(0, Math.min(size, mLength - position)));
+    }
+
+    /**
+     * Maps the file window by window
+     *
+     * @param fromPosition - offset of the first window
+     * @param overlap      - bytes of a window repeated at the start of the next one, so a match
+     *                     of up to overlap + 1 bytes is never split between windows
+     * @param visitor
+     * @return false if visitor stopped it
+     * @throws IOException if mapping failed
+     */
+    public boolean forEachWindow(final long fromPosition, final int overlap, final IWindowVisitor visitor) throws IOException {
+        if (overlap < 0 || overlap >= mWindowSize)
+            throw new IOException("IOException (map file): wrong overlap " + overlap);
+        long position = Math.max(0, fromPosition);
+        while (position < mLength) {
+            final long size = Math.min(mWindowSize, mLength - position);
+            if (!visitor.onWindow(map(position, size), position))
+                return false;
+            if (position + size >= mLength)
+                break;
+            position += size - overlap;
+        }
+        return true;
+    }
+
+    /**
+     * @param algorithm - MessageDigest algorithm, like "MD5", "SHA-1" or "SHA-256"
+     * @return digest of the whole file or null if algorithm is not supported or mapping failed
+     */
+    public byte[] digest(final String algorithm) {
+        final MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(LOG_TAG, e);
+            return null;
+        }
+        try {
+            forEachWindow(0, 0, new IWindowVisitor() {
+                @Override
+                public boolean onWindow(final ByteBuffer window, final long position) {
+                    messageDigest.update(window);
+                    return true;
+                }
+            });
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+            return null;
+        }
+        return messageDigest.digest();
+    }
+
+    /**
+     * Searches for a sequence of bytes
+     *
+     * @param pattern      - bytes to find, not empty
+     * @param fromPosition - offset to start from
+     * @return offset of the first match or -1 if not found
+     * @throws IOException if mapping failed
+     */
+    public long indexOf(final byte[] pattern, final long fromPosition) throws IOException {
+        if (pattern == null || pattern.length == 0 || pattern.length > mWindowSize)
+            throw new IOException("IOException (map file): wrong pattern");
+        final long[] found = {-1};
+        forEachWindow(fromPosition, pattern.length - 1, new IWindowVisitor() {
+            @Override
+            public boolean onWindow(final ByteBuffer window, final long position) {
+                final int index = indexOf(window, pattern);
+                if (index < 0)
+                    return true;
+                found[0] = position + index;
+                return false;
+            }
+        });
+        return found[0];
+    }
+
+    private static int indexOf(final ByteBuffer window, final byte[] pattern) {
+        final byte first = pattern[0];
+        final int last = window.limit() - pattern.length;
+        for (int i = 0; i <= last; i++) {
+            if (window.get(i) != first)
+                continue;
+            int j = 1;
+            while (j < pattern.length && window.get(i + j) == pattern[j])
+                j++;
+            if (j == pattern.length)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Base64 of the whole file, encoded chunk by chunk: no heap copy of the file but the result
+     *
+     * @param flags - android.util.Base64 flags, the result is the same as of Base64.encodeToString()
+     * @return encoded String or null if mapping failed or there is no memory for the result
+     */
+    public String toBase64(final int flags) {
+        return toBase64(flags, BASE64_ENCODER);
+    }
+
+    String toBase64(final int flags, final IBase64Encoder encoder) {
+        if (mLength > Integer.MAX_VALUE / 2)
+            return null;
+        final StringBuilder result = new StringBuilder((int) (mLength * 4 / 3 + mLength / 57 + 4));
+        final byte[] chunk = BufferPool.obtain(BASE64_CHUNK_SIZE);
+        try {
+            // windows are multiples of chunk size except for the last one, the only partial chunk
+            final long windowSize = mWindowSize - mWindowSize % BASE64_CHUNK_SIZE;
+            for (long position = 0; position < mLength; position += windowSize) {
+                final ByteBuffer window = map(position, windowSize);
+                while (window.hasRemaining()) {
+                    final int count = Math.min(BASE64_CHUNK_SIZE, window.remaining());
+                    window.get(chunk, 0, count);
+                    result.append(encoder.encodeToString(chunk, 0, count, flags));
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+            return null;
+        } catch (OutOfMemoryError e) {
+            Log.e(LOG_TAG, e);
+            return null;
+        } finally {
+            BufferPool.recycle(chunk);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Copies the whole file into a channel straight from the mapping
+     *
+     * @param channel - target channel, not closed here
+     * @return count of bytes written
+     * @throws IOException
+     */
+    public long transferTo(final WritableByteChannel channel) throws IOException {
+        final long[] written = {0};
+        final IOException[] error = {null};
+        forEachWindow(0, 0, new IWindowVisitor() {
+            @Override
+            public boolean onWindow(final ByteBuffer window, final long position) {
+                try {
+                    while (window.hasRemaining())
+                        written[0] += channel.write(window);
+                    return true;
+                } catch (IOException e) {
+                    error[0] = e;
+                    return false;
+                }
+            }
+        });
+        if (error[0] != null)
+            throw error[0];
+        return written[0];
+    }
+
+    /**
+     * Copies the whole file into a stream
+     *
+     * @param outputStream - target stream, not closed here
+     * @return count of bytes written
+     * @throws IOException
+     */
+    public long writeTo(final OutputStream outputStream) throws IOException {
+        return transferTo(Channels.newChannel(outputStream));
+    }
+
+    @Override
+    public void close() {
+        try {
+            mInputStream.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package com.stanko.file;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Copy or write which survives process death and stream failures: data goes to a ".part" file
+ * next to the target in fixed size chunks (DEFAULT_CHUNK_SIZE) and each chunk, once synced, is
+ * recorded with its CRC32 in a ".journal" file. Starting the same transfer again (same source and
+ * target) continues after the last recorded chunk which CRC matches the part file, instead of
+ * starting over. When all is written the part file is renamed over the target and the journal is
+ * deleted. Memory use is one pooled buffer whatever the size, so multi-GB imports from SAF Uris
+ * work on low-memory devices. Not thread safe, one transfer per target at a time.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class ResumableTransfer {
+
+    private static final String LOG_TAG = ResumableTransfer.class.getSimpleName();
+
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String PART_FILE_SUFFIX = ".part";
+    private static final String JOURNAL_FILE_SUFFIX = ".journal";
+    private static final int JOURNAL_MAGIC = 0x524a4e31; // RJN1
+    // offset, length, CRC32 of the chunk, CRC32 of the record itself
+    private static final int RECORD_SIZE = 8 + 4 + 4 + 4;
+
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+    private IProgressListener mProgressListener;
+
+    public interface IProgressListener {
+        /**
+         * Called in the transferring thread after each chunk. Interrupt the thread to pause the
+         * transfer, it is continued by the next call with the same source and target
+         *
+         * @param targetFile
+         * @param doneBytes  - including bytes done before the resume
+         * @param totalBytes - or -1 if source length is unknown
+         */
+        void onProgress(File targetFile, long doneBytes, long totalBytes);
+    }
+
+    /**
+     * @param chunkSize - bytes per journal record, also max bytes lost by an interruption
+     */
+    public ResumableTransfer setChunkSize(final int chunkSize) {
+        mChunkSize = Math.max(BUFFER_SIZE, chunkSize);
+        return this;
+    }
+
+    public ResumableTransfer setProgressListener(final IProgressListener progressListener) {
+        mProgressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * Copies a file, continuing a previous interrupted copy of it if any. A copy of a source
+     * changed since then (length or modification time) starts over
+     *
+     * @param src - File to copy from
+     * @param dst - File to copy to, directories are made if needed
+     * @return count of bytes of the target
+     * @throws IOException if failed, what is done so far is kept for the next call
+     */
+    public long copy(final File src, final File dst) throws IOException {
+        if (src == null || !src.exists() || !src.canRead())
+            throw new IOException("IOException (resumable copy): source file does not exists or not readable");
+        final long length = src.length();
+        return transfer(new ClosingSource() {
+            @Override
+            public InputStream open(final long offset) throws IOException {
+                final FileInputStream inputStream = new FileInputStream(src);
+                inputStream.getChannel().position(offset);
+                return inputStream;
+            }
+        }, src.getAbsolutePath() + ":" + src.lastModified(), length, dst);
+    }
+
+    /**
+     * Writes content of a Uri to a file, continuing a previous interrupted write if any
+     *
+     * @param context
+     * @param uri        - Uri taken from Intent.getData() or SAF
+     * @param targetFile - File to create, directories are made if needed
+     * @return count of bytes of the target
+     * @throws IOException if failed, what is done so far is kept for the next call
+     */
+    public long write(final Context context, final Uri uri, final File targetFile) throws IOException {
+        if (context == null || uri == null)
+            throw new IOException("IOException (resumable write): Null parameter given");
+        long length = -1;
+        try {
+            final ParcelFileDescriptor fileDescriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+            if (fileDescriptor != null) {
+                length = fileDescriptor.getStatSize();
+                fileDescriptor.close();
+            }
+        } catch (FileNotFoundException e) {
+            // not a file behind the Uri, length stays unknown
+        }
+        return transfer(new ClosingSource() {
+            @Override
+            public InputStream open(final long offset) throws IOException {
+                return openUri(context, uri, offset);
+            }
+        }, uri.toString(), length, targetFile);
+    }
+
+    /**
+     * Writes a stream to a file, continuing a previous interrupted write of the same source.
+     * The stream must start from the beginning of the source, bytes already written are skipped
+     *
+     * @param inputStream - stream to read till its end, not closed here
+     * @param sourceId    - identifies the source between calls, e.g. its url and version
+     * @param length      - of the source or -1 if unknown
+     * @param targetFile  - File to create, directories are made if needed
+     * @return count of bytes of the target
+     * @throws IOException if failed, what is done so far is kept for the next call
+     */
+    public long write(final InputStream inputStream, final String sourceId, final long length, final File targetFile) throws IOException {
+        if (inputStream == null || sourceId == null)
+            throw new IOException("IOException (resumable write): Null parameter given");
+        return transfer(new ISource() {
+            @Override
+            public InputStream open(final long offset) throws IOException {
+                skipFully(inputStream, offset);
+                return inputStream;
+            }
+
+            @Override
+            public boolean isClosing() {
+                return false;
+            }
+        }, sourceId, length, targetFile);
+    }
+
+    /**
+     * @return true if there is an unfinished transfer to this target
+     */
+    public static boolean hasUnfinished(final File targetFile) {
+        return getJournalFile(targetFile).exists();
+    }
+
+    /**
+     * Drops an unfinished transfer to this target, so the next one starts over
+     */
+    public static void discard(final File targetFile) {
+        delete(getPartFile(targetFile));
+        delete(getJournalFile(targetFile));
+    }
+
+    //*********************************************************************************************
+    //
+    // Transfer
+    //
+
+    private interface ISource {
+        /**
+         * @param offset - bytes to skip from the beginning of the source
+         */
+        InputStream open(long offset) throws IOException;
+
+        /**
+         * @return true if the opened stream is to be closed by the transfer
+         */
+        boolean isClosing();
+    }
+
+    private abstract static class ClosingSource implements ISource {
+        @Override
+        public boolean isClosing() {
+            return true;
+        }
+    }
+
+    private long transfer(final ISource source, final String sourceId, final long length, final File targetFile) throws IOException {
+        if (!FileUtils.isWritable(targetFile, true))
+            throw new IOException("IOException (resumable transfer): target file not writable");
+        final File partFile = getPartFile(targetFile);
+        final File journalFile = getJournalFile(targetFile);
+
+        RandomAccessFile part = null;
+        RandomAccessFile journal = null;
+        InputStream inputStream = null;
+        byte[] buffer = null;
+        try {
+            part = new RandomAccessFile(partFile, "rw");
+            journal = new RandomAccessFile(journalFile, "rw");
+            long position = resume(journal, part, sourceId, length);
+            if (position == 0)
+                writeHeader(journal, sourceId, length);
+            part.setLength(position);
+            part.seek(position);
+            if (position > 0)
+                Log.w(LOG_TAG, "resuming " + targetFile + " from " + position);
+
+            inputStream = source.open(position);
+            buffer = BufferPool.obtainFor(targetFile);
+            final CRC32 crc32 = new CRC32();
+            boolean isEnded = false;
+            while (!isEnded) {
+                if (Thread.interrupted())
+                    throw new InterruptedIOException("IOException (resumable transfer): interrupted");
+                crc32.reset();
+                int chunkBytes = 0;
+                while (chunkBytes < mChunkSize) {
+                    final int count = inputStream.read(buffer, 0, Math.min(buffer.length, mChunkSize - chunkBytes));
+                    if (count == -1) {
+                        isEnded = true;
+                        break;
+                    }
+                    part.write(buffer, 0, count);
+                    crc32.update(buffer, 0, count);
+                    chunkBytes += count;
+                }
+                if (chunkBytes == 0)
+                    break;
+                // the chunk must be on disk before the record saying it is
+                part.getFD().sync();
+                appendRecord(journal, position, chunkBytes, (int) crc32.getValue());
+                position += chunkBytes;
+                if (mProgressListener != null)
+                    mProgressListener.onProgress(targetFile, position, length);
+            }
+            if (length >= 0 && position != length) {
+                // the source is not what the journal was started for
+                closeQuietly(part);
+                part = null;
+                closeQuietly(journal);
+                journal = null;
+                discard(targetFile);
+                throw new IOException("IOException (resumable transfer): source length changed, " + position + " instead of " + length);
+            }
+            part.close();
+            part = null;
+            if (!AtomicFiles.rename(partFile, targetFile))
+                throw new IOException("IOException (resumable transfer): could not rename " + partFile);
+            AtomicFiles.syncDirectory(targetFile.getAbsoluteFile().getParentFile());
+            closeQuietly(journal);
+            journal = null;
+            delete(journalFile);
+            return position;
+        } finally {
+            BufferPool.recycle(buffer);
+            if (inputStream != null && source.isClosing())
+                closeQuietly(inputStream);
+            if (part != null)
+                closeQuietly(part);
+            if (journal != null)
+                closeQuietly(journal);
+        }
+    }
+
+    // returns offset to continue from, 0 if journal is missing, broken or of another source
+    private long resume(final RandomAccessFile journal, final RandomAccessFile part, final String sourceId, final long length) throws IOException {
+        if (journal.length() == 0)
+            return 0;
+        final long recordsStart;
+        try {
+            journal.seek(0);
+            if (journal.readInt() != JOURNAL_MAGIC || journal.readInt() != mChunkSize
+                    || journal.readLong() != length || !sourceId.equals(journal.readUTF()))
+                return 0;
+            recordsStart = journal.getFilePointer();
+        } catch (IOException e) {
+            // EOFException of a header torn by a crash
+            return 0;
+        }
+
+        // valid records follow each other from offset 0
+        final long recordsCount = (journal.length() - recordsStart) / RECORD_SIZE;
+        final byte[] record = new byte[RECORD_SIZE - 4];
+        final CRC32 crc32 = new CRC32();
+        long validCount = 0;
+        final long[] chunkOffsets = new long[(int) Math.min(recordsCount, 2)];
+        final int[] chunkLengths = new int[chunkOffsets.length];
+        final int[] chunkCRCs = new int[chunkOffsets.length];
+        long expectedOffset = 0;
+        journal.seek(recordsStart);
+        for (long i = 0; i < recordsCount; i++) {
+            journal.readFully(record);
+            final int recordCRC = journal.readInt();
+            crc32.reset();
+            crc32.update(record);
+            final long offset = readLong(record, 0);
+            final int chunkLength = readInt(record, 8);
+            if ((int) crc32.getValue() != recordCRC || offset != expectedOffset || chunkLength <= 0)
+                break;
+            // keeps last two records, the previous one is used if the last one does not verify
+            final int slot = (int) (validCount % chunkOffsets.length);
+            chunkOffsets[slot] = offset;
+            chunkLengths[slot] = chunkLength;
+            chunkCRCs[slot] = readInt(record, 12);
+            expectedOffset = offset + chunkLength;
+            validCount++;
+        }
+
+        long position = 0;
+        for (long i = validCount - 1; i >= Math.max(0, validCount - chunkOffsets.length); i--) {
+            final int slot = (int) (i % chunkOffsets.length);
+            if (isChunkValid(part, chunkOffsets[slot], chunkLengths[slot], chunkCRCs[slot])) {
+                position = chunkOffsets[slot] + chunkLengths[slot];
+                validCount = i + 1;
+                break;
+            }
+        }
+        if (position == 0)
+            return 0;
+        // drops records after the verified one
+        journal.setLength(recordsStart + validCount * RECORD_SIZE);
+        journal.seek(journal.length());
+        return position;
+    }
+
+    private static boolean isChunkValid(final RandomAccessFile part, final long offset, final int length, final int crc) throws IOException {
+        if (part.length() < offset + length)
+            return false;
+        final byte[] buffer = BufferPool.obtain(BUFFER_SIZE);
+        final CRC32 crc32 = new CRC32();
+        try {
+            part.seek(offset);
+            int remaining = length;
+            while (remaining > 0) {
+                final int count = Math.min(buffer.length, remaining);
+                part.readFully(buffer, 0, count);
+                crc32.update(buffer, 0, count);
+                remaining -= count;
+            }
+        } finally {
+            BufferPool.recycle(buffer);
+        }
+        return (int) crc32.getValue() == crc;
+    }
+
+    private void writeHeader(final RandomAccessFile journal, final String sourceId, final long length) throws IOException {
+        journal.setLength(0);
+        journal.seek(0);
+        journal.writeInt(JOURNAL_MAGIC);
+        journal.writeInt(mChunkSize);
+        journal.writeLong(length);
+        journal.writeUTF(sourceId);
+        journal.getFD().sync();
+    }
+
+    private static void appendRecord(final RandomAccessFile journal, final long offset, final int length, final int crc) throws IOException {
+        final byte[] record = new byte[RECORD_SIZE];
+        writeLong(record, 0, offset);
+        writeInt(record, 8, length);
+        writeInt(record, 12, crc);
+        final CRC32 crc32 = new CRC32();
+        crc32.update(record, 0, RECORD_SIZE - 4);
+        writeInt(record, 16, (int) crc32.getValue());
+        journal.write(record);
+        journal.getFD().sync();
+    }
+
+    //*********************************************************************************************
+    //
+    // Helpers
+    //
+
+    private static InputStream openUri(final Context context, final Uri uri, final long offset) throws IOException {
+        try {
+            final ParcelFileDescriptor fileDescriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+            if (fileDescriptor != null) {
+                final FileInputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(fileDescriptor);
+                try {
+                    // a seek instead of reading all skipped bytes, fails for pipes
+                    inputStream.getChannel().position(offset);
+                    return inputStream;
+                } catch (IOException e) {
+                    closeQuietly(inputStream);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // no file descriptor for the Uri, try a stream
+        }
+        final InputStream inputStream = context.getContentResolver().openInputStream(uri);
+        if (inputStream == null)
+            throw new IOException("IOException (resumable write): could not open " + uri);
+        try {
+            skipFully(inputStream, offset);
+        } catch (IOException e) {
+            closeQuietly(inputStream);
+            throw e;
+        }
+        return inputStream;
+    }
+
+    private static void skipFully(final InputStream inputStream, long count) throws IOException {
+        final byte[] buffer = BufferPool.obtain(BUFFER_SIZE);
+        try {
+            while (count > 0) {
+                long skipped = inputStream.skip(count);
+                if (skipped <= 0) {
+                    // skip() may refuse to skip, reading does not
+                    skipped = inputStream.read(buffer, 0, (int) Math.min(buffer.length, count));
+                    if (skipped == -1)
+                        throw new IOException("IOException (resumable transfer): source is shorter than done part");
+                }
+                count -= skipped;
+            }
+        } finally {
+            BufferPool.recycle(buffer);
+        }
+    }
+
+    private static File getPartFile(final File targetFile) {
+        return new File(targetFile.getAbsoluteFile().getParentFile(), "." + targetFile.getName() + PART_FILE_SUFFIX);
+    }
+
+    private static File getJournalFile(final File targetFile) {
+        return new File(targetFile.getAbsoluteFile().getParentFile(), "." + targetFile.getName() + JOURNAL_FILE_SUFFIX);
+    }
+
+    private static void delete(final File file) {
+        if (file.exists() && !file.delete())
+            Log.w(LOG_TAG, "could not delete " + file);
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+        }
+    }
+
+    private static long readLong(final byte[] bytes, final int offset) {
+        return ((long) readInt(bytes, offset) << 32) | (readInt(bytes, offset + 4) & 0xffffffffL);
+    }
+
+    private static int readInt(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16
+                | (bytes[offset + 2] & 0xff) << 8 | (bytes[offset + 3] & 0xff);
+    }
+
+    private static void writeLong(final byte[] bytes, final int offset, final long value) {
+        writeInt(bytes, offset, (int) (value >>> 32));
+        writeInt(bytes, offset + 4, (int) value);
+    }
+
+    private static void writeInt(final byte[] bytes, final int offset, final int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
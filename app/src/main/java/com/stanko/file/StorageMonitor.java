@@ -0,0 +1,309 @@
+package com.stanko.file;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.StatFs;
+
+import com.stanko.tools.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Free and total space of volumes without a StatFs call per question: StatFs results are kept
+ * per volume for a short time (DEFAULT_TTL_MS) and the estimate is decreased by the writes we make
+ * meanwhile (AtomicFiles and FileCopier report theirs, others may call onSpaceUsed()). Listeners
+ * are told once free space of a volume falls below low or critical threshold, so disk caches may
+ * evict before writes start failing with ENOSPC.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class StorageMonitor {
+
+    private static final String LOG_TAG = StorageMonitor.class.getSimpleName();
+
+    public static final long DEFAULT_TTL_MS = 2000;
+    public static final long DEFAULT_LOW_SPACE_BYTES = 200 * 1024 * 1024;
+    public static final long DEFAULT_CRITICAL_SPACE_BYTES = 50 * 1024 * 1024;
+
+    public static final int LEVEL_OK = 0;
+    public static final int LEVEL_LOW = 1;
+    public static final int LEVEL_CRITICAL = 2;
+
+    private static final int MAX_CACHED_PATHS = 64;
+    private static final String ROOT = "/";
+
+    public interface IStorageListener {
+        /**
+         * Called in the thread which found out that free space fell below low threshold
+         *
+         * @param mountPoint     - of the volume
+         * @param availableBytes - estimated free space
+         */
+        void onLowSpace(String mountPoint, long availableBytes);
+
+        /**
+         * Called in the thread which found out that free space fell below critical threshold
+         *
+         * @param mountPoint     - of the volume
+         * @param availableBytes - estimated free space
+         */
+        void onCriticalSpace(String mountPoint, long availableBytes);
+    }
+
+    /**
+     * StatFs result of a volume plus our writes made after it
+     */
+    private static class VolumeState {
+        final String mountPoint;
+        long statTime;
+        long availableBytes;
+        long totalBytes;
+        long usedSinceStat;
+        int level = LEVEL_OK;
+
+        VolumeState(final String mountPoint) {
+            this.mountPoint = mountPoint;
+        }
+
+        long getAvailableBytes() {
+            return Math.max(0, availableBytes - usedSinceStat);
+        }
+    }
+
+    // guarded by StorageMonitor.class
+    private static final Map<String, VolumeState> sVolumeStates = new HashMap<>();
+
+    // file path -> mount point, saves canonical path resolving per question
+    private static final Map<String, String> sMountPoints = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_PATHS;
+        }
+    };
+    private static final List<IStorageListener> sListeners = new ArrayList<>();
+    private static long sTTL = DEFAULT_TTL_MS;
+    private static long sLowSpaceBytes = DEFAULT_LOW_SPACE_BYTES;
+    private static long sCriticalSpaceBytes = DEFAULT_CRITICAL_SPACE_BYTES;
+
+    /**
+     * @param file - any file or directory of the volume, existing or not
+     * @return estimated free space in bytes or -1 if storage is not available (UNMOUNTED, etc)
+     */
+    public static long getAvailableSpace(final File file) {
+        final VolumeState volumeState = getVolumeState(file);
+        if (volumeState == null)
+            return -1;
+        synchronized (StorageMonitor.class) {
+            return volumeState.getAvailableBytes();
+        }
+    }
+
+    /**
+     * @param file - any file or directory of the volume, existing or not
+     * @return size of the volume in bytes or -1 if storage is not available (UNMOUNTED, etc)
+     */
+    public static long getTotalSpace(final File file) {
+        final VolumeState volumeState = getVolumeState(file);
+        return volumeState == null ? -1 : volumeState.totalBytes;
+    }
+
+    /**
+     * @param file - any file or directory of the volume, existing or not
+     * @return LEVEL_OK, LEVEL_LOW or LEVEL_CRITICAL, LEVEL_CRITICAL if storage is not available
+     */
+    public static int getLevel(final File file) {
+        final VolumeState volumeState = getVolumeState(file);
+        return volumeState == null ? LEVEL_CRITICAL : volumeState.level;
+    }
+
+    /**
+     * @param file  - file to be written, existing or not
+     * @param bytes - count of bytes to be written
+     * @return false if free space would fall below critical threshold
+     */
+    public static boolean hasSpaceFor(final File file, final long bytes) {
+        return getAvailableSpace(file) - bytes >= getCriticalSpaceBytes();
+    }
+
+    /**
+     * Corrects estimated free space of file's volume by our own write or delete
+     *
+     * @param file  - file written or deleted
+     * @param bytes - count of bytes written, negative for bytes freed
+     */
+    public static void onSpaceUsed(final File file, final long bytes) {
+        if (file == null || bytes == 0)
+            return;
+        final String mountPoint = getMountPoint(file);
+        final VolumeState volumeState;
+        synchronized (StorageMonitor.class) {
+            volumeState = sVolumeStates.get(mountPoint);
+            if (volumeState == null)
+                return; // nobody asked about this volume yet
+            volumeState.usedSinceStat += bytes;
+        }
+        updateLevel(volumeState);
+    }
+
+    /**
+     * Makes next question about file's volume call StatFs, e.g. after a lot of files were
+     * deleted or written by others
+     *
+     * @param file - any file or directory of the volume, or null for all volumes
+     */
+    public static void invalidate(final File file) {
+        final String mountPoint = file == null ? null : getMountPoint(file);
+        synchronized (StorageMonitor.class) {
+            for (final VolumeState volumeState : sVolumeStates.values())
+                if (mountPoint == null || mountPoint.equals(volumeState.mountPoint))
+                    volumeState.statTime = 0;
+        }
+    }
+
+    public static synchronized void setTTL(final long ttlMs) {
+        sTTL = Math.max(0, ttlMs);
+    }
+
+    /**
+     * @param lowSpaceBytes      - free space below which onLowSpace() is called
+     * @param criticalSpaceBytes - free space below which onCriticalSpace() is called
+     */
+    public static synchronized void setThresholds(final long lowSpaceBytes, final long criticalSpaceBytes) {
+        sLowSpaceBytes = Math.max(lowSpaceBytes, criticalSpaceBytes);
+        sCriticalSpaceBytes = criticalSpaceBytes;
+    }
+
+    public static synchronized long getLowSpaceBytes() {
+        return sLowSpaceBytes;
+    }
+
+    public static synchronized long getCriticalSpaceBytes() {
+        return sCriticalSpaceBytes;
+    }
+
+    public static void addListener(final IStorageListener listener) {
+        synchronized (sListeners) {
+            if (listener != null && !sListeners.contains(listener))
+                sListeners.add(listener);
+        }
+    }
+
+    public static void removeListener(final IStorageListener listener) {
+        synchronized (sListeners) {
+            sListeners.remove(listener);
+        }
+    }
+
+    //*********************************************************************************************
+    //
+    // Volume states
+    //
+
+    private static VolumeState getVolumeState(final File file) {
+        if (file == null)
+            return null;
+        final String mountPoint = getMountPoint(file);
+        VolumeState volumeState;
+        synchronized (StorageMonitor.class) {
+            volumeState = sVolumeStates.get(mountPoint);
+            if (volumeState != null && System.currentTimeMillis() - volumeState.statTime < sTTL)
+                return volumeState;
+        }
+        // StatFs is called outside of the lock, concurrent callers may both call it.
+        // The file itself is stat'ed, the mount point is just a key: it is "/" if mounts are unknown
+        final long[] availableAndTotal = statFs(getExistingPath(file));
+        if (availableAndTotal == null)
+            return null;
+        synchronized (StorageMonitor.class) {
+            if (volumeState == null)
+                sVolumeStates.put(mountPoint, volumeState = new VolumeState(mountPoint));
+            volumeState.availableBytes = availableAndTotal[0];
+            volumeState.totalBytes = availableAndTotal[1];
+            volumeState.usedSinceStat = 0;
+            volumeState.statTime = System.currentTimeMillis();
+        }
+        updateLevel(volumeState);
+        return volumeState;
+    }
+
+    private static String getMountPoint(final File file) {
+        final String path = file.getAbsolutePath();
+        synchronized (sMountPoints) {
+            final String mountPoint = sMountPoints.get(path);
+            if (mountPoint != null)
+                return mountPoint;
+        }
+        String mountPoint = Volumes.getMountPoint(file);
+        // mounts could not be read or none matched: files of different volumes must not share a state
+        if (ROOT.equals(mountPoint)) {
+            final File existingFile = new File(getExistingPath(file));
+            mountPoint = existingFile.isDirectory() ? existingFile.getPath() : existingFile.getParent();
+        }
+        synchronized (sMountPoints) {
+            sMountPoints.put(path, mountPoint);
+        }
+        return mountPoint;
+    }
+
+    // file's path or of its nearest existing ancestor, StatFs fails for paths which do not exist
+    private static String getExistingPath(final File file) {
+        File existingFile = file.getAbsoluteFile();
+        while (!existingFile.exists() && existingFile.getParentFile() != null)
+            existingFile = existingFile.getParentFile();
+        return existingFile.getPath();
+    }
+
+    // tells listeners when the level gets worse, it gets better silently
+    private static void updateLevel(final VolumeState volumeState) {
+        final long availableBytes;
+        final int level;
+        synchronized (StorageMonitor.class) {
+            availableBytes = volumeState.getAvailableBytes();
+            level = availableBytes < sCriticalSpaceBytes ? LEVEL_CRITICAL
+                    : availableBytes < sLowSpaceBytes ? LEVEL_LOW : LEVEL_OK;
+            final boolean isWorse = level > volumeState.level;
+            volumeState.level = level;
+            if (!isWorse)
+                return;
+        }
+        final List<IStorageListener> listeners;
+        synchronized (sListeners) {
+            listeners = new ArrayList<>(sListeners);
+        }
+        for (final IStorageListener listener : listeners) {
+            if (level == LEVEL_CRITICAL)
+                listener.onCriticalSpace(volumeState.mountPoint, availableBytes);
+            else
+                listener.onLowSpace(volumeState.mountPoint, availableBytes);
+        }
+    }
+
+    // returns {available bytes, total bytes} or null if storage is not available
+    @SuppressWarnings("deprecation")
+    private static long[] statFs(final String path) {
+        try {
+            final StatFs stat = new StatFs(path);
+            if (Build.VERSION.SDK_INT >= 18)
+                return statFs18(stat);
+            return new long[]{(long) stat.getAvailableBlocks() * (long) stat.getBlockSize(),
+                    (long) stat.getBlockCount() * (long) stat.getBlockSize()};
+        } catch (Exception e) {//IllegalArgumentException, NPE
+            // this can occur if the SD card is removed, but we haven't received the
+            // ACTION_MEDIA_REMOVED Intent yet.
+            Log.e(LOG_TAG, e);
+            return null;
+        }
+    }
+
+    @TargetApi(18)
+    private static long[] statFs18(final StatFs stat) {
+        return new long[]{stat.getAvailableBlocksLong() * stat.getBlockSizeLong(),
+                stat.getBlockCountLong() * stat.getBlockSizeLong()};
+    }
+}
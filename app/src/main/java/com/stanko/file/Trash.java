@@ -0,0 +1,306 @@
+package com.stanko.file;
+
+import android.content.Context;
+
+import com.stanko.tools.BackgroundThreadFactory;
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.Initializer;
+import com.stanko.tools.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous delete: a file or directory is renamed into ".trash" directory next to it, which
+ * is instant and on the same volume by definition, and the trash is purged later on low priority
+ * threads, subdirectories in parallel. Trash directories are listed in a file of the app's files
+ * directory before anything is moved into them, so purges interrupted by process death are
+ * resumed by resume(), which Initializer.init() calls. Purged trash directories are kept along
+ * with their registry entries, so the registry is written (and synced) once per directory, not on
+ * every delete() after a purge. A trash directory is removed only if delete() was called on it.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class Trash {
+
+    private static final String LOG_TAG = Trash.class.getSimpleName();
+
+    public static final String TRASH_DIR_NAME = ".trash";
+    private static final String REGISTRY_FILE_NAME = "trash_dirs";
+    private static final int PURGE_THREADS_COUNT = 2;
+
+    private static final AtomicLong sCounter = new AtomicLong();
+    // guarded by Trash.class
+    private static LinkedHashSet<String> sTrashDirs;
+    private static final HashSet<String> sQueuedTrashDirs = new HashSet<>();
+    // trash directories deleted themselves, removed after the purge if nothing was trashed meanwhile
+    private static final HashSet<String> sRemovedTrashDirs = new HashSet<>();
+    private static ExecutorService sPurgeExecutorService;
+    private static ExecutorService sDeleteExecutorService;
+
+    /**
+     * Moves a file or directory out of the way at once and deletes it in background. Falls back
+     * to a synchronous delete if it can not be renamed (e.g. it is a mount point)
+     *
+     * @param target - file or directory to delete
+     * @return false if target does not exist or could not be deleted synchronously
+     */
+    public static boolean delete(final File target) {
+        if (target == null || !target.exists()) {
+            Log.e(LOG_TAG, "delete(): Null parameter given or file does not exist");
+            return false;
+        }
+        final File parent = target.getAbsoluteFile().getParentFile();
+        if (parent == null)
+            return deleteNow(target);
+        final File trashDir = new File(parent, TRASH_DIR_NAME);
+        final String trashDirPath = trashDir.getAbsolutePath();
+        // under the lock purge() takes to remove a trash directory, so it can not be removed
+        // between mkdir() and renameTo()
+        boolean isTrashed = false;
+        synchronized (Trash.class) {
+            if (trashDir.isDirectory() || trashDir.mkdir()) {
+                register(trashDir);
+                if (target.getAbsolutePath().equals(trashDirPath)) {
+                    sRemovedTrashDirs.add(trashDirPath);
+                    isTrashed = true;
+                } else {
+                    final File trashedFile = new File(trashDir, System.currentTimeMillis() + "-" + sCounter.incrementAndGet());
+                    isTrashed = target.renameTo(trashedFile);
+                    if (isTrashed)
+                        sRemovedTrashDirs.remove(trashDirPath);
+                }
+            }
+        }
+        if (!isTrashed) {
+            Log.w(LOG_TAG, "could not move " + target + " to trash, deleting it now");
+            return deleteNow(target);
+        }
+        schedulePurge(trashDir);
+        return true;
+    }
+
+    /**
+     * Schedules purge of trash directories left by previous runs
+     */
+    public static void resume() {
+        getPurgeExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<String> trashDirs;
+                synchronized (Trash.class) {
+                    trashDirs = new ArrayList<>(getTrashDirs());
+                }
+                for (final String trashDir : trashDirs)
+                    schedulePurge(new File(trashDir));
+            }
+        });
+    }
+
+    private static boolean deleteNow(final File target) {
+        return target.isDirectory() ? FileUtils.deleteFilesAndDirsRecursive(target) : target.delete();
+    }
+
+    //*********************************************************************************************
+    //
+    // Purge
+    //
+
+    private static synchronized void schedulePurge(final File trashDir) {
+        if (!sQueuedTrashDirs.add(trashDir.getAbsolutePath()))
+            return;
+        getPurgeExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Trash.class) {
+                    sQueuedTrashDirs.remove(trashDir.getAbsolutePath());
+                }
+                purge(trashDir);
+            }
+        });
+    }
+
+    // runs in the purge thread, items trashed meanwhile queue another purge
+    private static void purge(final File trashDir) {
+        final File[] trashedFiles = trashDir.listFiles();
+        if (trashedFiles != null && trashedFiles.length > 0) {
+            final CountDownLatch doneLatch = new CountDownLatch(1);
+            final DirNode rootNode = new DirNode(trashDir, null, doneLatch);
+            rootNode.pendingCount.set(trashedFiles.length + 1);
+            for (final File trashedFile : trashedFiles)
+                deleteTree(trashedFile, rootNode);
+            // the root node itself is not deleted, its own count keeps it from completing early
+            rootNode.onChildDone();
+            try {
+                doneLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        // the space is free now
+        StorageMonitor.invalidate(trashDir);
+        final String trashDirPath = trashDir.getAbsolutePath();
+        synchronized (Trash.class) {
+            // gone with its parent
+            if (!trashDir.exists()) {
+                sRemovedTrashDirs.remove(trashDirPath);
+                unregister(trashDir);
+                return;
+            }
+            // kept for next deletes unless deleted itself
+            if (!sRemovedTrashDirs.contains(trashDirPath))
+                return;
+            // a concurrent delete() may have put something in already
+            final String[] leftFiles = trashDir.list();
+            if (leftFiles != null && leftFiles.length > 0 || sQueuedTrashDirs.contains(trashDirPath))
+                return;
+            sRemovedTrashDirs.remove(trashDirPath);
+            if (!trashDir.delete())
+                Log.w(LOG_TAG, "could not delete " + trashDir);
+            unregister(trashDir);
+        }
+    }
+
+    /**
+     * Directory being deleted: it is deleted itself once all its children are, then it reports
+     * to its parent
+     */
+    private static class DirNode {
+        final File dir;
+        final DirNode parent;
+        final CountDownLatch doneLatch;
+        final AtomicInteger pendingCount = new AtomicInteger();
+
+        DirNode(final File dir, final DirNode parent, final CountDownLatch doneLatch) {
+            this.dir = dir;
+            this.parent = parent;
+            this.doneLatch = doneLatch;
+        }
+
+        void onChildDone() {
+            if (pendingCount.decrementAndGet() != 0)
+                return;
+            if (parent == null) {
+                doneLatch.countDown();
+                return;
+            }
+            if (!dir.delete())
+                Log.w(LOG_TAG, "could not delete " + dir);
+            parent.onChildDone();
+        }
+    }
+
+    // counts as one child of parent node until it is deleted
+    private static void deleteTree(final File file, final DirNode parentNode) {
+        if (!file.isDirectory()) {
+            if (!file.delete() && file.exists())
+                Log.w(LOG_TAG, "could not delete " + file);
+            parentNode.onChildDone();
+            return;
+        }
+        getDeleteExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                final DirNode node = new DirNode(file, parentNode, parentNode.doneLatch);
+                final File[] files = file.listFiles();
+                node.pendingCount.set((files == null ? 0 : files.length) + 1);
+                if (files != null)
+                    for (final File child : files)
+                        deleteTree(child, node);
+                node.onChildDone();
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getPurgeExecutorService() {
+        if (sPurgeExecutorService == null)
+            sPurgeExecutorService = Executors.newSingleThreadExecutor(
+                    new BackgroundThreadFactory(Thread.MIN_PRIORITY));
+        return sPurgeExecutorService;
+    }
+
+    private static synchronized ExecutorService getDeleteExecutorService() {
+        if (sDeleteExecutorService == null)
+            sDeleteExecutorService = Executors.newFixedThreadPool(PURGE_THREADS_COUNT,
+                    new BackgroundThreadFactory(Thread.MIN_PRIORITY));
+        return sDeleteExecutorService;
+    }
+
+    //*********************************************************************************************
+    //
+    // Registry of trash directories
+    //
+
+    // without a registry file the trash is still purged, but not resumed after a restart
+    private static synchronized void register(final File trashDir) {
+        if (getTrashDirs().add(trashDir.getAbsolutePath()))
+            saveTrashDirs();
+    }
+
+    private static synchronized void unregister(final File trashDir) {
+        if (getTrashDirs().remove(trashDir.getAbsolutePath()))
+            saveTrashDirs();
+    }
+
+    // guarded by Trash.class
+    private static LinkedHashSet<String> getTrashDirs() {
+        if (sTrashDirs == null) {
+            sTrashDirs = new LinkedHashSet<>();
+            final File registryFile = getRegistryFile();
+            if (registryFile != null && registryFile.exists())
+                readTrashDirs(registryFile, sTrashDirs);
+        }
+        return sTrashDirs;
+    }
+
+    private static void readTrashDirs(final File registryFile, final LinkedHashSet<String> trashDirs) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(registryFile));
+            String line;
+            while ((line = reader.readLine()) != null)
+                if (line.length() > 0)
+                    trashDirs.add(line);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+        } finally {
+            if (reader != null)
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+        }
+    }
+
+    // guarded by Trash.class
+    private static void saveTrashDirs() {
+        final File registryFile = getRegistryFile();
+        if (registryFile == null) {
+            Log.w(LOG_TAG, "no Context, trash will not be resumed after restart");
+            return;
+        }
+        final StringBuilder data = new StringBuilder();
+        for (final String trashDir : sTrashDirs)
+            data.append(trashDir).append('\n');
+        if (!AtomicFiles.write(data.toString().getBytes(), registryFile))
+            Log.w(LOG_TAG, "could not save " + registryFile);
+    }
+
+    private static File getRegistryFile() {
+        final Context context = Initializer.getsAppContext();
+        return context == null ? null : new File(context.getFilesDir(), REGISTRY_FILE_NAME);
+    }
+}
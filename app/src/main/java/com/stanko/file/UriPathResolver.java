@@ -0,0 +1,291 @@
+package com.stanko.file;
+
+import android.annotation.TargetApi;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of file paths resolved from content Uris, so repeated FileUtils.getPathFromUri() calls
+ * (like a media picker resolving its selection over and over) do not query ContentResolver each
+ * time. The cache is a bounded LRU cleared whenever MediaStore or Downloads providers report a
+ * change, so only Uris of these providers, their documents and external storage documents (whose
+ * paths come from document ids) are cached, paths of other providers may change unnoticed. getPaths() resolves many Uris at once with a single "_id IN (...)" query per MediaStore table.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class UriPathResolver {
+
+    private static final String LOG_TAG = UriPathResolver.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_SIZE = 512;
+    // SQLite allows 999 arguments by default
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    private static final Uri MEDIA_URI = Uri.parse("content://media");
+    private static final String DOWNLOADS_AUTHORITY = "downloads";
+    private static final Uri DOWNLOADS_URI = Uri.parse("content://" + DOWNLOADS_AUTHORITY);
+
+    private static final Map<String, String> sPaths = new LinkedHashMap<>(16, 0.75f, true);
+    // guarded by sPaths
+    private static int sMaxSize = DEFAULT_MAX_SIZE;
+    private static int sGeneration;
+    private static ContentObserver sContentObserver;
+
+    /**
+     * @param context - to register providers observer on first call
+     * @param uri
+     * @return cached path or null if there is none
+     */
+    public static String getCachedPath(final Context context, final Uri uri) {
+        if (uri == null)
+            return null;
+        registerOnDemand(context);
+        synchronized (sPaths) {
+            return sPaths.get(uri.toString());
+        }
+    }
+
+    /**
+     * Cache generation to be taken before resolving a path and given to putPath(), so a path
+     * resolved before providers changed is not cached
+     */
+    public static int getGeneration() {
+        synchronized (sPaths) {
+            return sGeneration;
+        }
+    }
+
+    /**
+     * Caches a path if Uri is of an observed provider, see isCacheable()
+     *
+     * @param uri
+     * @param path       - resolved path
+     * @param generation - taken by getGeneration() before the path was resolved
+     */
+    public static void putPath(final Uri uri, final String path, final int generation) {
+        if (uri == null || path == null || !isCacheable(uri))
+            return;
+        synchronized (sPaths) {
+            if (generation != sGeneration)
+                return;
+            sPaths.put(uri.toString(), path);
+            trimToSize();
+        }
+    }
+
+    /**
+     * @return true if a path of the Uri is dropped on a change of its provider or never changes
+     */
+    public static boolean isCacheable(final Uri uri) {
+        if (uri == null || !"content".equalsIgnoreCase(uri.getScheme()))
+            return false;
+        final String authority = uri.getAuthority();
+        return MediaStore.AUTHORITY.equals(authority)
+                || DOWNLOADS_AUTHORITY.equals(authority)
+                || FileUtils.isMediaDocument(uri)
+                || FileUtils.isDownloadsDocument(uri)
+                || FileUtils.isExternalStorageDocument(uri);
+    }
+
+    public static void setMaxSize(final int maxSize) {
+        synchronized (sPaths) {
+            sMaxSize = Math.max(1, maxSize);
+            trimToSize();
+        }
+    }
+
+    public static void clear() {
+        synchronized (sPaths) {
+            sPaths.clear();
+            sGeneration++;
+        }
+    }
+
+    // guarded by sPaths
+    private static void trimToSize() {
+        while (sPaths.size() > sMaxSize)
+            sPaths.remove(sPaths.keySet().iterator().next());
+    }
+
+    private static synchronized void registerOnDemand(final Context context) {
+        if (sContentObserver != null || context == null)
+            return;
+        // called on a binder thread, a change of any row drops all paths
+        sContentObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(final boolean selfChange) {
+                clear();
+            }
+        };
+        try {
+            context.getApplicationContext().getContentResolver().registerContentObserver(MEDIA_URI, true, sContentObserver);
+            context.getApplicationContext().getContentResolver().registerContentObserver(DOWNLOADS_URI, true, sContentObserver);
+        } catch (SecurityException e) {
+            // the cache is still cleared by clear() and the LRU bound
+            Log.e(LOG_TAG, e);
+        }
+    }
+
+    //*********************************************************************************************
+    //
+    // Batch resolving
+    //
+
+    /**
+     * Resolves paths of many Uris. Uris of the same MediaStore table are resolved with one query,
+     * others one by one as FileUtils.getPathFromUri() does: DownloadProvider, for one, accepts
+     * only single row Uris, no selection
+     *
+     * @param context
+     * @param uris
+     * @return map of given Uris to their paths, a path is null if it could not be resolved
+     */
+    public static Map<Uri, String> getPaths(final Context context, final List<Uri> uris) {
+        final Map<Uri, String> paths = new LinkedHashMap<>();
+        if (uris == null)
+            return paths;
+        // table Uri -> row id -> Uris of the row
+        final Map<Uri, Map<String, List<Uri>>> tables = new LinkedHashMap<>();
+        for (final Uri uri : uris) {
+            if (uri == null || paths.containsKey(uri))
+                continue;
+            final String cachedPath = getCachedPath(context, uri);
+            paths.put(uri, cachedPath);
+            if (cachedPath != null)
+                continue;
+            final TableRow tableRow = getTableRow(context, uri);
+            if (tableRow == null) {
+                paths.put(uri, FileUtils.getPathFromUri(context, uri));
+                continue;
+            }
+            Map<String, List<Uri>> rows = tables.get(tableRow.table);
+            if (rows == null)
+                tables.put(tableRow.table, rows = new LinkedHashMap<>());
+            List<Uri> rowUris = rows.get(tableRow.id);
+            if (rowUris == null)
+                rows.put(tableRow.id, rowUris = new ArrayList<>(1));
+            rowUris.add(uri);
+        }
+
+        for (final Map.Entry<Uri, Map<String, List<Uri>>> table : tables.entrySet()) {
+            final List<String> ids = new ArrayList<>(table.getValue().keySet());
+            for (int from = 0; from < ids.size(); from += MAX_IDS_PER_QUERY) {
+                final List<String> idsChunk = ids.subList(from, Math.min(ids.size(), from + MAX_IDS_PER_QUERY));
+                final int generation = getGeneration();
+                final Map<String, String> rowPaths = queryPaths(context, table.getKey(), idsChunk);
+                for (final String id : idsChunk)
+                    for (final Uri uri : table.getValue().get(id)) {
+                        // the table could not be queried this way, resolve one by one
+                        final String path = rowPaths == null ? FileUtils.getPathFromUri(context, uri) : rowPaths.get(id);
+                        paths.put(uri, path);
+                        putPath(uri, path, generation);
+                    }
+            }
+        }
+        return paths;
+    }
+
+    private static class TableRow {
+        final Uri table;
+        final String id;
+
+        TableRow(final Uri table, final String id) {
+            this.table = table;
+            this.id = id;
+        }
+    }
+
+    // returns null if Uri is not a row of a MediaStore table, other providers may reject a selection
+    private static TableRow getTableRow(final Context context, final Uri uri) {
+        if (Build.VERSION.SDK_INT >= 19 && DocumentsContract.isDocumentUri(context, uri))
+            return getDocumentTableRow(uri);
+        if (!"content".equalsIgnoreCase(uri.getScheme()) || !MediaStore.AUTHORITY.equals(uri.getAuthority())
+                || uri.getEncodedQuery() != null || uri.getEncodedFragment() != null)
+            return null;
+        final long id;
+        try {
+            id = ContentUris.parseId(uri);
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+        final String uriString = uri.toString();
+        final int lastSlash = uriString.lastIndexOf('/');
+        if (id < 0 || lastSlash < 0)
+            return null;
+        return new TableRow(Uri.parse(uriString.substring(0, lastSlash)), String.valueOf(id));
+    }
+
+    @TargetApi(19)
+    private static TableRow getDocumentTableRow(final Uri uri) {
+        // Downloads documents are left to one by one resolving: public_downloads matches only "#" rows
+        if (!FileUtils.isMediaDocument(uri))
+            return null;
+        final String docId = DocumentsContract.getDocumentId(uri);
+        final String[] split = docId.split(":");
+        if (split.length != 2 || !isNumber(split[1]))
+            return null;
+        if ("image".equals(split[0]))
+            return new TableRow(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, split[1]);
+        if ("video".equals(split[0]))
+            return new TableRow(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, split[1]);
+        if ("audio".equals(split[0]))
+            return new TableRow(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, split[1]);
+        return null;
+    }
+
+    private static boolean isNumber(final String string) {
+        if (string == null || string.length() == 0)
+            return false;
+        for (int i = 0; i < string.length(); i++)
+            if (!Character.isDigit(string.charAt(i)))
+                return false;
+        return true;
+    }
+
+    // returns row id -> path or null if query failed
+    private static Map<String, String> queryPaths(final Context context, final Uri table, final List<String> ids) {
+        final StringBuilder selection = new StringBuilder("_id IN (");
+        for (int i = 0; i < ids.size(); i++)
+            selection.append(i == 0 ? "?" : ",?");
+        selection.append(')');
+
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(table, new String[]{"_id", "_data"},
+                    selection.toString(), ids.toArray(new String[ids.size()]), null);
+            if (cursor == null)
+                return null;
+            final Map<String, String> paths = new HashMap<>(ids.size() * 2);
+            final int idColumn = cursor.getColumnIndexOrThrow("_id");
+            final int dataColumn = cursor.getColumnIndexOrThrow("_data");
+            while (cursor.moveToNext())
+                paths.put(String.valueOf(cursor.getLong(idColumn)), cursor.getString(dataColumn));
+            return paths;
+        } catch (RuntimeException e) {
+            // SecurityException, IllegalArgumentException for unknown column or SQLiteException
+            Log.e(LOG_TAG, e);
+            return null;
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+    }
+}
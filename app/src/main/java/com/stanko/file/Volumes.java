@@ -0,0 +1,103 @@
+package com.stanko.file;
+
+import com.stanko.tools.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Tells which volume (mount point) a file belongs to, by the longest mount point of /proc/mounts
+ * its canonical path starts with. Mount points are read once, call refresh() after a storage was
+ * mounted or unmounted. If /proc/mounts is not readable all files are on "/" volume.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class Volumes {
+
+    private static final String LOG_TAG = Volumes.class.getSimpleName();
+
+    private static final String ROOT = "/";
+
+    // sorted by length descending, so the first match is the longest one
+    private static List<String> sMountPoints;
+
+    /**
+     * @param file - existing or not
+     * @return mount point path of the volume the file is or would be on
+     */
+    public static String getMountPoint(final File file) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            path = file.getAbsolutePath();
+        }
+        for (final String mountPoint : getMountPoints()) {
+            if (path.equals(mountPoint) || path.startsWith(mountPoint) && path.charAt(mountPoint.length()) == '/')
+                return mountPoint;
+        }
+        return ROOT;
+    }
+
+    /**
+     * @return true if both files are on the same volume, so rename() may move one to another
+     */
+    public static boolean isSameVolume(final File file1, final File file2) {
+        return getMountPoint(file1).equals(getMountPoint(file2));
+    }
+
+    /**
+     * Makes mount points to be read again
+     */
+    public static synchronized void refresh() {
+        sMountPoints = null;
+        BufferPool.clearStorageTypes();
+    }
+
+    private static synchronized List<String> getMountPoints() {
+        if (sMountPoints == null)
+            sMountPoints = readMountPoints();
+        return sMountPoints;
+    }
+
+    private static List<String> readMountPoints() {
+        final List<String> mountPoints = new ArrayList<>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/mounts"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // device mount_point type options dump pass
+                final String[] fields = line.split(" ");
+                if (fields.length < 2 || ROOT.equals(fields[1]))
+                    continue;
+                // spaces and tabs are escaped as octal
+                final String mountPoint = fields[1].replace("\\040", " ").replace("\\011", "\t");
+                if (!mountPoints.contains(mountPoint))
+                    mountPoints.add(mountPoint);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+        } finally {
+            if (reader != null)
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+        }
+        Collections.sort(mountPoints, new Comparator<String>() {
+            @Override
+            public int compare(final String lhs, final String rhs) {
+                return rhs.length() - lhs.length();
+            }
+        });
+        return mountPoints;
+    }
+}
@@ -0,0 +1,516 @@
+package com.stanko.image;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.os.Build;
+
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Composes any number of images (Bitmaps, Files or drawable resources) into one Bitmap: a grid
+ * collage, a horizontal/vertical strip or a packed sprite sheet (atlas).
+ * Unlike ImageUtils.getBitmapOfJoinedImagesHorizontally() and similar pairwise helpers the
+ * resulting canvas is computed once from decoded bounds, allocated once and every File/resource
+ * source is decoded right at its cell size (inSampleSize plus density scaling) and drawn into it,
+ * so there is at most one transient source Bitmap in memory at a time.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class BitmapComposer {
+
+    private static final String LOG_TAG = BitmapComposer.class.getSimpleName();
+
+    //*********************************************************************************************
+    //
+    // Sources
+    //
+    //*********************************************************************************************
+
+    /**
+     * An image to be placed into a composition
+     */
+    public static abstract class Source {
+
+        /**
+         * Decodes image with given options, inJustDecodeBounds could be set
+         */
+        abstract Bitmap decode(final BitmapFactory.Options bmfOptions);
+
+        /**
+         * @return true if decoded Bitmap is owned by composer and could be recycled after drawing
+         */
+        boolean isRecyclable() {
+            return true;
+        }
+
+        /**
+         * @return natural size of the image or null if it could not be decoded
+         */
+        Point getSize() {
+            final BitmapFactory.Options bmfOptions = new BitmapFactory.Options();
+            bmfOptions.inJustDecodeBounds = true;
+            bmfOptions.inScaled = false;
+            decode(bmfOptions);
+            if (bmfOptions.outWidth <= 0 || bmfOptions.outHeight <= 0)
+                return null;
+            return new Point(bmfOptions.outWidth, bmfOptions.outHeight);
+        }
+    }
+
+    public static Source fromBitmap(final Bitmap bitmap) {
+        return new BitmapSource(bitmap);
+    }
+
+    public static Source fromFile(final File file) {
+        return new FileSource(file);
+    }
+
+    public static Source fromResource(final Resources resources, final int drawableResId) {
+        return new ResourceSource(resources, drawableResId);
+    }
+
+    private static class BitmapSource extends Source {
+        private final Bitmap bitmap;
+
+        BitmapSource(final Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+
+        @Override
+        Bitmap decode(final BitmapFactory.Options bmfOptions) {
+            return bitmap;
+        }
+
+        @Override
+        boolean isRecyclable() {
+            return false;
+        }
+
+        @Override
+        Point getSize() {
+            if (bitmap == null || bitmap.isRecycled())
+                return null;
+            return new Point(bitmap.getWidth(), bitmap.getHeight());
+        }
+    }
+
+    private static class FileSource extends Source {
+        private final File file;
+
+        FileSource(final File file) {
+            this.file = file;
+        }
+
+        @Override
+        Bitmap decode(final BitmapFactory.Options bmfOptions) {
+            if (!FileUtils.isReadable(file))
+                return null;
+            return BitmapFactory.decodeFile(file.getAbsolutePath(), bmfOptions);
+        }
+    }
+
+    private static class ResourceSource extends Source {
+        private final Resources resources;
+        private final int drawableResId;
+
+        ResourceSource(final Resources resources, final int drawableResId) {
+            this.resources = resources;
+            this.drawableResId = drawableResId;
+        }
+
+        @Override
+        Bitmap decode(final BitmapFactory.Options bmfOptions) {
+            if (resources == null || drawableResId == 0)
+                return null;
+            return BitmapFactory.decodeResource(resources, drawableResId, bmfOptions);
+        }
+    }
+
+    //*********************************************************************************************
+    //
+    // Layouts
+    //
+    //*********************************************************************************************
+
+    /**
+     * Arranges sources of given natural sizes into cells and returns resulting canvas size
+     */
+    public static abstract class Layout {
+
+        /**
+         * @param sizes - natural sizes of the sources, null for sources which could not be decoded
+         * @param cells - to fill with target rectangles, leave null to skip a source
+         * @return size of the resulting canvas
+         */
+        abstract Point arrange(final Point[] sizes, final Rect[] cells);
+
+        /**
+         * @return true if sources have to be center cropped to cells' aspect ratio
+         */
+        boolean isCenterCrop() {
+            return false;
+        }
+    }
+
+    /**
+     * Cells of equal size row by row. Sources are either fitted (keeping aspect ratio) and centered
+     * within a cell or center cropped to fill it.
+     */
+    public static class GridLayout extends Layout {
+
+        private final int columns;
+        private final int cellWidth;
+        private final int cellHeight;
+        private final int spacing;
+        private final boolean isCenterCrop;
+
+        public GridLayout(final int columns, final int cellWidth, final int cellHeight, final int spacing, final boolean isCenterCrop) {
+            if (columns < 1 || cellWidth < 1 || cellHeight < 1 || spacing < 0)
+                throw new IllegalArgumentException("Wrong grid: " + columns + " columns of " + cellWidth + "x" + cellHeight);
+            this.columns = columns;
+            this.cellWidth = cellWidth;
+            this.cellHeight = cellHeight;
+            this.spacing = spacing;
+            this.isCenterCrop = isCenterCrop;
+        }
+
+        @Override
+        Point arrange(final Point[] sizes, final Rect[] cells) {
+            final int rows = (sizes.length + columns - 1) / columns;
+            for (int i = 0; i < sizes.length; i++) {
+                if (sizes[i] == null)
+                    continue;
+                final int left = (i % columns) * (cellWidth + spacing);
+                final int top = (i / columns) * (cellHeight + spacing);
+                if (isCenterCrop) {
+                    cells[i] = new Rect(left, top, left + cellWidth, top + cellHeight);
+                } else {
+                    final float scale = Math.min((float) cellWidth / sizes[i].x, (float) cellHeight / sizes[i].y);
+                    final int width = Math.max(1, Math.round(sizes[i].x * scale));
+                    final int height = Math.max(1, Math.round(sizes[i].y * scale));
+                    final int x = left + (cellWidth - width) / 2;
+                    final int y = top + (cellHeight - height) / 2;
+                    cells[i] = new Rect(x, y, x + width, y + height);
+                }
+            }
+            return new Point(columns * cellWidth + (columns - 1) * spacing,
+                    Math.max(1, rows * cellHeight + (rows - 1) * spacing));
+        }
+
+        @Override
+        boolean isCenterCrop() {
+            return isCenterCrop;
+        }
+    }
+
+    /**
+     * Sources one after another horizontally (aligned to top) or vertically (aligned to left) at
+     * their natural sizes - an N-way getBitmapOfJoinedImagesHorizontally()/Vertically()
+     */
+    public static class StripLayout extends Layout {
+
+        private final boolean isHorizontal;
+        private final int spacing;
+
+        public StripLayout(final boolean isHorizontal, final int spacing) {
+            this.isHorizontal = isHorizontal;
+            this.spacing = Math.max(0, spacing);
+        }
+
+        @Override
+        Point arrange(final Point[] sizes, final Rect[] cells) {
+            int position = 0;
+            int thickness = 1;
+            for (int i = 0; i < sizes.length; i++) {
+                final Point size = sizes[i];
+                if (size == null)
+                    continue;
+                if (position > 0)
+                    position += spacing;
+                if (isHorizontal) {
+                    cells[i] = new Rect(position, 0, position + size.x, size.y);
+                    position += size.x;
+                    thickness = Math.max(thickness, size.y);
+                } else {
+                    cells[i] = new Rect(0, position, size.x, position + size.y);
+                    position += size.y;
+                    thickness = Math.max(thickness, size.x);
+                }
+            }
+            position = Math.max(1, position);
+            return isHorizontal ? new Point(position, thickness) : new Point(thickness, position);
+        }
+    }
+
+    /**
+     * Sprite sheet: sources (downscaled to maxSideSize if bigger) packed into shelves of given max
+     * width, tallest first. Resulting cells are available via Result.cells in sources order.
+     */
+    public static class AtlasLayout extends Layout {
+
+        private final int maxWidth;
+        private final int maxSideSize;
+        private final int spacing;
+
+        /**
+         * @param maxWidth    - max atlas width
+         * @param maxSideSize - max side of a sprite, 0 means no limit
+         * @param spacing     - gap between sprites
+         */
+        public AtlasLayout(final int maxWidth, final int maxSideSize, final int spacing) {
+            if (maxWidth < 1)
+                throw new IllegalArgumentException("Wrong atlas width: " + maxWidth);
+            this.maxWidth = maxWidth;
+            this.maxSideSize = maxSideSize > 0 ? Math.min(maxSideSize, maxWidth) : maxWidth;
+            this.spacing = Math.max(0, spacing);
+        }
+
+        @Override
+        Point arrange(final Point[] sizes, final Rect[] cells) {
+            final Point[] spriteSizes = new Point[sizes.length];
+            final List<Integer> order = new ArrayList<>(sizes.length);
+            for (int i = 0; i < sizes.length; i++) {
+                if (sizes[i] == null)
+                    continue;
+                final int maxSide = Math.max(sizes[i].x, sizes[i].y);
+                if (maxSide > maxSideSize) {
+                    final float scale = (float) maxSideSize / maxSide;
+                    spriteSizes[i] = new Point(Math.max(1, Math.round(sizes[i].x * scale)), Math.max(1, Math.round(sizes[i].y * scale)));
+                } else
+                    spriteSizes[i] = sizes[i];
+                order.add(i);
+            }
+            // tallest first keeps shelves dense
+            Collections.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(final Integer lhs, final Integer rhs) {
+                    return spriteSizes[rhs].y - spriteSizes[lhs].y;
+                }
+            });
+
+            int shelfTop = 0;
+            int shelfHeight = 0;
+            int x = 0;
+            int usedWidth = 1;
+            for (int index : order) {
+                final Point size = spriteSizes[index];
+                if (x > 0 && x + size.x > maxWidth) {
+                    shelfTop += shelfHeight + spacing;
+                    shelfHeight = 0;
+                    x = 0;
+                }
+                cells[index] = new Rect(x, shelfTop, x + size.x, shelfTop + size.y);
+                usedWidth = Math.max(usedWidth, x + size.x);
+                shelfHeight = Math.max(shelfHeight, size.y);
+                x += size.x + spacing;
+            }
+            return new Point(usedWidth, Math.max(1, shelfTop + shelfHeight));
+        }
+    }
+
+    //*********************************************************************************************
+    //
+    // Composing
+    //
+    //*********************************************************************************************
+
+    /**
+     * Composition result. Cells are given in sources order, cell is null if source could not be
+     * decoded.
+     */
+    public static class Result {
+        public final Bitmap bitmap;
+        public final Rect[] cells;
+
+        Result(final Bitmap bitmap, final Rect[] cells) {
+            this.bitmap = bitmap;
+            this.cells = cells;
+        }
+    }
+
+    /**
+     * Composes sources into one ARGB_8888 Bitmap with transparent background
+     *
+     * @param sources - images to compose
+     * @param layout  - how to arrange images
+     * @return Result or null if nothing could be decoded or OOM happens
+     */
+    public static Result compose(final List<Source> sources, final Layout layout) {
+        return compose(sources, layout, Color.TRANSPARENT, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Composes sources into one Bitmap
+     *
+     * @param sources         - images to compose
+     * @param layout          - how to arrange images
+     * @param backgroundColor - color to fill the canvas with
+     * @param config          - resulting Bitmap config
+     * @return Result or null if nothing could be decoded or OOM happens
+     */
+    public static Result compose(final List<Source> sources,
+                                 final Layout layout,
+                                 final int backgroundColor,
+                                 final Bitmap.Config config) {
+        if (sources == null || sources.isEmpty() || layout == null)
+            return null;
+
+        final int count = sources.size();
+        final Point[] sizes = new Point[count];
+        boolean hasAny = false;
+        for (int i = 0; i < count; i++) {
+            final Source source = sources.get(i);
+            sizes[i] = source == null ? null : source.getSize();
+            hasAny |= sizes[i] != null;
+        }
+        if (!hasAny)
+            return null;
+
+        final Rect[] cells = new Rect[count];
+        final Point canvasSize = layout.arrange(sizes, cells);
+
+        final Bitmap result;
+        try {
+            result = Bitmap.createBitmap(canvasSize.x, canvasSize.y, config == null ? Bitmap.Config.ARGB_8888 : config);
+        } catch (OutOfMemoryError e) {
+            Log.e(LOG_TAG, e);
+            return null;
+        }
+        if (backgroundColor != Color.TRANSPARENT)
+            result.eraseColor(backgroundColor);
+
+        final Canvas canvas = new Canvas(result);
+        final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        final Rect sourceRect = new Rect();
+        for (int i = 0; i < count; i++) {
+            final Rect cell = cells[i];
+            if (cell == null)
+                continue;
+            final Source source = sources.get(i);
+            final Bitmap decoded;
+            try {
+                decoded = decodeForCell(source, sizes[i], cell.width(), cell.height(), layout.isCenterCrop());
+            } catch (OutOfMemoryError e) {
+                Log.e(LOG_TAG, e);
+                cells[i] = null;
+                continue;
+            }
+            if (decoded == null) {
+                cells[i] = null;
+                continue;
+            }
+            setSourceRect(decoded, cell, layout.isCenterCrop(), sourceRect);
+            canvas.drawBitmap(decoded, sourceRect, cell, paint);
+            if (source.isRecyclable())
+                decoded.recycle();
+        }
+        return new Result(result, cells);
+    }
+
+    /**
+     * Composes Bitmaps into a grid
+     *
+     * @param bitmaps    - images to compose
+     * @param columns    - columns count
+     * @param cellWidth  - width of a cell
+     * @param cellHeight - height of a cell
+     * @param spacing    - gap between cells
+     * @return Bitmap or null
+     */
+    public static Bitmap getGridOfBitmaps(final List<Bitmap> bitmaps, final int columns, final int cellWidth, final int cellHeight, final int spacing) {
+        if (bitmaps == null)
+            return null;
+        final List<Source> sources = new ArrayList<>(bitmaps.size());
+        for (Bitmap bitmap : bitmaps)
+            sources.add(fromBitmap(bitmap));
+        final Result result = compose(sources, new GridLayout(columns, cellWidth, cellHeight, spacing, false));
+        return result == null ? null : result.bitmap;
+    }
+
+    /**
+     * Packs image Files into a sprite sheet
+     *
+     * @param files       - images to pack
+     * @param maxWidth    - max atlas width
+     * @param maxSideSize - max side of a sprite, 0 means no limit
+     * @return Result with atlas Bitmap and sprites' rectangles in files order or null
+     */
+    public static Result getAtlasOfFiles(final List<File> files, final int maxWidth, final int maxSideSize) {
+        if (files == null)
+            return null;
+        final List<Source> sources = new ArrayList<>(files.size());
+        for (File file : files)
+            sources.add(fromFile(file));
+        return compose(sources, new AtlasLayout(maxWidth, maxSideSize, 0));
+    }
+
+    /**
+     * Decodes a source so it covers (crop) or matches (fit) the cell size: inSampleSize brings it
+     * down to the nearest power of 2 and density scaling makes the rest during the decode.
+     */
+    private static Bitmap decodeForCell(final Source source,
+                                        final Point size,
+                                        final int cellWidth,
+                                        final int cellHeight,
+                                        final boolean isCenterCrop) {
+        if (!source.isRecyclable())
+            return source.decode(null);
+
+        final float scale = isCenterCrop
+                ? Math.max((float) cellWidth / size.x, (float) cellHeight / size.y)
+                : Math.min((float) cellWidth / size.x, (float) cellHeight / size.y);
+        final int targetWidth = Math.max(1, (int) Math.ceil(size.x * scale));
+        final int targetHeight = Math.max(1, (int) Math.ceil(size.y * scale));
+
+        int sampleSize = 1;
+        while (size.x / (sampleSize << 1) >= targetWidth && size.y / (sampleSize << 1) >= targetHeight)
+            sampleSize <<= 1;
+
+        final BitmapFactory.Options bmfOptions = new BitmapFactory.Options();
+        bmfOptions.inSampleSize = sampleSize;
+        if (Build.VERSION.SDK_INT < 21)
+            bmfOptions.inPurgeable = true;
+        final int sampledWidth = size.x / sampleSize;
+        if (sampledWidth > targetWidth) {
+            bmfOptions.inScaled = true;
+            bmfOptions.inDensity = sampledWidth;
+            bmfOptions.inTargetDensity = targetWidth;
+        } else {
+            bmfOptions.inScaled = false;
+        }
+        return source.decode(bmfOptions);
+    }
+
+    private static void setSourceRect(final Bitmap bitmap, final Rect cell, final boolean isCenterCrop, final Rect sourceRect) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        if (!isCenterCrop) {
+            sourceRect.set(0, 0, width, height);
+            return;
+        }
+        final float cellRatio = (float) cell.width() / cell.height();
+        if ((float) width / height > cellRatio) {
+            final int croppedWidth = Math.round(height * cellRatio);
+            final int left = (width - croppedWidth) / 2;
+            sourceRect.set(left, 0, left + croppedWidth, height);
+        } else {
+            final int croppedHeight = Math.round(width / cellRatio);
+            final int top = (height - croppedHeight) / 2;
+            sourceRect.set(0, top, width, top + croppedHeight);
+        }
+    }
+}
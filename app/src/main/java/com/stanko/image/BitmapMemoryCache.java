@@ -0,0 +1,156 @@
+package com.stanko.image;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import com.stanko.tools.Initializer;
+import com.stanko.tools.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory cache of decoded bitmaps shared by image caches (ResourceBitmapCache, VideoThumbnails),
+ * so they all fit in one budget. Keys are any objects with equals() and hashCode(), each cache
+ * uses its own key class. Bounded by bytes (1/8 of the heap by default), trimmed on memory
+ * pressure (API 14+, below it stays bounded only).
+ * Returned bitmaps are shared: do not recycle or modify them, copy if needed.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class BitmapMemoryCache {
+
+    private static final String LOG_TAG = BitmapMemoryCache.class.getSimpleName();
+
+    private static long sMaxSizeInBytes = Runtime.getRuntime().maxMemory() / 8;
+    private static long sSizeInBytes;
+    private static boolean isCallbacksRegistered;
+
+    // access ordered LinkedHashMap as LRU: android.util.LruCache is API 12+
+    private static final LinkedHashMap<Object, Bitmap> sCache = new LinkedHashMap<>(32, 0.75f, true);
+
+    /**
+     * @param maxSizeInBytes - max summary size of cached bitmaps, default is 1/8 of max heap
+     */
+    public static synchronized void setMaxSize(final long maxSizeInBytes) {
+        sMaxSizeInBytes = maxSizeInBytes;
+        trimToSize(sMaxSizeInBytes);
+    }
+
+    /**
+     * @param key
+     * @return shared Bitmap or null if there is no such key
+     */
+    public static synchronized Bitmap get(final Object key) {
+        registerCallbacksOnDemand(Initializer.getsAppContext());
+        final Bitmap bitmap = sCache.get(key);
+        if (bitmap != null && bitmap.isRecycled()) {
+            Log.w(LOG_TAG, "cached bitmap was recycled outside, key: " + key);
+            sCache.remove(key);
+            sSizeInBytes -= getSizeInBytes(bitmap);
+            return null;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Caches the bitmap unless it alone is bigger than the whole cache
+     *
+     * @param key
+     * @param bitmap - becomes shared, may be null
+     */
+    public static synchronized void put(final Object key, final Bitmap bitmap) {
+        if (bitmap == null)
+            return;
+        final long size = getSizeInBytes(bitmap);
+        if (size > sMaxSizeInBytes)
+            return;
+        final Bitmap previous = sCache.put(key, bitmap);
+        if (previous != null)
+            sSizeInBytes -= getSizeInBytes(previous);
+        sSizeInBytes += size;
+        trimToSize(sMaxSizeInBytes);
+    }
+
+    public static synchronized void remove(final Object key) {
+        final Bitmap bitmap = sCache.remove(key);
+        if (bitmap != null)
+            sSizeInBytes -= getSizeInBytes(bitmap);
+    }
+
+    /**
+     * Drops bitmaps of one cache only
+     *
+     * @param keyClass - class of the keys to drop
+     */
+    public static synchronized void removeAll(final Class<?> keyClass) {
+        final Iterator<Map.Entry<Object, Bitmap>> iterator = sCache.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Object, Bitmap> entry = iterator.next();
+            if (keyClass.isInstance(entry.getKey())) {
+                sSizeInBytes -= getSizeInBytes(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops all cached bitmaps. They are not recycled since they may still be in use
+     */
+    public static synchronized void clear() {
+        sCache.clear();
+        sSizeInBytes = 0;
+    }
+
+    public static synchronized long getSizeInBytes() {
+        return sSizeInBytes;
+    }
+
+    public static synchronized void trimToSize(final long maxSizeInBytes) {
+        final Iterator<Map.Entry<Object, Bitmap>> iterator = sCache.entrySet().iterator();
+        while (sSizeInBytes > maxSizeInBytes && iterator.hasNext()) {
+            sSizeInBytes -= getSizeInBytes(iterator.next().getValue());
+            iterator.remove();
+        }
+    }
+
+    // getByteCount() is API 12+
+    static long getSizeInBytes(final Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static synchronized void registerCallbacksOnDemand(final Context context) {
+        if (isCallbacksRegistered || context == null || Build.VERSION.SDK_INT < 14)
+            return;
+        isCallbacksRegistered = true;
+        registerCallbacks(context.getApplicationContext() != null ? context.getApplicationContext() : context);
+    }
+
+    @TargetApi(14)
+    private static void registerCallbacks(final Context context) {
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onConfigurationChanged(final Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                clear();
+            }
+
+            @Override
+            public void onTrimMemory(final int level) {
+                if (level >= TRIM_MEMORY_MODERATE)
+                    clear();
+                else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_RUNNING_CRITICAL)
+                    trimToSize(getSizeInBytes() / 2);
+            }
+        });
+    }
+}
@@ -0,0 +1,325 @@
+package com.stanko.image;
+
+import android.graphics.Bitmap;
+
+import com.stanko.tools.BackgroundThreadFactory;
+import com.stanko.tools.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Applies a 4x5 color matrix (same layout as android.graphics.ColorMatrix: rows R, G, B, A of
+ * [r g b a offset], offsets in 0-255) to pixels in place in a single pass. Filters are chained by
+ * concatenating their matrices, so grayscale + contrast + tint still costs one pass over pixels.
+ * Pixels are transformed with 20.12 fixed point integer math in parallel bands of an int[], the
+ * Bitmap itself is read and written once on the calling thread.
+ * Usage:
+ * new ColorMatrixEngine().setSaturation(0).setBrightnessContrast(10, 1.2f).apply(mutableBitmap);
+ * Not thread safe while being configured, apply() may be called from any thread.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class ColorMatrixEngine {
+
+    private static final String LOG_TAG = ColorMatrixEngine.class.getSimpleName();
+
+    private static final int FIXED_SHIFT = 12;
+    private static final float FIXED_ONE = 1 << FIXED_SHIFT;
+    // coefficients are clamped so a sum of 4 channel products and an offset fits an int
+    private static final float MAX_COEFFICIENT = 64f;
+    // smaller images are not worth threads
+    private static final int MIN_PIXELS_PER_BAND = 64 * 1024;
+    private static final int THREADS_COUNT = Runtime.getRuntime().availableProcessors();
+    // pixels read and written at once while transforming a Bitmap without threads
+    private static final int CHUNK_PIXELS = 16 * 1024;
+
+    private static ExecutorService sExecutorService;
+
+    private final float[] mMatrix = new float[20];
+
+    /**
+     * Identity matrix engine
+     */
+    public ColorMatrixEngine() {
+        reset();
+    }
+
+    /**
+     * @param matrix - 4x5 matrix of 20 floats
+     */
+    public ColorMatrixEngine(final float[] matrix) {
+        System.arraycopy(matrix, 0, mMatrix, 0, 20);
+    }
+
+    public ColorMatrixEngine reset() {
+        for (int i = 0; i < 20; i++)
+            mMatrix[i] = i % 6 == 0 ? 1 : 0;
+        return this;
+    }
+
+    /**
+     * @return copy of current (composed) 4x5 matrix, may be given to
+     * android.graphics.ColorMatrix.set()
+     */
+    public float[] getMatrix() {
+        final float[] matrix = new float[20];
+        System.arraycopy(mMatrix, 0, matrix, 0, 20);
+        return matrix;
+    }
+
+    //*********************************************************************************************
+    //
+    // Filters, each is applied after already set ones
+    //
+
+    /**
+     * Appends given 4x5 matrix: result = matrix x current
+     */
+    public ColorMatrixEngine concat(final float[] matrix) {
+        final float[] result = new float[20];
+        for (int row = 0; row < 4; row++) {
+            final int r = row * 5;
+            for (int column = 0; column < 5; column++) {
+                float value = column == 4 ? matrix[r + 4] : 0;
+                for (int i = 0; i < 4; i++)
+                    value += matrix[r + i] * mMatrix[i * 5 + column];
+                result[r + column] = value;
+            }
+        }
+        System.arraycopy(result, 0, mMatrix, 0, 20);
+        return this;
+    }
+
+    /**
+     * @param saturation - 0 gives grayscale, 1 keeps colors, above 1 boosts them
+     */
+    public ColorMatrixEngine setSaturation(final float saturation) {
+        // BT.709 luminance, same as ColorMatrix.setSaturation()
+        final float inverted = 1 - saturation;
+        final float red = 0.213f * inverted;
+        final float green = 0.715f * inverted;
+        final float blue = 0.072f * inverted;
+        return concat(new float[]{
+                red + saturation, green, blue, 0, 0,
+                red, green + saturation, blue, 0, 0,
+                red, green, blue + saturation, 0, 0,
+                0, 0, 0, 1, 0});
+    }
+
+    public ColorMatrixEngine setGrayscale() {
+        return setSaturation(0);
+    }
+
+    public ColorMatrixEngine setSepia() {
+        return concat(new float[]{
+                0.393f, 0.769f, 0.189f, 0, 0,
+                0.349f, 0.686f, 0.168f, 0, 0,
+                0.272f, 0.534f, 0.131f, 0, 0,
+                0, 0, 0, 1, 0});
+    }
+
+    /**
+     * @param brightness - added to each channel, -255..255
+     * @param contrast   - scale around the middle gray, 1 keeps contrast
+     */
+    public ColorMatrixEngine setBrightnessContrast(final float brightness, final float contrast) {
+        final float offset = 128 * (1 - contrast) + brightness;
+        return concat(new float[]{
+                contrast, 0, 0, 0, offset,
+                0, contrast, 0, 0, offset,
+                0, 0, contrast, 0, offset,
+                0, 0, 0, 1, 0});
+    }
+
+    /**
+     * Multiplies channels by the color's ones, like PorterDuff MULTIPLY
+     *
+     * @param color  - tint color, alpha is ignored
+     * @param amount - 0 keeps the image, 1 fully tinted
+     */
+    public ColorMatrixEngine setTint(final int color, final float amount) {
+        final float red = 1 + amount * (((color >> 16) & 0xff) / 255f - 1);
+        final float green = 1 + amount * (((color >> 8) & 0xff) / 255f - 1);
+        final float blue = 1 + amount * ((color & 0xff) / 255f - 1);
+        return concat(new float[]{
+                red, 0, 0, 0, 0,
+                0, green, 0, 0, 0,
+                0, 0, blue, 0, 0,
+                0, 0, 0, 1, 0});
+    }
+
+    public ColorMatrixEngine setInverted() {
+        return concat(new float[]{
+                -1, 0, 0, 0, 255,
+                0, -1, 0, 0, 255,
+                0, 0, -1, 0, 255,
+                0, 0, 0, 1, 0});
+    }
+
+    /**
+     * @param alpha - 0-1 multiplier of alpha channel
+     */
+    public ColorMatrixEngine setAlpha(final float alpha) {
+        return concat(new float[]{
+                1, 0, 0, 0, 0,
+                0, 1, 0, 0, 0,
+                0, 0, 1, 0, 0,
+                0, 0, 0, alpha, 0});
+    }
+
+    //*********************************************************************************************
+    //
+    // Applying
+    //
+
+    /**
+     * Transforms pixels of a mutable Bitmap in place. Big ones are copied to an int[] transformed in
+     * parallel bands, small ones (or big ones if the int[] can't be allocated) in chunks on the
+     * calling thread
+     *
+     * @param bitmap - mutable Bitmap
+     * @return false if bitmap is null, recycled or immutable or parallel transform was interrupted
+     */
+    public boolean apply(final Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            Log.e(LOG_TAG, "apply(): mutable bitmap expected");
+            return false;
+        }
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int[] fixedMatrix = getFixedMatrix();
+        final int bandsCount = getBandsCount(width, height);
+        if (bandsCount == 1) {
+            transformInChunks(bitmap, fixedMatrix);
+            return true;
+        }
+        final int[] pixels;
+        try {
+            pixels = new int[width * height];
+        } catch (OutOfMemoryError e) {
+            Log.w(LOG_TAG, "no memory for " + width + "x" + height + " pixels, transforming in chunks");
+            transformInChunks(bitmap, fixedMatrix);
+            return true;
+        }
+        // Bitmap is accessed from this thread only, workers get their own slices of pixels
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        if (!transformInBands(pixels, 0, pixels.length, fixedMatrix, bandsCount))
+            return false;
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        return true;
+    }
+
+    /**
+     * Transforms ARGB (not premultiplied) pixels in place, in parallel for big arrays
+     *
+     * @param argb   - pixels
+     * @param offset - index of the first pixel to transform
+     * @param count  - count of pixels to transform
+     */
+    public void apply(final int[] argb, final int offset, final int count) {
+        final int[] fixedMatrix = getFixedMatrix();
+        final int bandsCount = getBandsCount(count, 1);
+        if (bandsCount == 1)
+            transform(argb, offset, count, fixedMatrix);
+        else
+            transformInBands(argb, offset, count, fixedMatrix, bandsCount);
+    }
+
+    private static boolean transformInBands(final int[] argb, final int offset, final int count, final int[] fixedMatrix, final int bandsCount) {
+        final int pixelsPerBand = (count + bandsCount - 1) / bandsCount;
+        final List<Callable<Void>> tasks = new ArrayList<>(bandsCount);
+        for (int from = 0; from < count; from += pixelsPerBand) {
+            final int bandOffset = offset + from;
+            final int bandCount = Math.min(pixelsPerBand, count - from);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    transform(argb, bandOffset, bandCount, fixedMatrix);
+                    return null;
+                }
+            });
+        }
+        return invokeAll(tasks);
+    }
+
+    // reads rows in chunks through a small int[], transforms and writes them back
+    private static void transformInChunks(final Bitmap bitmap, final int[] fixedMatrix) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int rowsPerChunk = Math.max(1, CHUNK_PIXELS / width);
+        final int[] pixels = new int[width * Math.min(rowsPerChunk, height)];
+        for (int row = 0; row < height; row += rowsPerChunk) {
+            final int rows = Math.min(rowsPerChunk, height - row);
+            bitmap.getPixels(pixels, 0, width, 0, row, width, rows);
+            transform(pixels, 0, width * rows, fixedMatrix);
+            bitmap.setPixels(pixels, 0, width, 0, row, width, rows);
+        }
+    }
+
+    private static int getBandsCount(final int width, final int height) {
+        final long pixels = (long) width * height;
+        return (int) Math.max(1, Math.min(THREADS_COUNT, pixels / MIN_PIXELS_PER_BAND));
+    }
+
+    private int[] getFixedMatrix() {
+        final int[] fixedMatrix = new int[20];
+        for (int i = 0; i < 20; i++) {
+            final float value = i % 5 == 4
+                    ? Math.max(-255 * MAX_COEFFICIENT, Math.min(255 * MAX_COEFFICIENT, mMatrix[i]))
+                    : Math.max(-MAX_COEFFICIENT, Math.min(MAX_COEFFICIENT, mMatrix[i]));
+            fixedMatrix[i] = Math.round(value * FIXED_ONE);
+        }
+        // rounding to the nearest instead of truncating
+        for (int i = 4; i < 20; i += 5)
+            fixedMatrix[i] += 1 << (FIXED_SHIFT - 1);
+        return fixedMatrix;
+    }
+
+    private static boolean invokeAll(final List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : getExecutorService().invokeAll(tasks))
+                future.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(LOG_TAG, e);
+        }
+        return false;
+    }
+
+    private static synchronized ExecutorService getExecutorService() {
+        if (sExecutorService == null)
+            sExecutorService = Executors.newFixedThreadPool(THREADS_COUNT, new BackgroundThreadFactory(Thread.MIN_PRIORITY));
+        return sExecutorService;
+    }
+
+    private static void transform(final int[] argb, final int offset, final int count, final int[] m) {
+        final boolean keepsAlpha = m[15] == 0 && m[16] == 0 && m[17] == 0
+                && m[18] == (int) FIXED_ONE && m[19] == 1 << (FIXED_SHIFT - 1);
+        final int to = offset + count;
+        for (int i = offset; i < to; i++) {
+            final int pixel = argb[i];
+            final int a = pixel >>> 24;
+            final int r = (pixel >> 16) & 0xff;
+            final int g = (pixel >> 8) & 0xff;
+            final int b = pixel & 0xff;
+            int red = (m[0] * r + m[1] * g + m[2] * b + m[3] * a + m[4]) >> FIXED_SHIFT;
+            int green = (m[5] * r + m[6] * g + m[7] * b + m[8] * a + m[9]) >> FIXED_SHIFT;
+            int blue = (m[10] * r + m[11] * g + m[12] * b + m[13] * a + m[14]) >> FIXED_SHIFT;
+            int alpha = keepsAlpha ? a : (m[15] * r + m[16] * g + m[17] * b + m[18] * a + m[19]) >> FIXED_SHIFT;
+            red = red < 0 ? 0 : red > 255 ? 255 : red;
+            green = green < 0 ? 0 : green > 255 ? 255 : green;
+            blue = blue < 0 ? 0 : blue > 255 ? 255 : blue;
+            alpha = alpha < 0 ? 0 : alpha > 255 ? 255 : alpha;
+            argb[i] = (alpha << 24) | (red << 16) | (green << 8) | blue;
+        }
+    }
+}
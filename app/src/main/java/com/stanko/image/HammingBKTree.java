@@ -0,0 +1,146 @@
+package com.stanko.image;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BK-tree of 64 bit hashes under Hamming distance. Every hash keeps the ids of items having it.
+ * A search for hashes within a small distance visits only a fraction of nodes thanks to the
+ * triangle inequality, so near duplicate lookup among 50k photos takes well under a millisecond.
+ * Not thread safe.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class HammingBKTree {
+
+    private Node mRoot;
+    private int mSize;
+
+    private static class Node {
+        final long hash;
+        long[] ids = new long[1];
+        int idsCount;
+        // children are few per node, so parallel arrays instead of a 65 slots table
+        int[] childDistances;
+        Node[] children;
+        int childrenCount;
+
+        Node(final long hash, final long id) {
+            this.hash = hash;
+            ids[idsCount++] = id;
+        }
+
+        void addId(final long id) {
+            if (idsCount == ids.length) {
+                final long[] grown = new long[idsCount << 1];
+                System.arraycopy(ids, 0, grown, 0, idsCount);
+                ids = grown;
+            }
+            ids[idsCount++] = id;
+        }
+
+        Node getChild(final int distance) {
+            for (int i = 0; i < childrenCount; i++)
+                if (childDistances[i] == distance)
+                    return children[i];
+            return null;
+        }
+
+        void addChild(final int distance, final Node child) {
+            if (children == null) {
+                childDistances = new int[4];
+                children = new Node[4];
+            } else if (childrenCount == children.length) {
+                final int[] grownDistances = new int[childrenCount << 1];
+                final Node[] grownChildren = new Node[childrenCount << 1];
+                System.arraycopy(childDistances, 0, grownDistances, 0, childrenCount);
+                System.arraycopy(children, 0, grownChildren, 0, childrenCount);
+                childDistances = grownDistances;
+                children = grownChildren;
+            }
+            childDistances[childrenCount] = distance;
+            children[childrenCount++] = child;
+        }
+    }
+
+    /**
+     * A found item: its id, hash and distance to the queried hash
+     */
+    public static class Match {
+        public final long id;
+        public final long hash;
+        public final int distance;
+
+        Match(final long id, final long hash, final int distance) {
+            this.id = id;
+            this.hash = hash;
+            this.distance = distance;
+        }
+
+        @Override
+        public String toString() {
+            return "id: " + id + " distance: " + distance;
+        }
+    }
+
+    public void add(final long hash, final long id) {
+        mSize++;
+        if (mRoot == null) {
+            mRoot = new Node(hash, id);
+            return;
+        }
+        Node node = mRoot;
+        while (true) {
+            final int distance = PerceptualHash.getDistance(node.hash, hash);
+            if (distance == 0) {
+                node.addId(id);
+                return;
+            }
+            final Node child = node.getChild(distance);
+            if (child == null) {
+                node.addChild(distance, new Node(hash, id));
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Returns all items whose hash is within maxDistance from given one
+     *
+     * @param hash        - hash to look for
+     * @param maxDistance - max Hamming distance, inclusive
+     * @return List of Match, empty if nothing found
+     */
+    public List<Match> search(final long hash, final int maxDistance) {
+        final List<Match> matches = new ArrayList<>();
+        if (mRoot == null)
+            return matches;
+        final ArrayList<Node> toVisit = new ArrayList<>();
+        toVisit.add(mRoot);
+        while (!toVisit.isEmpty()) {
+            final Node node = toVisit.remove(toVisit.size() - 1);
+            final int distance = PerceptualHash.getDistance(node.hash, hash);
+            if (distance <= maxDistance)
+                for (int i = 0; i < node.idsCount; i++)
+                    matches.add(new Match(node.ids[i], node.hash, distance));
+            // triangle inequality: only children at [distance-max, distance+max] may match
+            for (int i = 0; i < node.childrenCount; i++) {
+                final int childDistance = node.childDistances[i];
+                if (childDistance >= distance - maxDistance && childDistance <= distance + maxDistance)
+                    toVisit.add(node.children[i]);
+            }
+        }
+        return matches;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        mRoot = null;
+        mSize = 0;
+    }
+}
@@ -0,0 +1,349 @@
+package com.stanko.image;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+
+import com.stanko.file.AtomicFiles;
+import com.stanko.tools.DeviceInfo;
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.Hash;
+import com.stanko.tools.Log;
+import com.stanko.tools.SDCardHelper;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mipmap pyramid of an image: the source is decoded once and reduced by 2 with bilinear filtering
+ * (a 2x2 box filter at exact halving) down to MIN_LEVEL_SIDE_SIZE, each level is stored as a
+ * compressed file. Levels of a cache entry (a file inside SDCardHelper.getCacheDir()) are stored
+ * next to it, levels of other files go to the "pyramids" subdir of the cache dir.
+ * ImageUtils.getBitmapFromFileWithMaxSideSize() picks the smallest level at or above the requested
+ * size, so a 256 px thumbnail of a 12 Mpx photo decodes a ~40 KB file instead of a 4 MB one.
+ * Built pyramids are listed in an index file in the "pyramids" subdir, read once: a decode of an
+ * image without pyramid costs a map lookup, no disk access.
+ * Levels older than their source are ignored and deleted. Level files have no EXIF.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class ImagePyramid {
+
+    private static final String LOG_TAG = ImagePyramid.class.getSimpleName();
+
+    public static final int MIN_LEVEL_SIDE_SIZE = 64;
+    // .pyr is not an image extension so media scanner skips the levels
+    private static final String LEVEL_EXTENSION = ".pyr";
+    private static final String PYRAMIDS_DIR = "pyramids";
+    private static final String INDEX_FILE_NAME = "index";
+    private static final int JPEG_QUALITY = 90;
+
+    // source path -> its levels sorted by size, only sources with pyramid; guarded by sLevels
+    private static final Map<String, Level[]> sLevels = new HashMap<>();
+    private static boolean isIndexLoaded;
+
+    /**
+     * Stored level of a pyramid
+     */
+    public static class Level {
+        public final File file;
+        public final int width;
+        public final int height;
+
+        Level(final File file, final int width, final int height) {
+            this.file = file;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * Builds pyramid with the top level not smaller than device's screen
+     *
+     * @param sourceFile - image File
+     * @return count of stored levels, 0 if source could not be decoded or levels written
+     */
+    public static int build(final File sourceFile) {
+        return build(sourceFile, DeviceInfo.getDeviceMaxSideSizeByDensity());
+    }
+
+    /**
+     * Builds pyramid of an image replacing existing one. Long running, call off the UI thread
+     *
+     * @param sourceFile  - image File
+     * @param maxSideSize - the top level is decoded with the biggest inSampleSize keeping its bigger
+     *                    side at least maxSideSize px
+     * @return count of stored levels, 0 if source could not be decoded or levels written
+     */
+    public static int build(final File sourceFile, final int maxSideSize) {
+        if (!FileUtils.isReadable(sourceFile))
+            return 0;
+        final File levelsDir = getLevelsDir(sourceFile);
+        if (levelsDir == null || !levelsDir.exists() && !levelsDir.mkdirs()) {
+            Log.e(LOG_TAG, "no dir to store levels of " + sourceFile);
+            return 0;
+        }
+        deleteLevels(sourceFile);
+
+        final String path = sourceFile.getAbsolutePath();
+        final BitmapFactory.Options bmfOptions = new BitmapFactory.Options();
+        bmfOptions.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, bmfOptions);
+        final int sourceMaxSide = Math.max(bmfOptions.outWidth, bmfOptions.outHeight);
+        if (sourceMaxSide <= 0)
+            return 0;
+        int sampleSize = 1;
+        while (sourceMaxSide / (sampleSize << 1) >= maxSideSize)
+            sampleSize <<= 1;
+        bmfOptions.inJustDecodeBounds = false;
+        bmfOptions.inSampleSize = sampleSize;
+        Bitmap level;
+        try {
+            level = BitmapFactory.decodeFile(path, bmfOptions);
+        } catch (OutOfMemoryError e) {
+            Log.e(LOG_TAG, e);
+            return 0;
+        }
+        if (level == null)
+            return 0;
+
+        final String namePrefix = getLevelNamePrefix(sourceFile);
+        final CompressFormat format = level.hasAlpha() ? CompressFormat.PNG : CompressFormat.JPEG;
+        final List<Level> levels = new ArrayList<>();
+        while (true) {
+            final int width = level.getWidth();
+            final int height = level.getHeight();
+            final File levelFile = new File(levelsDir, namePrefix + width + "x" + height + LEVEL_EXTENSION);
+            if (!writeLevel(level, format, levelFile))
+                break;
+            levels.add(new Level(levelFile, width, height));
+            if (Math.max(width, height) / 2 < MIN_LEVEL_SIDE_SIZE || Math.min(width, height) < 2)
+                break;
+            final Bitmap reduced;
+            try {
+                // bilinear sampling at exact halving averages each 2x2 block
+                reduced = Bitmap.createScaledBitmap(level, width / 2, height / 2, true);
+            } catch (OutOfMemoryError e) {
+                Log.e(LOG_TAG, e);
+                break;
+            }
+            level.recycle();
+            level = reduced;
+        }
+        level.recycle();
+
+        final Level[] sortedLevels = levels.toArray(new Level[levels.size()]);
+        sortBySize(sortedLevels);
+        synchronized (sLevels) {
+            if (sortedLevels.length > 0)
+                sLevels.put(path, sortedLevels);
+            saveIndex();
+        }
+        Log.d(LOG_TAG, "built " + sortedLevels.length + " levels of " + sourceFile);
+        return sortedLevels.length;
+    }
+
+    /**
+     * Returns the smallest level having the limited side at or above the requested size.
+     * If the request is bigger than the top level null is returned: the source must be used
+     *
+     * @param sourceFile  - image File
+     * @param maxSideSize - requested size
+     * @param isByHeight  - null to limit the bigger side, true for height, false for width
+     * @return Level or null if there is no pyramid or no level big enough
+     */
+    public static Level getLevel(final File sourceFile, final int maxSideSize, final Boolean isByHeight) {
+        if (sourceFile == null || maxSideSize <= 0)
+            return null;
+        final Level[] levels = getLevels(sourceFile);
+        for (Level level : levels) {
+            final int side = isByHeight == null
+                    ? Math.max(level.width, level.height)
+                    : isByHeight ? level.height : level.width;
+            if (side >= maxSideSize) {
+                if (level.file.lastModified() >= sourceFile.lastModified() && level.file.exists())
+                    return level;
+                // source was modified after the pyramid had been built
+                delete(sourceFile);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param sourceFile - image File
+     * @return true if there is a pyramid of the file
+     */
+    public static boolean exists(final File sourceFile) {
+        return sourceFile != null && getLevels(sourceFile).length > 0;
+    }
+
+    /**
+     * Deletes stored levels of the image
+     *
+     * @param sourceFile - image File
+     */
+    public static void delete(final File sourceFile) {
+        if (sourceFile == null)
+            return;
+        if (deleteLevels(sourceFile))
+            synchronized (sLevels) {
+                saveIndex();
+            }
+    }
+
+    // true if there were levels, the index is not saved
+    private static boolean deleteLevels(final File sourceFile) {
+        final Level[] levels;
+        synchronized (sLevels) {
+            loadIndex();
+            levels = sLevels.remove(sourceFile.getAbsolutePath());
+        }
+        if (levels == null)
+            return false;
+        for (Level level : levels)
+            if (level.file.exists() && !level.file.delete())
+                Log.w(LOG_TAG, "could not delete " + level.file);
+        return true;
+    }
+
+    private static Level[] getLevels(final File sourceFile) {
+        synchronized (sLevels) {
+            loadIndex();
+            final Level[] levels = sLevels.get(sourceFile.getAbsolutePath());
+            return levels == null ? new Level[0] : levels;
+        }
+    }
+
+    //*********************************************************************************************
+    //
+    // Index: a line per level, <source path>\t<width>\t<height>\t<level path>
+    //
+
+    // guarded by sLevels
+    private static void loadIndex() {
+        if (isIndexLoaded)
+            return;
+        isIndexLoaded = true;
+        final File indexFile = getIndexFile();
+        if (indexFile == null || !indexFile.exists())
+            return;
+        final Map<String, List<Level>> levelsBySource = new HashMap<>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(indexFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                if (fields.length != 4)
+                    continue;
+                List<Level> levels = levelsBySource.get(fields[0]);
+                if (levels == null) {
+                    levels = new ArrayList<>();
+                    levelsBySource.put(fields[0], levels);
+                }
+                try {
+                    levels.add(new Level(new File(fields[3]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2])));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+        } finally {
+            if (reader != null)
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+        }
+        for (Map.Entry<String, List<Level>> entry : levelsBySource.entrySet()) {
+            final Level[] sortedLevels = entry.getValue().toArray(new Level[entry.getValue().size()]);
+            sortBySize(sortedLevels);
+            sLevels.put(entry.getKey(), sortedLevels);
+        }
+    }
+
+    // guarded by sLevels
+    private static void saveIndex() {
+        final File indexFile = getIndexFile();
+        if (indexFile == null)
+            return;
+        final StringBuilder data = new StringBuilder();
+        for (Map.Entry<String, Level[]> entry : sLevels.entrySet())
+            for (Level level : entry.getValue())
+                data.append(entry.getKey()).append('\t').append(level.width).append('\t').append(level.height)
+                        .append('\t').append(level.file.getAbsolutePath()).append('\n');
+        final File indexDir = indexFile.getParentFile();
+        if (!indexDir.exists() && !indexDir.mkdirs() || !AtomicFiles.write(data.toString().getBytes(), indexFile))
+            Log.w(LOG_TAG, "could not save " + indexFile);
+    }
+
+    private static File getIndexFile() {
+        final File cacheDir = SDCardHelper.getCacheDir();
+        return cacheDir == null ? null : new File(new File(cacheDir, PYRAMIDS_DIR), INDEX_FILE_NAME);
+    }
+
+    private static void sortBySize(final Level[] levels) {
+        Arrays.sort(levels, new Comparator<Level>() {
+            @Override
+            public int compare(final Level lhs, final Level rhs) {
+                return lhs.width * lhs.height - rhs.width * rhs.height;
+            }
+        });
+    }
+
+    private static File getLevelsDir(final File sourceFile) {
+        final File cacheDir = SDCardHelper.getCacheDir();
+        if (cacheDir == null)
+            return null;
+        final File parentDir = sourceFile.getAbsoluteFile().getParentFile();
+        if (parentDir != null && parentDir.getAbsolutePath().startsWith(cacheDir.getAbsolutePath()))
+            return parentDir;
+        return new File(cacheDir, PYRAMIDS_DIR);
+    }
+
+    private static String getLevelNamePrefix(final File sourceFile) {
+        final File cacheDir = SDCardHelper.getCacheDir();
+        final File parentDir = sourceFile.getAbsoluteFile().getParentFile();
+        if (cacheDir != null && parentDir != null && parentDir.getAbsolutePath().startsWith(cacheDir.getAbsolutePath()))
+            return sourceFile.getName() + ".";
+        return Hash.getMD5(sourceFile.getAbsolutePath()) + ".";
+    }
+
+    // temp file and rename so a reader never sees a partial level
+    private static boolean writeLevel(final Bitmap level, final CompressFormat format, final File levelFile) {
+        final File tempFile = new File(levelFile.getPath() + ".tmp");
+        FileOutputStream fileOutputStream = null;
+        boolean isSucceed = false;
+        try {
+            fileOutputStream = new FileOutputStream(tempFile);
+            final BufferedOutputStream outputStream = new BufferedOutputStream(fileOutputStream, 64 * 1024);
+            isSucceed = level.compress(format, JPEG_QUALITY, outputStream);
+            outputStream.flush();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+            isSucceed = false;
+        } finally {
+            if (fileOutputStream != null)
+                FileUtils.syncAndClose(fileOutputStream);
+        }
+        if (isSucceed && tempFile.renameTo(levelFile))
+            return true;
+        Log.e(LOG_TAG, "could not write " + levelFile);
+        if (tempFile.exists())
+            tempFile.delete();
+        return false;
+    }
+}
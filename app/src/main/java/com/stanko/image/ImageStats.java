@@ -0,0 +1,509 @@
+package com.stanko.image;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.os.SystemClock;
+
+import com.stanko.tools.BackgroundThreadFactory;
+import com.stanko.tools.Log;
+
+import org.greenrobot.eventbus.EventBus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free statistics of image operations: decodes, encodes, blurs and transforms. Each one adds
+ * wall time, source and output bytes, output width, height and pixels, chosen inSampleSize, Bitmap
+ * config and caught OutOfMemoryErrors to atomic counters and log2 histograms, so recording costs a
+ * few atomic adds. ImageUtils goes through the instrumented wrappers below, which mirror
+ * BitmapFactory and Bitmap methods (bounds only decodes are not recorded, OOMs are counted and
+ * rethrown). Transforms drawn to a Canvas are recorded with createBitmap(width, height, config,
+ * startTime) and recordTransform().
+ * getSnapshot() returns a copy of stats, startPeriodicEvents() posts it as ImageStatsEvent.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class ImageStats {
+
+    private static final String LOG_TAG = ImageStats.class.getSimpleName();
+
+    public static final int DECODE = 0;
+    public static final int ENCODE = 1;
+    public static final int BLUR = 2;
+    public static final int TRANSFORM = 3;
+    private static final String[] OPERATION_NAMES = new String[]{"decode", "encode", "blur", "transform"};
+    private static final int OPERATIONS_COUNT = OPERATION_NAMES.length;
+
+    // counters of each operation
+    private static final int COUNT = 0;
+    private static final int FAILED_COUNT = 1;
+    private static final int OOM_COUNT = 2;
+    private static final int TOTAL_TIME_MS = 3;
+    private static final int MAX_TIME_MS = 4;
+    private static final int SOURCE_BYTES = 5;
+    private static final int OUTPUT_BYTES = 6;
+    private static final int OUTPUT_PIXELS = 7;
+    private static final int OVERSIZED_COUNT = 8;
+    private static final int OUTPUT_COUNT = 9;
+    private static final int OUTPUT_WIDTH = 10;
+    private static final int OUTPUT_HEIGHT = 11;
+    private static final int MAX_OUTPUT_WIDTH = 12;
+    private static final int MAX_OUTPUT_HEIGHT = 13;
+    private static final int COUNTERS_COUNT = 14;
+
+    /**
+     * Time histogram buckets: [0] < 1ms, [i] < 2^i ms, the last one is the rest
+     */
+    public static final int TIME_BUCKETS_COUNT = 14;
+    /**
+     * inSampleSize histogram buckets: [i] is inSampleSize 2^i, the last one is the rest
+     */
+    public static final int SAMPLE_SIZE_BUCKETS_COUNT = 7;
+    private static final Bitmap.Config[] CONFIGS = Bitmap.Config.values();
+
+    private static final AtomicLongArray sCounters = new AtomicLongArray(OPERATIONS_COUNT * COUNTERS_COUNT);
+    private static final AtomicLongArray sTimeHistograms = new AtomicLongArray(OPERATIONS_COUNT * TIME_BUCKETS_COUNT);
+    private static final AtomicLongArray sSampleSizeHistogram = new AtomicLongArray(SAMPLE_SIZE_BUCKETS_COUNT);
+    private static final AtomicLongArray sConfigCounts = new AtomicLongArray(CONFIGS.length + 1);
+
+    private static volatile boolean isEnabled = true;
+    // decodes bigger than this are counted as oversized, ~ a 1080p screen by default
+    private static volatile long sOversizedPixels = 1920 * 1080;
+
+    private static ScheduledExecutorService sScheduledExecutorService;
+    private static ScheduledFuture<?> sPeriodicEventsFuture;
+
+    /**
+     * Copy of stats of one operation
+     */
+    public static class OperationStats {
+        public final String name;
+        public final long count;
+        public final long failedCount;
+        public final long oomCount;
+        public final long totalTimeMs;
+        public final long maxTimeMs;
+        public final long sourceBytes;
+        public final long outputBytes;
+        public final long outputPixels;
+        public final long oversizedCount;
+        /**
+         * Count of operations which produced a Bitmap, sums of their widths and heights
+         */
+        public final long outputCount;
+        public final long outputWidth;
+        public final long outputHeight;
+        /**
+         * The biggest width and the biggest height, not necessarily of the same Bitmap
+         */
+        public final int maxOutputWidth;
+        public final int maxOutputHeight;
+        public final long[] timeHistogram;
+
+        OperationStats(final int operation) {
+            final int base = operation * COUNTERS_COUNT;
+            name = OPERATION_NAMES[operation];
+            count = sCounters.get(base + COUNT);
+            failedCount = sCounters.get(base + FAILED_COUNT);
+            oomCount = sCounters.get(base + OOM_COUNT);
+            totalTimeMs = sCounters.get(base + TOTAL_TIME_MS);
+            maxTimeMs = sCounters.get(base + MAX_TIME_MS);
+            sourceBytes = sCounters.get(base + SOURCE_BYTES);
+            outputBytes = sCounters.get(base + OUTPUT_BYTES);
+            outputPixels = sCounters.get(base + OUTPUT_PIXELS);
+            oversizedCount = sCounters.get(base + OVERSIZED_COUNT);
+            outputCount = sCounters.get(base + OUTPUT_COUNT);
+            outputWidth = sCounters.get(base + OUTPUT_WIDTH);
+            outputHeight = sCounters.get(base + OUTPUT_HEIGHT);
+            maxOutputWidth = (int) sCounters.get(base + MAX_OUTPUT_WIDTH);
+            maxOutputHeight = (int) sCounters.get(base + MAX_OUTPUT_HEIGHT);
+            timeHistogram = new long[TIME_BUCKETS_COUNT];
+            for (int i = 0; i < TIME_BUCKETS_COUNT; i++)
+                timeHistogram[i] = sTimeHistograms.get(operation * TIME_BUCKETS_COUNT + i);
+        }
+
+        public long getAverageTimeMs() {
+            return count == 0 ? 0 : totalTimeMs / count;
+        }
+
+        public int getAverageOutputWidth() {
+            return outputCount == 0 ? 0 : (int) (outputWidth / outputCount);
+        }
+
+        public int getAverageOutputHeight() {
+            return outputCount == 0 ? 0 : (int) (outputHeight / outputCount);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder histogram = new StringBuilder();
+            for (int i = 0; i < timeHistogram.length; i++)
+                if (timeHistogram[i] > 0)
+                    histogram.append(i == 0 ? "<1" : i == timeHistogram.length - 1 ? ">=" + (1 << (i - 1)) : "<" + (1 << i))
+                            .append("ms:").append(timeHistogram[i]).append(' ');
+            return String.format(Locale.US, "%s count: %d failed: %d oom: %d avg: %dms max: %dms source: %dB output: %dB %dpx avg: %dx%d max: %dx%d oversized: %d [%s]",
+                    name, count, failedCount, oomCount, getAverageTimeMs(), maxTimeMs, sourceBytes, outputBytes, outputPixels,
+                    getAverageOutputWidth(), getAverageOutputHeight(), maxOutputWidth, maxOutputHeight, oversizedCount, histogram.toString().trim());
+        }
+    }
+
+    /**
+     * Copy of all stats. Counters are read one by one without locking, so a snapshot taken during
+     * operations may be off by the operations in flight
+     */
+    public static class Snapshot {
+        public final long uptimeMs;
+        public final OperationStats decode;
+        public final OperationStats encode;
+        public final OperationStats blur;
+        public final OperationStats transform;
+        public final long[] sampleSizeHistogram;
+        /**
+         * Count of decodes by Bitmap.Config ordinal, the last item is for unknown (null) config
+         */
+        public final long[] configCounts;
+
+        Snapshot() {
+            uptimeMs = SystemClock.elapsedRealtime();
+            decode = new OperationStats(DECODE);
+            encode = new OperationStats(ENCODE);
+            blur = new OperationStats(BLUR);
+            transform = new OperationStats(TRANSFORM);
+            sampleSizeHistogram = new long[SAMPLE_SIZE_BUCKETS_COUNT];
+            for (int i = 0; i < SAMPLE_SIZE_BUCKETS_COUNT; i++)
+                sampleSizeHistogram[i] = sSampleSizeHistogram.get(i);
+            configCounts = new long[CONFIGS.length + 1];
+            for (int i = 0; i < configCounts.length; i++)
+                configCounts[i] = sConfigCounts.get(i);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            builder.append(decode).append('\n')
+                    .append(encode).append('\n')
+                    .append(blur).append('\n')
+                    .append(transform).append('\n')
+                    .append("inSampleSize:");
+            for (int i = 0; i < sampleSizeHistogram.length; i++)
+                if (sampleSizeHistogram[i] > 0)
+                    builder.append(' ').append(1 << i).append(i == sampleSizeHistogram.length - 1 ? "+:" : ":").append(sampleSizeHistogram[i]);
+            builder.append("\nconfigs:");
+            for (int i = 0; i < configCounts.length; i++)
+                if (configCounts[i] > 0)
+                    builder.append(' ').append(i < CONFIGS.length ? CONFIGS[i].name() : "unknown").append(':').append(configCounts[i]);
+            return builder.toString();
+        }
+    }
+
+    //*********************************************************************************************
+    //
+    // Control
+    //
+
+    public static void setEnabled(final boolean enabled) {
+        isEnabled = enabled;
+    }
+
+    /**
+     * @param oversizedPixels - decodes with more pixels are counted as oversized
+     */
+    public static void setOversizedPixels(final long oversizedPixels) {
+        sOversizedPixels = oversizedPixels;
+    }
+
+    public static Snapshot getSnapshot() {
+        return new Snapshot();
+    }
+
+    public static void reset() {
+        for (int i = 0; i < sCounters.length(); i++)
+            sCounters.set(i, 0);
+        for (int i = 0; i < sTimeHistograms.length(); i++)
+            sTimeHistograms.set(i, 0);
+        for (int i = 0; i < sSampleSizeHistogram.length(); i++)
+            sSampleSizeHistogram.set(i, 0);
+        for (int i = 0; i < sConfigCounts.length(); i++)
+            sConfigCounts.set(i, 0);
+    }
+
+    /**
+     * Posts ImageStatsEvent with a snapshot to default EventBus every period, replaces a previous
+     * schedule
+     *
+     * @param periodMs - period in milliseconds
+     */
+    public static synchronized void startPeriodicEvents(final long periodMs) {
+        stopPeriodicEvents();
+        if (sScheduledExecutorService == null)
+            sScheduledExecutorService = new ScheduledThreadPoolExecutor(1, new BackgroundThreadFactory(Thread.MIN_PRIORITY));
+        sPeriodicEventsFuture = sScheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                EventBus.getDefault().post(new ImageStatsEvent(getSnapshot()));
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void stopPeriodicEvents() {
+        if (sPeriodicEventsFuture != null) {
+            sPeriodicEventsFuture.cancel(false);
+            sPeriodicEventsFuture = null;
+        }
+    }
+
+    //*********************************************************************************************
+    //
+    // Recording
+    //
+
+    /**
+     * @return start time to pass to record(), 0 if stats are disabled
+     */
+    public static long start() {
+        return isEnabled ? SystemClock.elapsedRealtime() : 0;
+    }
+
+    /**
+     * Records a finished operation
+     *
+     * @param operation   - DECODE, ENCODE, BLUR or TRANSFORM
+     * @param startTime   - value returned by start()
+     * @param sourceBytes - bytes read, -1 if unknown
+     * @param sampleSize  - inSampleSize of a decode, 0 for other operations
+     * @param outputBytes - bytes written by an encode, -1 to take byte count of output Bitmap
+     * @param output      - resulting Bitmap or null if operation failed or produced no Bitmap
+     * @param isFailed    - true if operation failed
+     * @param isOom       - true if OutOfMemoryError was caught
+     */
+    public static void record(final int operation,
+                              final long startTime,
+                              final long sourceBytes,
+                              final int sampleSize,
+                              final long outputBytes,
+                              final Bitmap output,
+                              final boolean isFailed,
+                              final boolean isOom) {
+        if (startTime == 0 || !isEnabled)
+            return;
+        final long timeMs = SystemClock.elapsedRealtime() - startTime;
+        final int base = operation * COUNTERS_COUNT;
+        sCounters.incrementAndGet(base + COUNT);
+        if (isFailed)
+            sCounters.incrementAndGet(base + FAILED_COUNT);
+        if (isOom)
+            sCounters.incrementAndGet(base + OOM_COUNT);
+        sCounters.addAndGet(base + TOTAL_TIME_MS, timeMs);
+        setMax(base + MAX_TIME_MS, timeMs);
+        if (sourceBytes > 0)
+            sCounters.addAndGet(base + SOURCE_BYTES, sourceBytes);
+        sTimeHistograms.incrementAndGet(operation * TIME_BUCKETS_COUNT + getBucket(timeMs, TIME_BUCKETS_COUNT));
+
+        if (outputBytes > 0)
+            sCounters.addAndGet(base + OUTPUT_BYTES, outputBytes);
+        if (output != null && !output.isRecycled()) {
+            final int width = output.getWidth();
+            final int height = output.getHeight();
+            final long pixels = (long) width * height;
+            sCounters.addAndGet(base + OUTPUT_PIXELS, pixels);
+            sCounters.incrementAndGet(base + OUTPUT_COUNT);
+            sCounters.addAndGet(base + OUTPUT_WIDTH, width);
+            sCounters.addAndGet(base + OUTPUT_HEIGHT, height);
+            setMax(base + MAX_OUTPUT_WIDTH, width);
+            setMax(base + MAX_OUTPUT_HEIGHT, height);
+            if (outputBytes < 0)
+                sCounters.addAndGet(base + OUTPUT_BYTES, (long) output.getRowBytes() * output.getHeight());
+            if (operation == DECODE) {
+                if (pixels > sOversizedPixels)
+                    sCounters.incrementAndGet(base + OVERSIZED_COUNT);
+                final Bitmap.Config config = output.getConfig();
+                sConfigCounts.incrementAndGet(config == null ? CONFIGS.length : config.ordinal());
+            }
+        }
+        if (operation == DECODE)
+            sSampleSizeHistogram.incrementAndGet(Math.min(SAMPLE_SIZE_BUCKETS_COUNT - 1, 31 - Integer.numberOfLeadingZeros(Math.max(1, sampleSize))));
+    }
+
+    /**
+     * Records a transform drawn to a Canvas of a Bitmap made by createBitmap(width, height, config,
+     * startTime)
+     *
+     * @param startTime - value returned by start()
+     * @param output    - resulting Bitmap
+     * @return output
+     */
+    public static Bitmap recordTransform(final long startTime, final Bitmap output) {
+        record(TRANSFORM, startTime, -1, 0, -1, output, output == null, false);
+        return output;
+    }
+
+    private static void setMax(final int index, final long value) {
+        long max;
+        while ((max = sCounters.get(index)) < value)
+            if (sCounters.compareAndSet(index, max, value))
+                break;
+    }
+
+    // 0 for < 1, i for < 2^i, the last bucket for the rest
+    private static int getBucket(final long value, final int bucketsCount) {
+        if (value < 1)
+            return 0;
+        return Math.min(bucketsCount - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    //*********************************************************************************************
+    //
+    // Instrumented wrappers
+    //
+
+    public static Bitmap decodeFileDescriptor(final FileDescriptor fileDescriptor, final Rect outPadding, final BitmapFactory.Options bmfOptions) {
+        return decodeFileDescriptor(fileDescriptor, outPadding, bmfOptions, -1);
+    }
+
+    /**
+     * @param sourceBytes - length of the file if known, -1 otherwise
+     */
+    public static Bitmap decodeFileDescriptor(final FileDescriptor fileDescriptor, final Rect outPadding, final BitmapFactory.Options bmfOptions, final long sourceBytes) {
+        if (bmfOptions != null && bmfOptions.inJustDecodeBounds)
+            return BitmapFactory.decodeFileDescriptor(fileDescriptor, outPadding, bmfOptions);
+        final long startTime = start();
+        try {
+            final Bitmap bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor, outPadding, bmfOptions);
+            recordDecode(startTime, sourceBytes, bmfOptions, bitmap, false);
+            return bitmap;
+        } catch (OutOfMemoryError e) {
+            recordDecode(startTime, sourceBytes, bmfOptions, null, true);
+            throw e;
+        }
+    }
+
+    public static Bitmap decodeStream(final InputStream inputStream) {
+        return decodeStream(inputStream, null, null);
+    }
+
+    public static Bitmap decodeStream(final InputStream inputStream, final Rect outPadding, final BitmapFactory.Options bmfOptions) {
+        if (bmfOptions != null && bmfOptions.inJustDecodeBounds)
+            return BitmapFactory.decodeStream(inputStream, outPadding, bmfOptions);
+        final long startTime = start();
+        try {
+            final Bitmap bitmap = BitmapFactory.decodeStream(inputStream, outPadding, bmfOptions);
+            recordDecode(startTime, -1, bmfOptions, bitmap, false);
+            return bitmap;
+        } catch (OutOfMemoryError e) {
+            recordDecode(startTime, -1, bmfOptions, null, true);
+            throw e;
+        }
+    }
+
+    public static Bitmap decodeResource(final Resources resources, final int resId) {
+        return decodeResource(resources, resId, null);
+    }
+
+    public static Bitmap decodeResource(final Resources resources, final int resId, final BitmapFactory.Options bmfOptions) {
+        if (bmfOptions != null && bmfOptions.inJustDecodeBounds)
+            return BitmapFactory.decodeResource(resources, resId, bmfOptions);
+        final long startTime = start();
+        try {
+            final Bitmap bitmap = BitmapFactory.decodeResource(resources, resId, bmfOptions);
+            recordDecode(startTime, -1, bmfOptions, bitmap, false);
+            return bitmap;
+        } catch (OutOfMemoryError e) {
+            recordDecode(startTime, -1, bmfOptions, null, true);
+            throw e;
+        }
+    }
+
+    public static Bitmap decodeByteArray(final byte[] bytes, final int offset, final int length) {
+        return decodeByteArray(bytes, offset, length, null);
+    }
+
+    public static Bitmap decodeByteArray(final byte[] bytes, final int offset, final int length, final BitmapFactory.Options bmfOptions) {
+        if (bmfOptions != null && bmfOptions.inJustDecodeBounds)
+            return BitmapFactory.decodeByteArray(bytes, offset, length, bmfOptions);
+        final long startTime = start();
+        try {
+            final Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, offset, length, bmfOptions);
+            recordDecode(startTime, length, bmfOptions, bitmap, false);
+            return bitmap;
+        } catch (OutOfMemoryError e) {
+            recordDecode(startTime, length, bmfOptions, null, true);
+            throw e;
+        }
+    }
+
+    /**
+     * Bitmap.compress() recording output bytes if outputStream is a ByteArrayOutputStream
+     */
+    public static boolean compress(final Bitmap bitmap, final Bitmap.CompressFormat format, final int quality, final OutputStream outputStream) {
+        final long startTime = start();
+        final int sizeBefore = outputStream instanceof ByteArrayOutputStream ? ((ByteArrayOutputStream) outputStream).size() : 0;
+        final boolean isSucceed = bitmap.compress(format, quality, outputStream);
+        final long outputBytes = outputStream instanceof ByteArrayOutputStream ? ((ByteArrayOutputStream) outputStream).size() - sizeBefore : 0;
+        record(ENCODE, startTime, (long) bitmap.getRowBytes() * bitmap.getHeight(), 0, outputBytes, null, !isSucceed, false);
+        return isSucceed;
+    }
+
+    /**
+     * Bitmap.createBitmap() with a Matrix: scales, rotations, crops
+     */
+    public static Bitmap createBitmap(final Bitmap source, final int x, final int y, final int width, final int height, final Matrix matrix, final boolean filter) {
+        final long startTime = start();
+        try {
+            final Bitmap bitmap = Bitmap.createBitmap(source, x, y, width, height, matrix, filter);
+            record(TRANSFORM, startTime, -1, 0, -1, bitmap, bitmap == null, false);
+            return bitmap;
+        } catch (OutOfMemoryError e) {
+            record(TRANSFORM, startTime, -1, 0, -1, null, true, true);
+            throw e;
+        }
+    }
+
+    /**
+     * Bitmap.createBitmap() of a region: crops
+     */
+    public static Bitmap createBitmap(final Bitmap source, final int x, final int y, final int width, final int height) {
+        final long startTime = start();
+        try {
+            final Bitmap bitmap = Bitmap.createBitmap(source, x, y, width, height);
+            record(TRANSFORM, startTime, -1, 0, -1, bitmap, bitmap == null, false);
+            return bitmap;
+        } catch (OutOfMemoryError e) {
+            record(TRANSFORM, startTime, -1, 0, -1, null, true, true);
+            throw e;
+        }
+    }
+
+    /**
+     * Bitmap.createBitmap() of a blank Bitmap to draw a transform to. Only an OOM is recorded here,
+     * the drawn transform is recorded by recordTransform()
+     *
+     * @param startTime - value returned by start() before the transform
+     */
+    public static Bitmap createBitmap(final int width, final int height, final Bitmap.Config config, final long startTime) {
+        try {
+            return Bitmap.createBitmap(width, height, config);
+        } catch (OutOfMemoryError e) {
+            record(TRANSFORM, startTime, -1, 0, -1, null, true, true);
+            throw e;
+        }
+    }
+
+    private static void recordDecode(final long startTime, final long sourceBytes, final BitmapFactory.Options bmfOptions, final Bitmap bitmap, final boolean isOom) {
+        if (isOom)
+            Log.w(LOG_TAG, "OutOfMemoryError on decode, inSampleSize: " + (bmfOptions == null ? 1 : bmfOptions.inSampleSize));
+        record(DECODE, startTime, sourceBytes, bmfOptions == null ? 1 : bmfOptions.inSampleSize, -1, bitmap, bitmap == null, isOom);
+    }
+}
@@ -0,0 +1,15 @@
+package com.stanko.image;
+
+/**
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ * Class to be used with EventBus, posted by ImageStats.startPeriodicEvents()
+ */
+public class ImageStatsEvent {
+
+    public final ImageStats.Snapshot snapshot;
+
+    public ImageStatsEvent(final ImageStats.Snapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+}
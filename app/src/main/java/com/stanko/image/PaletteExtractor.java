@@ -0,0 +1,449 @@
+package com.stanko.image;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Dominant color and palette extraction. Images are decoded with the biggest inSampleSize keeping
+ * at least SAMPLE_SIDE_SIZE px on the bigger side (a few thousands pixels instead of megapixels),
+ * colors are quantized to 15 bits and split by median cut into up to MAX_COLORS swatches.
+ * Dominant, vibrant and muted swatches are picked from them. Palettes of Files and resources are
+ * kept in a small LRU cache keyed by source, so list items may ask for them on every bind.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class PaletteExtractor {
+
+    private static final String LOG_TAG = PaletteExtractor.class.getSimpleName();
+
+    public static final int SAMPLE_SIDE_SIZE = 64;
+    public static final int MAX_COLORS = 16;
+
+    private static final int CACHE_SIZE = 64;
+    // pixels more transparent than this do not count
+    private static final int MIN_ALPHA = 0x80;
+
+    private static final float TARGET_VIBRANT_SATURATION = 1f;
+    private static final float MIN_VIBRANT_SATURATION = 0.35f;
+    private static final float TARGET_MUTED_SATURATION = 0.3f;
+    private static final float MAX_MUTED_SATURATION = 0.4f;
+    private static final float TARGET_LUMINANCE = 0.5f;
+    private static final float MIN_LUMINANCE = 0.3f;
+    private static final float MAX_LUMINANCE = 0.7f;
+
+    // access ordered LinkedHashMap as LRU: android.util.LruCache is API 12+
+    private static final Map<String, Palette> sCache = new LinkedHashMap<String, Palette>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Palette> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * A color of the palette and count of sampled pixels it stands for
+     */
+    public static class Swatch {
+        public final int rgb;
+        public final int population;
+        private float[] mHsl;
+
+        Swatch(final int rgb, final int population) {
+            this.rgb = rgb;
+            this.population = population;
+        }
+
+        /**
+         * @return hue [0..360), saturation [0..1], lightness [0..1]
+         */
+        public float[] getHsl() {
+            if (mHsl == null)
+                mHsl = rgbToHsl(rgb);
+            return mHsl;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + Integer.toHexString(0x1000000 | (rgb & 0xffffff)).substring(1) + " population: " + population;
+        }
+    }
+
+    /**
+     * Swatches sorted by population, dominant, vibrant and muted ones. Vibrant and muted may be
+     * null if image has no color in their saturation/lightness range
+     */
+    public static class Palette {
+        public final List<Swatch> swatches;
+        public final Swatch dominant;
+        public final Swatch vibrant;
+        public final Swatch muted;
+
+        Palette(final List<Swatch> swatches) {
+            this.swatches = Collections.unmodifiableList(swatches);
+            this.dominant = swatches.isEmpty() ? null : swatches.get(0);
+            this.vibrant = findSwatch(swatches, MIN_VIBRANT_SATURATION, 1f, TARGET_VIBRANT_SATURATION);
+            this.muted = findSwatch(swatches, 0f, MAX_MUTED_SATURATION, TARGET_MUTED_SATURATION);
+        }
+
+        /**
+         * @param defaultColor - returned if there is no dominant swatch
+         */
+        public int getDominantColor(final int defaultColor) {
+            return dominant == null ? defaultColor : dominant.rgb;
+        }
+
+        public int getVibrantColor(final int defaultColor) {
+            return vibrant == null ? defaultColor : vibrant.rgb;
+        }
+
+        public int getMutedColor(final int defaultColor) {
+            return muted == null ? defaultColor : muted.rgb;
+        }
+    }
+
+    /**
+     * Returns Palette of an image File, cached by its path, length and modification time
+     *
+     * @param imageFile
+     * @return Palette or null if File could not be decoded
+     */
+    public static Palette getPalette(final File imageFile) {
+        if (!FileUtils.isReadable(imageFile))
+            return null;
+        final String key = imageFile.getAbsolutePath() + ":" + imageFile.length() + ":" + imageFile.lastModified();
+        Palette palette = getCached(key);
+        if (palette != null)
+            return palette;
+        final BitmapFactory.Options bmfOptions = new BitmapFactory.Options();
+        bmfOptions.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(imageFile.getAbsolutePath(), bmfOptions);
+        if (!setSampleOptions(bmfOptions))
+            return null;
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeFile(imageFile.getAbsolutePath(), bmfOptions);
+        } catch (OutOfMemoryError e) {
+            Log.e(LOG_TAG, e);
+        }
+        if (bitmap == null)
+            return null;
+        palette = getPalette(bitmap);
+        bitmap.recycle();
+        putCached(key, palette);
+        return palette;
+    }
+
+    /**
+     * Returns Palette of a drawable resource, cached by resource id
+     *
+     * @param resources
+     * @param resId
+     * @return Palette or null if resource could not be decoded
+     */
+    public static Palette getPalette(final Resources resources, final int resId) {
+        if (resources == null)
+            return null;
+        final String key = "res:" + resId;
+        Palette palette = getCached(key);
+        if (palette != null)
+            return palette;
+        final BitmapFactory.Options bmfOptions = new BitmapFactory.Options();
+        bmfOptions.inJustDecodeBounds = true;
+        bmfOptions.inScaled = false;
+        BitmapFactory.decodeResource(resources, resId, bmfOptions);
+        if (!setSampleOptions(bmfOptions))
+            return null;
+        Bitmap bitmap = null;
+        try {
+            bitmap = BitmapFactory.decodeResource(resources, resId, bmfOptions);
+        } catch (OutOfMemoryError e) {
+            Log.e(LOG_TAG, e);
+        }
+        if (bitmap == null)
+            return null;
+        palette = getPalette(bitmap);
+        bitmap.recycle();
+        putCached(key, palette);
+        return palette;
+    }
+
+    /**
+     * Returns Palette of a Bitmap, not cached. Big bitmaps are read with a step so that at most
+     * about SAMPLE_SIDE_SIZE pixels are taken of each side
+     *
+     * @param bitmap
+     * @return Palette or null if bitmap is null or recycled
+     */
+    public static Palette getPalette(final Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled())
+            return null;
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int step = Math.max(1, Math.max(width, height) / SAMPLE_SIDE_SIZE);
+        final int[] row = new int[width];
+        final int[] pixels = new int[((width + step - 1) / step) * ((height + step - 1) / step)];
+        int count = 0;
+        for (int y = 0; y < height; y += step) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x += step)
+                pixels[count++] = row[x];
+        }
+        return getPalette(pixels, count, MAX_COLORS);
+    }
+
+    /**
+     * Returns Palette of given ARGB pixels
+     *
+     * @param argb      - pixels
+     * @param count     - count of pixels to take from argb
+     * @param maxColors - max count of swatches
+     * @return Palette, its swatches are empty if all pixels are transparent
+     */
+    public static Palette getPalette(final int[] argb, final int count, final int maxColors) {
+        // 5 bits per channel histogram
+        final int[] histogram = new int[1 << 15];
+        for (int i = 0; i < count; i++) {
+            final int pixel = argb[i];
+            if ((pixel >>> 24) < MIN_ALPHA)
+                continue;
+            histogram[((pixel >> 9) & 0x7c00) | ((pixel >> 6) & 0x3e0) | ((pixel >> 3) & 0x1f)]++;
+        }
+        int colorsCount = 0;
+        for (int population : histogram)
+            if (population > 0)
+                colorsCount++;
+        final int[] colors = new int[colorsCount];
+        colorsCount = 0;
+        for (int color = 0; color < histogram.length; color++)
+            if (histogram[color] > 0)
+                colors[colorsCount++] = color;
+
+        final List<Swatch> swatches = new ArrayList<>();
+        if (colorsCount > 0)
+            for (Box box : medianCut(colors, histogram, Math.max(1, maxColors)))
+                swatches.add(box.getAverageSwatch());
+        Collections.sort(swatches, new Comparator<Swatch>() {
+            @Override
+            public int compare(final Swatch lhs, final Swatch rhs) {
+                return rhs.population - lhs.population;
+            }
+        });
+        return new Palette(swatches);
+    }
+
+    public static void clearCache() {
+        synchronized (sCache) {
+            sCache.clear();
+        }
+    }
+
+    private static Palette getCached(final String key) {
+        synchronized (sCache) {
+            return sCache.get(key);
+        }
+    }
+
+    private static void putCached(final String key, final Palette palette) {
+        synchronized (sCache) {
+            sCache.put(key, palette);
+        }
+    }
+
+    private static boolean setSampleOptions(final BitmapFactory.Options bmfOptions) {
+        final int maxSide = Math.max(bmfOptions.outWidth, bmfOptions.outHeight);
+        if (maxSide <= 0)
+            return false;
+        int sampleSize = 1;
+        while (maxSide / (sampleSize << 1) >= SAMPLE_SIDE_SIZE)
+            sampleSize <<= 1;
+        bmfOptions.inJustDecodeBounds = false;
+        bmfOptions.inSampleSize = sampleSize;
+        return true;
+    }
+
+    //*********************************************************************************************
+    //
+    // Median cut
+    //
+
+    /**
+     * Splits the box with most pixels at the median of its longest channel until maxColors boxes
+     * or nothing left to split. At most maxColors - 1 splits, each O(colors in box)
+     */
+    private static List<Box> medianCut(final int[] colors, final int[] histogram, final int maxColors) {
+        final PriorityQueue<Box> queue = new PriorityQueue<>(maxColors, new Comparator<Box>() {
+            @Override
+            public int compare(final Box lhs, final Box rhs) {
+                return rhs.population - lhs.population;
+            }
+        });
+        final List<Box> boxes = new ArrayList<>(maxColors);
+        queue.add(new Box(colors, histogram, 0, colors.length));
+        while (!queue.isEmpty() && queue.size() + boxes.size() < maxColors) {
+            final Box box = queue.poll();
+            if (box.to - box.from < 2) {
+                boxes.add(box);
+                continue;
+            }
+            final Box second = box.split();
+            queue.add(box);
+            queue.add(second);
+        }
+        boxes.addAll(queue);
+        return boxes;
+    }
+
+    private static class Box {
+        private final int[] colors;
+        private final int[] histogram;
+        private final int from;
+        private int to;
+        private int population;
+        private int minRed, maxRed, minGreen, maxGreen, minBlue, maxBlue;
+
+        Box(final int[] colors, final int[] histogram, final int from, final int to) {
+            this.colors = colors;
+            this.histogram = histogram;
+            this.from = from;
+            this.to = to;
+            fitBounds();
+        }
+
+        private void fitBounds() {
+            minRed = minGreen = minBlue = 31;
+            maxRed = maxGreen = maxBlue = 0;
+            population = 0;
+            for (int i = from; i < to; i++) {
+                final int color = colors[i];
+                final int red = color >> 10;
+                final int green = (color >> 5) & 0x1f;
+                final int blue = color & 0x1f;
+                minRed = Math.min(minRed, red);
+                maxRed = Math.max(maxRed, red);
+                minGreen = Math.min(minGreen, green);
+                maxGreen = Math.max(maxGreen, green);
+                minBlue = Math.min(minBlue, blue);
+                maxBlue = Math.max(maxBlue, blue);
+                population += histogram[color];
+            }
+        }
+
+        /**
+         * Sorts colors by the longest channel, cuts at the population median, shrinks this box to
+         * the lower part and returns the upper one
+         */
+        Box split() {
+            final int redLength = maxRed - minRed;
+            final int greenLength = maxGreen - minGreen;
+            final int blueLength = maxBlue - minBlue;
+            final int shift = redLength >= greenLength && redLength >= blueLength ? 10
+                    : greenLength >= blueLength ? 5 : 0;
+            // counting sort by the channel, 32 buckets
+            final int[] bucketStarts = new int[33];
+            for (int i = from; i < to; i++)
+                bucketStarts[((colors[i] >> shift) & 0x1f) + 1]++;
+            for (int i = 1; i < bucketStarts.length; i++)
+                bucketStarts[i] += bucketStarts[i - 1];
+            final int[] sorted = new int[to - from];
+            for (int i = from; i < to; i++)
+                sorted[bucketStarts[(colors[i] >> shift) & 0x1f]++] = colors[i];
+            System.arraycopy(sorted, 0, colors, from, sorted.length);
+
+            final int halfPopulation = population / 2;
+            int cut = from;
+            int accumulated = 0;
+            while (cut < to - 1) {
+                accumulated += histogram[colors[cut]];
+                cut++;
+                if (accumulated >= halfPopulation)
+                    break;
+            }
+            final Box upper = new Box(colors, histogram, cut, to);
+            to = cut;
+            fitBounds();
+            return upper;
+        }
+
+        Swatch getAverageSwatch() {
+            long red = 0, green = 0, blue = 0;
+            for (int i = from; i < to; i++) {
+                final int color = colors[i];
+                final int population = histogram[color];
+                red += (color >> 10) * population;
+                green += ((color >> 5) & 0x1f) * population;
+                blue += (color & 0x1f) * population;
+            }
+            // back from 5 to 8 bits, +4 to land in the middle of the 8 values quantized together
+            final int r = (int) (red * 8 / population) + 4;
+            final int g = (int) (green * 8 / population) + 4;
+            final int b = (int) (blue * 8 / population) + 4;
+            return new Swatch(0xff000000 | (Math.min(255, r) << 16) | (Math.min(255, g) << 8) | Math.min(255, b), population);
+        }
+    }
+
+    //*********************************************************************************************
+    //
+    // Swatch selection
+    //
+
+    private static Swatch findSwatch(final List<Swatch> swatches, final float minSaturation, final float maxSaturation, final float targetSaturation) {
+        if (swatches.isEmpty())
+            return null;
+        final int maxPopulation = swatches.get(0).population;
+        Swatch best = null;
+        float bestScore = -1;
+        for (Swatch swatch : swatches) {
+            final float[] hsl = swatch.getHsl();
+            if (hsl[1] < minSaturation || hsl[1] > maxSaturation || hsl[2] < MIN_LUMINANCE || hsl[2] > MAX_LUMINANCE)
+                continue;
+            // closeness to target luminance weighs most, then saturation, then population
+            // (same weights as the support library Palette)
+            final float score = 3f * (1f - Math.abs(hsl[1] - targetSaturation))
+                    + 6f * (1f - Math.abs(hsl[2] - TARGET_LUMINANCE))
+                    + 1f * swatch.population / maxPopulation;
+            if (score > bestScore) {
+                bestScore = score;
+                best = swatch;
+            }
+        }
+        return best;
+    }
+
+    private static float[] rgbToHsl(final int rgb) {
+        final float red = ((rgb >> 16) & 0xff) / 255f;
+        final float green = ((rgb >> 8) & 0xff) / 255f;
+        final float blue = (rgb & 0xff) / 255f;
+        final float max = Math.max(red, Math.max(green, blue));
+        final float min = Math.min(red, Math.min(green, blue));
+        final float delta = max - min;
+        final float lightness = (max + min) / 2f;
+        float hue = 0;
+        float saturation = 0;
+        if (delta > 0) {
+            if (max == red)
+                hue = ((green - blue) / delta) % 6f;
+            else if (max == green)
+                hue = (blue - red) / delta + 2f;
+            else
+                hue = (red - green) / delta + 4f;
+            hue *= 60f;
+            if (hue < 0)
+                hue += 360f;
+            saturation = delta / (1f - Math.abs(2f * lightness - 1f));
+        }
+        return new float[]{hue, Math.min(1f, saturation), lightness};
+    }
+}
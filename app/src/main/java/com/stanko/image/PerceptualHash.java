@@ -0,0 +1,210 @@
+package com.stanko.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.Log;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * 64 bit perceptual hashes (dHash and pHash) of images. Images are decoded with the biggest
+ * inSampleSize keeping at least SAMPLE_SIDE_SIZE px on the smaller side, so hashing a photo costs
+ * a tiny fraction of its full decode. Similar images give hashes with small Hamming distance:
+ * 0-5 is most probably the same picture (re-encoded, resized), above 10 are different pictures.
+ * Any long is a valid hash (a flat image hashes to 0), so an undecodable File gives null.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class PerceptualHash {
+
+    public static final int SAMPLE_SIDE_SIZE = 64;
+
+    private static final int DHASH_WIDTH = 9;
+    private static final int DHASH_HEIGHT = 8;
+    private static final int PHASH_SIZE = 32;
+    private static final int PHASH_LOW_FREQUENCIES = 8;
+
+    // DCT-II coefficients cos((2x+1)*u*PI/64), [u][x]
+    private static final double[][] DCT_COSINES = new double[PHASH_SIZE][PHASH_SIZE];
+
+    static {
+        for (int u = 0; u < PHASH_SIZE; u++)
+            for (int x = 0; x < PHASH_SIZE; x++)
+                DCT_COSINES[u][x] = Math.cos((2 * x + 1) * u * Math.PI / (2 * PHASH_SIZE));
+    }
+
+    /**
+     * Returns Hamming distance of two hashes (0-64)
+     */
+    public static int getDistance(final long hash1, final long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+    /**
+     * Returns dHash of an image File
+     *
+     * @param imageFile
+     * @return hash or null if File could not be decoded
+     */
+    public static Long getDHash(final File imageFile) {
+        final Bitmap bitmap = decodeSample(imageFile);
+        if (bitmap == null)
+            return null;
+        final long hash = getDHash(bitmap);
+        bitmap.recycle();
+        return hash;
+    }
+
+    /**
+     * Returns pHash of an image File
+     *
+     * @param imageFile
+     * @return hash or null if File could not be decoded
+     */
+    public static Long getPHash(final File imageFile) {
+        final Bitmap bitmap = decodeSample(imageFile);
+        if (bitmap == null)
+            return null;
+        final long hash = getPHash(bitmap);
+        bitmap.recycle();
+        return hash;
+    }
+
+    public static long getDHash(final Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        return getDHash(pixels, width, height);
+    }
+
+    public static long getPHash(final Bitmap bitmap) {
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        return getPHash(pixels, width, height);
+    }
+
+    /**
+     * dHash: 9x8 grayscale thumbnail, a bit per each horizontally adjacent pair: is left brighter
+     */
+    public static long getDHash(final int[] argb, final int width, final int height) {
+        final float[] luminance = getGrayscaleThumbnail(argb, width, height, DHASH_WIDTH, DHASH_HEIGHT);
+        long hash = 0;
+        for (int y = 0; y < DHASH_HEIGHT; y++) {
+            final int row = y * DHASH_WIDTH;
+            for (int x = 0; x < DHASH_WIDTH - 1; x++) {
+                hash <<= 1;
+                if (luminance[row + x] > luminance[row + x + 1])
+                    hash |= 1;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * pHash: 32x32 grayscale thumbnail, DCT, a bit per each of 8x8 lowest frequencies: is it
+     * above their median (DC term excluded from the median)
+     */
+    public static long getPHash(final int[] argb, final int width, final int height) {
+        final float[] luminance = getGrayscaleThumbnail(argb, width, height, PHASH_SIZE, PHASH_SIZE);
+
+        // separable DCT, only low frequency rows/columns are needed
+        final double[] rowsDct = new double[PHASH_LOW_FREQUENCIES * PHASH_SIZE];
+        for (int y = 0; y < PHASH_SIZE; y++)
+            for (int u = 0; u < PHASH_LOW_FREQUENCIES; u++) {
+                double sum = 0;
+                for (int x = 0; x < PHASH_SIZE; x++)
+                    sum += luminance[y * PHASH_SIZE + x] * DCT_COSINES[u][x];
+                rowsDct[u * PHASH_SIZE + y] = sum;
+            }
+        final double[] dct = new double[PHASH_LOW_FREQUENCIES * PHASH_LOW_FREQUENCIES];
+        for (int u = 0; u < PHASH_LOW_FREQUENCIES; u++)
+            for (int v = 0; v < PHASH_LOW_FREQUENCIES; v++) {
+                double sum = 0;
+                for (int y = 0; y < PHASH_SIZE; y++)
+                    sum += rowsDct[u * PHASH_SIZE + y] * DCT_COSINES[v][y];
+                dct[v * PHASH_LOW_FREQUENCIES + u] = sum;
+            }
+
+        final double[] sorted = new double[dct.length - 1];
+        System.arraycopy(dct, 1, sorted, 0, sorted.length);
+        Arrays.sort(sorted);
+        final double median = (sorted[sorted.length / 2 - 1] + sorted[sorted.length / 2]) / 2;
+
+        long hash = 0;
+        for (double coefficient : dct) {
+            hash <<= 1;
+            if (coefficient > median)
+                hash |= 1;
+        }
+        return hash;
+    }
+
+    /**
+     * Decodes an image so its smaller side is at least SAMPLE_SIDE_SIZE px, RGB_565 to halve memory
+     *
+     * @param imageFile
+     * @return Bitmap or null
+     */
+    static Bitmap decodeSample(final File imageFile) {
+        if (!FileUtils.isReadable(imageFile))
+            return null;
+        final String path = imageFile.getAbsolutePath();
+        final BitmapFactory.Options bmfOptions = new BitmapFactory.Options();
+        bmfOptions.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, bmfOptions);
+        if (bmfOptions.outWidth <= 0 || bmfOptions.outHeight <= 0)
+            return null;
+        final int minSide = Math.min(bmfOptions.outWidth, bmfOptions.outHeight);
+        int sampleSize = 1;
+        while (minSide / (sampleSize << 1) >= SAMPLE_SIDE_SIZE)
+            sampleSize <<= 1;
+        bmfOptions.inJustDecodeBounds = false;
+        bmfOptions.inSampleSize = sampleSize;
+        bmfOptions.inPreferredConfig = Bitmap.Config.RGB_565;
+        try {
+            return BitmapFactory.decodeFile(path, bmfOptions);
+        } catch (OutOfMemoryError e) {
+            Log.e("PerceptualHash", e);
+            return null;
+        }
+    }
+
+    /**
+     * Box filter downscale to targetWidth x targetHeight of luminance (BT.601)
+     */
+    private static float[] getGrayscaleThumbnail(final int[] argb, final int width, final int height, final int targetWidth, final int targetHeight) {
+        final float[] sums = new float[targetWidth * targetHeight];
+        final int[] counts = new int[targetWidth * targetHeight];
+        for (int y = 0; y < height; y++) {
+            final int targetRow = (int) ((long) y * targetHeight / height) * targetWidth;
+            final int row = y * width;
+            for (int x = 0; x < width; x++) {
+                final int pixel = argb[row + x];
+                final int target = targetRow + (int) ((long) x * targetWidth / width);
+                sums[target] += 0.299f * ((pixel >> 16) & 0xff) + 0.587f * ((pixel >> 8) & 0xff) + 0.114f * (pixel & 0xff);
+                counts[target]++;
+            }
+        }
+        for (int i = 0; i < sums.length; i++)
+            if (counts[i] > 0)
+                sums[i] /= counts[i];
+        // upscale case: fill empty cells from nearest source pixel
+        if (width < targetWidth || height < targetHeight)
+            for (int ty = 0; ty < targetHeight; ty++)
+                for (int tx = 0; tx < targetWidth; tx++) {
+                    final int index = ty * targetWidth + tx;
+                    if (counts[index] == 0) {
+                        final int pixel = argb[(ty * height / targetHeight) * width + tx * width / targetWidth];
+                        sums[index] = 0.299f * ((pixel >> 16) & 0xff) + 0.587f * ((pixel >> 8) & 0xff) + 0.114f * (pixel & 0xff);
+                    }
+                }
+        return sums;
+    }
+}
@@ -0,0 +1,381 @@
+package com.stanko.image;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
+import android.provider.MediaStore.MediaColumns;
+import android.text.TextUtils;
+
+import com.stanko.tools.BackgroundThreadFactory;
+import com.stanko.tools.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Persistent index of perceptual hashes (pHash) of MediaStore photos keyed by MediaStore id and
+ * date_modified. The first update() hashes the whole gallery in parallel from tiny sampled
+ * decodes, later updates hash only new or modified photos and drop deleted ones.
+ * Near duplicates are looked up by Hamming distance in a BK-tree.
+ * All methods are synchronized and update() is long running, so call it off the UI thread.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class PhotoHashIndex {
+
+    private static final String LOG_TAG = PhotoHashIndex.class.getSimpleName();
+
+    private static final String INDEX_FILE_NAME = "photo_hash.idx";
+    private static final int INDEX_MAGIC = 0x50484958;
+    private static final int INDEX_VERSION = 2;
+    private static final int THREADS_COUNT = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Distance up to which photos are treated as the same picture
+     */
+    public static final int DEFAULT_MAX_DISTANCE = 6;
+
+    private final File mIndexFile;
+    private final HashMap<Long, Entry> mEntries = new HashMap<>();
+    private final HammingBKTree mTree = new HammingBKTree();
+    private boolean mIsLoaded;
+
+    /**
+     * Hash of a MediaStore photo
+     */
+    public static class Entry {
+        public final long id;
+        public final long dateModified;
+        public final long hash;
+        /**
+         * False if the photo could not be decoded, hash is meaningless then
+         */
+        public final boolean isHashed;
+
+        Entry(final long id, final long dateModified, final long hash, final boolean isHashed) {
+            this.id = id;
+            this.dateModified = dateModified;
+            this.hash = hash;
+            this.isHashed = isHashed;
+        }
+    }
+
+    /**
+     * Index stored in app's files directory
+     *
+     * @param context
+     */
+    public PhotoHashIndex(final Context context) {
+        this(new File(context.getFilesDir(), INDEX_FILE_NAME));
+    }
+
+    /**
+     * @param indexFile - File to persist index to
+     */
+    public PhotoHashIndex(final File indexFile) {
+        mIndexFile = indexFile;
+    }
+
+    /**
+     * Synchronizes index with MediaStore: hashes new and modified photos, drops deleted ones and
+     * persists the index if anything has changed.
+     *
+     * @param context
+     * @return count of hashed and dropped photos or -1 if MediaStore could not be queried
+     */
+    public synchronized int update(final Context context) {
+        if (context == null)
+            return -1;
+        loadOnDemand();
+
+        final String[] projection = new String[]{
+                BaseColumns._ID,
+                MediaColumns.DATE_MODIFIED,
+                MediaColumns.DATA};
+        final List<HashTask> tasks = new ArrayList<>();
+        final HashMap<Long, Boolean> presentIds = new HashMap<>();
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                    projection,
+                    null,
+                    null,
+                    null);
+            if (cursor == null)
+                return -1;
+            while (cursor.moveToNext()) {
+                final long id = cursor.getLong(0);
+                final long dateModified = cursor.getLong(1);
+                presentIds.put(id, Boolean.TRUE);
+                final Entry entry = mEntries.get(id);
+                if (entry != null && entry.dateModified == dateModified)
+                    continue;
+                final String path = cursor.getString(2);
+                if (!TextUtils.isEmpty(path))
+                    tasks.add(new HashTask(id, dateModified, new File(path)));
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, e);
+            return -1;
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+
+        int changesCount = 0;
+        final Iterator<Long> iterator = mEntries.keySet().iterator();
+        while (iterator.hasNext())
+            if (!presentIds.containsKey(iterator.next())) {
+                iterator.remove();
+                changesCount++;
+            }
+
+        if (!tasks.isEmpty()) {
+            Log.d(LOG_TAG, "hashing " + tasks.size() + " photos");
+            final ExecutorService executorService = Executors.newFixedThreadPool(THREADS_COUNT, new BackgroundThreadFactory(Thread.MIN_PRIORITY));
+            try {
+                final List<Future<Entry>> futures = new ArrayList<>(tasks.size());
+                for (HashTask task : tasks)
+                    futures.add(executorService.submit(task));
+                // a failed photo is skipped and retried on the next update, others are kept
+                for (Future<Entry> future : futures)
+                    try {
+                        final Entry entry = future.get();
+                        mEntries.put(entry.id, entry);
+                        changesCount++;
+                    } catch (ExecutionException e) {
+                        Log.e(LOG_TAG, e);
+                    }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                executorService.shutdownNow();
+            }
+        }
+
+        if (changesCount > 0) {
+            rebuildTree();
+            save();
+        }
+        return changesCount;
+    }
+
+    /**
+     * Returns photos similar to the one with given MediaStore id, excluding itself
+     *
+     * @param id          - MediaStore id of indexed photo
+     * @param maxDistance - max Hamming distance between pHashes
+     * @return List of matches, empty if photo is not indexed or has no similar ones
+     */
+    public synchronized List<HammingBKTree.Match> findSimilar(final long id, final int maxDistance) {
+        loadOnDemand();
+        final Entry entry = mEntries.get(id);
+        final List<HammingBKTree.Match> matches = entry == null || !entry.isHashed
+                ? new ArrayList<HammingBKTree.Match>()
+                : mTree.search(entry.hash, maxDistance);
+        final Iterator<HammingBKTree.Match> iterator = matches.iterator();
+        while (iterator.hasNext())
+            if (iterator.next().id == id)
+                iterator.remove();
+        return matches;
+    }
+
+    /**
+     * Returns photos similar to given hash
+     *
+     * @param hash        - pHash of some image, see PerceptualHash.getPHash()
+     * @param maxDistance - max Hamming distance between pHashes
+     * @return List of matches, empty if nothing found
+     */
+    public synchronized List<HammingBKTree.Match> findSimilarToHash(final long hash, final int maxDistance) {
+        loadOnDemand();
+        return mTree.search(hash, maxDistance);
+    }
+
+    /**
+     * Groups indexed photos into sets of near duplicates
+     *
+     * @param maxDistance - max Hamming distance between pHashes of photos in a group
+     * @return List of groups (MediaStore ids), each having 2 or more photos
+     */
+    public synchronized List<List<Long>> findDuplicateGroups(final int maxDistance) {
+        loadOnDemand();
+        final HashMap<Long, Long> parents = new HashMap<>();
+        for (Entry entry : mEntries.values()) {
+            if (!entry.isHashed)
+                continue;
+            for (HammingBKTree.Match match : mTree.search(entry.hash, maxDistance))
+                if (match.id != entry.id)
+                    union(parents, entry.id, match.id);
+        }
+        final HashMap<Long, List<Long>> groups = new HashMap<>();
+        for (Long id : parents.keySet()) {
+            final Long root = find(parents, id);
+            List<Long> group = groups.get(root);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(root, group);
+            }
+            group.add(id);
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    /**
+     * @param id - MediaStore id
+     * @return pHash of the photo or null if not indexed or not decodable
+     */
+    public synchronized Long getHash(final long id) {
+        loadOnDemand();
+        final Entry entry = mEntries.get(id);
+        return entry == null || !entry.isHashed ? null : entry.hash;
+    }
+
+    public synchronized int size() {
+        loadOnDemand();
+        return mEntries.size();
+    }
+
+    /**
+     * Drops the index in memory and on disk
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mTree.clear();
+        mIsLoaded = true;
+        if (mIndexFile.exists() && !mIndexFile.delete())
+            Log.w(LOG_TAG, "could not delete " + mIndexFile);
+    }
+
+    private static class HashTask implements Callable<Entry> {
+        private final long id;
+        private final long dateModified;
+        private final File file;
+
+        HashTask(final long id, final long dateModified, final File file) {
+            this.id = id;
+            this.dateModified = dateModified;
+            this.file = file;
+        }
+
+        @Override
+        public Entry call() {
+            final Long hash = PerceptualHash.getPHash(file);
+            return new Entry(id, dateModified, hash == null ? 0 : hash, hash != null);
+        }
+    }
+
+    private static Long find(final HashMap<Long, Long> parents, final Long id) {
+        Long root = id;
+        Long parent;
+        while ((parent = parents.get(root)) != null && !parent.equals(root))
+            root = parent;
+        // path compression
+        Long current = id;
+        while (!current.equals(root)) {
+            final Long next = parents.get(current);
+            parents.put(current, root);
+            current = next;
+        }
+        return root;
+    }
+
+    private static void union(final HashMap<Long, Long> parents, final long id1, final long id2) {
+        if (!parents.containsKey(id1))
+            parents.put(id1, id1);
+        if (!parents.containsKey(id2))
+            parents.put(id2, id2);
+        final Long root1 = find(parents, id1);
+        final Long root2 = find(parents, id2);
+        if (!root1.equals(root2))
+            parents.put(root2, root1);
+    }
+
+    private void rebuildTree() {
+        mTree.clear();
+        for (Entry entry : mEntries.values())
+            if (entry.isHashed)
+                mTree.add(entry.hash, entry.id);
+    }
+
+    private void loadOnDemand() {
+        if (mIsLoaded)
+            return;
+        mIsLoaded = true;
+        if (!mIndexFile.exists())
+            return;
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile), 64 * 1024));
+            if (inputStream.readInt() != INDEX_MAGIC || inputStream.readInt() != INDEX_VERSION) {
+                Log.w(LOG_TAG, "unknown index format, will be rebuilt");
+                return;
+            }
+            final int count = inputStream.readInt();
+            for (int i = 0; i < count; i++) {
+                final Entry entry = new Entry(inputStream.readLong(), inputStream.readLong(), inputStream.readLong(), inputStream.readBoolean());
+                mEntries.put(entry.id, entry);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+            mEntries.clear();
+        } finally {
+            if (inputStream != null)
+                try {
+                    inputStream.close();
+                } catch (IOException ignored) {
+                }
+        }
+        rebuildTree();
+    }
+
+    // writes to a temp file and renames it so a crash never leaves a broken index
+    private void save() {
+        final File tempFile = new File(mIndexFile.getPath() + ".tmp");
+        FileOutputStream fileOutputStream = null;
+        boolean isSucceed = false;
+        try {
+            fileOutputStream = new FileOutputStream(tempFile);
+            final DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 64 * 1024));
+            outputStream.writeInt(INDEX_MAGIC);
+            outputStream.writeInt(INDEX_VERSION);
+            outputStream.writeInt(mEntries.size());
+            for (Entry entry : mEntries.values()) {
+                outputStream.writeLong(entry.id);
+                outputStream.writeLong(entry.dateModified);
+                outputStream.writeLong(entry.hash);
+                outputStream.writeBoolean(entry.isHashed);
+            }
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+            isSucceed = true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+        } finally {
+            if (fileOutputStream != null)
+                try {
+                    fileOutputStream.close();
+                } catch (IOException ignored) {
+                }
+        }
+        if (isSucceed && !tempFile.renameTo(mIndexFile))
+            Log.e(LOG_TAG, "could not rename " + tempFile + " to " + mIndexFile);
+    }
+}
@@ -0,0 +1,174 @@
+package com.stanko.image;
+
+import android.graphics.Bitmap;
+
+import com.stanko.tools.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+
+/**
+ * Off-heap pixels of an ARGB_8888 Bitmap in a pooled direct ByteBuffer, filled by
+ * copyPixelsToBuffer() and written back by copyPixelsFromBuffer(). Unlike getPixels()/setPixels()
+ * into an int[] nothing big is allocated on the Java heap, so kernels over large images do not
+ * fragment it on old Android versions and do not trigger GC.
+ * Pixels are in Bitmap's memory format: premultiplied, read as int they are 0xAABBGGRR.
+ * Obtain, use and recycle() in one thread; the pool itself is thread safe.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class PixelBuffer {
+
+    private static final String LOG_TAG = PixelBuffer.class.getSimpleName();
+
+    // capacities are rounded up so buffers of close sizes are interchangeable
+    private static final int CAPACITY_GRANULARITY = 64 * 1024;
+    private static long sMaxPoolSizeInBytes = 32 * 1024 * 1024;
+    private static long sPoolSizeInBytes;
+    private static final ArrayList<ByteBuffer> sPool = new ArrayList<>();
+
+    private ByteBuffer mByteBuffer;
+    private final IntBuffer mPixels;
+    private final int mWidth;
+    private final int mHeight;
+
+    private PixelBuffer(final ByteBuffer byteBuffer, final int width, final int height) {
+        mByteBuffer = byteBuffer;
+        mWidth = width;
+        mHeight = height;
+        mPixels = byteBuffer.asIntBuffer();
+    }
+
+    /**
+     * @return true for mutable non recycled ARGB_8888 bitmaps
+     */
+    public static boolean isSupported(final Bitmap bitmap) {
+        return bitmap != null && !bitmap.isRecycled() && bitmap.isMutable()
+                && bitmap.getConfig() == Bitmap.Config.ARGB_8888
+                && bitmap.getRowBytes() == bitmap.getWidth() * 4;
+    }
+
+    /**
+     * Copies pixels of a Bitmap into a pooled direct buffer
+     *
+     * @param bitmap - see isSupported()
+     * @return PixelBuffer or null if bitmap is not supported or there is no memory
+     */
+    public static PixelBuffer obtain(final Bitmap bitmap) {
+        if (!isSupported(bitmap))
+            return null;
+        final PixelBuffer pixelBuffer = obtain(bitmap.getWidth(), bitmap.getHeight());
+        if (pixelBuffer == null)
+            return null;
+        pixelBuffer.mByteBuffer.rewind();
+        bitmap.copyPixelsToBuffer(pixelBuffer.mByteBuffer);
+        return pixelBuffer;
+    }
+
+    /**
+     * Returns pooled scratch buffer of width x height ints, contents are undefined
+     *
+     * @return PixelBuffer or null if there is no memory
+     */
+    public static PixelBuffer obtain(final int width, final int height) {
+        final int byteCount = width * height * 4;
+        ByteBuffer byteBuffer = takeFromPool(byteCount);
+        if (byteBuffer == null)
+            try {
+                final int capacity = (byteCount + CAPACITY_GRANULARITY - 1) / CAPACITY_GRANULARITY * CAPACITY_GRANULARITY;
+                byteBuffer = ByteBuffer.allocateDirect(capacity);
+            } catch (OutOfMemoryError e) {
+                Log.e(LOG_TAG, e);
+                return null;
+            }
+        // fixed order makes int layout of pixels independent of the platform's one
+        byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        byteBuffer.clear();
+        byteBuffer.limit(byteCount);
+        return new PixelBuffer(byteBuffer, width, height);
+    }
+
+    /**
+     * @return pixels, index is y * getWidth() + x, use absolute get(index)/put(index, value)
+     */
+    public IntBuffer getPixels() {
+        return mPixels;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Copies pixels back to a Bitmap of the same size and config
+     *
+     * @return false if bitmap is not supported or has other size
+     */
+    public boolean writeTo(final Bitmap bitmap) {
+        if (!isSupported(bitmap) || bitmap.getWidth() != mWidth || bitmap.getHeight() != mHeight)
+            return false;
+        mByteBuffer.rewind();
+        bitmap.copyPixelsFromBuffer(mByteBuffer);
+        return true;
+    }
+
+    /**
+     * Returns the buffer to the pool, this PixelBuffer can't be used after
+     */
+    public void recycle() {
+        if (mByteBuffer == null)
+            return;
+        synchronized (sPool) {
+            if (sPoolSizeInBytes + mByteBuffer.capacity() <= sMaxPoolSizeInBytes) {
+                sPool.add(mByteBuffer);
+                sPoolSizeInBytes += mByteBuffer.capacity();
+            }
+        }
+        mByteBuffer = null;
+    }
+
+    /**
+     * @param maxPoolSizeInBytes - max summary capacity of pooled buffers, default is 32 MB
+     */
+    public static void setMaxPoolSize(final long maxPoolSizeInBytes) {
+        synchronized (sPool) {
+            sMaxPoolSizeInBytes = maxPoolSizeInBytes;
+            while (sPoolSizeInBytes > sMaxPoolSizeInBytes && !sPool.isEmpty())
+                sPoolSizeInBytes -= sPool.remove(sPool.size() - 1).capacity();
+        }
+    }
+
+    /**
+     * Drops pooled buffers, their native memory is freed once they are collected
+     */
+    public static void clearPool() {
+        synchronized (sPool) {
+            sPool.clear();
+            sPoolSizeInBytes = 0;
+        }
+    }
+
+    // best fit: the smallest pooled buffer big enough
+    private static ByteBuffer takeFromPool(final int byteCount) {
+        synchronized (sPool) {
+            int bestIndex = -1;
+            for (int i = 0; i < sPool.size(); i++) {
+                final int capacity = sPool.get(i).capacity();
+                if (capacity >= byteCount && (bestIndex < 0 || capacity < sPool.get(bestIndex).capacity()))
+                    bestIndex = i;
+            }
+            if (bestIndex < 0)
+                return null;
+            final ByteBuffer byteBuffer = sPool.remove(bestIndex);
+            sPoolSizeInBytes -= byteBuffer.capacity();
+            return byteBuffer;
+        }
+    }
+}
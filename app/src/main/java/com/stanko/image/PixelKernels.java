@@ -0,0 +1,196 @@
+package com.stanko.image;
+
+import android.graphics.Bitmap;
+
+import java.nio.IntBuffer;
+
+/**
+ * Pixel kernels working on PixelBuffer, so they take no Java heap proportional to the image.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class PixelKernels {
+
+    /**
+     * Stack blur of an opaque bitmap in place through off-heap buffers. Gives the same result as
+     * ImageUtils.blurBitmapOnHeap(), but instead of 4 int arrays of image size (pixels and r, g, b
+     * of the horizontal pass) it uses 2 pooled direct buffers: pixels and the horizontal pass
+     * packed into one int per pixel.
+     *
+     * @param bitmap - mutable opaque ARGB_8888 Bitmap, see isBlurSupported()
+     * @param radius - must be greater than 1
+     * @return false if bitmap is not supported or there is no memory
+     */
+    public static boolean blur(final Bitmap bitmap, final int radius) {
+        if (!isBlurSupported(bitmap))
+            return false;
+        if (radius < 1)
+            return true;
+        final PixelBuffer pixelBuffer = PixelBuffer.obtain(bitmap);
+        if (pixelBuffer == null)
+            return false;
+        final PixelBuffer scratchBuffer = PixelBuffer.obtain(pixelBuffer.getWidth(), pixelBuffer.getHeight());
+        if (scratchBuffer == null) {
+            pixelBuffer.recycle();
+            return false;
+        }
+        stackBlur(pixelBuffer.getPixels(), scratchBuffer.getPixels(), bitmap.getWidth(), bitmap.getHeight(), radius);
+        pixelBuffer.writeTo(bitmap);
+        scratchBuffer.recycle();
+        pixelBuffer.recycle();
+        return true;
+    }
+
+    /**
+     * Pixels of bitmaps with alpha are premultiplied in buffers, blurring their colors with alpha
+     * kept would break them, so only opaque bitmaps are supported
+     */
+    public static boolean isBlurSupported(final Bitmap bitmap) {
+        return PixelBuffer.isSupported(bitmap) && !bitmap.hasAlpha();
+    }
+
+    /**
+     * Stack blur (Mario Klingemann's algorithm) of 3 lower bytes of each pixel, the top one is kept
+     *
+     * @param pixels  - width x height pixels, blurred in place
+     * @param scratch - width x height ints for the horizontal pass
+     */
+    static void stackBlur(final IntBuffer pixels, final IntBuffer scratch, final int width, final int height, final int radius) {
+        final int widthMax = width - 1;
+        final int heightMax = height - 1;
+        final int div = radius + radius + 1;
+        final int radiusPlus1 = radius + 1;
+
+        int divSum = (div + 1) >> 1;
+        divSum *= divSum;
+        // sum / divSum lookup, sums of 255 * divSum at most
+        final int[] dv = new int[256 * divSum];
+        for (int i = 0; i < dv.length; i++)
+            dv[i] = i / divSum;
+
+        final int[] stack = new int[div];
+        final int[] bounds = new int[Math.max(width, height)];
+
+        // horizontal pass: pixels -> scratch
+        for (int x = 0; x < width; x++)
+            bounds[x] = Math.min(x + radiusPlus1, widthMax);
+        for (int y = 0, rowIndex = 0; y < height; y++, rowIndex += width) {
+            int sum0 = 0, sum1 = 0, sum2 = 0;
+            int inSum0 = 0, inSum1 = 0, inSum2 = 0;
+            int outSum0 = 0, outSum1 = 0, outSum2 = 0;
+            for (int i = -radius; i <= radius; i++) {
+                final int pixel = pixels.get(rowIndex + Math.min(widthMax, Math.max(i, 0)));
+                stack[i + radius] = pixel;
+                final int weight = radiusPlus1 - Math.abs(i);
+                sum0 += ((pixel >> 16) & 0xff) * weight;
+                sum1 += ((pixel >> 8) & 0xff) * weight;
+                sum2 += (pixel & 0xff) * weight;
+                if (i > 0) {
+                    inSum0 += (pixel >> 16) & 0xff;
+                    inSum1 += (pixel >> 8) & 0xff;
+                    inSum2 += pixel & 0xff;
+                } else {
+                    outSum0 += (pixel >> 16) & 0xff;
+                    outSum1 += (pixel >> 8) & 0xff;
+                    outSum2 += pixel & 0xff;
+                }
+            }
+            int stackPointer = radius;
+            for (int x = 0; x < width; x++) {
+                scratch.put(rowIndex + x, (dv[sum0] << 16) | (dv[sum1] << 8) | dv[sum2]);
+                sum0 -= outSum0;
+                sum1 -= outSum1;
+                sum2 -= outSum2;
+
+                int stackStart = stackPointer - radius + div;
+                if (stackStart >= div)
+                    stackStart -= div;
+                int pixel = stack[stackStart];
+                outSum0 -= (pixel >> 16) & 0xff;
+                outSum1 -= (pixel >> 8) & 0xff;
+                outSum2 -= pixel & 0xff;
+
+                pixel = pixels.get(rowIndex + bounds[x]);
+                stack[stackStart] = pixel;
+                inSum0 += (pixel >> 16) & 0xff;
+                inSum1 += (pixel >> 8) & 0xff;
+                inSum2 += pixel & 0xff;
+                sum0 += inSum0;
+                sum1 += inSum1;
+                sum2 += inSum2;
+
+                stackPointer = stackPointer + 1 == div ? 0 : stackPointer + 1;
+                pixel = stack[stackPointer];
+                outSum0 += (pixel >> 16) & 0xff;
+                outSum1 += (pixel >> 8) & 0xff;
+                outSum2 += pixel & 0xff;
+                inSum0 -= (pixel >> 16) & 0xff;
+                inSum1 -= (pixel >> 8) & 0xff;
+                inSum2 -= pixel & 0xff;
+            }
+        }
+
+        // vertical pass: scratch -> pixels, keeping the top byte (alpha)
+        for (int y = 0; y < height; y++)
+            bounds[y] = Math.min(y + radiusPlus1, heightMax) * width;
+        for (int x = 0; x < width; x++) {
+            int sum0 = 0, sum1 = 0, sum2 = 0;
+            int inSum0 = 0, inSum1 = 0, inSum2 = 0;
+            int outSum0 = 0, outSum1 = 0, outSum2 = 0;
+            int rowIndex = -radius * width;
+            for (int i = -radius; i <= radius; i++) {
+                final int value = scratch.get(Math.max(0, rowIndex) + x);
+                stack[i + radius] = value;
+                final int weight = radiusPlus1 - Math.abs(i);
+                sum0 += ((value >> 16) & 0xff) * weight;
+                sum1 += ((value >> 8) & 0xff) * weight;
+                sum2 += (value & 0xff) * weight;
+                if (i > 0) {
+                    inSum0 += (value >> 16) & 0xff;
+                    inSum1 += (value >> 8) & 0xff;
+                    inSum2 += value & 0xff;
+                } else {
+                    outSum0 += (value >> 16) & 0xff;
+                    outSum1 += (value >> 8) & 0xff;
+                    outSum2 += value & 0xff;
+                }
+                if (i < heightMax)
+                    rowIndex += width;
+            }
+            int stackPointer = radius;
+            for (int y = 0, index = x; y < height; y++, index += width) {
+                pixels.put(index, (pixels.get(index) & 0xff000000) | (dv[sum0] << 16) | (dv[sum1] << 8) | dv[sum2]);
+                sum0 -= outSum0;
+                sum1 -= outSum1;
+                sum2 -= outSum2;
+
+                int stackStart = stackPointer - radius + div;
+                if (stackStart >= div)
+                    stackStart -= div;
+                int value = stack[stackStart];
+                outSum0 -= (value >> 16) & 0xff;
+                outSum1 -= (value >> 8) & 0xff;
+                outSum2 -= value & 0xff;
+
+                value = scratch.get(x + bounds[y]);
+                stack[stackStart] = value;
+                inSum0 += (value >> 16) & 0xff;
+                inSum1 += (value >> 8) & 0xff;
+                inSum2 += value & 0xff;
+                sum0 += inSum0;
+                sum1 += inSum1;
+                sum2 += inSum2;
+
+                stackPointer = stackPointer + 1 == div ? 0 : stackPointer + 1;
+                value = stack[stackPointer];
+                outSum0 += (value >> 16) & 0xff;
+                outSum1 += (value >> 8) & 0xff;
+                outSum2 += value & 0xff;
+                inSum0 -= (value >> 16) & 0xff;
+                inSum1 -= (value >> 8) & 0xff;
+                inSum2 -= value & 0xff;
+            }
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package com.stanko.image;
+
+import android.os.Build;
+
+import com.stanko.tools.BackgroundThreadFactory;
+import com.stanko.tools.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Pure Java PNG encoder which filters and deflates horizontal bands of an image on separate
+ * threads (the way pigz does) and joins them into one zlib stream. Every band but the last one is
+ * ended with a FULL_FLUSH so the raw deflate streams could be simply concatenated, Adler-32 of the
+ * whole stream is combined from the bands' checksums.
+ * Takes non-premultiplied ARGB int[] as returned by Bitmap.getPixels().
+ * Deflater flush modes are available since API 19, so on older devices bands are deflated
+ * sequentially by one Deflater.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class PngEncoder {
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private static final byte[] CHUNK_IHDR = {'I', 'H', 'D', 'R'};
+    private static final byte[] CHUNK_IDAT = {'I', 'D', 'A', 'T'};
+    private static final byte[] CHUNK_IEND = {'I', 'E', 'N', 'D'};
+
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_RGBA = 6;
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    // same as pigz block size: big enough to keep the compression ratio, small enough to balance threads
+    private static final int BAND_TARGET_SIZE = 128 * 1024;
+    private static final int DEFLATE_BUFFER_SIZE = 32 * 1024;
+    private static final int ADLER_BASE = 65521;
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private static ExecutorService sExecutorService;
+
+    private final int mCompressionLevel;
+    private final int mThreadsCount;
+
+    public PngEncoder() {
+        this(Deflater.DEFAULT_COMPRESSION, CPU_COUNT);
+    }
+
+    /**
+     * @param compressionLevel - Deflater level 0-9 or Deflater.DEFAULT_COMPRESSION
+     * @param threadsCount     - max number of bands being deflated simultaneously, 1 means
+     *                         sequential encoding in the calling thread
+     */
+    public PngEncoder(final int compressionLevel, final int threadsCount) {
+        if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Wrong compression level: " + compressionLevel);
+        mCompressionLevel = compressionLevel;
+        mThreadsCount = Math.max(1, Math.min(threadsCount, CPU_COUNT));
+    }
+
+    /**
+     * Encodes given pixels to PNG using all available cores and default compression.
+     *
+     * @param argb         - pixels in ARGB format, row by row
+     * @param width        - image width
+     * @param height       - image height
+     * @param hasAlpha     - if false alpha channel is dropped and RGB PNG is written
+     * @param outputStream - stream to write PNG to, is not closed by this method
+     * @throws IOException
+     */
+    public static void encode(final int[] argb,
+                              final int width,
+                              final int height,
+                              final boolean hasAlpha,
+                              final OutputStream outputStream) throws IOException {
+        new PngEncoder().write(argb, width, height, hasAlpha, outputStream);
+    }
+
+    /**
+     * Encodes given pixels to PNG.
+     *
+     * @param argb         - pixels in ARGB format, row by row
+     * @param width        - image width
+     * @param height       - image height
+     * @param hasAlpha     - if false alpha channel is dropped and RGB PNG is written
+     * @param outputStream - stream to write PNG to, is not closed by this method
+     * @throws IOException
+     */
+    public void write(final int[] argb,
+                      final int width,
+                      final int height,
+                      final boolean hasAlpha,
+                      final OutputStream outputStream) throws IOException {
+        if (argb == null || outputStream == null)
+            throw new IOException("Null pixels or output stream given");
+        if (width <= 0 || height <= 0 || argb.length < width * height)
+            throw new IOException("Wrong image dimensions: " + width + "x" + height + " for " + argb.length + " pixels");
+
+        final int bytesPerPixel = hasAlpha ? 4 : 3;
+        final int filteredRowSize = 1 + width * bytesPerPixel;
+        final int rowsPerBand = getRowsPerBand(filteredRowSize, height);
+        final int bandsCount = (height + rowsPerBand - 1) / rowsPerBand;
+
+        outputStream.write(PNG_SIGNATURE);
+        writeHeader(outputStream, width, height, hasAlpha);
+
+        final byte[] zlibHeader = getZlibHeader(mCompressionLevel);
+        if (mThreadsCount == 1 || bandsCount == 1 || Build.VERSION.SDK_INT < 19)
+            writeSequentially(argb, width, height, bytesPerPixel, rowsPerBand, bandsCount, zlibHeader, outputStream);
+        else
+            writeInParallel(argb, width, height, bytesPerPixel, rowsPerBand, bandsCount, zlibHeader, outputStream);
+
+        writeChunk(outputStream, CHUNK_IEND, null, null, 0, null);
+        outputStream.flush();
+    }
+
+    private static int getRowsPerBand(final int filteredRowSize, final int height) {
+        int rowsPerBand = Math.max(1, BAND_TARGET_SIZE / filteredRowSize);
+        // make sure small images still give some work to every core
+        final int rowsPerCore = (height + CPU_COUNT - 1) / CPU_COUNT;
+        if (rowsPerCore < rowsPerBand)
+            rowsPerBand = Math.max(1, rowsPerCore);
+        return rowsPerBand;
+    }
+
+    // one Deflater for the whole image, used if flush modes aren't available or one thread requested
+    private void writeSequentially(final int[] argb,
+                                   final int width,
+                                   final int height,
+                                   final int bytesPerPixel,
+                                   final int rowsPerBand,
+                                   final int bandsCount,
+                                   final byte[] zlibHeader,
+                                   final OutputStream outputStream) throws IOException {
+        final Deflater deflater = new Deflater(mCompressionLevel, true);
+        final Adler32 adler32 = new Adler32();
+        final ByteArrayOutputStream bandOutput = new ByteArrayOutputStream(DEFLATE_BUFFER_SIZE);
+        final byte[] buffer = new byte[DEFLATE_BUFFER_SIZE];
+        byte[] filtered = null;
+        try {
+            for (int band = 0; band < bandsCount; band++) {
+                final int startRow = band * rowsPerBand;
+                final int endRow = Math.min(height, startRow + rowsPerBand);
+                final int filteredSize = (endRow - startRow) * (1 + width * bytesPerPixel);
+                if (filtered == null || filtered.length < filteredSize)
+                    filtered = new byte[filteredSize];
+                filterRows(argb, width, bytesPerPixel, startRow, endRow, filtered);
+                adler32.update(filtered, 0, filteredSize);
+
+                final boolean isFirst = band == 0;
+                final boolean isLast = band == bandsCount - 1;
+                bandOutput.reset();
+                deflater.setInput(filtered, 0, filteredSize);
+                if (isLast) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        final int count = deflater.deflate(buffer);
+                        bandOutput.write(buffer, 0, count);
+                    }
+                } else {
+                    while (!deflater.needsInput()) {
+                        final int count = deflater.deflate(buffer);
+                        bandOutput.write(buffer, 0, count);
+                    }
+                    // deflater keeps the output until enough input comes
+                    if (bandOutput.size() == 0 && !isFirst)
+                        continue;
+                }
+                writeChunk(outputStream, CHUNK_IDAT,
+                        isFirst ? zlibHeader : null,
+                        bandOutput.toByteArray(), bandOutput.size(),
+                        isLast ? getIntBytes((int) adler32.getValue()) : null);
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // bands are deflated on the shared pool, at most mThreadsCount of them are in flight at a time
+    private void writeInParallel(final int[] argb,
+                                 final int width,
+                                 final int height,
+                                 final int bytesPerPixel,
+                                 final int rowsPerBand,
+                                 final int bandsCount,
+                                 final byte[] zlibHeader,
+                                 final OutputStream outputStream) throws IOException {
+        final ExecutorService executorService = getExecutorService();
+        final List<Future<DeflatedBand>> futures = new ArrayList<>(bandsCount);
+        int submitted = 0;
+        while (submitted < bandsCount && submitted < mThreadsCount)
+            futures.add(executorService.submit(new BandDeflateTask(argb, width, height, bytesPerPixel, rowsPerBand, submitted++, bandsCount, mCompressionLevel)));
+
+        long adler = 1;
+        try {
+            for (int band = 0; band < bandsCount; band++) {
+                final DeflatedBand deflatedBand = futures.get(band).get();
+                futures.set(band, null);
+                if (submitted < bandsCount)
+                    futures.add(executorService.submit(new BandDeflateTask(argb, width, height, bytesPerPixel, rowsPerBand, submitted++, bandsCount, mCompressionLevel)));
+
+                adler = combineAdler32(adler, deflatedBand.adler32, deflatedBand.rawSize);
+                final boolean isFirst = band == 0;
+                final boolean isLast = band == bandsCount - 1;
+                writeChunk(outputStream, CHUNK_IDAT,
+                        isFirst ? zlibHeader : null,
+                        deflatedBand.data, deflatedBand.size,
+                        isLast ? getIntBytes((int) adler) : null);
+            }
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            Thread.currentThread().interrupt();
+            throw new IOException("PNG encoding interrupted");
+        } catch (ExecutionException e) {
+            cancelAll(futures);
+            Log.e("PngEncoder", e);
+            throw new IOException("PNG encoding failed: " + e.getCause());
+        } catch (IOException e) {
+            cancelAll(futures);
+            throw e;
+        }
+    }
+
+    private static void cancelAll(final List<Future<DeflatedBand>> futures) {
+        for (Future<DeflatedBand> future : futures)
+            if (future != null)
+                future.cancel(true);
+    }
+
+    private static synchronized ExecutorService getExecutorService() {
+        if (sExecutorService == null)
+            sExecutorService = Executors.newFixedThreadPool(CPU_COUNT, new BackgroundThreadFactory(Thread.MIN_PRIORITY));
+        return sExecutorService;
+    }
+
+    /**
+     * Filters and deflates one band of rows to a raw deflate stream ending at byte boundary
+     */
+    private static class BandDeflateTask implements Callable<DeflatedBand> {
+
+        private final int[] argb;
+        private final int width;
+        private final int bytesPerPixel;
+        private final int startRow;
+        private final int endRow;
+        private final boolean isLast;
+        private final int compressionLevel;
+
+        BandDeflateTask(final int[] argb,
+                        final int width,
+                        final int height,
+                        final int bytesPerPixel,
+                        final int rowsPerBand,
+                        final int band,
+                        final int bandsCount,
+                        final int compressionLevel) {
+            this.argb = argb;
+            this.width = width;
+            this.bytesPerPixel = bytesPerPixel;
+            this.startRow = band * rowsPerBand;
+            this.endRow = Math.min(height, startRow + rowsPerBand);
+            this.isLast = band == bandsCount - 1;
+            this.compressionLevel = compressionLevel;
+        }
+
+        @Override
+        public DeflatedBand call() throws Exception {
+            final int filteredSize = (endRow - startRow) * (1 + width * bytesPerPixel);
+            final byte[] filtered = new byte[filteredSize];
+            filterRows(argb, width, bytesPerPixel, startRow, endRow, filtered);
+
+            final Adler32 adler32 = new Adler32();
+            adler32.update(filtered, 0, filteredSize);
+
+            final ByteArrayOutputStream bandOutput = new ByteArrayOutputStream(filteredSize / 2 + 64);
+            final byte[] buffer = new byte[DEFLATE_BUFFER_SIZE];
+            final Deflater deflater = new Deflater(compressionLevel, true);
+            try {
+                deflater.setInput(filtered, 0, filteredSize);
+                if (isLast) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        final int count = deflater.deflate(buffer);
+                        bandOutput.write(buffer, 0, count);
+                    }
+                } else {
+                    // FULL_FLUSH ends the band at byte boundary with an empty stored block
+                    int count;
+                    do {
+                        count = deflateWithFlush(deflater, buffer);
+                        bandOutput.write(buffer, 0, count);
+                    } while (count == buffer.length);
+                }
+            } finally {
+                deflater.end();
+            }
+            return new DeflatedBand(bandOutput.toByteArray(), bandOutput.size(), (int) adler32.getValue(), filteredSize);
+        }
+    }
+
+    @android.annotation.TargetApi(19)
+    private static int deflateWithFlush(final Deflater deflater, final byte[] buffer) {
+        return deflater.deflate(buffer, 0, buffer.length, Deflater.FULL_FLUSH);
+    }
+
+    private static class DeflatedBand {
+        final byte[] data;
+        final int size;
+        final int adler32;
+        final long rawSize;
+
+        DeflatedBand(final byte[] data, final int size, final int adler32, final long rawSize) {
+            this.data = data;
+            this.size = size;
+            this.adler32 = adler32;
+            this.rawSize = rawSize;
+        }
+    }
+
+    /**
+     * Writes rows [startRow, endRow) as PNG scanlines choosing per row filter by minimal sum of
+     * absolute differences heuristic (as libpng does).
+     */
+    static void filterRows(final int[] argb,
+                           final int width,
+                           final int bytesPerPixel,
+                           final int startRow,
+                           final int endRow,
+                           final byte[] output) {
+        final int rowSize = width * bytesPerPixel;
+        byte[] previousRow = new byte[rowSize];
+        byte[] currentRow = new byte[rowSize];
+        final byte[][] candidates = new byte[5][rowSize];
+        if (startRow > 0)
+            unpackRow(argb, width, bytesPerPixel, startRow - 1, previousRow);
+
+        int outputOffset = 0;
+        for (int row = startRow; row < endRow; row++) {
+            unpackRow(argb, width, bytesPerPixel, row, currentRow);
+            // previousRow is all zeroes for the very first row which is what the spec requires
+            final boolean hasPrevious = row > 0;
+
+            int bestFilter = FILTER_NONE;
+            long bestSum = Long.MAX_VALUE;
+            for (int filter = FILTER_NONE; filter <= FILTER_PAETH; filter++) {
+                if (!hasPrevious && (filter == FILTER_UP || filter == FILTER_PAETH))
+                    continue;
+                final long sum = applyFilter(filter, currentRow, previousRow, bytesPerPixel, candidates[filter]);
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    bestFilter = filter;
+                }
+            }
+            output[outputOffset++] = (byte) bestFilter;
+            System.arraycopy(candidates[bestFilter], 0, output, outputOffset, rowSize);
+            outputOffset += rowSize;
+
+            final byte[] swap = previousRow;
+            previousRow = currentRow;
+            currentRow = swap;
+        }
+    }
+
+    private static void unpackRow(final int[] argb, final int width, final int bytesPerPixel, final int row, final byte[] target) {
+        int offset = row * width;
+        int index = 0;
+        if (bytesPerPixel == 4)
+            for (int x = 0; x < width; x++) {
+                final int pixel = argb[offset++];
+                target[index++] = (byte) (pixel >> 16);
+                target[index++] = (byte) (pixel >> 8);
+                target[index++] = (byte) pixel;
+                target[index++] = (byte) (pixel >>> 24);
+            }
+        else
+            for (int x = 0; x < width; x++) {
+                final int pixel = argb[offset++];
+                target[index++] = (byte) (pixel >> 16);
+                target[index++] = (byte) (pixel >> 8);
+                target[index++] = (byte) pixel;
+            }
+    }
+
+    // returns sum of absolute values of filtered bytes treated as signed
+    private static long applyFilter(final int filter, final byte[] row, final byte[] previous, final int bpp, final byte[] out) {
+        final int length = row.length;
+        long sum = 0;
+        for (int i = 0; i < length; i++) {
+            final int x = row[i] & 0xff;
+            final int a = i >= bpp ? row[i - bpp] & 0xff : 0;
+            final int b = previous[i] & 0xff;
+            final int value;
+            switch (filter) {
+                case FILTER_SUB:
+                    value = x - a;
+                    break;
+                case FILTER_UP:
+                    value = x - b;
+                    break;
+                case FILTER_AVERAGE:
+                    value = x - ((a + b) >> 1);
+                    break;
+                case FILTER_PAETH:
+                    final int c = i >= bpp ? previous[i - bpp] & 0xff : 0;
+                    value = x - paethPredictor(a, b, c);
+                    break;
+                default:
+                    value = x;
+                    break;
+            }
+            final byte filtered = (byte) value;
+            out[i] = filtered;
+            sum += Math.abs((int) filtered);
+        }
+        return sum;
+    }
+
+    private static int paethPredictor(final int a, final int b, final int c) {
+        final int p = a + b - c;
+        final int pa = Math.abs(p - a);
+        final int pb = Math.abs(p - b);
+        final int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc)
+            return a;
+        if (pb <= pc)
+            return b;
+        return c;
+    }
+
+    /**
+     * Returns Adler-32 of two concatenated sequences, same as zlib's adler32_combine()
+     */
+    static long combineAdler32(final long adler1, final long adler2, final long length2) {
+        final long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE)
+            sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE)
+            sum1 -= ADLER_BASE;
+        if (sum2 >= (ADLER_BASE << 1))
+            sum2 -= (ADLER_BASE << 1);
+        if (sum2 >= ADLER_BASE)
+            sum2 -= ADLER_BASE;
+        return sum1 | (sum2 << 16);
+    }
+
+    private static byte[] getZlibHeader(final int compressionLevel) {
+        final int cmf = 0x78; // deflate, 32K window
+        final int levelFlag;
+        if (compressionLevel == Deflater.DEFAULT_COMPRESSION || compressionLevel == 6)
+            levelFlag = 2;
+        else if (compressionLevel <= 1)
+            levelFlag = 0;
+        else if (compressionLevel <= 5)
+            levelFlag = 1;
+        else
+            levelFlag = 3;
+        int flg = levelFlag << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        return new byte[]{(byte) cmf, (byte) flg};
+    }
+
+    private static void writeHeader(final OutputStream outputStream, final int width, final int height, final boolean hasAlpha) throws IOException {
+        final byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8; // bit depth
+        header[9] = (byte) (hasAlpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB);
+        header[10] = 0; // deflate
+        header[11] = 0; // adaptive filtering
+        header[12] = 0; // no interlace
+        writeChunk(outputStream, CHUNK_IHDR, null, header, header.length, null);
+    }
+
+    // writes a chunk whose data consists of optional prefix, data and optional suffix
+    private static void writeChunk(final OutputStream outputStream,
+                                   final byte[] type,
+                                   final byte[] prefix,
+                                   final byte[] data,
+                                   final int dataSize,
+                                   final byte[] suffix) throws IOException {
+        final int length = (prefix == null ? 0 : prefix.length) + dataSize + (suffix == null ? 0 : suffix.length);
+        final CRC32 crc32 = new CRC32();
+        outputStream.write(getIntBytes(length));
+        outputStream.write(type);
+        crc32.update(type);
+        if (prefix != null) {
+            outputStream.write(prefix);
+            crc32.update(prefix);
+        }
+        if (data != null && dataSize > 0) {
+            outputStream.write(data, 0, dataSize);
+            crc32.update(data, 0, dataSize);
+        }
+        if (suffix != null) {
+            outputStream.write(suffix);
+            crc32.update(suffix);
+        }
+        outputStream.write(getIntBytes((int) crc32.getValue()));
+    }
+
+    private static byte[] getIntBytes(final int value) {
+        final byte[] bytes = new byte[4];
+        putInt(bytes, 0, value);
+        return bytes;
+    }
+
+    private static void putInt(final byte[] target, final int offset, final int value) {
+        target[offset] = (byte) (value >>> 24);
+        target[offset + 1] = (byte) (value >>> 16);
+        target[offset + 2] = (byte) (value >>> 8);
+        target[offset + 3] = (byte) value;
+    }
+}
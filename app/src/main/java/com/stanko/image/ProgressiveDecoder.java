@@ -0,0 +1,380 @@
+package com.stanko.image;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.stanko.tools.BackgroundThreadFactory;
+import com.stanko.tools.DeviceInfo;
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Incremental decoder of an image being downloaded. Bytes are written into it as they arrive
+ * (it is an OutputStream, or use copy() to feed it and a cache file at once) and previews are
+ * decoded from what has arrived so far:
+ * - progressive JPEG: after each completed scan, so the first preview comes with ~10-20% of bytes;
+ * - other images: each time received bytes double, sub-sampled (baseline JPEG shows the top part).
+ * Previews are decoded at half of the final resolution, at most one decode runs at a time and
+ * decodes requested meanwhile are coalesced into one with the latest data. The final bitmap is
+ * decoded by close(), abort() ends a failed download with onDecodeFailed() instead.
+ * Bitmaps are delivered on the UI thread, the listener owns them.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class ProgressiveDecoder extends OutputStream {
+
+    private static final String LOG_TAG = ProgressiveDecoder.class.getSimpleName();
+
+    private static final int FIRST_PREVIEW_BYTES = 32 * 1024;
+    private static final long MIN_PREVIEW_INTERVAL_MS = 150;
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+    private static ExecutorService sExecutorService;
+
+    private final int mMaxSideSize;
+    private final IProgressiveDecodeListener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final JpegScanParser mJpegScanParser = new JpegScanParser();
+
+    private byte[] mBytes;
+    private int mCount;
+    private int mNextPreviewCount = FIRST_PREVIEW_BYTES;
+    private int mDecodedScansCount;
+    private boolean mIsDecodeScheduled;
+    private boolean mIsDecodePending;
+    private boolean mIsClosed;
+    // read on the UI thread: no bitmap is delivered after an abort
+    private volatile boolean mIsAborted;
+    private long mLastPreviewTime;
+
+    public interface IProgressiveDecodeListener {
+        /**
+         * @param bitmap  - preview or the final Bitmap, caller owns it
+         * @param isFinal - true for the last call, made once all bytes were received
+         */
+        void onBitmapDecoded(Bitmap bitmap, boolean isFinal);
+
+        /**
+         * Called instead of the final onBitmapDecoded() if the complete image could not be decoded
+         */
+        void onDecodeFailed();
+    }
+
+    /**
+     * @param maxSideSize   - final bitmap side limit, 0 for device's screen size
+     * @param contentLength - expected size in bytes or -1 if unknown
+     * @param listener
+     */
+    public ProgressiveDecoder(final int maxSideSize, final int contentLength, final IProgressiveDecodeListener listener) {
+        mMaxSideSize = maxSideSize > 0 ? maxSideSize : DeviceInfo.getDeviceMaxSideSizeByDensity();
+        mListener = listener;
+        mBytes = new byte[contentLength > 0 ? contentLength : 64 * 1024];
+    }
+
+    /**
+     * Copies the stream into the decoder and into a cache file (if given) at once. Blocks until
+     * the stream ends, then closes the decoder, or aborts it if the stream failed. The stream is
+     * not closed. The cache file is written to a temp file renamed over it once complete
+     *
+     * @param inputStream - e.g. of a HTTP connection
+     * @param cacheFile   - File to save bytes to, e.g. SDCardHelper.getFileForImageCaching(url), may be null
+     * @return false if reading or writing failed
+     */
+    public boolean copy(final InputStream inputStream, final File cacheFile) {
+        // a concurrent reader must never see a partially written file
+        final File tempFile = cacheFile == null ? null
+                : new File(cacheFile.getPath() + ".tmp" + Thread.currentThread().getId());
+        FileOutputStream fileOutputStream = null;
+        boolean isRead = false;
+        boolean isSucceed = false;
+        try {
+            OutputStream cacheOutputStream = null;
+            if (tempFile != null) {
+                fileOutputStream = new FileOutputStream(tempFile);
+                cacheOutputStream = new BufferedOutputStream(fileOutputStream, COPY_BUFFER_SIZE);
+            }
+            final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                if (cacheOutputStream != null)
+                    cacheOutputStream.write(buffer, 0, read);
+                write(buffer, 0, read);
+            }
+            isRead = true;
+            if (cacheOutputStream != null)
+                cacheOutputStream.flush();
+            isSucceed = true;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+        } finally {
+            if (fileOutputStream != null && !FileUtils.syncAndClose(fileOutputStream))
+                isSucceed = false;
+        }
+        if (tempFile != null && (!isSucceed || !tempFile.renameTo(cacheFile))) {
+            isSucceed = false;
+            Log.w(LOG_TAG, "could not cache image to " + cacheFile);
+            if (tempFile.exists() && !tempFile.delete())
+                Log.w(LOG_TAG, "could not delete " + tempFile);
+        }
+        // a failed cache write does not make the received image incomplete
+        if (isRead)
+            close();
+        else
+            abort();
+        return isSucceed;
+    }
+
+    @Override
+    public void write(final int oneByte) {
+        write(new byte[]{(byte) oneByte}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] buffer, final int offset, final int length) {
+        synchronized (this) {
+            if (mIsClosed)
+                return;
+            if (mCount + length > mBytes.length) {
+                // the old array stays valid for a decode running on it
+                final byte[] grown = new byte[Math.max(mCount + length, mBytes.length << 1)];
+                System.arraycopy(mBytes, 0, grown, 0, mCount);
+                mBytes = grown;
+            }
+            System.arraycopy(buffer, offset, mBytes, mCount, length);
+            mCount += length;
+            mJpegScanParser.parse(buffer, offset, length);
+
+            final boolean isPreviewDue = mJpegScanParser.isProgressive
+                    ? mJpegScanParser.completedScansCount > mDecodedScansCount
+                    : mCount >= mNextPreviewCount;
+            if (!isPreviewDue || SystemClock.elapsedRealtime() - mLastPreviewTime < MIN_PREVIEW_INTERVAL_MS)
+                return;
+            mDecodedScansCount = mJpegScanParser.completedScansCount;
+            mNextPreviewCount = mCount << 1;
+            scheduleDecode();
+        }
+    }
+
+    /**
+     * All bytes were received: decodes the final bitmap
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mIsClosed)
+                return;
+            mIsClosed = true;
+            scheduleDecode();
+        }
+    }
+
+    /**
+     * The download failed: drops previews not delivered yet and calls onDecodeFailed() instead of
+     * decoding the truncated bytes as the final bitmap
+     */
+    public void abort() {
+        synchronized (this) {
+            if (mIsClosed)
+                return;
+            mIsClosed = true;
+            mIsAborted = true;
+            scheduleDecode();
+        }
+    }
+
+    /**
+     * @return count of bytes received so far
+     */
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    // called under lock
+    private void scheduleDecode() {
+        if (mIsDecodeScheduled) {
+            mIsDecodePending = true;
+            return;
+        }
+        mIsDecodeScheduled = true;
+        getExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                decode();
+            }
+        });
+    }
+
+    private void decode() {
+        final byte[] bytes;
+        final int count;
+        final boolean isFinal;
+        final boolean isAborted;
+        synchronized (this) {
+            bytes = mBytes;
+            count = mCount;
+            isFinal = mIsClosed;
+            isAborted = mIsAborted;
+            mIsDecodePending = false;
+        }
+
+        final Bitmap bitmap = isAborted ? null : decode(bytes, count, isFinal);
+        if (bitmap != null || isFinal)
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (bitmap == null)
+                        mListener.onDecodeFailed();
+                    else if (mIsAborted)
+                        bitmap.recycle();
+                    else
+                        mListener.onBitmapDecoded(bitmap, isFinal);
+                }
+            });
+
+        synchronized (this) {
+            mLastPreviewTime = SystemClock.elapsedRealtime();
+            mIsDecodeScheduled = false;
+            // a final decode must follow a preview that took the close() request's place
+            if (mIsDecodePending || mIsClosed && !isFinal)
+                scheduleDecode();
+        }
+    }
+
+    private Bitmap decode(final byte[] bytes, final int count, final boolean isFinal) {
+        final BitmapFactory.Options bmfOptions = new BitmapFactory.Options();
+        bmfOptions.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, count, bmfOptions);
+        final int maxSide = Math.max(bmfOptions.outWidth, bmfOptions.outHeight);
+        if (maxSide <= 0)
+            return null;
+        int sampleSize = 1;
+        while (maxSide / (sampleSize << 1) >= mMaxSideSize)
+            sampleSize <<= 1;
+        bmfOptions.inJustDecodeBounds = false;
+        bmfOptions.inSampleSize = isFinal ? sampleSize : sampleSize << 1;
+        try {
+            return BitmapFactory.decodeByteArray(bytes, 0, count, bmfOptions);
+        } catch (OutOfMemoryError e) {
+            Log.e(LOG_TAG, e);
+            return null;
+        }
+    }
+
+    private static synchronized ExecutorService getExecutorService() {
+        if (sExecutorService == null)
+            sExecutorService = Executors.newFixedThreadPool(2, new BackgroundThreadFactory(Thread.MIN_PRIORITY));
+        return sExecutorService;
+    }
+
+    /**
+     * Incremental JPEG marker parser: tells if JPEG is progressive (SOF2) and counts completed
+     * scans. Marker segments are skipped by their length, so markers of an EXIF thumbnail are not
+     * taken for the image's ones
+     */
+    static class JpegScanParser {
+        private static final int STATE_MARKER_PREFIX = 0;
+        private static final int STATE_MARKER_TYPE = 1;
+        private static final int STATE_LENGTH_HIGH = 2;
+        private static final int STATE_LENGTH_LOW = 3;
+        private static final int STATE_SEGMENT = 4;
+        private static final int STATE_ENTROPY = 5;
+        private static final int STATE_ENTROPY_MARKER = 6;
+        private static final int STATE_NOT_JPEG = 7;
+
+        boolean isProgressive;
+        int completedScansCount;
+
+        private int mState = STATE_MARKER_PREFIX;
+        private int mMarker;
+        private int mSegmentRemaining;
+        private boolean mIsInScan;
+        private long mPosition;
+
+        void parse(final byte[] buffer, final int offset, final int length) {
+            final int end = offset + length;
+            for (int i = offset; i < end && mState != STATE_NOT_JPEG; i++, mPosition++) {
+                final int b = buffer[i] & 0xff;
+                switch (mState) {
+                    case STATE_MARKER_PREFIX:
+                        if (b == 0xff)
+                            mState = STATE_MARKER_TYPE;
+                        else if (mPosition == 0)
+                            mState = STATE_NOT_JPEG;
+                        break;
+                    case STATE_MARKER_TYPE:
+                        onMarker(b);
+                        break;
+                    case STATE_LENGTH_HIGH:
+                        mSegmentRemaining = b << 8;
+                        mState = STATE_LENGTH_LOW;
+                        break;
+                    case STATE_LENGTH_LOW:
+                        // the length includes its own 2 bytes
+                        mSegmentRemaining = (mSegmentRemaining | b) - 2;
+                        mState = mSegmentRemaining > 0 ? STATE_SEGMENT : segmentEndState();
+                        break;
+                    case STATE_SEGMENT:
+                        final int skip = Math.min(mSegmentRemaining, end - i);
+                        mSegmentRemaining -= skip;
+                        i += skip - 1;
+                        mPosition += skip - 1;
+                        if (mSegmentRemaining == 0)
+                            mState = segmentEndState();
+                        break;
+                    case STATE_ENTROPY:
+                        if (b == 0xff)
+                            mState = STATE_ENTROPY_MARKER;
+                        break;
+                    case STATE_ENTROPY_MARKER:
+                        // FF00 is a stuffed byte, FFD0-FFD7 restart markers, FFFF fill
+                        if (b == 0 || b >= 0xd0 && b <= 0xd7)
+                            mState = STATE_ENTROPY;
+                        else if (b != 0xff)
+                            onMarker(b);
+                        break;
+                }
+            }
+        }
+
+        private void onMarker(final int marker) {
+            mMarker = marker;
+            if (marker == 0xff) {
+                // fill byte, still waiting for marker type
+                mState = STATE_MARKER_TYPE;
+                return;
+            }
+            if (mIsInScan && (marker == 0xda || marker == 0xd9)) {
+                completedScansCount++;
+                mIsInScan = false;
+            }
+            if (marker == 0xc2)
+                isProgressive = true;
+            // SOI, EOI, TEM and RSTn have no length
+            if (marker == 0xd8 || marker == 0xd9 || marker == 0x01 || marker >= 0xd0 && marker <= 0xd7)
+                mState = STATE_MARKER_PREFIX;
+            else
+                mState = STATE_LENGTH_HIGH;
+        }
+
+        private int segmentEndState() {
+            if (mMarker == 0xda) {
+                mIsInScan = true;
+                return STATE_ENTROPY;
+            }
+            return STATE_MARKER_PREFIX;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.stanko.image;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import com.stanko.tools.ImageUtils;
+import com.stanko.tools.Initializer;
+
+/**
+ * Memory cache of bitmaps decoded from drawable resources and of their derived (blurred, rounded)
+ * versions, keyed by resource id, screen density, target size, blur radius and kind of result.
+ * Bitmaps are kept in the shared BitmapMemoryCache, which bounds and trims them. These are dropped
+ * on configuration change since another resource qualifier may apply (API 14+).
+ * Returned bitmaps are shared: do not recycle or modify them, copy if needed.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class ResourceBitmapCache {
+
+    private static final int KIND_ORIGINAL = 0;
+    private static final int KIND_BLURRED = 1;
+    private static final int KIND_ROUND = 2;
+
+    private static boolean isCallbacksRegistered;
+
+    private static class Key {
+        final int resId;
+        final int densityDpi;
+        final int maxSideSize;
+        final int radius;
+        final int kind;
+
+        Key(final int resId, final int densityDpi, final int maxSideSize, final int radius, final int kind) {
+            this.resId = resId;
+            this.densityDpi = densityDpi;
+            this.maxSideSize = maxSideSize;
+            this.radius = radius;
+            this.kind = kind;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            final Key key = (Key) o;
+            return resId == key.resId && densityDpi == key.densityDpi && maxSideSize == key.maxSideSize
+                    && radius == key.radius && kind == key.kind;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = resId;
+            result = 31 * result + densityDpi;
+            result = 31 * result + maxSideSize;
+            result = 31 * result + radius;
+            return 31 * result + kind;
+        }
+
+        @Override
+        public String toString() {
+            return "res:" + resId + ":" + densityDpi + ":" + maxSideSize + ":" + radius + ":" + kind;
+        }
+    }
+
+    /**
+     * Same as BitmapMemoryCache.setMaxSize(), the budget is shared with other image caches
+     *
+     * @param maxSizeInBytes - max summary size of cached bitmaps, default is 1/8 of max heap
+     */
+    public static void setMaxSize(final long maxSizeInBytes) {
+        BitmapMemoryCache.setMaxSize(maxSizeInBytes);
+    }
+
+    /**
+     * Same as ImageUtils.getBitmapFromResources() but cached
+     *
+     * @param resources
+     * @param drawableResId
+     * @return shared Bitmap or null if resource could not be decoded
+     */
+    public static Bitmap getBitmap(final Resources resources, final int drawableResId) {
+        if (resources == null || drawableResId == 0)
+            return null;
+        final Key key = new Key(drawableResId, getDensityDpi(resources), 0, 0, KIND_ORIGINAL);
+        Bitmap bitmap = get(key);
+        if (bitmap == null) {
+            bitmap = ImageUtils.getBitmapFromResources(resources, drawableResId);
+            put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Same as ImageUtils.getBitmapFromResourcesWithMaxSideSize() but cached
+     *
+     * @param context
+     * @param drawableResId
+     * @param maxSideSize
+     * @return shared Bitmap or null if resource could not be decoded
+     */
+    public static Bitmap getBitmap(final Context context, final int drawableResId, final int maxSideSize) {
+        if (context == null || drawableResId == 0 || maxSideSize == 0)
+            return null;
+        registerCallbacksOnDemand(context);
+        final Key key = new Key(drawableResId, getDensityDpi(context.getResources()), maxSideSize, 0, KIND_ORIGINAL);
+        Bitmap bitmap = get(key);
+        if (bitmap == null) {
+            bitmap = ImageUtils.getBitmapFromResourcesWithMaxSideSize(context, drawableResId, maxSideSize);
+            put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Same as ImageUtils.getBlurredBitmap(Resources, int, int) but cached
+     *
+     * @param resources
+     * @param drawableResId
+     * @param radius        - must be greater than 1
+     * @return shared Bitmap or null if resource could not be decoded
+     */
+    public static Bitmap getBlurredBitmap(final Resources resources, final int drawableResId, final int radius) {
+        if (resources == null || drawableResId == 0)
+            return null;
+        final Key key = new Key(drawableResId, getDensityDpi(resources), 0, radius, KIND_BLURRED);
+        Bitmap bitmap = get(key);
+        if (bitmap == null) {
+            final Bitmap original = BitmapFactory.decodeResource(resources, drawableResId);
+            if (original == null)
+                return null;
+            // decoded bitmaps are immutable, blur works on a mutable copy
+            bitmap = ImageUtils.getBlurredBitmap(original, radius);
+            original.recycle();
+            put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Same as ImageUtils.getRoundBitmap() of decoded resource but cached
+     *
+     * @param resources
+     * @param drawableResId
+     * @param diameter      - 0 for the smaller side of the image
+     * @return shared Bitmap or null if resource could not be decoded
+     */
+    public static Bitmap getRoundBitmap(final Resources resources, final int drawableResId, final int diameter) {
+        if (resources == null || drawableResId == 0)
+            return null;
+        final Key key = new Key(drawableResId, getDensityDpi(resources), diameter, 0, KIND_ROUND);
+        Bitmap bitmap = get(key);
+        if (bitmap == null) {
+            // getRoundBitmap() recycles its source, so it gets a fresh decode, not a cached one
+            final Bitmap original = BitmapFactory.decodeResource(resources, drawableResId);
+            if (original == null)
+                return null;
+            bitmap = ImageUtils.getRoundBitmap(original, diameter);
+            put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Drops all cached resource bitmaps. They are not recycled since they may still be in use
+     */
+    public static void clear() {
+        BitmapMemoryCache.removeAll(Key.class);
+    }
+
+    /**
+     * @return summary size of the shared BitmapMemoryCache
+     */
+    public static long getSizeInBytes() {
+        return BitmapMemoryCache.getSizeInBytes();
+    }
+
+    private static Bitmap get(final Key key) {
+        registerCallbacksOnDemand(Initializer.getsAppContext());
+        return BitmapMemoryCache.get(key);
+    }
+
+    private static void put(final Key key, final Bitmap bitmap) {
+        BitmapMemoryCache.put(key, bitmap);
+    }
+
+    private static int getDensityDpi(final Resources resources) {
+        return resources.getDisplayMetrics().densityDpi;
+    }
+
+    private static synchronized void registerCallbacksOnDemand(final Context context) {
+        if (isCallbacksRegistered || context == null || Build.VERSION.SDK_INT < 14)
+            return;
+        isCallbacksRegistered = true;
+        registerCallbacks(context.getApplicationContext() != null ? context.getApplicationContext() : context);
+    }
+
+    @TargetApi(14)
+    private static void registerCallbacks(final Context context) {
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onConfigurationChanged(final Configuration newConfig) {
+                // density, orientation or night mode may select other resources
+                clear();
+            }
+
+            @Override
+            public void onLowMemory() {
+                // BitmapMemoryCache handles memory pressure
+            }
+
+            @Override
+            public void onTrimMemory(final int level) {
+            }
+        });
+    }
+}
@@ -0,0 +1,267 @@
+package com.stanko.image;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+
+import com.stanko.tools.BackgroundThreadFactory;
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Periodic screenshots of Views without per capture garbage. Destination bitmaps are pooled
+ * (BUFFERS_COUNT of them, so the next capture may render while the previous one is being
+ * compressed), the UI thread only draws the View into a pooled bitmap and the compression to
+ * JPEG/WebP straight into a File or OutputStream runs on a background thread, after that the
+ * bitmap goes back to the pool. If all buffers are busy the capture is skipped instead of
+ * allocating a new one. The pool holds bitmaps of the last captured size only: once the size
+ * changes (e.g. on rotation) bitmaps of the old size are reconfigured in place on API 19+ if big
+ * enough, recycled otherwise.
+ * Call capture() from the UI thread, callbacks are delivered on the UI thread too.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class ScreenshotCapturer {
+
+    private static final String LOG_TAG = ScreenshotCapturer.class.getSimpleName();
+
+    public static final int BUFFERS_COUNT = 2;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final ArrayDeque<Bitmap> mFreeBitmaps = new ArrayDeque<>(BUFFERS_COUNT);
+    // guarded by mFreeBitmaps: count of free and busy bitmaps, size of the last capture
+    private int mBitmapsCount;
+    private int mWidth;
+    private int mHeight;
+    private final Canvas mCanvas = new Canvas();
+    private final ExecutorService mExecutorService = Executors.newSingleThreadExecutor(new BackgroundThreadFactory(Thread.MIN_PRIORITY));
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final CompressFormat mFormat;
+    private final int mQuality;
+    private final float mScale;
+    private boolean mIsReleased;
+
+    public interface IScreenshotCallback {
+        /**
+         * @param target    - File or OutputStream given to capture()
+         * @param isSucceed - false if compression or writing failed
+         */
+        void onScreenshotSaved(Object target, boolean isSucceed);
+    }
+
+    /**
+     * Full size JPEG screenshots of quality 80
+     */
+    public ScreenshotCapturer() {
+        this(CompressFormat.JPEG, 80, 1f);
+    }
+
+    /**
+     * @param format  - JPEG or WEBP (falls back to JPEG below API 14), PNG works too but is slow
+     * @param quality - compression quality 0-100
+     * @param scale   - screenshot to View size ratio, 0.5f gives a quarter of pixels for previews
+     */
+    public ScreenshotCapturer(final CompressFormat format, final int quality, final float scale) {
+        mFormat = format == CompressFormat.WEBP && Build.VERSION.SDK_INT < 14
+                ? CompressFormat.JPEG
+                : format;
+        mQuality = quality;
+        mScale = scale > 0 ? scale : 1f;
+    }
+
+    /**
+     * Captures View to a File. Parent dirs are not created
+     *
+     * @param view     - View to capture, must be laid out
+     * @param file     - target File, overwritten
+     * @param callback - may be null
+     * @return false if capture was skipped: View is null or not laid out, all buffers are busy or
+     * capturer is released
+     */
+    public boolean capture(final View view, final File file, final IScreenshotCallback callback) {
+        return file != null && capture(view, file, null, callback);
+    }
+
+    /**
+     * Captures View to an OutputStream. The stream is flushed but not closed
+     *
+     * @param view         - View to capture, must be laid out
+     * @param outputStream - target stream
+     * @param callback     - may be null
+     * @return false if capture was skipped: View is null or not laid out, all buffers are busy or
+     * capturer is released
+     */
+    public boolean capture(final View view, final OutputStream outputStream, final IScreenshotCallback callback) {
+        return outputStream != null && capture(view, null, outputStream, callback);
+    }
+
+    private boolean capture(final View view, final File file, final OutputStream outputStream, final IScreenshotCallback callback) {
+        if (view == null || mIsReleased)
+            return false;
+        final int width = Math.round(view.getWidth() * mScale);
+        final int height = Math.round(view.getHeight() * mScale);
+        if (width <= 0 || height <= 0)
+            return false;
+
+        final Bitmap bitmap = acquireBitmap(width, height);
+        if (bitmap == null) {
+            Log.w(LOG_TAG, "all buffers are busy, " + width + "x" + height + " capture skipped");
+            return false;
+        }
+        // the only UI thread work: draw the View into a pooled bitmap
+        bitmap.eraseColor(0);
+        mCanvas.setBitmap(bitmap);
+        mCanvas.save();
+        if (mScale != 1f)
+            mCanvas.scale(mScale, mScale);
+        view.draw(mCanvas);
+        mCanvas.restore();
+
+        mExecutorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean isSucceed = file != null
+                        ? compressToFile(bitmap, file)
+                        : compressToStream(bitmap, outputStream);
+                releaseBitmap(bitmap);
+                if (callback != null)
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onScreenshotSaved(file != null ? file : outputStream, isSucceed);
+                        }
+                    });
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Recycles pooled bitmaps, pending captures are finished first. Capturer can't be used after
+     */
+    public void release() {
+        mIsReleased = true;
+        mExecutorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mFreeBitmaps) {
+                    for (Bitmap bitmap : mFreeBitmaps)
+                        bitmap.recycle();
+                    mFreeBitmaps.clear();
+                    mBitmapsCount = 0;
+                }
+            }
+        });
+        mExecutorService.shutdown();
+    }
+
+    private Bitmap acquireBitmap(final int width, final int height) {
+        synchronized (mFreeBitmaps) {
+            if (width != mWidth || height != mHeight) {
+                mWidth = width;
+                mHeight = height;
+                final Iterator<Bitmap> iterator = mFreeBitmaps.iterator();
+                while (iterator.hasNext()) {
+                    final Bitmap bitmap = iterator.next();
+                    if (!fitToSize(bitmap)) {
+                        iterator.remove();
+                        bitmap.recycle();
+                        mBitmapsCount--;
+                    }
+                }
+            }
+            final Bitmap bitmap = mFreeBitmaps.poll();
+            if (bitmap != null)
+                return bitmap;
+            if (mBitmapsCount >= BUFFERS_COUNT)
+                return null;
+            mBitmapsCount++;
+        }
+        try {
+            return Bitmap.createBitmap(width, height, Config.ARGB_8888);
+        } catch (OutOfMemoryError e) {
+            Log.e(LOG_TAG, e);
+            synchronized (mFreeBitmaps) {
+                mBitmapsCount--;
+            }
+            return null;
+        }
+    }
+
+    // a bitmap captured before the size changed is reconfigured or recycled
+    private void releaseBitmap(final Bitmap bitmap) {
+        synchronized (mFreeBitmaps) {
+            if (fitToSize(bitmap)) {
+                mFreeBitmaps.add(bitmap);
+            } else {
+                bitmap.recycle();
+                mBitmapsCount--;
+            }
+        }
+    }
+
+    // guarded by mFreeBitmaps: true if bitmap is of the last captured size or reconfigured to it
+    private boolean fitToSize(final Bitmap bitmap) {
+        if (bitmap.getWidth() == mWidth && bitmap.getHeight() == mHeight)
+            return true;
+        return Build.VERSION.SDK_INT >= 19 && reconfigure(bitmap, mWidth, mHeight);
+    }
+
+    @TargetApi(19)
+    private static boolean reconfigure(final Bitmap bitmap, final int width, final int height) {
+        if (bitmap.getAllocationByteCount() < width * height * 4)
+            return false;
+        try {
+            bitmap.reconfigure(width, height, Config.ARGB_8888);
+            return true;
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, e);
+            return false;
+        }
+    }
+
+    private boolean compressToFile(final Bitmap bitmap, final File file) {
+        FileOutputStream fileOutputStream = null;
+        try {
+            fileOutputStream = new FileOutputStream(file);
+            final OutputStream outputStream = new BufferedOutputStream(fileOutputStream, STREAM_BUFFER_SIZE);
+            final boolean isSucceed = bitmap.compress(mFormat, mQuality, outputStream);
+            outputStream.flush();
+            return isSucceed;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+            return false;
+        } finally {
+            if (fileOutputStream != null)
+                FileUtils.syncAndClose(fileOutputStream);
+        }
+    }
+
+    private boolean compressToStream(final Bitmap bitmap, final OutputStream outputStream) {
+        try {
+            final boolean isSucceed = bitmap.compress(mFormat, mQuality, outputStream);
+            outputStream.flush();
+            return isSucceed;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.stanko.image;
+
+import android.graphics.Bitmap;
+import android.media.MediaMetadataRetriever;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.stanko.tools.BackgroundThreadFactory;
+import com.stanko.tools.DeviceInfo;
+import com.stanko.tools.FileUtils;
+import com.stanko.tools.ImageUtils;
+import com.stanko.tools.Log;
+import com.stanko.tools.SDCardHelper;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Thumbnails of video files: a frame at given time scaled to fit given max side size. On API 27+
+ * the frame is scaled by the retriever while being extracted, below it the full frame is scaled
+ * down. Thumbnails are cached in the shared BitmapMemoryCache and as JPEG files in the image disk
+ * cache (SDCardHelper.getFileForPreviewImageCaching()), keyed by video path, size, modification
+ * time, frame time and max side size, so a changed video gets new thumbnails.
+ * Returned bitmaps are shared: do not recycle or modify them, copy if needed.
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class VideoThumbnails {
+
+    private static final String LOG_TAG = VideoThumbnails.class.getSimpleName();
+
+    private static final int JPEG_QUALITY = 85;
+    // extraction is decoder bound, more parallel retrievers just compete for hardware decoders
+    public static final int DEFAULT_CONCURRENCY = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 3));
+
+    public interface IVideoThumbnailListener {
+        /**
+         * Called on the UI thread for each video of a batch
+         *
+         * @param videoFile
+         * @param thumbnail - shared Bitmap or null if no frame could be extracted
+         */
+        void onThumbnail(File videoFile, Bitmap thumbnail);
+
+        /**
+         * Called on the UI thread once the batch is done, not called if it was cancelled
+         */
+        void onBatchFinished();
+    }
+
+    /**
+     * Running batch extraction, see getThumbnails()
+     */
+    public static class Batch {
+        private final ExecutorService mExecutorService;
+        private volatile boolean isCancelled;
+
+        private Batch(final ExecutorService executorService) {
+            mExecutorService = executorService;
+        }
+
+        /**
+         * Stops extraction of thumbnails not started yet, no more callbacks are made
+         */
+        public void cancel() {
+            isCancelled = true;
+            mExecutorService.shutdownNow();
+        }
+
+        public boolean isCancelled() {
+            return isCancelled;
+        }
+    }
+
+    private static class Key {
+        final String path;
+        final long length;
+        final long lastModified;
+        final long timeUs;
+        final int maxSideSize;
+
+        Key(final File videoFile, final long timeUs, final int maxSideSize) {
+            this.path = videoFile.getAbsolutePath();
+            this.length = videoFile.length();
+            this.lastModified = videoFile.lastModified();
+            this.timeUs = timeUs;
+            this.maxSideSize = maxSideSize;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            final Key key = (Key) o;
+            return length == key.length && lastModified == key.lastModified && timeUs == key.timeUs
+                    && maxSideSize == key.maxSideSize && path.equals(key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = path.hashCode();
+            result = 31 * result + (int) (length ^ (length >>> 32));
+            result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+            result = 31 * result + (int) (timeUs ^ (timeUs >>> 32));
+            return 31 * result + maxSideSize;
+        }
+
+        // also a disk cache key, so it must be stable between launches
+        @Override
+        public String toString() {
+            return "video:" + path + ":" + length + ":" + lastModified + ":" + timeUs + ":" + maxSideSize;
+        }
+    }
+
+    /**
+     * Thumbnail of the first key frame, scaled to fit device's screen
+     *
+     * @param videoFile
+     * @return shared Bitmap or null if no frame could be extracted
+     */
+    public static Bitmap getThumbnail(final File videoFile) {
+        return getThumbnail(videoFile, 0, 0);
+    }
+
+    /**
+     * Thumbnail from memory cache, disk cache or extracted from the video. Blocks, so do not
+     * call it from the UI thread
+     *
+     * @param videoFile
+     * @param timeUs      - frame time in microseconds, the closest key frame is taken
+     * @param maxSideSize - max side of the thumbnail, 0 for device's screen size
+     * @return shared Bitmap or null if no frame could be extracted
+     */
+    public static Bitmap getThumbnail(final File videoFile, final long timeUs, int maxSideSize) {
+        if (!FileUtils.isReadable(videoFile))
+            return null;
+        if (maxSideSize <= 0)
+            maxSideSize = DeviceInfo.getDeviceMaxSideSizeByDensity();
+        final Key key = new Key(videoFile, timeUs, maxSideSize);
+        Bitmap thumbnail = BitmapMemoryCache.get(key);
+        if (thumbnail != null)
+            return thumbnail;
+
+        final File cacheFile = SDCardHelper.getFileForPreviewImageCaching(key.toString());
+        if (cacheFile != null && cacheFile.exists())
+            thumbnail = ImageUtils.getBitmapFromFileWithMaxSideSize(cacheFile, maxSideSize);
+        if (thumbnail == null) {
+            thumbnail = extractFrame(videoFile, timeUs, maxSideSize);
+            if (thumbnail != null && cacheFile != null)
+                saveToCache(thumbnail, cacheFile);
+        }
+        BitmapMemoryCache.put(key, thumbnail);
+        return thumbnail;
+    }
+
+    /**
+     * Extracts thumbnails of many videos in parallel, at most DEFAULT_CONCURRENCY at a time
+     *
+     * @see #getThumbnails(List, long, int, int, IVideoThumbnailListener)
+     */
+    public static Batch getThumbnails(final List<File> videoFiles, final int maxSideSize, final IVideoThumbnailListener listener) {
+        return getThumbnails(videoFiles, 0, maxSideSize, DEFAULT_CONCURRENCY, listener);
+    }
+
+    /**
+     * Extracts thumbnails of many videos in parallel. Each one is delivered as soon as it is
+     * ready, so the order is not kept
+     *
+     * @param videoFiles
+     * @param timeUs      - frame time in microseconds, the closest key frame is taken
+     * @param maxSideSize - max side of thumbnails, 0 for device's screen size
+     * @param concurrency - max count of videos processed at a time
+     * @param listener    - called on the UI thread
+     * @return Batch to cancel extraction with
+     */
+    public static Batch getThumbnails(final List<File> videoFiles,
+                                      final long timeUs,
+                                      final int maxSideSize,
+                                      final int concurrency,
+                                      final IVideoThumbnailListener listener) {
+        final ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, concurrency), new BackgroundThreadFactory(Thread.MIN_PRIORITY));
+        final Batch batch = new Batch(executorService);
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final int[] remaining = {videoFiles.size()};
+        for (final File videoFile : videoFiles) {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (batch.isCancelled)
+                        return;
+                    Bitmap thumbnail = null;
+                    try {
+                        thumbnail = getThumbnail(videoFile, timeUs, maxSideSize);
+                    } finally {
+                        // a failed video still counts, otherwise the batch never finishes
+                        final boolean isLast;
+                        synchronized (remaining) {
+                            isLast = --remaining[0] == 0;
+                        }
+                        final Bitmap result = thumbnail;
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (batch.isCancelled)
+                                    return;
+                                listener.onThumbnail(videoFile, result);
+                                if (isLast)
+                                    listener.onBatchFinished();
+                            }
+                        });
+                    }
+                }
+            });
+        }
+        if (videoFiles.isEmpty())
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onBatchFinished();
+                }
+            });
+        // threads end once the queue is drained
+        executorService.shutdown();
+        return batch;
+    }
+
+    /**
+     * Drops thumbnails of all videos from memory cache, files of disk cache stay
+     */
+    public static void clearMemoryCache() {
+        BitmapMemoryCache.removeAll(Key.class);
+    }
+
+    /**
+     * Extracts a frame without caching it
+     *
+     * @param videoFile
+     * @param timeUs      - frame time in microseconds, the closest key frame is taken
+     * @param maxSideSize - max side of the result
+     * @return new Bitmap or null if no frame could be extracted
+     */
+    public static Bitmap extractFrame(final File videoFile, final long timeUs, final int maxSideSize) {
+        final long startTime = ImageStats.start();
+        final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        Bitmap frame = null;
+        boolean isOom = false;
+        try {
+            retriever.setDataSource(videoFile.getAbsolutePath());
+            if (Build.VERSION.SDK_INT >= 27)
+                frame = getScaledFrame(retriever, timeUs, maxSideSize);
+            if (frame == null)
+                frame = retriever.getFrameAtTime(timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+            frame = scaleDown(frame, maxSideSize);
+        } catch (OutOfMemoryError e) {
+            Log.e(LOG_TAG, e);
+            isOom = true;
+        } catch (RuntimeException e) {
+            // setDataSource() throws IllegalArgumentException for unsupported files
+            Log.e(LOG_TAG, "could not extract a frame of " + videoFile + ": " + e);
+        } finally {
+            retriever.release();
+        }
+        ImageStats.record(ImageStats.DECODE, startTime, videoFile.length(), 1, -1, frame, frame == null, isOom);
+        return frame;
+    }
+
+    // fits the frame into maxSideSize x maxSideSize keeping aspect ratio; API 27 method called via
+    // reflection as the library is compiled against an older SDK, null if it is not there
+    private static Bitmap getScaledFrame(final MediaMetadataRetriever retriever, final long timeUs, final int maxSideSize) {
+        try {
+            return (Bitmap) MediaMetadataRetriever.class
+                    .getMethod("getScaledFrameAtTime", long.class, int.class, int.class, int.class)
+                    .invoke(retriever, timeUs, MediaMetadataRetriever.OPTION_CLOSEST_SYNC, maxSideSize, maxSideSize);
+        } catch (InvocationTargetException e) {
+            // e.g. IllegalStateException of a bad data source: getFrameAtTime() fails the same way
+            Log.e(LOG_TAG, e.getCause());
+        } catch (Exception e) {
+            Log.e(LOG_TAG, e);
+        }
+        return null;
+    }
+
+    private static Bitmap scaleDown(final Bitmap frame, final int maxSideSize) {
+        if (frame == null)
+            return null;
+        final int maxSide = Math.max(frame.getWidth(), frame.getHeight());
+        if (maxSide <= maxSideSize)
+            return frame;
+        final float ratio = (float) maxSideSize / maxSide;
+        final Bitmap scaled = Bitmap.createScaledBitmap(frame,
+                Math.max(1, Math.round(frame.getWidth() * ratio)),
+                Math.max(1, Math.round(frame.getHeight() * ratio)),
+                true);
+        if (scaled != frame)
+            frame.recycle();
+        return scaled;
+    }
+
+    private static void saveToCache(final Bitmap thumbnail, final File cacheFile) {
+        // a concurrent reader must never see a partially written file
+        final File tempFile = new File(cacheFile.getPath() + ".tmp" + Thread.currentThread().getId());
+        if (!ImageUtils.saveBitmapToJPEGFile(thumbnail, tempFile, JPEG_QUALITY) || !tempFile.renameTo(cacheFile)) {
+            Log.w(LOG_TAG, "could not cache thumbnail to " + cacheFile);
+            if (tempFile.exists() && !tempFile.delete())
+                Log.w(LOG_TAG, "could not delete " + tempFile);
+        }
+    }
+}
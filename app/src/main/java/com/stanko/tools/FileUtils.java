@@ -6,14 +6,22 @@ import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Environment;
-import android.os.StatFs;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
 import android.text.TextUtils;
 import android.util.Base64;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import com.stanko.file.AtomicFiles;
+import com.stanko.file.BufferPool;
+import com.stanko.file.DirectoryIndex;
+import com.stanko.file.DirectoryUsage;
+import com.stanko.file.FileCopier;
+import com.stanko.file.MappedFile;
+import com.stanko.file.ResumableTransfer;
+import com.stanko.file.StorageMonitor;
+import com.stanko.file.Trash;
+import com.stanko.file.UriPathResolver;
+
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -24,11 +32,17 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.SequenceInputStream;
 import java.io.SyncFailedException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 public class FileUtils {
 
+    private static final FileCopier sFileCopier = new FileCopier();
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
     /**
      * Copies an existing file to another destination
      *
@@ -43,130 +57,40 @@ public class FileUtils {
     }
 
     /**
-     * Copies an existing file to another destination
+     * Copies an existing file to another destination through FileCopier (FileChannel transfers,
+     * fsync at end). Copies to different files run concurrently
      *
      * @param src - File to copy from
      * @param dst - File to copy to
      * @throws IOException
      */
     public static void copy(final File src, final File dst) throws IOException {
-        if (src == null || !src.exists() || !src.canRead())
-            throw new IOException("IOException (copy file): source file does not exists or not readable");
-
-//		if ( !makeDirsForFile(dst) )
-//			throw new IOException("IOException (copy file): cant create dirs for destination file");
-
-        if (!isWritable(dst, true))
-            throw new IOException("IOException (copy file): destination file not writable");
-
         Log.w("FileUtils", "copying: src: " + src + " to dst: " + dst);
-
-        final FileInputStream fis = new FileInputStream(src);
-        final FileOutputStream fos = new FileOutputStream(dst);
-        final InputStream in = new BufferedInputStream(fis);
-        final BufferedOutputStream out = new BufferedOutputStream(fos);
-
-        // Transfer bytes from in to out
-        final byte[] buf = new byte[1024];
-        int len;
-        IOException e = null;
-
-        try {
-            while ((len = in.read(buf)) > 0)
-                out.write(buf, 0, len);
-        } catch (IOException e1) {
-            e = e1;
-        }
-
-        // close InputStream in
-        try {
-            in.close();
-        } catch (IOException ignored) {
-        }
-        // close FileInputStream fis
-        try {
-            fis.close();
-        } catch (IOException ignored) {
-        }
-        // close BufferedOutputStream out
-        try {
-            out.flush();
-            out.close();
-        } catch (IOException ignored) {
-        }
-        // close FileOutputStream fos
-        try {
-            fos.flush();
-            fos.close();
-        } catch (IOException ignored) {
-        }
-
-        sync(fos);
-
-        if (e != null)
-            throw e;
-
+        sFileCopier.copy(src, dst);
     }
 
     /**
-     * Copies a file to another destination
+     * Copies a file to another destination. Copies to the same destination are serialized,
+     * to different ones run concurrently
      *
      * @param src - File to copy from
      * @param dst - File to copy to
      * @throws IOException
      */
-    public static synchronized void copySynchronized(final File src, final File dst) throws IOException {
-        if (src == null || !src.exists() || !src.canRead())
-            throw new IOException("IOException (copy file): source file does not exists or not readable");
-
-//		if (!makeDirsForFile(dst) )
-//			throw new IOException("IOException (copy file): cant create dirs for destination file");
-
-        if (!isWritable(dst, true) /*dst==null || dst.exists() && !dst.canWrite()*/)
-            throw new IOException("IOException (copy file): destination file not writable");
-
-        final FileInputStream fis = new FileInputStream(src);
-        final FileOutputStream fos = new FileOutputStream(dst);
-        final InputStream in = new BufferedInputStream(fis);
-        final BufferedOutputStream out = new BufferedOutputStream(fos);
-
-        // Transfer bytes from in to out
-        final byte[] buf = new byte[1024];
-        int len;
-        IOException e = null;
-        try {
-            while ((len = in.read(buf)) > 0)
-                out.write(buf, 0, len);
-        } catch (IOException e1) {
-            e = e1;
-        }
-        // close InputStream in
-        try {
-            in.close();
-        } catch (IOException ignored) {
-        }
-        // close FileInputStream fis
-        try {
-            fis.close();
-        } catch (IOException ignored) {
-        }
-        // close BufferedOutputStream out
-        try {
-            out.flush();
-            out.close();
-        } catch (IOException ignored) {
-        }
-        // close FileOutputStream fos
-        try {
-            fos.flush();
-            fos.close();
-        } catch (IOException ignored) {
-        }
-
-        sync(fos);
+    public static void copySynchronized(final File src, final File dst) throws IOException {
+        sFileCopier.copy(src, dst);
+    }
 
-        if (e != null)
-            throw e;
+    /**
+     * Copies a file to another destination, continuing a previous copy interrupted by process
+     * death or an I/O error instead of starting over. See ResumableTransfer
+     *
+     * @param src - File to copy from
+     * @param dst - File to copy to
+     * @throws IOException if failed, then the next call continues
+     */
+    public static void copyResumable(final File src, final File dst) throws IOException {
+        new ResumableTransfer().copy(src, dst);
     }
 
     /**
@@ -243,13 +167,12 @@ public class FileUtils {
         }
 
         boolean isSucceed = false;
-        final int buffer_size = 1024;
+        final byte[] bytes = BufferPool.obtainFor(targetFile);
         OutputStream outputStream = null;
         try {
             outputStream = new FileOutputStream(targetFile, doAppend);
-            byte[] bytes = new byte[buffer_size];
             int count;
-            while ((count = inputStream.read(bytes, 0, buffer_size)) > 0)
+            while ((count = inputStream.read(bytes, 0, bytes.length)) > 0)
                 outputStream.write(bytes, 0, count);
 
             isSucceed = true;
@@ -261,6 +184,7 @@ public class FileUtils {
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
+            BufferPool.recycle(bytes);
             if (outputStream != null)
                 try {
                     sync(outputStream);
@@ -358,6 +282,60 @@ public class FileUtils {
         return isSucceed;
     }
 
+    /**
+     * Writes a String to a File atomically: after a crash the file has either old or new content.
+     * See AtomicFiles, for many small files use GroupCommitWriter
+     *
+     * @param data       - String to write to a file
+     * @param targetFile - target File
+     * @return true if all OK or false otherwise (the file keeps old content then)
+     */
+    public static boolean stringToFileAtomically(final String data, final File targetFile) {
+        if (data == null) {
+            Log.e(new NullPointerException("String data is null!"));
+            return false;
+        }
+        // same default charset as FileWriter of stringToFile()
+        return AtomicFiles.write(data.getBytes(), targetFile);
+    }
+
+    /**
+     * Writes a stream to a file atomically: after a crash the file has either old or new content
+     *
+     * @param inputStream - input stream, not closed here
+     * @param targetFile  - File to create or replace
+     * @return true if all OK or false otherwise (the file keeps old content then)
+     */
+    public static boolean streamToFileAtomically(final InputStream inputStream, final File targetFile) {
+        return AtomicFiles.write(inputStream, targetFile);
+    }
+
+    /**
+     * Writes a byte array to a file atomically: after a crash the file has either old or new content
+     *
+     * @param bos        - ByteArrayOutputStream
+     * @param targetFile - File to create or replace
+     * @return true if all OK or false otherwise (the file keeps old content then)
+     */
+    public static boolean byteArrayOutputStreamToFileAtomically(final ByteArrayOutputStream bos, final File targetFile) {
+        if (bos == null) {
+            Log.e("byteArrayOutputStreamToFileAtomically(): Null parameters given");
+            return false;
+        }
+        return AtomicFiles.write(bos.toByteArray(), targetFile);
+    }
+
+    /**
+     * Writes a byte array to a file atomically: after a crash the file has either old or new content
+     *
+     * @param array      - byte[]
+     * @param targetFile - File to create or replace
+     * @return true if all OK or false otherwise (the file keeps old content then)
+     */
+    public static boolean byteArrayToFileAtomically(final byte[] array, final File targetFile) {
+        return AtomicFiles.write(array, targetFile);
+    }
+
 
     /**
      * Method creates a File from intent's data
@@ -411,6 +389,25 @@ public class FileUtils {
         return isSucceed;
     }
 
+    /**
+     * Method creates a File from intent's data, continuing a previous attempt interrupted by
+     * process death or a stream failure. See ResumableTransfer
+     *
+     * @param context    - Context
+     * @param uri        - Uri taken from Intent.getData()
+     * @param targetFile - File to create
+     * @return true if all OK or false otherwise, then the next call continues
+     */
+    public static boolean intentDataToFileResumable(final Context context, final Uri uri, final File targetFile) {
+        try {
+            new ResumableTransfer().write(context, uri, targetFile);
+            return true;
+        } catch (IOException e) {
+            Log.e("FileUtils.intentDataToFileResumable()", e);
+            return false;
+        }
+    }
+
     /**
      * Method creates the FILE's path dirs and returns true if succeed. The difference
      * from File.mkdirs() is that mkdirs() returns false in both cases:
@@ -698,6 +695,23 @@ public class FileUtils {
         return deleteFilesAndDirs(directory);
     }
 
+    /**
+     * Method deletes given directory with all its files and subdirectories asynchronously: it is
+     * moved into a ".trash" directory next to it at once and purged on a background thread.
+     * See Trash
+     *
+     * @param directory - File which represents a directory to delete
+     * @return false if directory does not exist or could not be deleted
+     */
+    public static boolean deleteFilesAndDirsRecursiveAsync(final File directory) {
+        if (directory == null || !directory.isDirectory()) {
+            Log.e("deleteFilesAndDirsRecursiveAsync(): Null parameter given or not a Directory");
+            return false;
+        }
+
+        return Trash.delete(directory);
+    }
+
     // recursively called method
     // Returns true if all files deleted false if at least one doesn't
     private static boolean deleteFilesAndDirs(final File fileOrDirectory) {
@@ -774,48 +788,25 @@ public class FileUtils {
 
     /**
      * Returns the free space in bytes available at the given file's path
-     * or -1 if storage is not available (UNMOUNTED, etc)
+     * or -1 if storage is not available (UNMOUNTED, etc).
+     * The value is estimated by StorageMonitor, StatFs is called once per its TTL
      *
      * @return long
      */
-    @SuppressLint("NewApi")
-    @SuppressWarnings("deprecation")
-    public static long getAvailableSpace(String mFileRootPath) {
-        final File file = new File(mFileRootPath);
-        if (!file.exists())
-            mFileRootPath = file.getParent();
-
-        long availableBytez;
-        try {
-            final StatFs stat = new StatFs(mFileRootPath);
-            stat.restat(mFileRootPath);
-            if (DeviceInfo.hasAPI(18))
-                availableBytez = (stat.getAvailableBlocksLong() * stat.getBlockSizeLong());
-            else
-                availableBytez = ((long) stat.getAvailableBlocks() * (long) stat.getBlockSize());
-
-//				File path = Environment.getExternalStorageDirectory();
-//	            StatFs stat = new StatFs(path.getPath());
-//	            long blockSize = stat.getBlockSize();
-//	            long totalBlocks = stat.getBlockCount();
-//	            long availableBlocks = stat.getAvailableBlocks();
-//
-//	            mSdSize.setSummary(formatSize(totalBlocks * blockSize));
-//	            mSdAvail.setSummary(formatSize(availableBlocks * blockSize) + readOnly);
-//
-//	            mSdMountToggle.setEnabled(true);
-//	            mSdMountToggle.setTitle(mRes.getString(R.string.sd_eject));
-//	            mSdMountToggle.setSummary(mRes.getString(R.string.sd_eject_summary));
-
-        } catch (Exception e) {//IllegalArgumentException, NPE
-            e.printStackTrace();
-            // this can occur if the SD card is removed, but we haven't received the 
-            // ACTION_MEDIA_REMOVED Intent yet.
-            // status = Environment.MEDIA_REMOVED;
-            availableBytez = -1;
-        }
+    public static long getAvailableSpace(final String mFileRootPath) {
+        return StorageMonitor.getAvailableSpace(new File(mFileRootPath));
+    }
 
-        return availableBytez;
+    /**
+     * Returns the total size in bytes of files in the given directory and its subdirectories
+     * or -1 if it could not be read. Walks in parallel, unchanged directories come from
+     * DirectoryUsage cache. Do not call it in UI thread
+     *
+     * @return long
+     */
+    public static long getDirectorySize(final File directory) {
+        final DirectoryUsage.Usage usage = DirectoryUsage.analyze(directory);
+        return usage == null ? -1 : usage.totalBytes;
     }
 
 
@@ -833,7 +824,8 @@ public class FileUtils {
             return null;
         }
 
-        final ExtensionFilter filter = new ExtensionFilter(extension.startsWith(".") ? extension : "." + extension);
+        final String suffix = extension.startsWith(".") ? extension : "." + extension;
+        final ExtensionFilter filter = new ExtensionFilter(suffix);
 
         return directory.list(filter);
         //return null;
@@ -857,7 +849,8 @@ public class FileUtils {
 //    	if (listOfFileNames == null)
 //    		return null;
 
-        final ExtensionFilter filter = new ExtensionFilter(extension.startsWith(".") ? extension : "." + extension);
+        final String suffix = extension.startsWith(".") ? extension : "." + extension;
+        final ExtensionFilter filter = new ExtensionFilter(suffix);
         return directory.listFiles(filter);
 //    	
 //    	if (filesList.length==0 )
@@ -871,6 +864,29 @@ public class FileUtils {
 //    	return filesList;
     }
 
+    /**
+     * Same as getFilesByExtension() but answered from a running DirectoryIndex of the directory,
+     * if any, without listing it. The index may lag behind: up to its polling interval, or until
+     * FileObserver events are processed, so a file written just now may be missing
+     *
+     * @param directory - File representing directory
+     * @param extension - String representing file's extension, e.g. "png" or ".jpeg" (including or excluding starting dot)
+     * @return File[] with files list
+     */
+    public static File[] getIndexedFilesByExtension(final File directory, final String extension) {
+        if (directory == null || TextUtils.isEmpty(extension)) {
+            Log.e("getIndexedFilesByExtension(): Null or empty extension");
+            return null;
+        }
+        final DirectoryIndex directoryIndex = DirectoryIndex.find(directory);
+        if (directoryIndex != null) {
+            final File[] files = directoryIndex.listFiles(directory, extension.startsWith(".") ? extension : "." + extension);
+            if (files != null)
+                return files;
+        }
+        return getFilesByExtension(directory, extension);
+    }
+
 //    public static String[] getFilesByExtension(File directory, String ... extensions){
 //    	if (directory==null || !directory.isDirectory() || extensions==null || extensions.length==0)
 //    		return null;
@@ -900,14 +916,38 @@ public class FileUtils {
     }
 
     /**
-     * Retrieves a String path represented by given Uri
+     * Retrieves File paths represented by given Uris, querying each provider table once.
+     * See UriPathResolver
+     *
+     * @param context
+     * @param uris
+     * @return map of given Uris to their paths, a path is null if it could not be resolved
+     */
+    public static Map<Uri, String> getPathsFromUris(final Context context, final List<Uri> uris) {
+        return UriPathResolver.getPaths(context, uris);
+    }
+
+    /**
+     * Retrieves a String path represented by given Uri. Paths of MediaStore, Downloads and
+     * external storage document Uris are cached until MediaStore or Downloads providers change,
+     * see UriPathResolver
      *
      * @param context
      * @param uri
      * @return
      */
-    @SuppressLint("NewApi")
     public static String getPathFromUri(final Context context, final Uri uri) {
+        final String cachedPath = UriPathResolver.getCachedPath(context, uri);
+        if (cachedPath != null)
+            return cachedPath;
+        final int generation = UriPathResolver.getGeneration();
+        final String path = resolvePathFromUri(context, uri);
+        UriPathResolver.putPath(uri, path, generation);
+        return path;
+    }
+
+    @SuppressLint("NewApi")
+    private static String resolvePathFromUri(final Context context, final Uri uri) {
 //    	if (ctx==null || uri==null)
 //    		return null;
 //
@@ -1026,36 +1066,14 @@ public class FileUtils {
     }
 
     /**
-     * Merge two files into a new file
+     * Merges 2 files into the third one
      *
      * @param file1      - File to merge (will be first in resulting file)
      * @param file2      - File to merge (will be second in resulting file)
      * @param outputFile - resulting File
      */
     public static void mergeFiles(final File file1, final File file2, final File outputFile) {
-        if (!isReadable(file1) || !isReadable(file2) || !outputFile.exists() && !makeDirsForFile(outputFile)) {
-            return;
-        }
-        try {
-            FileInputStream fis1 = new FileInputStream(file1);
-            FileInputStream fis2 = new FileInputStream(file2);
-            SequenceInputStream sis = new SequenceInputStream(fis1, fis2);
-            FileOutputStream fos = new FileOutputStream(outputFile);
-            int count;
-            byte[] temp = new byte[4096];
-            while ((count = sis.read(temp)) != -1) {
-                fos.write(temp, 0, count);
-            }
-            FileUtils.sync(fos);
-            fos.close();
-            sis.close();
-            fis1.close();
-            fis2.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        concat(Arrays.asList(file1, file2), outputFile);
     }
 
     /**
@@ -1068,24 +1086,128 @@ public class FileUtils {
         if (!isReadable(file1) || !isReadable(file2) || !isWritable(file1)) {
             return;
         }
+        FileInputStream inputStream = null;
+        FileOutputStream outputStream = null;
         try {
-            FileInputStream inputStream = new FileInputStream(file2);
-            FileOutputStream outputStream = new FileOutputStream(file1, true);
-            int count;
-            final int buffer_size = 4096;
-            byte[] bytes = new byte[buffer_size];
-            while ((count = inputStream.read(bytes, 0, buffer_size)) > 0)
-                outputStream.write(bytes, 0, count);
-            FileUtils.sync(outputStream);
-            outputStream.close();
-            inputStream.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            inputStream = new FileInputStream(file2);
+            outputStream = new FileOutputStream(file1, true);
+            transfer(inputStream.getChannel(), outputStream.getChannel(), inputStream.getChannel().size());
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.e(e);
+        } finally {
+            if (outputStream != null)
+                syncAndClose(outputStream);
+            if (inputStream != null)
+                try {
+                    inputStream.close();
+                } catch (IOException ignored) {
+                }
         }
     }
 
+    /**
+     * Concatenates files into one (overwrites existing file)
+     *
+     * @param parts      - Files to concatenate, in order
+     * @param targetFile - resulting File
+     * @return true if all OK or false otherwise
+     */
+    public static boolean concat(final List<File> parts, final File targetFile) {
+        return concat(parts, targetFile, -1, null, false);
+    }
+
+    /**
+     * Concatenates files into one (overwrites existing file). Each part is moved by
+     * FileChannel.transferTo(), so bytes do not pass through Java buffers.
+     * Parts are deleted only once the target is complete, verified and synced, so a failure or
+     * a crash never loses a part and concat() may simply be called again
+     *
+     * @param parts           - Files to concatenate, in order
+     * @param targetFile      - resulting File
+     * @param expectedLength  - total length to verify (before anything is written), -1 to skip
+     * @param expectedMD5     - MD5 of the result as of Hash.getMD5() to verify, null to skip
+     * @param isDeletingParts - delete the parts once the target is complete
+     * @return true if all OK or false otherwise
+     */
+    public static boolean concat(final List<File> parts,
+                                 final File targetFile,
+                                 final long expectedLength,
+                                 final String expectedMD5,
+                                 final boolean isDeletingParts) {
+        if (parts == null || parts.isEmpty() || !isWritable(targetFile, true)) {
+            Log.e("concat(): Null parameter or can't make path dirs");
+            return false;
+        }
+        long partsLength = 0;
+        for (final File part : parts) {
+            if (!isReadable(part) || part.getAbsolutePath().equals(targetFile.getAbsolutePath())) {
+                Log.e("concat(): part " + part + " is not readable or is the target");
+                return false;
+            }
+            partsLength += part.length();
+        }
+        if (expectedLength >= 0 && partsLength != expectedLength) {
+            Log.e("concat(): parts length " + partsLength + " differs from expected " + expectedLength);
+            return false;
+        }
+
+        boolean isSucceed = false;
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(targetFile);
+            final FileChannel outputChannel = outputStream.getChannel();
+            for (final File part : parts) {
+                final FileInputStream inputStream = new FileInputStream(part);
+                try {
+                    final FileChannel inputChannel = inputStream.getChannel();
+                    final long length = inputChannel.size();
+                    if (transfer(inputChannel, outputChannel, length) != length)
+                        throw new IOException("part " + part + " was cut while being read");
+                } finally {
+                    inputStream.close();
+                }
+            }
+            isSucceed = true;
+        } catch (IOException e) {
+            Log.e(e);
+        } finally {
+            if (outputStream != null)
+                isSucceed = syncAndClose(outputStream) && isSucceed;
+        }
+
+        if (isSucceed && expectedLength >= 0 && targetFile.length() != expectedLength) {
+            Log.e("concat(): result length " + targetFile.length() + " differs from expected " + expectedLength);
+            isSucceed = false;
+        }
+        if (isSucceed && expectedMD5 != null && !Hash.checkMD5(expectedMD5, targetFile)) {
+            Log.e("concat(): result MD5 differs from expected " + expectedMD5);
+            isSucceed = false;
+        }
+        if (!isSucceed) {
+            if (targetFile.exists() && !targetFile.delete())
+                Log.w("concat(): could not delete failed " + targetFile);
+            return false;
+        }
+        // the target was synced by syncAndClose()
+        if (isDeletingParts)
+            for (final File part : parts)
+                if (!part.delete())
+                    Log.w("concat(): could not delete part " + part);
+        return true;
+    }
+
+    // transferTo() may move less than asked, so it is repeated until all is moved
+    private static long transfer(final FileChannel inputChannel, final FileChannel outputChannel, final long count) throws IOException {
+        long position = 0;
+        while (position < count) {
+            final long transferred = inputChannel.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, count - position), outputChannel);
+            if (transferred <= 0)
+                break;
+            position += transferred;
+        }
+        return position;
+    }
+
 
     /**
      * Appends String data (text, etc) to the end of given file.
@@ -1113,21 +1235,12 @@ public class FileUtils {
             new Exception("File: " + fileToEncode + " is not readable!").printStackTrace();
             return null;
         }
-        String dataString = null;
-        try {
-            // Reading a Image file from file system
-            final FileInputStream imageInFile = new FileInputStream(fileToEncode);
-            byte imageData[] = new byte[(int) fileToEncode.length()];
-            imageInFile.read(imageData);
-            // Converting Image byte array into Base64 String
-            dataString = Base64.encodeToString(imageData, Base64.DEFAULT);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (OutOfMemoryError e) {
-            e.printStackTrace();
-        }
+        // encoded straight from a memory mapping, with no byte[] copy of the whole file
+        final MappedFile mappedFile = MappedFile.open(fileToEncode);
+        if (mappedFile == null)
+            return null;
+        final String dataString = mappedFile.toBase64(Base64.DEFAULT);
+        mappedFile.close();
         return dataString;
     }
 
@@ -8,6 +8,9 @@ import android.content.pm.Signature;
 import android.text.TextUtils;
 import android.util.Base64;
 
+import com.stanko.file.BufferPool;
+import com.stanko.file.MappedFile;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -25,6 +28,9 @@ import java.security.NoSuchAlgorithmException;
 
 public class Hash {
 
+    // smaller files are cheaper to read than to map
+    private final static long MAPPED_READ_MIN_SIZE = 256 * 1024;
+
     private final static MessageDigest sMD5digest;
     private final static MessageDigest sSHAdigest;
 
@@ -115,6 +121,12 @@ public class Hash {
         if (!FileUtils.isReadable(file))
             return null;
 
+        if (file.length() >= MAPPED_READ_MIN_SIZE) {
+            final byte[] md5sum = getMappedDigest(file, "MD5");
+            if (md5sum != null)
+                return String.format("%32s", new BigInteger(1, md5sum).toString(16)).replace(' ', '0');
+        }
+
         InputStream inputStream;
         try {
             inputStream = new FileInputStream(file);
@@ -157,7 +169,7 @@ public class Hash {
             sMD5digest.reset();
         }
 
-        final byte[] buffer = new byte[8192];
+        final byte[] buffer = BufferPool.obtain(BufferPool.SIZE_SMALL);
         int read;
         String hash = null;
         try {
@@ -170,6 +182,8 @@ public class Hash {
             hash = String.format("%32s", hash).replace(' ', '0');
         } catch (IOException e) {
             Log.e("Exception on closing MD5 input stream", e);
+        } finally {
+            BufferPool.recycle(buffer);
         }
         return hash;
     }
@@ -262,6 +276,12 @@ public class Hash {
         if (!FileUtils.isReadable(file))
             return null;
 
+        if (file.length() >= MAPPED_READ_MIN_SIZE) {
+            final byte[] shaSum = getMappedDigest(file, "SHA");
+            if (shaSum != null)
+                return Base64.encodeToString(shaSum, Base64.DEFAULT);
+        }
+
         InputStream inputStream;
         try {
             inputStream = new FileInputStream(file);
@@ -303,7 +323,7 @@ public class Hash {
             sSHAdigest.reset();
         }
 
-        final byte[] buffer = new byte[8192];
+        final byte[] buffer = BufferPool.obtain(BufferPool.SIZE_SMALL);
         int read;
         String hash = null;
         try {
@@ -312,6 +332,8 @@ public class Hash {
             hash = Base64.encodeToString(sSHAdigest.digest(), Base64.DEFAULT);
         } catch (IOException e) {
             Log.e("Exception on closing MD5 input stream", e);
+        } finally {
+            BufferPool.recycle(buffer);
         }
         return hash;
     }
@@ -369,6 +391,23 @@ public class Hash {
         return keyHash;
     }
 
+    /**
+     * Digest of a file read through a memory mapping, so it is not copied through a heap buffer.
+     * Uses its own MessageDigest, so it may run concurrently with other hashing
+     *
+     * @param file
+     * @param algorithm - MessageDigest algorithm
+     * @return digest or null if failed
+     */
+    private static byte[] getMappedDigest(final File file, final String algorithm) {
+        final MappedFile mappedFile = MappedFile.open(file);
+        if (mappedFile == null)
+            return null;
+        final byte[] digest = mappedFile.digest(algorithm);
+        mappedFile.close();
+        return digest;
+    }
+
     /**
      * Checks if given string is a valid SHA1 hash string using pattern
      *
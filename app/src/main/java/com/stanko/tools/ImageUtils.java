@@ -12,10 +12,7 @@ import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.ColorMatrix;
-import android.graphics.ColorMatrixColorFilter;
 import android.graphics.Matrix;
-import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
@@ -31,11 +28,20 @@ import android.util.Base64;
 import android.view.View;
 import android.widget.ImageView;
 
+import com.stanko.image.ColorMatrixEngine;
+import com.stanko.image.ImagePyramid;
+import com.stanko.image.ImageStats;
+import com.stanko.image.PerceptualHash;
+import com.stanko.image.PixelKernels;
+import com.stanko.image.PngEncoder;
+
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -71,9 +77,9 @@ public class ImageUtils {
             } catch (IOException ignored) {
             }
             if (fileDescriptor != null)
-                BitmapFactory.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
+                ImageStats.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
             else
-                BitmapFactory.decodeStream(fileInputStream, null, bmfOptions);
+                ImageStats.decodeStream(fileInputStream, null, bmfOptions);
             bitmapInfo = new BitmapInfo(bmfOptions.outWidth, bmfOptions.outHeight);
         } catch (FileNotFoundException e) {
             Log.e("ImageUtils", e);
@@ -103,7 +109,7 @@ public class ImageUtils {
         bmfOptions.inJustDecodeBounds = true;
         try {
             // decode image size
-            BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+            ImageStats.decodeStream(inputStream, null, bmfOptions);
             bitmapInfo = new BitmapInfo(bmfOptions.outWidth, bmfOptions.outHeight);
         } catch (Exception e) {
             Log.e(e);
@@ -301,9 +307,9 @@ public class ImageUtils {
             }
 
             if (fileDescriptor != null)
-                return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
+                return ImageStats.decodeFileDescriptor(fileDescriptor, null, bmfOptions, bitmapFile.length());
             else
-                return BitmapFactory.decodeStream(fileInputStream, null, bmfOptions);
+                return ImageStats.decodeStream(fileInputStream, null, bmfOptions);
         } catch (FileNotFoundException e) {
             Log.e(e);
         } catch (Throwable e) {
@@ -489,13 +495,14 @@ public class ImageUtils {
 
     /**
      * Decodes an image to Bitmap downscaling it to reduce memory consumption.
+     * If there is an ImagePyramid of the file its smallest level big enough is decoded instead.
      *
      * @param bitmapFile
      * @param maxSideSize  - max image side size. Uses DeviceInfo width if 0 passed.
      * @param isOptimistic - if true may return bigger image, smaller or equal if false
      * @return
      */
-    public static Bitmap getBitmapFromFileWithMaxSideSize(final File bitmapFile,
+    public static Bitmap getBitmapFromFileWithMaxSideSize(File bitmapFile,
                                                           int maxSideSize,
                                                           final Boolean isByHeight,
                                                           final boolean isOptimistic) {
@@ -506,6 +513,10 @@ public class ImageUtils {
             maxSideSize = DeviceInfo.getDeviceMaxSideSizeByDensity();
         }
 
+        final ImagePyramid.Level pyramidLevel = ImagePyramid.getLevel(bitmapFile, maxSideSize, isByHeight);
+        if (pyramidLevel != null)
+            bitmapFile = pyramidLevel.file;
+
         FileInputStream fileInputStream = null;
         FileDescriptor fileDescriptor = null;
         // decode image size
@@ -521,9 +532,9 @@ public class ImageUtils {
             }
 
             if (fileDescriptor != null)
-                BitmapFactory.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
+                ImageStats.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
             else
-                BitmapFactory.decodeStream(fileInputStream, null, bmfOptions);
+                ImageStats.decodeStream(fileInputStream, null, bmfOptions);
 
             try {
                 fileInputStream.close();
@@ -542,9 +553,9 @@ public class ImageUtils {
             }
 
             if (fileDescriptor != null)
-                return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
+                return ImageStats.decodeFileDescriptor(fileDescriptor, null, bmfOptions, bitmapFile.length());
             else
-                return BitmapFactory.decodeStream(fileInputStream, null, bmfOptions);
+                return ImageStats.decodeStream(fileInputStream, null, bmfOptions);
         } catch (FileNotFoundException e) {
             Log.e("ImageUtils", e);
         } finally {
@@ -689,14 +700,14 @@ public class ImageUtils {
         bmfOptions.inJustDecodeBounds = true;
         if (Build.VERSION.SDK_INT < 21)
             bmfOptions.inPurgeable = true;
-        BitmapFactory.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
+        ImageStats.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
 
         // Find the correct scale value. It should be the power of 2.
         bmfOptions.inSampleSize = getScaleRatio(bmfOptions, maxSideSize, isByHeight, isOptimistic);
         bmfOptions.inJustDecodeBounds = false;
 
         // decode with inSampleSize
-        final Bitmap bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
+        final Bitmap bitmap = ImageStats.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
         return bitmap;
     }
 
@@ -726,6 +737,8 @@ public class ImageUtils {
     }
 
     /**
+     * Decodes resource on every call, see ResourceBitmapCache for a cached shared one
+     *
      * @param resources
      * @param drawableResId
      * @return
@@ -734,7 +747,7 @@ public class ImageUtils {
         if (resources == null || drawableResId == 0)
             return null;
 
-        return BitmapFactory.decodeResource(resources, drawableResId);
+        return ImageStats.decodeResource(resources, drawableResId);
     }
 
     /**
@@ -828,14 +841,14 @@ public class ImageUtils {
                 return null;
             inputStream = contentResolver.openInputStream(uri);
             // decode image size
-            BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+            ImageStats.decodeStream(inputStream, null, bmfOptions);
 
             // Find the correct scale value. It should be the power of 2.
             bmfOptions.inSampleSize = getScaleRatio(bmfOptions, maxSideSize, isByHeight, isOptimistic);
             bmfOptions.inJustDecodeBounds = false;
 
             // decode with inSampleSize
-            bitmap = BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+            bitmap = ImageStats.decodeStream(inputStream, null, bmfOptions);
 
         } catch (Resources.NotFoundException e) {
             e.printStackTrace();
@@ -853,6 +866,9 @@ public class ImageUtils {
     }
 
     /**
+     * Blocks until the whole stream is read. To show previews of an image being downloaded see
+     * ProgressiveDecoder
+     *
      * @param inputStream
      * @param maxSideSize
      * @param isByHeight
@@ -871,14 +887,14 @@ public class ImageUtils {
         bmfOptions.inJustDecodeBounds = true;
         if (Build.VERSION.SDK_INT < 21)
             bmfOptions.inPurgeable = true;
-        BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+        ImageStats.decodeStream(inputStream, null, bmfOptions);
 
         // Find the correct scale value. It should be the power of 2.
         bmfOptions.inSampleSize = getScaleRatio(bmfOptions, maxSideSize, isByHeight, isOptimistic);
         bmfOptions.inJustDecodeBounds = false;
 
         // decode with inSampleSize
-        final Bitmap bitmap = BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+        final Bitmap bitmap = ImageStats.decodeStream(inputStream, null, bmfOptions);
         return bitmap;
     }
 
@@ -907,7 +923,7 @@ public class ImageUtils {
         InputStream inputStream = null;
         try {
             inputStream = context.getResources().openRawResource(mBitmapResId);
-            bitmap = BitmapFactory.decodeStream(inputStream);
+            bitmap = ImageStats.decodeStream(inputStream);
         } catch (Resources.NotFoundException e) {
             e.printStackTrace();
         } finally {
@@ -1041,7 +1057,7 @@ public class ImageUtils {
                 bmfOptions.inPurgeable = true;
             bmfOptions.inJustDecodeBounds = false;
             inputStream = contentResolver.openInputStream(uri);
-            bitmap = BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+            bitmap = ImageStats.decodeStream(inputStream, null, bmfOptions);
         } catch (Resources.NotFoundException e) {
             e.printStackTrace();
         } catch (FileNotFoundException e) {
@@ -1112,7 +1128,7 @@ public class ImageUtils {
             bmfOptions.inJustDecodeBounds = true;
             if (Build.VERSION.SDK_INT < 21)
                 bmfOptions.inPurgeable = true;
-            BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+            ImageStats.decodeStream(inputStream, null, bmfOptions);
 
             // Find the correct scale value. It should be the power of 2.
             bmfOptions.inSampleSize = getScaleRatio(bmfOptions, sideSizeLimit, null, isOptimistic);
@@ -1120,7 +1136,7 @@ public class ImageUtils {
 
             // decode with inSampleSize
             // BitmapFactory.Options o2 = new BitmapFactory.Options();
-            bitmap = BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+            bitmap = ImageStats.decodeStream(inputStream, null, bmfOptions);
         } catch (Resources.NotFoundException e) {
             e.printStackTrace();
         } catch (FileNotFoundException e) {
@@ -1189,7 +1205,7 @@ public class ImageUtils {
             bmfOptions.inJustDecodeBounds = true;
             if (Build.VERSION.SDK_INT < 21)
                 bmfOptions.inPurgeable = true;
-            BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+            ImageStats.decodeStream(inputStream, null, bmfOptions);
 
             // Find the correct scale value. It should be the power of 2.
             bmfOptions.inSampleSize = getScaleRatio(bmfOptions, heightLimit, true, isOptimistic);
@@ -1197,7 +1213,7 @@ public class ImageUtils {
 
             // decode with inSampleSize
             // BitmapFactory.Options o2 = new BitmapFactory.Options();
-            bitmap = BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+            bitmap = ImageStats.decodeStream(inputStream, null, bmfOptions);
         } catch (Resources.NotFoundException e) {
             e.printStackTrace();
         } catch (FileNotFoundException e) {
@@ -1265,12 +1281,12 @@ public class ImageUtils {
             bmfOptions.inJustDecodeBounds = true;
             if (Build.VERSION.SDK_INT < 21)
                 bmfOptions.inPurgeable = true;
-            BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+            ImageStats.decodeStream(inputStream, null, bmfOptions);
             // Find the correct scale value. It should be the power of 2.
             bmfOptions.inSampleSize = getScaleRatio(bmfOptions, widthLimit, false, isOptimistic);
             bmfOptions.inJustDecodeBounds = false;
             // decode with inSampleSize
-            bitmap = BitmapFactory.decodeStream(inputStream, null, bmfOptions);
+            bitmap = ImageStats.decodeStream(inputStream, null, bmfOptions);
         } catch (Resources.NotFoundException e) {
             e.printStackTrace();
         } catch (FileNotFoundException e) {
@@ -1381,9 +1397,9 @@ public class ImageUtils {
                     }
 
                     if (fileDescriptor != null)
-                        bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
+                        bitmap = ImageStats.decodeFileDescriptor(fileDescriptor, null, bmfOptions, targetFile.length());
                     else
-                        bitmap = BitmapFactory.decodeStream(fileInputStream, null, bmfOptions);
+                        bitmap = ImageStats.decodeStream(fileInputStream, null, bmfOptions);
 
                 } catch (FileNotFoundException e) {
                     isSucceed = false;
@@ -1395,7 +1411,7 @@ public class ImageUtils {
                         }
                 }
                 if (bitmap != null) {
-                    bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+                    bitmap = ImageStats.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
                     isSucceed = ImageUtils.saveBitmapToJPEGFile(bitmap, targetFile, 99);
                     bitmap.recycle();
                 }
@@ -1551,9 +1567,9 @@ public class ImageUtils {
                     }
 
                     if (fileDescriptor != null)
-                        bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
+                        bitmap = ImageStats.decodeFileDescriptor(fileDescriptor, null, bmfOptions, targetFile.length());
                     else
-                        bitmap = BitmapFactory.decodeStream(fileInputStream, null, bmfOptions);
+                        bitmap = ImageStats.decodeStream(fileInputStream, null, bmfOptions);
                 } catch (FileNotFoundException e) {
                 } finally {
                     if (fileInputStream != null)
@@ -1563,7 +1579,7 @@ public class ImageUtils {
                         }
                 }
                 if (bitmap != null)
-                    bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+                    bitmap = ImageStats.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
             } else {
                 FileInputStream fileInputStream = null;
                 FileDescriptor fileDescriptor = null;
@@ -1575,9 +1591,9 @@ public class ImageUtils {
                     }
 
                     if (fileDescriptor != null)
-                        bitmap = BitmapFactory.decodeFileDescriptor(fileDescriptor, null, bmfOptions);
+                        bitmap = ImageStats.decodeFileDescriptor(fileDescriptor, null, bmfOptions, targetFile.length());
                     else
-                        bitmap = BitmapFactory.decodeStream(fileInputStream, null, bmfOptions);
+                        bitmap = ImageStats.decodeStream(fileInputStream, null, bmfOptions);
                 } catch (FileNotFoundException e) {
                 } finally {
                     if (fileInputStream != null)
@@ -1736,21 +1752,22 @@ public class ImageUtils {
             final int deltaW = (sideSize - scaleWidth) / 2;
             final int deltaH = (sideSize - scaleHeight) / 2;
             // create square bitmap with given maxSideSize dimensions
-            final Bitmap resizedBitmap = Bitmap.createBitmap(sideSize, sideSize, Config.ARGB_8888);
+            final long startTime = ImageStats.start();
+            final Bitmap resizedBitmap = ImageStats.createBitmap(sideSize, sideSize, Config.ARGB_8888, startTime);
             resizedBitmap.eraseColor(Color.TRANSPARENT);
             final RectF outRect = new RectF(deltaW, deltaH, scaleWidth + deltaW, scaleHeight + deltaH);
             final Canvas canvas = new Canvas(resizedBitmap);
             canvas.drawBitmap(bitmap, null, outRect, null);
-            return resizedBitmap;
+            return ImageStats.recordTransform(startTime, resizedBitmap);
         } else {
             //makes square image/ Center crop!!!
             Matrix matrix = new Matrix();
             float scale = bitmapInfo.hasLandscapeOrientation ? ((float) sideSize) / height : ((float) sideSize) / width;
             matrix.postScale(scale, scale);
             if (bitmapInfo.hasLandscapeOrientation)
-                return Bitmap.createBitmap(bitmap, width / 2 - height / 2, 0, height, height, matrix, true);
+                return ImageStats.createBitmap(bitmap, width / 2 - height / 2, 0, height, height, matrix, true);
             else
-                return Bitmap.createBitmap(bitmap, 0, height / 2 - width / 2, width, width, matrix, true);
+                return ImageStats.createBitmap(bitmap, 0, height / 2 - width / 2, width, width, matrix, true);
         }
     }
 
@@ -1788,7 +1805,7 @@ public class ImageUtils {
         Bitmap resizedBitmap;
         try {
             // recreate the Bitmap
-            resizedBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmapInfo.width, bitmapInfo.height, matrix, true);
+            resizedBitmap = ImageStats.createBitmap(bitmap, 0, 0, bitmapInfo.width, bitmapInfo.height, matrix, true);
         } catch (Exception e) {
             Log.e(e);
             resizedBitmap = null;
@@ -1826,12 +1843,13 @@ public class ImageUtils {
             return ((BitmapDrawable) drawable).getBitmap();
         }
 
-        final Bitmap bitmap = Bitmap.createBitmap(drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight(), Config.ARGB_8888);
+        final long startTime = ImageStats.start();
+        final Bitmap bitmap = ImageStats.createBitmap(drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight(), Config.ARGB_8888, startTime);
         final Canvas canvas = new Canvas(bitmap);
         drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
         drawable.draw(canvas);
 
-        return bitmap;
+        return ImageStats.recordTransform(startTime, bitmap);
     }
 
     /**
@@ -1871,6 +1889,7 @@ public class ImageUtils {
     /**
      * Combines two images (overlay), as a result first image will be covered by the second one
      * resulting width is the biggest width of two images and same with height
+     * To compose more than two images use BitmapComposer which allocates the result only once.
      *
      * @param bitmap1
      * @param bitmap2
@@ -1895,17 +1914,19 @@ public class ImageUtils {
         } else {
             resultingHeight = bitmap2.getHeight();
         }
-        final Bitmap bitmap = Bitmap.createBitmap(resultingWidth, resultingHeight, Bitmap.Config.ARGB_8888);
+        final long startTime = ImageStats.start();
+        final Bitmap bitmap = ImageStats.createBitmap(resultingWidth, resultingHeight, Bitmap.Config.ARGB_8888, startTime);
         final Canvas canvas = new Canvas(bitmap);
         canvas.drawBitmap(bitmap1, 0f, 0f, null);
         canvas.drawBitmap(bitmap2, 0f, 0f, null);
-        return bitmap;
+        return ImageStats.recordTransform(startTime, bitmap);
     }
 
 
     /**
      * Joins two images horizontally, 2nd image will be joined to the right of the 1st image.
      * Resulting height will be taken from the biggest (by height) image
+     * To join more than two images use BitmapComposer with StripLayout or GridLayout.
      *
      * @param bitmapLeft  - bitmap to add to (stays at left in a resulting image)
      * @param bitmapRight - bitmap to be added to left bitmap (stays at right in a resulting image)
@@ -1925,16 +1946,18 @@ public class ImageUtils {
         } else {
             resultingHeight = bitmapRight.getHeight();
         }
-        final Bitmap bitmap = Bitmap.createBitmap(resultingWidth, resultingHeight, Bitmap.Config.ARGB_8888);
+        final long startTime = ImageStats.start();
+        final Bitmap bitmap = ImageStats.createBitmap(resultingWidth, resultingHeight, Bitmap.Config.ARGB_8888, startTime);
         final Canvas canvas = new Canvas(bitmap);
         canvas.drawBitmap(bitmapLeft, 0f, 0f, null);
         canvas.drawBitmap(bitmapRight, bitmapLeft.getWidth(), 0f, null);
-        return bitmap;
+        return ImageStats.recordTransform(startTime, bitmap);
     }
 
     /**
      * Joins two images vertically, the second image top will be joined to the 1st image bottom
      * Resulting width will be taken from the biggest (by width) image
+     * To join more than two images use BitmapComposer with StripLayout or GridLayout.
      *
      * @param bitmapTop
      * @param bitmapBottom
@@ -1954,11 +1977,12 @@ public class ImageUtils {
         } else {
             resultingWidth = bitmapBottom.getWidth();
         }
-        final Bitmap bitmap = Bitmap.createBitmap(resultingWidth, resultingHeight, Config.ARGB_8888);
+        final long startTime = ImageStats.start();
+        final Bitmap bitmap = ImageStats.createBitmap(resultingWidth, resultingHeight, Config.ARGB_8888, startTime);
         final Canvas canvas = new Canvas(bitmap);
         canvas.drawBitmap(bitmapTop, 0f, 0f, null);
         canvas.drawBitmap(bitmapBottom, 0f, bitmapTop.getHeight(), null);
-        return bitmap;
+        return ImageStats.recordTransform(startTime, bitmap);
     }
 
     /**
@@ -1977,10 +2001,10 @@ public class ImageUtils {
 
         // Convert bitmap to byte array
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        bitmap.compress(CompressFormat.JPEG, targetJpegQuality, bos);
+        ImageStats.compress(bitmap, CompressFormat.JPEG, targetJpegQuality, bos);
         bitmap.recycle();
         byte[] bitmapData = bos.toByteArray();
-        bitmap = BitmapFactory.decodeByteArray(bitmapData, 0, bitmapData.length);
+        bitmap = ImageStats.decodeByteArray(bitmapData, 0, bitmapData.length);
 
         return bitmap;
     }
@@ -2006,9 +2030,9 @@ public class ImageUtils {
         // Convert bitmap to byte array
         final ByteArrayOutputStream bos = new ByteArrayOutputStream();
         if (quality == 0)
-            bitmap.compress(CompressFormat.JPEG, 100, bos);
+            ImageStats.compress(bitmap, CompressFormat.JPEG, 100, bos);
         else
-            bitmap.compress(CompressFormat.JPEG, quality, bos);
+            ImageStats.compress(bitmap, CompressFormat.JPEG, quality, bos);
         // write the bytes to file
         isSucceed = FileUtils.byteArrayOutputStreamToFile(bos, imageFile);
         if (bos != null)
@@ -2035,7 +2059,7 @@ public class ImageUtils {
         // save it
         // Convert bitmap to byte array
         final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        bitmap.compress(CompressFormat.PNG, 100, bos);
+        ImageStats.compress(bitmap, CompressFormat.PNG, 100, bos);
         // write the bytes in file
         isSucceed = FileUtils.byteArrayOutputStreamToFile(bos, imageFile);
         if (bos != null)
@@ -2046,9 +2070,111 @@ public class ImageUtils {
         return isSucceed;
     }
 
+    /**
+     * Saves given image to a File in a PNG format using PngEncoder which deflates image bands
+     * on all available cores. Much faster than saveBitmapToPNGFile() for big images like
+     * screenshots on multi-core devices. Needs width*height*4 bytes of heap for pixels.
+     *
+     * @param bitmap
+     * @param imageFile - target file to save PNG to
+     * @return
+     */
+    public static boolean saveBitmapToPNGFileInParallel(final Bitmap bitmap, final File imageFile) {
+        if (bitmap == null || imageFile == null || imageFile.exists() && !imageFile.canWrite())
+            return false;
+        if (imageFile.exists() && !imageFile.delete())
+            return false;
+        if (!FileUtils.makeDirsForFile(imageFile))
+            return false;
+
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+        final long startTime = ImageStats.start();
+        FileOutputStream fileOutputStream = null;
+        boolean isSucceed = false;
+        boolean isOom = false;
+        try {
+            final int[] pixels = new int[width * height];
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            fileOutputStream = new FileOutputStream(imageFile);
+            final BufferedOutputStream outputStream = new BufferedOutputStream(fileOutputStream, 64 * 1024);
+            PngEncoder.encode(pixels, width, height, bitmap.hasAlpha(), outputStream);
+            outputStream.flush();
+            isSucceed = FileUtils.sync(fileOutputStream);
+        } catch (IOException e) {
+            Log.e("ImageUtils", e);
+        } catch (OutOfMemoryError e) {
+            isOom = true;
+            Log.e("ImageUtils", e);
+        } finally {
+            if (fileOutputStream != null)
+                try {
+                    fileOutputStream.close();
+                } catch (IOException e) {
+                }
+        }
+        ImageStats.record(ImageStats.ENCODE, startTime, (long) bitmap.getRowBytes() * height, 0, isSucceed ? imageFile.length() : 0, null, !isSucceed, isOom);
+        return isSucceed;
+    }
+
 
     /**
-     * Deletes a copy of a photo which could be created on some devices while using camera
+     * Deletes a copy of a photo which could be created on some devices while using camera only if
+     * the last taken photo is a near duplicate (by perceptual hash) of one of a few previous photos.
+     * Unlike deleteLastTakenPhotoDupe(Context) it never deletes a unique photo.
+     *
+     * @param context
+     * @param maxDistance - max Hamming distance of pHashes, PhotoHashIndex.DEFAULT_MAX_DISTANCE is a good choice
+     * @return true if last taken photo was a dupe and was deleted
+     */
+    public static boolean deleteLastTakenPhotoDupe(final Context context, final int maxDistance) {
+        if (context == null)
+            return false;
+        final String[] projection = new String[]{
+                BaseColumns._ID,
+                MediaColumns.DATA};
+        final int photosToCompare = 5;
+        final long[] ids = new long[photosToCompare];
+        final String[] paths = new String[photosToCompare];
+        int count = 0;
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                    projection,
+                    null,
+                    null,
+                    MediaStore.Images.ImageColumns.DATE_TAKEN + " DESC");
+            while (cursor != null && count < photosToCompare && cursor.moveToNext()) {
+                ids[count] = cursor.getLong(0);
+                paths[count++] = cursor.getString(1);
+            }
+        } catch (Exception e) {
+            Log.e("ImageUtils", e);
+        } finally {
+            if (cursor != null)
+                cursor.close();
+        }
+        if (count < 2 || TextUtils.isEmpty(paths[0]))
+            return false;
+
+        final Long lastTakenHash = PerceptualHash.getPHash(new File(paths[0]));
+        if (lastTakenHash == null)
+            return false;
+        for (int i = 1; i < count; i++) {
+            if (TextUtils.isEmpty(paths[i]))
+                continue;
+            final Long hash = PerceptualHash.getPHash(new File(paths[i]));
+            if (hash != null && PerceptualHash.getDistance(lastTakenHash, hash) <= maxDistance) {
+                final ContentResolver contentResolver = context.getContentResolver();
+                return contentResolver.delete(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, BaseColumns._ID + "=" + ids[0], null) > 0;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deletes a copy of a photo which could be created on some devices while using camera.
+     * Deletes the last taken photo without any check, see deleteLastTakenPhotoDupe(Context, int)
      *
      * @param context
      */
@@ -2084,7 +2210,8 @@ public class ImageUtils {
     }
 
     /**
-     * Returns blurred blurred copy of given image
+     * Returns blurred blurred copy of given image.
+     * Decodes and blurs on every call, see ResourceBitmapCache.getBlurredBitmap() for a cached one
      *
      * @param resources
      * @param drawableResId
@@ -2092,7 +2219,7 @@ public class ImageUtils {
      * @return
      */
     public static Bitmap getBlurredBitmap(final Resources resources, final int drawableResId, final int radius) {
-        final Bitmap bitmapToBlur = BitmapFactory.decodeResource(resources, drawableResId);
+        final Bitmap bitmapToBlur = ImageStats.decodeResource(resources, drawableResId);
         blurBitmap(bitmapToBlur, radius);
         return bitmapToBlur;
     }
@@ -2111,12 +2238,28 @@ public class ImageUtils {
     }
 
     /**
-     * Blurs given image
+     * Blurs given image. Opaque mutable ARGB_8888 images are blurred through off-heap PixelBuffers,
+     * others through int[] copies on Java heap
      *
      * @param bitmapToBlur - Bitmap to apply blur to
      * @param radius       - must be greater than 1
      */
     public static void blurBitmap(final Bitmap bitmapToBlur, final int radius) {
+        if (radius < 1)
+            return;
+        final long startTime = ImageStats.start();
+        if (!PixelKernels.isBlurSupported(bitmapToBlur) || !PixelKernels.blur(bitmapToBlur, radius))
+            blurBitmapOnHeap(bitmapToBlur, radius);
+        ImageStats.record(ImageStats.BLUR, startTime, -1, 0, 0, bitmapToBlur, false, false);
+    }
+
+    /**
+     * Blurs given image through int[] copies of pixels and channels on Java heap
+     *
+     * @param bitmapToBlur - Bitmap to apply blur to
+     * @param radius       - must be greater than 1
+     */
+    public static void blurBitmapOnHeap(final Bitmap bitmapToBlur, final int radius) {
         if (radius < 1)
             return;
 
@@ -2338,6 +2481,8 @@ public class ImageUtils {
 
     /**
      * Takes a screenshot of the view.
+     * For periodic screenshots saved to files see ScreenshotCapturer which reuses bitmaps and
+     * compresses them off the UI thread.
      *
      * @param view - target View
      * @return - Bitmap or null if View is null
@@ -2345,10 +2490,11 @@ public class ImageUtils {
     public static Bitmap getScreenShotOfView(final View view) {
         if (view == null)
             return null;
-        Bitmap bitmap = Bitmap.createBitmap(view.getWidth(), view.getHeight(), Config.ARGB_8888);
+        final long startTime = ImageStats.start();
+        Bitmap bitmap = ImageStats.createBitmap(view.getWidth(), view.getHeight(), Config.ARGB_8888, startTime);
         Canvas canvas = new Canvas(bitmap);
         view.draw(canvas);
-        return bitmap;
+        return ImageStats.recordTransform(startTime, bitmap);
     }
 
     /**
@@ -2362,10 +2508,11 @@ public class ImageUtils {
     public static Bitmap getScreenShotOfView(final View view, final int width, final int height) {
         if (view == null)
             return null;
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+        final long startTime = ImageStats.start();
+        Bitmap bitmap = ImageStats.createBitmap(width, height, Config.ARGB_8888, startTime);
         Canvas canvas = new Canvas(bitmap);
         view.draw(canvas);
-        return bitmap;
+        return ImageStats.recordTransform(startTime, bitmap);
     }
 
     /**
@@ -2745,17 +2892,17 @@ public class ImageUtils {
         if (bitmapToCrop.getWidth() > cropToWidth && bitmapToCrop.getHeight() > cropToHeight) {
             int deltaX = (bitmapToCrop.getWidth() - cropToWidth) / 2;
             int deltaY = (bitmapToCrop.getHeight() - cropToHeight) / 2;
-            return Bitmap.createBitmap(bitmapToCrop,
+            return ImageStats.createBitmap(bitmapToCrop,
                     deltaX, deltaY,
                     cropToWidth, cropToHeight);
         } else if (bitmapToCrop.getWidth() > cropToWidth && bitmapToCrop.getHeight() == cropToHeight) {
             int deltaX = (bitmapToCrop.getWidth() - cropToWidth) / 2;
-            return Bitmap.createBitmap(bitmapToCrop,
+            return ImageStats.createBitmap(bitmapToCrop,
                     deltaX, 0,
                     cropToWidth, cropToHeight);
         } else if (bitmapToCrop.getWidth() == cropToWidth && bitmapToCrop.getHeight() > cropToHeight) {
             int deltaY = (bitmapToCrop.getHeight() - cropToHeight) / 2;
-            return Bitmap.createBitmap(bitmapToCrop,
+            return ImageStats.createBitmap(bitmapToCrop,
                     0, deltaY,
                     cropToWidth, cropToHeight);
         } else
@@ -2817,7 +2964,7 @@ public class ImageUtils {
      */
     public static byte[] getJPEGByteArrayFromBitmap(final Bitmap bitmap, final int jpegQuality) {
         final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        bitmap.compress(CompressFormat.JPEG, jpegQuality, baos);
+        ImageStats.compress(bitmap, CompressFormat.JPEG, jpegQuality, baos);
         return baos.toByteArray();
     }
 
@@ -2935,7 +3082,7 @@ public class ImageUtils {
      */
     public static byte[] getPNGByteArrayFromBitmap(final Bitmap bitmap) {
         final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        bitmap.compress(CompressFormat.PNG, 0, baos);
+        ImageStats.compress(bitmap, CompressFormat.PNG, 0, baos);
         return baos.toByteArray();
     }
 
@@ -3095,7 +3242,8 @@ public class ImageUtils {
             if (downsizedToDiameterBitmap != croppedToSquareBitmap)
                 croppedToSquareBitmap.recycle();
         }
-        final Bitmap outputBitmap = Bitmap.createBitmap(diameter, diameter, Config.ARGB_8888);
+        final long startTime = ImageStats.start();
+        final Bitmap outputBitmap = ImageStats.createBitmap(diameter, diameter, Config.ARGB_8888, startTime);
         final Path path = new Path();
         path.addCircle(radius, radius, radius, Path.Direction.CCW);
         final Canvas canvas = new Canvas(outputBitmap);
@@ -3103,7 +3251,7 @@ public class ImageUtils {
         canvas.drawBitmap(downsizedToDiameterBitmap, 0, 0, null);
         if (outputBitmap != downsizedToDiameterBitmap)
             downsizedToDiameterBitmap.recycle();
-        return outputBitmap;
+        return ImageStats.recordTransform(startTime, outputBitmap);
     }
 
     /**
@@ -3144,17 +3292,24 @@ public class ImageUtils {
      * @return
      */
     public static Bitmap getBlackAndWhiteBitmap(final Bitmap orginalBitmap, Bitmap.Config bitmapConfig) {
-        final ColorMatrix colorMatrix = new ColorMatrix();
-        colorMatrix.setSaturation(0);
-        final ColorMatrixColorFilter colorMatrixFilter = new ColorMatrixColorFilter(colorMatrix);
+        final long startTime = ImageStats.start();
         final Bitmap blackAndWhiteBitmap = orginalBitmap.copy(bitmapConfig, true);
-        final Paint paint = new Paint();
-        paint.setColorFilter(colorMatrixFilter);
-        final Canvas canvas = new Canvas(blackAndWhiteBitmap);
-        canvas.drawBitmap(blackAndWhiteBitmap, 0, 0, paint);
+        if (blackAndWhiteBitmap != null)
+            new ColorMatrixEngine().setGrayscale().apply(blackAndWhiteBitmap);
+        ImageStats.record(ImageStats.TRANSFORM, startTime, -1, 0, -1, blackAndWhiteBitmap, blackAndWhiteBitmap == null, false);
         return blackAndWhiteBitmap;
     }
 
+    /**
+     * Makes a mutable bitmap Black&White (grey scaled) in place, without a copy
+     *
+     * @param mutableBitmap
+     * @return false if bitmap is immutable or recycled
+     */
+    public static boolean setBlackAndWhite(final Bitmap mutableBitmap) {
+        return new ColorMatrixEngine().setGrayscale().apply(mutableBitmap);
+    }
+
     /**
      * Returns rotated by given angle bitmap
      *
@@ -3165,7 +3320,7 @@ public class ImageUtils {
     public static Bitmap getRotatedBitmapByAngle(final Bitmap bitmap, final float angle) {
         final Matrix matrix = new Matrix();
         matrix.postRotate(angle, bitmap.getWidth() / 2, bitmap.getHeight() / 2);
-        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        return ImageStats.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
     }
 
     /**
@@ -3,6 +3,8 @@ package com.stanko.tools;
 import android.content.Context;
 import android.content.res.Resources;
 
+import com.stanko.file.Trash;
+
 /**
  * This class is used to initialize with context following classes:
  * DeviceInfo
@@ -12,6 +14,8 @@ import android.content.res.Resources;
  * SDCardHelper
  * SharedPrefsHelper
  *
+ * It also resumes purging of Trash left by a previous run.
+ *
  * So if you initialize this class you don't have to initialize listed classes. Each of listed
  * classes will be initialized on demand, when its method which requires Context be called.
  *
@@ -26,11 +30,13 @@ public class Initializer {
 
     public static void init(final Context context){
         sAppContext = context.getApplicationContext();
+        Trash.resume();
     }
 
     public static void init(final Context context, final String _hostToPing){
         sAppContext = context.getApplicationContext();
         sHostToPing = _hostToPing;
+        Trash.resume();
     }
 
     public static Context getsAppContext(){
@@ -1,21 +1,30 @@
 package com.stanko.tools;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Environment;
-import android.os.StatFs;
 import android.text.TextUtils;
 
+import com.stanko.file.DirectoryUsage;
+import com.stanko.file.StorageMonitor;
+import com.stanko.file.Trash;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
@@ -41,6 +50,11 @@ public class SDCardHelper {
     private static Context sAppContext;
     private static File sInternalCacheDir;
     private static File sExternalCacheDir;
+    private static final Object sTrimLock = new Object();
+    // a low space check with eviction runs at most once per this interval
+    private static final long TRIM_INTERVAL_MS = 60 * 1000;
+    private static final AtomicLong sLastTrimTime = new AtomicLong(-TRIM_INTERVAL_MS);
+    private static ExecutorService sTrimExecutorService;
 
     public static void init(Context context) {
         init(context.getPackageName(), context);
@@ -58,45 +72,15 @@ public class SDCardHelper {
 
     /**
      * Returns the free space in bytes available on External Storage Drive (SD card)
-     * or -1 if storage is not available (UNMOUNTED, etc)
+     * or -1 if storage is not available (UNMOUNTED, etc).
+     * The value is estimated by StorageMonitor, StatFs is called once per its TTL
      *
      * @return long
      */
-    @SuppressLint("NewApi")
-    @SuppressWarnings("deprecation")
     public static long getAvailableSpace() {
-        final String mSDRootPath = Environment.getExternalStorageDirectory().getAbsolutePath();
-        long availableBytez = -1;
         if (!isExternalStorageAvailable())
-            return availableBytez;
-        try {
-            final StatFs stat = new StatFs(mSDRootPath);
-            stat.restat(mSDRootPath);
-            if (DeviceInfo.hasAPI(18))
-                availableBytez = (stat.getAvailableBlocksLong() * stat.getBlockSizeLong());
-            else
-                availableBytez = ((long) stat.getAvailableBlocks() * (long) stat.getBlockSize());
-
-//				File path = Environment.getExternalStorageDirectory();
-//	            StatFs stat = new StatFs(path.getPath());
-//	            long blockSize = stat.getBlockSize();
-//	            long totalBlocks = stat.getBlockCount();
-//	            long availableBlocks = stat.getAvailableBlocks();
-//
-//	            mSdSize.setSummary(formatSize(totalBlocks * blockSize));
-//	            mSdAvail.setSummary(formatSize(availableBlocks * blockSize) + readOnly);
-//
-//	            mSdMountToggle.setEnabled(true);
-//	            mSdMountToggle.setTitle(mRes.getString(R.string.sd_eject));
-//	            mSdMountToggle.setSummary(mRes.getString(R.string.sd_eject_summary));
-
-        } catch (IllegalArgumentException e) {
-            // this can occur if the SD card is removed, but we haven't received the
-            // ACTION_MEDIA_REMOVED Intent yet.
-            // status = Environment.MEDIA_REMOVED;
-        }
-
-        return availableBytez;
+            return -1;
+        return StorageMonitor.getAvailableSpace(Environment.getExternalStorageDirectory());
     }
 
     /**
@@ -135,6 +119,7 @@ public class SDCardHelper {
         if (sURL == null)
             return null;
         final File file = getPreviewFile(sURL);
+        trimCacheOnLowSpace(file);
         return file;
     }
 
@@ -165,6 +150,7 @@ public class SDCardHelper {
         if (sURL == null)
             return null;
         final File file = getFile(sURL);
+        trimCacheOnLowSpace(file);
         return file;
     }
 
@@ -217,6 +203,7 @@ public class SDCardHelper {
         File file = new File(getCacheDir(), Hash.getMD5("tempfile" + System.currentTimeMillis()) + fileExtension);
         if (!FileUtils.makeDirsForFile(file))
             return null;
+        trimCacheOnLowSpace(file);
         file.deleteOnExit();
         return file;
     }
@@ -487,6 +474,119 @@ public class SDCardHelper {
         return clearImagesCache();
     }
 
+    /**
+     * Deletes the oldest (by last modification) files of the cache. Only files directly in the
+     * cache directory are evicted: subdirectories belong to other components (ImagePyramid's
+     * "pyramids" with its index, Trash) and temp files are skipped as they may be being written
+     *
+     * @param bytesToFree - count of bytes to free at least
+     * @return count of bytes freed
+     */
+    public static long trimCache(final long bytesToFree) {
+        return trimCache(bytesToFree, null);
+    }
+
+    // keptFile - file just handed out by the call which triggered the trim, null if none
+    private static long trimCache(final long bytesToFree, final File keptFile) {
+        final File cacheDir = getCacheDir();
+        if (cacheDir == null || bytesToFree <= 0)
+            return 0;
+        synchronized (sTrimLock) {
+            final List<File> files = new ArrayList<>();
+            listCacheFiles(cacheDir, keptFile, files);
+            final long[] lastModified = new long[files.size()];
+            final Integer[] order = new Integer[files.size()];
+            for (int i = 0; i < order.length; i++) {
+                lastModified[i] = files.get(i).lastModified();
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(final Integer lhs, final Integer rhs) {
+                    return lastModified[lhs] < lastModified[rhs] ? -1 : (lastModified[lhs] == lastModified[rhs] ? 0 : 1);
+                }
+            });
+            long freedBytes = 0;
+            for (int i = 0; i < order.length && freedBytes < bytesToFree; i++) {
+                final File file = files.get(order[i]);
+                final long length = file.length();
+                if (file.delete())
+                    freedBytes += length;
+            }
+            StorageMonitor.onSpaceUsed(cacheDir, -freedBytes);
+            return freedBytes;
+        }
+    }
+
+    /**
+     * Deletes the oldest files of the cache until it takes no more than maxBytes
+     *
+     * @param maxBytes - size of the cache to keep at most
+     * @return count of bytes freed
+     */
+    public static long trimCacheTo(final long maxBytes) {
+        final DirectoryUsage.Usage usage = getCacheUsage();
+        if (usage == null || usage.totalBytes <= maxBytes)
+            return 0;
+        return trimCache(usage.totalBytes - maxBytes);
+    }
+
+    /**
+     * Returns size, files count and the largest files and subdirectories of the cache.
+     * Only directories changed since the previous call are listed again, do not call it in
+     * UI thread; DirectoryUsage.getCachedUsage(getCacheDir()) gives the last result without I/O
+     *
+     * @return usage or null if cache directory is not available
+     */
+    public static DirectoryUsage.Usage getCacheUsage() {
+        final File cacheDir = getCacheDir();
+        if (cacheDir == null || !cacheDir.isDirectory())
+            return null;
+        return DirectoryUsage.analyze(cacheDir);
+    }
+
+    // evicts the oldest files in background once free space of cache volume fell below low threshold.
+    // Called on cache writes, possibly in UI thread: costs a clock read unless TRIM_INTERVAL_MS passed,
+    // so a trim which could not free enough is not repeated on each call. keptFile is the file
+    // handed out by the calling method, it is never evicted by its own trim
+    private static void trimCacheOnLowSpace(final File keptFile) {
+        final long now = System.currentTimeMillis();
+        final long lastTrimTime = sLastTrimTime.get();
+        if (now - lastTrimTime < TRIM_INTERVAL_MS || !sLastTrimTime.compareAndSet(lastTrimTime, now))
+            return;
+        getTrimExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                final File cacheDir = getCacheDir();
+                if (cacheDir == null)
+                    return;
+                final long availableBytes = StorageMonitor.getAvailableSpace(cacheDir);
+                // -1 if the volume state is unknown: nothing to base eviction on
+                if (availableBytes < 0 || availableBytes >= StorageMonitor.getLowSpaceBytes())
+                    return;
+                trimCache(StorageMonitor.getLowSpaceBytes() - availableBytes, keptFile);
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getTrimExecutorService() {
+        if (sTrimExecutorService == null)
+            sTrimExecutorService = Executors.newSingleThreadExecutor(
+                    new BackgroundThreadFactory(Thread.MIN_PRIORITY));
+        return sTrimExecutorService;
+    }
+
+    // files directly in the cache directory except keptFile and temp files being written
+    // ("<name>.tmp<thread id>" of image caches, ".tmp" of AtomicFiles)
+    private static void listCacheFiles(final File cacheDir, final File keptFile, final List<File> files) {
+        final File[] children = cacheDir.listFiles();
+        if (children == null)
+            return;
+        for (final File child : children)
+            if (!child.getName().contains(".tmp") && !child.equals(keptFile) && child.isFile())
+                files.add(child);
+    }
+
     /**
      * method used to clear/empty the cache by deleting all of stored files and dirs
      *
@@ -503,8 +603,8 @@ public class SDCardHelper {
         if (!cacheDir.exists())
             return false;
 
-        FileUtils.deleteFilesAndDirsRecursive(cacheDir);
-        return true;
+        // renamed away at once and purged in background, files made later recreate it via mkdirs
+        return Trash.delete(cacheDir);
     }
 
     /**
@@ -8,6 +8,7 @@ import android.text.TextUtils;
 import android.util.Base64;
 
 import com.securepreferences.SecurePreferences;
+import com.stanko.file.BufferPool;
 import com.tozny.crypto.android.AesCbcWithIntegrity;
 
 import org.json.JSONArray;
@@ -940,11 +941,15 @@ public class SharedPrefsHelper {
         if (filePath == null)
             return null;
         FileInputStream fi = null;
+        // decoder's read buffer, it allocates 16KB one otherwise
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inTempStorage = BufferPool.obtainFor(filePath);
         try {
             fi = new FileInputStream(filePath);
-            avatar = BitmapFactory.decodeStream(fi);
+            avatar = BitmapFactory.decodeStream(fi, null, options);
         } catch (FileNotFoundException ignored) {
         } finally {
+            BufferPool.recycle(options.inTempStorage);
             if (fi != null)
                 try {
                     fi.close();
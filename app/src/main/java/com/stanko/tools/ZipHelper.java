@@ -2,7 +2,8 @@ package com.stanko.tools;
 
 import android.text.TextUtils;
 
-import java.io.BufferedInputStream;
+import com.stanko.file.BufferPool;
+
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -23,12 +24,12 @@ public class ZipHelper {
     public static final int BUFFER = 1024;
 
     public static void zip(File[] files, File zipFileName) {
+        final byte[] data = BufferPool.obtainFor(zipFileName);
         FileOutputStream dest = null;
         ZipOutputStream zipOutputStream = null;
         try {
             dest = new FileOutputStream(zipFileName);
             zipOutputStream = new ZipOutputStream(new BufferedOutputStream(dest));
-            final byte data[] = new byte[BUFFER];
             for (File file : files) {
                 add(file, zipOutputStream, data);
             }
@@ -37,6 +38,7 @@ public class ZipHelper {
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            BufferPool.recycle(data);
             if (zipOutputStream != null)
                 try {
                     zipOutputStream.close();
@@ -53,12 +55,12 @@ public class ZipHelper {
     }
 
     public static void zip(String[] files, String zipFileName) {
+        final byte[] data = BufferPool.obtainFor(new File(zipFileName));
         FileOutputStream dest = null;
         ZipOutputStream zipOutputStream = null;
         try {
             dest = new FileOutputStream(zipFileName);
             zipOutputStream = new ZipOutputStream(new BufferedOutputStream(dest));
-            final byte data[] = new byte[BUFFER];
             for (String file : files) {
                 Log.d(LOG_TAG, "Adding: " + file);
                 add(new File(file), zipOutputStream, data);
@@ -69,6 +71,7 @@ public class ZipHelper {
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            BufferPool.recycle(data);
             if (zipOutputStream != null)
                 try {
                     zipOutputStream.close();
@@ -86,16 +89,16 @@ public class ZipHelper {
 
     private static void add(final File file, final ZipOutputStream zipOutputStream, final byte[] data) {
         Log.d(LOG_TAG, "Adding: " + file);
-        BufferedInputStream origin = null;
+        FileInputStream origin = null;
         try {
-            FileInputStream fi = new FileInputStream(file);
-            origin = new BufferedInputStream(fi, BUFFER);
+            // data buffer is big enough, no BufferedInputStream in between
+            origin = new FileInputStream(file);
 
             ZipEntry zipEntry = new ZipEntry(file.getName());
             zipOutputStream.putNextEntry(zipEntry);
             int count;
 
-            while ((count = origin.read(data, 0, BUFFER)) != -1) {
+            while ((count = origin.read(data, 0, data.length)) != -1) {
                 zipOutputStream.write(data, 0, count);
             }
         } catch (FileNotFoundException e) {
@@ -117,19 +120,18 @@ public class ZipHelper {
     }
 
     public static void zip(final File fileToAddToZip, File targetZipFile) {
+        final byte[] data = BufferPool.obtainFor(targetZipFile);
         try {
             Log.d(LOG_TAG, "Adding: " + fileToAddToZip);
             final FileOutputStream dest = new FileOutputStream(targetZipFile);
             final ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(dest));
-            final byte data[] = new byte[BUFFER];
-            final FileInputStream fi = new FileInputStream(fileToAddToZip);
-            final BufferedInputStream origin = new BufferedInputStream(fi, BUFFER);
+            final FileInputStream origin = new FileInputStream(fileToAddToZip);
 
             final ZipEntry entry = new ZipEntry(fileToAddToZip.getName());
             out.putNextEntry(entry);
             int count;
 
-            while ((count = origin.read(data, 0, BUFFER)) != -1) {
+            while ((count = origin.read(data, 0, data.length)) != -1) {
                 out.write(data, 0, count);
             }
             origin.close();
@@ -139,6 +141,8 @@ public class ZipHelper {
             dest.close();
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            BufferPool.recycle(data);
         }
     }
 
@@ -168,9 +172,7 @@ public class ZipHelper {
                     new File(targetLocation, zipEntry.getName()).mkdirs();
                 } else {
                     final FileOutputStream fileOutputStream = new FileOutputStream(targetLocation + zipEntry.getName());
-                    for (int c = zipInputStream.read(); c != -1; c = zipInputStream.read()) {
-                        fileOutputStream.write(c);
-                    }
+                    copy(zipInputStream, fileOutputStream, targetLocation);
                     FileUtils.sync(fileOutputStream);
                     zipInputStream.closeEntry();
                     fileOutputStream.close();
@@ -206,9 +208,7 @@ public class ZipHelper {
                 } else {
                     if (TextUtils.equals(targetFile, zipEntryName)) {
                         final FileOutputStream fileOutputStream = new FileOutputStream(targetLocation + zipEntryName);
-                        for (int c = zipInputStream.read(); c != -1; c = zipInputStream.read()) {
-                            fileOutputStream.write(c);
-                        }
+                        copy(zipInputStream, fileOutputStream, targetLocation);
                         FileUtils.sync(fileOutputStream);
                         zipInputStream.closeEntry();
                         fileOutputStream.close();
@@ -223,4 +223,16 @@ public class ZipHelper {
         }
     }
 
+    // copies current entry of zip stream through a pooled buffer instead of byte by byte
+    private static void copy(final ZipInputStream zipInputStream, final FileOutputStream fileOutputStream, final File targetLocation) throws IOException {
+        final byte[] data = BufferPool.obtainFor(targetLocation);
+        try {
+            int count;
+            while ((count = zipInputStream.read(data, 0, data.length)) != -1)
+                fileOutputStream.write(data, 0, count);
+        } finally {
+            BufferPool.recycle(data);
+        }
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,159 @@
+package com.stanko.file;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes of a window are committed together, the latest write of a target wins
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class GroupCommitWriterTest {
+
+    private File mDir;
+    private GroupCommitWriter mWriter;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("group", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+        // a long window, so all writes of a test get into one group
+        mWriter = new GroupCommitWriter(500);
+    }
+
+    @After
+    public void tearDown() {
+        mWriter.close();
+        final File[] files = mDir.listFiles();
+        if (files != null)
+            for (final File file : files)
+                file.delete();
+        mDir.delete();
+    }
+
+    @Test
+    public void concurrentWritesAreCommittedTogether() throws Exception {
+        final int threadsCount = 8;
+        final int filesPerThread = 10;
+        final CountDownLatch committedLatch = new CountDownLatch(threadsCount * filesPerThread);
+        final AtomicInteger failedCount = new AtomicInteger();
+        final GroupCommitWriter.ICommitCallback callback = new GroupCommitWriter.ICommitCallback() {
+            @Override
+            public void onCommitted(final File targetFile, final boolean isSucceed) {
+                if (!isSucceed)
+                    failedCount.incrementAndGet();
+                committedLatch.countDown();
+            }
+        };
+        final Thread[] threads = new Thread[threadsCount];
+        for (int t = 0; t < threadsCount; t++) {
+            final int thread = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < filesPerThread; i++)
+                        if (!mWriter.writeAsync(getData(thread, i), getFile(thread, i), callback))
+                            failedCount.incrementAndGet();
+                }
+            };
+            threads[t].start();
+        }
+        for (final Thread thread : threads)
+            thread.join();
+        // nothing is committed before the window passes
+        for (int t = 0; t < threadsCount; t++)
+            for (int i = 0; i < filesPerThread; i++)
+                assertFalse(getFile(t, i).exists());
+
+        assertTrue(committedLatch.await(10, TimeUnit.SECONDS));
+        assertEquals(0, failedCount.get());
+        for (int t = 0; t < threadsCount; t++)
+            for (int i = 0; i < filesPerThread; i++)
+                assertArrayEquals(getData(t, i), readAll(getFile(t, i)));
+        // no temp files are left
+        assertEquals(threadsCount * filesPerThread, mDir.list().length);
+    }
+
+    @Test
+    public void latestWriteOfTargetWins() throws Exception {
+        final File file = new File(mDir, "state");
+        // what each callback saw, checked here: the committing thread would swallow assertion errors
+        final List<String> committedContents = new ArrayList<>();
+        final GroupCommitWriter.ICommitCallback callback = new GroupCommitWriter.ICommitCallback() {
+            @Override
+            public void onCommitted(final File targetFile, final boolean isSucceed) {
+                final byte[] data = readAllQuietly(targetFile);
+                synchronized (committedContents) {
+                    committedContents.add(isSucceed && data != null ? new String(data) : null);
+                }
+            }
+        };
+        for (int i = 1; i <= 3; i++)
+            assertTrue(mWriter.writeAsync(String.valueOf(i).getBytes(), file, callback));
+        mWriter.flush();
+        // every superseded write is told about the commit too
+        synchronized (committedContents) {
+            assertEquals(Arrays.asList("3", "3", "3"), committedContents);
+        }
+        assertArrayEquals("3".getBytes(), readAll(file));
+    }
+
+    @Test
+    public void blockingWriteWaitsForCommit() throws IOException {
+        final File file = new File(mDir, "blocking");
+        assertTrue(mWriter.write("data".getBytes(), file));
+        assertArrayEquals("data".getBytes(), readAll(file));
+    }
+
+    @Test
+    public void closedWriterRejectsWrites() {
+        mWriter.close();
+        assertFalse(mWriter.writeAsync("data".getBytes(), new File(mDir, "closed"), null));
+        assertFalse(mWriter.write("data".getBytes(), new File(mDir, "closed")));
+    }
+
+    private File getFile(final int thread, final int index) {
+        return new File(mDir, thread + "-" + index);
+    }
+
+    private static byte[] getData(final int thread, final int index) {
+        return ("thread " + thread + " file " + index).getBytes();
+    }
+
+    private static byte[] readAllQuietly(final File file) {
+        try {
+            return readAll(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] readAll(final File file) throws IOException {
+        final byte[] data = new byte[(int) file.length()];
+        final DataInputStream inputStream = new DataInputStream(new FileInputStream(file));
+        try {
+            inputStream.readFully(data);
+        } finally {
+            inputStream.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,114 @@
+package com.stanko.file;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Base64 encoded chunk by chunk over several windows is the same as of the whole file at once
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class MappedFileTest {
+
+    // android.util.Base64 flags
+    private static final int DEFAULT = 0;
+    private static final int NO_PADDING = 1;
+    private static final int NO_WRAP = 2;
+
+    // android.util.Base64 of the flags above: a line feed after every 76 chars and at the end
+    private static final MappedFile.IBase64Encoder ENCODER = new MappedFile.IBase64Encoder() {
+        @Override
+        public String encodeToString(final byte[] input, final int offset, final int length, final int flags) {
+            return encode(input, offset, length, flags);
+        }
+    };
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("mapped", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void toBase64OverWindowsMatchesWholeFile() throws IOException {
+        // window of 64KB holds one 57KB chunk, so the file is read through many windows
+        for (final int length : new int[]{0, 1, 57, 57 * 1024, 57 * 1024 + 1, 64 * 1024, 500 * 1024 + 7}) {
+            final byte[] data = writeFile(length);
+            final MappedFile mappedFile = MappedFile.open(mFile, 64 * 1024);
+            assertNotNull(mappedFile);
+            try {
+                for (final int flags : new int[]{DEFAULT, NO_WRAP, NO_WRAP | NO_PADDING})
+                    assertEquals("length " + length + " flags " + flags,
+                            encode(data, 0, data.length, flags), mappedFile.toBase64(flags, ENCODER));
+            } finally {
+                mappedFile.close();
+            }
+        }
+    }
+
+    @Test
+    public void toBase64WithDefaultWindow() throws IOException {
+        final byte[] data = writeFile(3 * 1024 * 1024 + 777);
+        final MappedFile mappedFile = MappedFile.open(mFile);
+        assertNotNull(mappedFile);
+        try {
+            final String base64 = mappedFile.toBase64(DEFAULT, ENCODER);
+            assertEquals(encode(data, 0, data.length, DEFAULT), base64);
+            assertTrue(base64.endsWith("\n"));
+        } finally {
+            mappedFile.close();
+        }
+    }
+
+    private byte[] writeFile(final int length) throws IOException {
+        final byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        final FileOutputStream outputStream = new FileOutputStream(mFile);
+        try {
+            outputStream.write(data);
+        } finally {
+            outputStream.close();
+        }
+        return data;
+    }
+
+    private static String encode(final byte[] input, final int offset, final int length, final int flags) {
+        final char[] alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+        final StringBuilder encoded = new StringBuilder();
+        for (int i = 0; i < length; i += 3) {
+            final int count = Math.min(3, length - i);
+            int bits = 0;
+            for (int j = 0; j < 3; j++)
+                bits = (bits << 8) | (j < count ? input[offset + i + j] & 0xff : 0);
+            for (int j = 0; j < 4; j++) {
+                if (j <= count)
+                    encoded.append(alphabet[(bits >> (18 - 6 * j)) & 0x3f]);
+                else if ((flags & NO_PADDING) == 0)
+                    encoded.append('=');
+            }
+        }
+        if ((flags & NO_WRAP) != 0)
+            return encoded.toString();
+        final StringBuilder wrapped = new StringBuilder();
+        for (int i = 0; i < encoded.length(); i += 76)
+            wrapped.append(encoded, i, Math.min(encoded.length(), i + 76)).append('\n');
+        return wrapped.toString();
+    }
+}
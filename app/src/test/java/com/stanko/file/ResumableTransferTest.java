@@ -0,0 +1,179 @@
+package com.stanko.file;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Journal of ResumableTransfer: interrupted transfers continue from the last verified chunk
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class ResumableTransferTest {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private File mDir;
+    private File mSrcFile;
+    private File mDstFile;
+    private byte[] mData;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("transfer", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+        mSrcFile = new File(mDir, "src");
+        mDstFile = new File(mDir, "dst");
+        mData = new byte[16 * CHUNK_SIZE + 123];
+        new Random(4).nextBytes(mData);
+        final FileOutputStream outputStream = new FileOutputStream(mSrcFile);
+        outputStream.write(mData);
+        outputStream.close();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = mDir.listFiles();
+        if (files != null)
+            for (final File file : files)
+                file.delete();
+        mDir.delete();
+    }
+
+    @Test
+    public void interruptedCopyResumesAfterLastChunk() throws IOException {
+        interruptCopyAfterChunks(4);
+        assertTrue(ResumableTransfer.hasUnfinished(mDstFile));
+        assertFalse(mDstFile.exists());
+
+        final ProgressRecorder progressRecorder = new ProgressRecorder();
+        assertEquals(mData.length, new ResumableTransfer().setChunkSize(CHUNK_SIZE)
+                .setProgressListener(progressRecorder).copy(mSrcFile, mDstFile));
+        assertEquals(5 * CHUNK_SIZE, progressRecorder.firstDoneBytes);
+        assertArrayEquals(mData, readAll(mDstFile));
+        assertFalse(ResumableTransfer.hasUnfinished(mDstFile));
+        assertEquals(2, mDir.list().length);
+    }
+
+    @Test
+    public void corruptedLastChunkIsWrittenAgain() throws IOException {
+        interruptCopyAfterChunks(4);
+        // as if the part file lost the last chunk's data while its record was kept
+        final RandomAccessFile part = new RandomAccessFile(new File(mDir, ".dst.part"), "rw");
+        part.seek(3 * CHUNK_SIZE + 5);
+        final int value = part.readByte();
+        part.seek(3 * CHUNK_SIZE + 5);
+        part.write(value ^ 0x55);
+        part.close();
+
+        final ProgressRecorder progressRecorder = new ProgressRecorder();
+        new ResumableTransfer().setChunkSize(CHUNK_SIZE).setProgressListener(progressRecorder).copy(mSrcFile, mDstFile);
+        assertEquals(4 * CHUNK_SIZE, progressRecorder.firstDoneBytes);
+        assertArrayEquals(mData, readAll(mDstFile));
+    }
+
+    @Test
+    public void failedStreamWriteResumes() throws IOException {
+        final InputStream failingStream = new FilterInputStream(new ByteArrayInputStream(mData)) {
+            private int mReadBytes;
+
+            @Override
+            public int read(final byte[] buffer, final int offset, final int count) throws IOException {
+                if ((mReadBytes += count) > mData.length / 2)
+                    throw new IOException("network is down");
+                return super.read(buffer, offset, count);
+            }
+        };
+        try {
+            new ResumableTransfer().setChunkSize(CHUNK_SIZE).write(failingStream, "url#1", mData.length, mDstFile);
+            fail("stream failure is not thrown");
+        } catch (IOException e) {
+            assertTrue(ResumableTransfer.hasUnfinished(mDstFile));
+        }
+
+        final ProgressRecorder progressRecorder = new ProgressRecorder();
+        assertEquals(mData.length, new ResumableTransfer().setChunkSize(CHUNK_SIZE).setProgressListener(progressRecorder)
+                .write(new ByteArrayInputStream(mData), "url#1", mData.length, mDstFile));
+        assertTrue(progressRecorder.firstDoneBytes > CHUNK_SIZE);
+        assertArrayEquals(mData, readAll(mDstFile));
+    }
+
+    @Test
+    public void otherSourceStartsOver() throws IOException {
+        interruptCopyAfterChunks(4);
+        final ProgressRecorder progressRecorder = new ProgressRecorder();
+        new ResumableTransfer().setChunkSize(CHUNK_SIZE).setProgressListener(progressRecorder)
+                .write(new ByteArrayInputStream(mData), "url#2", mData.length, mDstFile);
+        assertEquals(CHUNK_SIZE, progressRecorder.firstDoneBytes);
+        assertArrayEquals(mData, readAll(mDstFile));
+    }
+
+    @Test
+    public void changedLengthIsDiscarded() {
+        try {
+            new ResumableTransfer().setChunkSize(CHUNK_SIZE)
+                    .write(new ByteArrayInputStream(mData, 0, 100), "url#1", 200, mDstFile);
+            fail("length change is not thrown");
+        } catch (IOException e) {
+            assertFalse(ResumableTransfer.hasUnfinished(mDstFile));
+            assertFalse(mDstFile.exists());
+        }
+    }
+
+    private void interruptCopyAfterChunks(final int chunksCount) throws IOException {
+        try {
+            new ResumableTransfer().setChunkSize(CHUNK_SIZE).setProgressListener(new ResumableTransfer.IProgressListener() {
+                private int mChunksCount;
+
+                @Override
+                public void onProgress(final File targetFile, final long doneBytes, final long totalBytes) {
+                    if (++mChunksCount == chunksCount)
+                        Thread.currentThread().interrupt();
+                }
+            }).copy(mSrcFile, mDstFile);
+            fail("interruption is not thrown");
+        } catch (InterruptedIOException e) {
+            assertEquals(chunksCount * CHUNK_SIZE, new File(mDir, ".dst.part").length());
+        }
+    }
+
+    private static class ProgressRecorder implements ResumableTransfer.IProgressListener {
+        long firstDoneBytes = -1;
+
+        @Override
+        public void onProgress(final File targetFile, final long doneBytes, final long totalBytes) {
+            if (firstDoneBytes < 0)
+                firstDoneBytes = doneBytes;
+        }
+    }
+
+    private static byte[] readAll(final File file) throws IOException {
+        final byte[] data = new byte[(int) file.length()];
+        final DataInputStream inputStream = new DataInputStream(new FileInputStream(file));
+        try {
+            inputStream.readFully(data);
+        } finally {
+            inputStream.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,81 @@
+package com.stanko.image;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BK-tree search gives the same matches as a brute force scan
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class HammingBKTreeTest {
+
+    @Test
+    public void searchMatchesBruteForce() {
+        final Random random = new Random(3);
+        final HammingBKTree tree = new HammingBKTree();
+        final List<Long> hashes = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            final long hash;
+            if (i > 0 && random.nextInt(4) == 0)
+                // near duplicates of earlier ones, like similar photos
+                hash = flipBits(hashes.get(random.nextInt(hashes.size())), random.nextInt(6), random);
+            else
+                hash = random.nextLong();
+            hashes.add(hash);
+            tree.add(hash, i);
+        }
+        assertEquals(hashes.size(), tree.size());
+
+        for (int i = 0; i < 300; i++) {
+            final long query = flipBits(hashes.get(random.nextInt(hashes.size())), random.nextInt(4), random);
+            for (final int maxDistance : new int[]{0, 3, 10}) {
+                final Set<Long> expectedIds = new HashSet<>();
+                for (int id = 0; id < hashes.size(); id++)
+                    if (Long.bitCount(hashes.get(id) ^ query) <= maxDistance)
+                        expectedIds.add((long) id);
+                final Set<Long> foundIds = new HashSet<>();
+                for (final HammingBKTree.Match match : tree.search(query, maxDistance)) {
+                    assertTrue(foundIds.add(match.id));
+                    assertEquals(hashes.get((int) match.id).longValue(), match.hash);
+                    assertEquals(Long.bitCount(match.hash ^ query), match.distance);
+                }
+                assertEquals(expectedIds, foundIds);
+            }
+        }
+    }
+
+    @Test
+    public void sameHashKeepsAllIds() {
+        final HammingBKTree tree = new HammingBKTree();
+        for (int id = 0; id < 10; id++)
+            tree.add(0x0123456789abcdefL, id);
+        assertEquals(10, tree.search(0x0123456789abcdefL, 0).size());
+        assertEquals(10, tree.size());
+    }
+
+    @Test
+    public void clearEmptiesTree() {
+        final HammingBKTree tree = new HammingBKTree();
+        tree.add(1, 1);
+        tree.add(2, 2);
+        tree.clear();
+        assertEquals(0, tree.size());
+        assertTrue(tree.search(1, 64).isEmpty());
+    }
+
+    private static long flipBits(long hash, final int count, final Random random) {
+        for (int i = 0; i < count; i++)
+            hash ^= 1L << random.nextInt(64);
+        return hash;
+    }
+}
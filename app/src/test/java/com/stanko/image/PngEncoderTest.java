@@ -0,0 +1,60 @@
+package com.stanko.image;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Adler-32 of IDAT bands deflated in parallel is combined from Adler-32 of each band
+ *
+ * Authors:
+ * Stan Koshutsky <Stan.Koshutsky@gmail.com>
+ */
+public class PngEncoderTest {
+
+    @Test
+    public void combineAdler32MatchesWholeSequence() {
+        final Random random = new Random(1);
+        final byte[] data = new byte[256 * 1024];
+        random.nextBytes(data);
+        for (int i = 0; i < 200; i++) {
+            final int split = random.nextInt(data.length + 1);
+            assertEquals("split at " + split, adler32(data, 0, data.length),
+                    PngEncoder.combineAdler32(adler32(data, 0, split), adler32(data, split, data.length - split), data.length - split));
+        }
+    }
+
+    @Test
+    public void combineAdler32OfManyBands() {
+        final Random random = new Random(2);
+        final byte[] data = new byte[1024 * 1024 + 7];
+        random.nextBytes(data);
+        // long runs of 0xff push both sums close to the modulus
+        for (int i = 0; i < 64 * 1024; i++)
+            data[i] = (byte) 0xff;
+        final int bandSize = 70001;
+        long adler = 1;
+        for (int offset = 0; offset < data.length; offset += bandSize) {
+            final int length = Math.min(bandSize, data.length - offset);
+            adler = PngEncoder.combineAdler32(adler, adler32(data, offset, length), length);
+        }
+        assertEquals(adler32(data, 0, data.length), adler);
+    }
+
+    @Test
+    public void combineAdler32WithEmptySequence() {
+        final byte[] data = "IDAT".getBytes();
+        final long adler = adler32(data, 0, data.length);
+        assertEquals(adler, PngEncoder.combineAdler32(adler, 1, 0));
+        assertEquals(adler, PngEncoder.combineAdler32(1, adler, data.length));
+    }
+
+    private static long adler32(final byte[] data, final int offset, final int length) {
+        final Adler32 adler32 = new Adler32();
+        adler32.update(data, offset, length);
+        return adler32.getValue();
+    }
+}